@@ -84,14 +84,19 @@ class CodeBook{
   private int[] t=new int[15]; // decodevs_add is synchronized for re-using t.
 
   synchronized int decodevs_add(float[] a, int offset, Buffer b, int n){
+    if(t.length<n/dim){
+      t=new int[n/dim];
+    }
+    return (decodevs_add(a, offset, b, n, t));
+  }
+
+  // As above, with scratch storage of at least n/dim entries provided
+  // by the caller, for streams that keep their own.
+  int decodevs_add(float[] a, int offset, Buffer b, int n, int[] t){
     int step=n/dim;
     int entry;
     int i, j, o;
 
-    if(t.length<step){
-      t=new int[step];
-    }
-
     for(i=0; i<step; i++){
       entry=decode(b);
       if(entry==-1)
@@ -209,6 +214,22 @@ class CodeBook{
   int decode(Buffer b){
     int ptr=0;
     DecodeAux t=decode_tree;
+    FastAux f=t.fast;
+    if(f!=null){
+      // The wide table resolves all but the longest codewords at once.
+      // Should fewer bits than it needs remain in the packet, fall
+      // back to the narrow table, so that truncated packets decode
+      // exactly as they otherwise would.
+      int lok=b.look(f.tabn);
+      if(lok>=0){
+        ptr=f.tab[lok];
+        b.adv(f.tabl[lok]);
+        if(ptr<=0){
+          return -ptr;
+        }
+        return (walk(b, t, ptr));
+      }
+    }
     int lok=b.look(t.tabn);
 
     if(lok>=0){
@@ -218,6 +239,10 @@ class CodeBook{
         return -ptr;
       }
     }
+    return (walk(b, t, ptr));
+  }
+
+  private static int walk(Buffer b, DecodeAux t, int ptr){
     do{
       switch(b.read1()){
         case 0:
@@ -466,13 +491,66 @@ class CodeBook{
     return (t);
   }
 
+  static final int FASTBITS=10;
+
+  // Adds a lookup table wide enough to resolve codewords of up to
+  // FASTBITS bits in one step, to be used before the regular one.
+  // Codebooks are interned and so may be shared with streams already
+  // decoding; the table is published whole through a final-field
+  // holder for their sake.
+  void init_fast(){
+    DecodeAux t=decode_tree;
+    if(t.fast!=null)
+      return;
+    int maxlen=0;
+    for(int i=0; i<entries; i++){
+      if(c.lengthlist[i]>maxlen)
+        maxlen=c.lengthlist[i];
+    }
+    int tabn=Math.min(maxlen, FASTBITS);
+    if(tabn<=t.tabn)
+      return;
+    int n=1<<tabn;
+    int[] tab=new int[n];
+    int[] tabl=new int[n];
+    for(int i=0; i<n; i++){
+      int p=0;
+      int j=0;
+      for(j=0; j<tabn&&(p>0||j==0); j++){
+        if((i&(1<<j))!=0){
+          p=t.ptr1[p];
+        }
+        else{
+          p=t.ptr0[p];
+        }
+      }
+      tab[i]=p;
+      tabl[i]=j;
+    }
+    t.fast=new FastAux(tab, tabl, tabn);
+  }
+
   class DecodeAux{
     int[] tab;
     int[] tabl;
     int tabn;
 
+    FastAux fast;
+
     int[] ptr0;
     int[] ptr1;
     int aux; // number of tree entries
   }
+
+  static class FastAux{
+    final int[] tab;
+    final int[] tabl;
+    final int tabn;
+
+    FastAux(int[] tab, int[] tabl, int tabn){
+      this.tab=tab;
+      this.tabl=tabl;
+      this.tabn=tabn;
+    }
+  }
 }
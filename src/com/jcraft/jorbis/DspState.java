@@ -31,7 +31,14 @@ public class DspState{
   static final int VI_TRANSFORMB=1;
   static final int VI_WINDOWB=1;
 
+  // Streams initialized while this is set decode in fast mode: with
+  // scratch storage of their own instead of storage shared by all
+  // streams under a lock, and with wider codebook lookup tables. The
+  // decoded PCM is identical either way.
+  public static boolean fastdecode=true;
+
   int analysisp;
+  boolean fast;
   Info vi;
   int modebits;
 
@@ -138,6 +145,7 @@ public class DspState{
 
   int init(Info vi, boolean encp){
     this.vi=vi;
+    fast=fastdecode;
     modebits=Util.ilog2(vi.modes);
 
     transform[0]=new Object[VI_TRANSFORMB];
@@ -173,8 +181,11 @@ public class DspState{
     }
 
     fullbooks=new CodeBook[vi.books];
-    for(int i=0; i<vi.books; i++)
+    for(int i=0; i<vi.books; i++){
       fullbooks[i] = vi.book_param[i].decode();
+      if(fast&&fullbooks[i]!=null)
+        fullbooks[i].init_fast();
+    }
 
     // initialize the storage vectors to a decent size greater than the
     // minimum
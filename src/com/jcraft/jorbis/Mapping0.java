@@ -183,26 +183,55 @@ class Mapping0 extends FuncMapping{
     return info;
   }
 
-  float[][] pcmbundle=null;
-  int[] zerobundle=null;
-  int[] nonzero=null;
-  Object[] floormemo=null;
+  // Working storage for inverse(). The shared instance serves every
+  // stream in the process under the lock of this (singleton) mapping;
+  // streams decoding in fast mode have their own in their look
+  // instead, so that they neither contend nor reallocate.
+  static class Scratch{
+    float[][] pcmbundle=null;
+    int[] zerobundle=null;
+    int[] nonzero=null;
+    Object[] floormemo=null;
+    Object[] floorbuf=null;
+
+    void ensure(int ch){
+      if(pcmbundle==null||pcmbundle.length<ch){
+        pcmbundle=new float[ch][];
+        nonzero=new int[ch];
+        zerobundle=new int[ch];
+        floormemo=new Object[ch];
+        floorbuf=new Object[ch];
+      }
+    }
+  }
+
+  private final Scratch shared=new Scratch();
+
+  int inverse(Block vb, Object l){
+    LookMapping0 look=(LookMapping0)l;
+    if(vb.vd.fast){
+      if(look.scratch==null)
+        look.scratch=new Scratch();
+      return (inverse(vb, look, look.scratch));
+    }
+    synchronized(this){
+      return (inverse(vb, look, shared));
+    }
+  }
 
-  synchronized int inverse(Block vb, Object l){
+  private int inverse(Block vb, LookMapping0 look, Scratch sc){
     DspState vd=vb.vd;
     Info vi=vd.vi;
-    LookMapping0 look=(LookMapping0)l;
     InfoMapping0 info=look.map;
     InfoMode mode=look.mode;
     int n=vb.pcmend=vi.blocksizes[vb.W];
 
     float[] window=vd.window[vb.W][vb.lW][vb.nW][mode.windowtype];
-    if(pcmbundle==null||pcmbundle.length<vi.channels){
-      pcmbundle=new float[vi.channels][];
-      nonzero=new int[vi.channels];
-      zerobundle=new int[vi.channels];
-      floormemo=new Object[vi.channels];
-    }
+    sc.ensure(vi.channels);
+    float[][] pcmbundle=sc.pcmbundle;
+    int[] zerobundle=sc.zerobundle;
+    int[] nonzero=sc.nonzero;
+    Object[] floormemo=sc.floormemo;
 
     // time domain information decode (note that applying the
     // information would have to happen later; we'll probably add a
@@ -214,8 +243,18 @@ class Mapping0 extends FuncMapping{
       float[] pcm=vb.pcm[i];
       int submap=info.chmuxlist[i];
 
-      floormemo[i]=look.floor_func[submap].inverse1(vb,
-          look.floor_look[submap], floormemo[i]);
+      if(vd.fast){
+        // Keep the floor's buffer even across packets where the
+        // channel is unused, rather than dropping it with the memo.
+        floormemo[i]=look.floor_func[submap].inverse1(vb,
+            look.floor_look[submap], sc.floorbuf[i]);
+        if(floormemo[i]!=null)
+          sc.floorbuf[i]=floormemo[i];
+      }
+      else{
+        floormemo[i]=look.floor_func[submap].inverse1(vb,
+            look.floor_look[submap], floormemo[i]);
+      }
       if(floormemo[i]!=null){
         nonzero[i]=1;
       }
@@ -368,6 +407,7 @@ class Mapping0 extends FuncMapping{
 
     int ch;
     float[][] decay;
+    Mapping0.Scratch scratch;
     int lastframe; // if a different mode is called, we need to 
     // invalidate decay and floor state
   }
@@ -155,11 +155,25 @@ class Residue0 extends FuncResidue{
 
   private static int[][][] _01inverse_partword=new int[2][][]; // _01inverse is synchronized for
 
-  // re-using partword
-  synchronized static int _01inverse(Block vb, Object vl, float[][] in, int ch,
+  // re-using partword. Streams in fast mode keep their own partword
+  // in their look, and need no lock.
+  static int _01inverse(Block vb, Object vl, float[][] in, int ch,
       int decodepart){
-    int i, j, k, l, s;
     LookResidue0 look=(LookResidue0)vl;
+    if(vb.vd.fast){
+      look.partword=_01inverse(vb, look, in, ch, decodepart, look.partword);
+      return (0);
+    }
+    synchronized(Residue0.class){
+      _01inverse_partword=_01inverse(vb, look, in, ch, decodepart,
+          _01inverse_partword);
+    }
+    return (0);
+  }
+
+  private static int[][][] _01inverse(Block vb, LookResidue0 look,
+      float[][] in, int ch, int decodepart, int[][][] _01inverse_partword){
+    int i, j, k, l, s;
     InfoResidue0 info=look.info;
 
     // move all this setup out later
@@ -170,7 +184,7 @@ class Residue0 extends FuncResidue{
     int partvals=n/samples_per_partition;
     int partwords=(partvals+partitions_per_word-1)/partitions_per_word;
 
-    if(_01inverse_partword.length<ch){
+    if(_01inverse_partword==null||_01inverse_partword.length<ch){
       _01inverse_partword=new int[ch][][];
     }
 
@@ -189,11 +203,11 @@ class Residue0 extends FuncResidue{
           for(j=0; j<ch; j++){
             int temp=look.phrasebook.decode(vb.opb);
             if(temp==-1){
-              return (0);
+              return (_01inverse_partword);
             }
             _01inverse_partword[j][l]=look.decodemap[temp];
             if(_01inverse_partword[j][l]==null){
-              return (0);
+              return (_01inverse_partword);
             }
           }
         }
@@ -207,15 +221,25 @@ class Residue0 extends FuncResidue{
               CodeBook stagebook=look.fullbooks[look.partbooks[index][s]];
               if(stagebook!=null){
                 if(decodepart==0){
-                  if(stagebook.decodevs_add(in[j], offset, vb.opb,
-                      samples_per_partition)==-1){
-                    return (0);
+                  int ret;
+                  if(vb.vd.fast){
+                    if(look.vsbuf==null||look.vsbuf.length<samples_per_partition)
+                      look.vsbuf=new int[samples_per_partition];
+                    ret=stagebook.decodevs_add(in[j], offset, vb.opb,
+                        samples_per_partition, look.vsbuf);
+                  }
+                  else{
+                    ret=stagebook.decodevs_add(in[j], offset, vb.opb,
+                        samples_per_partition);
+                  }
+                  if(ret==-1){
+                    return (_01inverse_partword);
                   }
                 }
                 else if(decodepart==1){
                   if(stagebook.decodev_add(in[j], offset, vb.opb,
                       samples_per_partition)==-1){
-                    return (0);
+                    return (_01inverse_partword);
                   }
                 }
               }
@@ -223,14 +247,26 @@ class Residue0 extends FuncResidue{
           }
       }
     }
-    return (0);
+    return (_01inverse_partword);
   }
 
   static int[][] _2inverse_partword=null;
 
-  synchronized static int _2inverse(Block vb, Object vl, float[][] in, int ch){
-    int i, k, l, s;
+  static int _2inverse(Block vb, Object vl, float[][] in, int ch){
     LookResidue0 look=(LookResidue0)vl;
+    if(vb.vd.fast){
+      look.partword2=_2inverse(vb, look, in, ch, look.partword2);
+      return (0);
+    }
+    synchronized(Residue0.class){
+      _2inverse_partword=_2inverse(vb, look, in, ch, _2inverse_partword);
+    }
+    return (0);
+  }
+
+  private static int[][] _2inverse(Block vb, LookResidue0 look, float[][] in,
+      int ch, int[][] _2inverse_partword){
+    int i, k, l, s;
     InfoResidue0 info=look.info;
 
     // move all this setup out later
@@ -250,11 +286,11 @@ class Residue0 extends FuncResidue{
           // fetch the partition word for each channel
           int temp=look.phrasebook.decode(vb.opb);
           if(temp==-1){
-            return (0);
+            return (_2inverse_partword);
           }
           _2inverse_partword[l]=look.decodemap[temp];
           if(_2inverse_partword[l]==null){
-            return (0);
+            return (_2inverse_partword);
           }
         }
 
@@ -267,14 +303,14 @@ class Residue0 extends FuncResidue{
             if(stagebook!=null){
               if(stagebook.decodevv_add(in, offset, ch, vb.opb,
                   samples_per_partition)==-1){
-                return (0);
+                return (_2inverse_partword);
               }
             }
           }
         }
       }
     }
-    return (0);
+    return (_2inverse_partword);
   }
 
   int inverse(Block vb, Object vl, float[][] in, int[] nonzero, int ch){
@@ -306,6 +342,10 @@ class Residue0 extends FuncResidue{
     int postbits;
     int phrasebits;
     int frames;
+
+    int[][][] partword; // fast mode only
+    int[][] partword2;
+    int[] vsbuf;
   }
 
   class InfoResidue0{
@@ -159,6 +159,40 @@ public class VorbisStream {
 	}
     }
     
+    /**
+     * Decodes samples directly into a buffer provided by the caller,
+     * sparing the allocations of {@link #decode()}. At most
+     * <code>len</code> samples are written to each array of
+     * <code>dst</code>, starting at <code>off</code>. If
+     * <code>dst</code> contains more arrays than the stream has
+     * channels, the channels are repeated over them.
+     *
+     * @return The number of samples decoded, which is at least one,
+     * or -1 when the stream ends.
+     * 
+     * @exception java.io.IOException if the backing input stream
+     * itself throws an <code>IOException</code>.
+     * @exception FormatException if a format error is found in
+     * the input.
+     */
+    public int decode(float[][] dst, int off, int len) throws IOException {
+	while(true) {
+	    int av = dsp.synthesis_pcmout(pcmp, idxp);
+	    if(av > 0) {
+		int n = Math.min(av, len);
+		for(int i = 0; i < dst.length; i++)
+		    System.arraycopy(pcmp[0][i % chn], idxp[i % chn], dst[i], off, n);
+		dsp.synthesis_read(n);
+		return(n);
+	    }
+	    Packet pkt = in.packet();
+	    if(pkt == null)
+		return(-1);
+	    if((blk.synthesis(pkt) != 0) || (dsp.synthesis_blockin(blk) != 0))
+		throw(new VorbisException());
+	}
+    }
+    
     /**
      * Constructs and returns a <code>java.io.InputStream</code> which
      * uses the {@link #decode()} function to decode data, and encodes
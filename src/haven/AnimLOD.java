@@ -0,0 +1,96 @@
+package haven;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import haven.render.*;
+
+/* Level of detail for skeletal animation. The map view publishes a
+ * snapshot of its camera on every tick, against which composites
+ * find their level from their on-screen size, being updated at a
+ * lower rate the smaller they appear, and only rarely when outside
+ * the view altogether. Time skipped between updates is kept, so
+ * animations stay in phase and come back to full rate at once. */
+public class AnimLOD {
+    public static final int FULL = 0, REDUCED = 1, FAR = 2, HIDDEN = 3;
+    public static final String[] names = {"full", "reduced", "far", "hidden"};
+    public static boolean enabled = Config.animlod;
+    /* On-screen size of a tile, in pixels, below which to use the
+     * reduced and far levels. */
+    public static float near = (float)Config.animlodnear, far = (float)Config.animlodfar;
+    public static final double[] ival = {0.0, 1.0 / 15.0, 1.0 / 5.0, 1.0};
+    private static final AtomicIntegerArray count = new AtomicIntegerArray(names.length);
+    private static final AtomicIntegerArray upd = new AtomicIntegerArray(names.length);
+    private static final int[] lcount = new int[names.length], lupd = new int[names.length];
+    private final Matrix4f pv;
+    private final float hh;
+    private final double time;
+
+    public AnimLOD(Projection proj, Camera view, Coord sz) {
+	this.pv = proj.fin(Matrix4f.id).mul(view.fin(Matrix4f.id));
+	this.hh = sz.y * 0.5f;
+	this.time = Utils.rtime();
+    }
+
+    /* Takes the location of the object as returned by Gob.getc(). */
+    public int level(Coord3f c) {
+	if(!enabled || (Utils.rtime() - time > 1.0))
+	    return(FULL);
+	float[] m = pv.m;
+	float x = (m[ 0] * c.x) - (m[ 4] * c.y) + (m[ 8] * c.z) + m[12];
+	float y = (m[ 1] * c.x) - (m[ 5] * c.y) + (m[ 9] * c.z) + m[13];
+	float w = (m[ 3] * c.x) - (m[ 7] * c.y) + (m[11] * c.z) + m[15];
+	/* Leave a margin of a fifth of the view, so that anything
+	 * only partly visible, or about to come into view, is still
+	 * animated as usual. */
+	float lim = w * 1.2f;
+	if((w <= 0) || (x < -lim) || (x > lim) || (y < -lim) || (y > lim))
+	    return(HIDDEN);
+	float sz = (float)MCache.tilesz.y * m[5] * hh / w;
+	if(sz >= near)
+	    return(FULL);
+	if(sz >= far)
+	    return(REDUCED);
+	return(FAR);
+    }
+
+    public static void count(int level, boolean updated) {
+	count.incrementAndGet(level);
+	if(updated)
+	    upd.incrementAndGet(level);
+    }
+
+    /* Called once per frame, to make the counts of the last frame
+     * available to stats(). */
+    public static void cycle() {
+	synchronized(lcount) {
+	    for(int i = 0; i < names.length; i++) {
+		lcount[i] = count.getAndSet(i, 0);
+		lupd[i] = upd.getAndSet(i, 0);
+	    }
+	}
+    }
+
+    public static String stats() {
+	StringBuilder buf = new StringBuilder();
+	synchronized(lcount) {
+	    for(int i = 0; i < names.length; i++) {
+		if(i > 0)
+		    buf.append(", ");
+		buf.append(String.format("%s %d/%d", names[i], lupd[i], lcount[i]));
+	    }
+	}
+	return(buf.toString());
+    }
+
+    static {
+	Console.setscmd("animlod", (cons, args) -> {
+		if(args.length < 2) {
+		    cons.out.printf("animlod: %s, near %.1f, far %.1f; %s\n", enabled, near, far, stats());
+		} else if(args.length >= 3) {
+		    near = Float.parseFloat(args[1]);
+		    far = Float.parseFloat(args[2]);
+		} else {
+		    enabled = Utils.parsebool(args[1]);
+		}
+	    });
+    }
+}
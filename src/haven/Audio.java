@@ -48,8 +48,12 @@ public class Audio {
 	Utils.setpref("sfxvol", Double.toString(volume));
     }
 
+    /* Streams produce samples in [-1, 1] into one float array per
+     * output channel. get() is called only from the audio thread, so
+     * implementations should keep whatever scratch buffers they need
+     * as fields rather than allocate per call. */
     public interface CS {
-	public int get(double[][] buf, int len);
+	public int get(float[][] buf, int len);
     }
 
     public interface Clip extends Resource.IDLayer<String> {
@@ -61,7 +65,10 @@ public class Audio {
     
     public static class Mixer implements CS {
 	public final boolean cont;
-	private final Collection<CS> clips = new LinkedList<CS>();
+	/* Copy-on-write, so that the audio thread can iterate it
+	 * without locking. Only modifications synchronize. */
+	private volatile CS[] clips = {};
+	private float[][] buf = {};
 
 	public Mixer(boolean continuous) {
 	    this.cont = continuous;
@@ -71,40 +78,43 @@ public class Audio {
 	    this(false);
 	}
 
-	public int get(double[][] dst, int ns) {
+	private float[][] buf(int nch, int ns) {
+	    float[][] buf = this.buf;
+	    if((buf.length != nch) || ((nch > 0) && (buf[0].length < ns)))
+		this.buf = buf = new float[nch][Math.max(ns, 512)];
+	    return(buf);
+	}
+
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
-	    double[][] buf = new double[nch][ns];
+	    float[][] buf = buf(nch, ns);
 	    int max = 0;
-	    synchronized(clips) {
-		clip: for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    CS cs = i.next();
-		    int left = ns;
-		    int boff = 0;
-		    while(left > 0) {
-			int ret = cs.get(buf, left);
-			if(ret < 0) {
-			    i.remove();
-			    continue clip;
-			}
-			if(boff + ret > max) {
-			    for(int ch = 0; ch < nch; ch++)
-				Arrays.fill(dst[ch], max, boff + ret, 0.0);
-			    max = boff + ret;
-			}
-			for(int ch = 0; ch < nch; ch++) {
-			    for(int sm = 0; sm < ret; sm++)
-				dst[ch][boff + sm] += buf[ch][sm];
-			}
-			left -= ret;
-			boff += ret;
+	    clip: for(CS cs : clips) {
+		int left = ns;
+		int boff = 0;
+		while(left > 0) {
+		    int ret = cs.get(buf, left);
+		    if(ret < 0) {
+			stop(cs);
+			continue clip;
+		    }
+		    if(boff + ret > max) {
+			for(int ch = 0; ch < nch; ch++)
+			    Arrays.fill(dst[ch], max, boff + ret, 0.0f);
+			max = boff + ret;
 		    }
+		    for(int ch = 0; ch < nch; ch++) {
+			float[] d = dst[ch], b = buf[ch];
+			for(int sm = 0; sm < ret; sm++)
+			    d[boff + sm] += b[sm];
+		    }
+		    left -= ret;
+		    boff += ret;
 		}
 	    }
 	    if(cont) {
-		for(int ch = 0; ch < nch; ch++) {
-		    for(int sm = max; sm < ns; sm++)
-			dst[ch][sm] = 0;
-		}
+		for(int ch = 0; ch < nch; ch++)
+		    Arrays.fill(dst[ch], max, ns, 0.0f);
 		return(ns);
 	    } else {
 		return((max > 0)?max:-1);
@@ -112,16 +122,22 @@ public class Audio {
 	}
 
 	public void add(CS clip) {
-	    synchronized(clips) {
-		clips.add(clip);
+	    synchronized(this) {
+		CS[] clips = Arrays.copyOf(this.clips, this.clips.length + 1);
+		clips[clips.length - 1] = clip;
+		this.clips = clips;
 	    }
 	}
 
 	public void stop(CS clip) {
-	    synchronized(clips) {
-		for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    if(i.next() == clip) {
-			i.remove();
+	    synchronized(this) {
+		CS[] clips = this.clips;
+		for(int i = 0; i < clips.length; i++) {
+		    if(clips[i] == clip) {
+			CS[] nc = new CS[clips.length - 1];
+			System.arraycopy(clips, 0, nc, 0, i);
+			System.arraycopy(clips, i + 1, nc, i, nc.length - i);
+			this.clips = nc;
 			break;
 		    }
 		}
@@ -129,36 +145,28 @@ public class Audio {
 	}
 
 	public boolean playing(CS clip) {
-	    synchronized(clips) {
-		for(CS cs : clips) {
-		    if(cs == clip)
-			return(true);
-		}
+	    for(CS cs : clips) {
+		if(cs == clip)
+		    return(true);
 	    }
 	    return(false);
 	}
 
 	public int size() {
-	    synchronized(clips) {
-		return(clips.size());
-	    }
+	    return(clips.length);
 	}
 
 	public boolean empty() {
-	    synchronized(clips) {
-		return(clips.isEmpty());
-	    }
+	    return(clips.length == 0);
 	}
 
 	public Collection<CS> current() {
-	    synchronized(clips) {
-		return(new ArrayList<CS>(clips));
-	    }
+	    return(new ArrayList<CS>(Arrays.asList(clips)));
 	}
 
 	public void clear() {
-	    synchronized(clips) {
-		clips.clear();
+	    synchronized(this) {
+		clips = new CS[0];
 	    }
 	}
     }
@@ -167,16 +175,17 @@ public class Audio {
 	public final InputStream clip;
 	public final int sch;
 	private final byte[] dbuf = new byte[256];
+	private final float[] dec;
 	private int head = 0, tail = 0;
 
 	public PCMClip(InputStream clip, int nch) {
 	    this.clip = clip;
 	    this.sch = nch;
+	    this.dec = new float[nch];
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
-	    double[] dec = new double[sch];
 	    for(int sm = 0; sm < ns; sm++) {
 		while(tail - head < 2 * sch) {
 		    if(head > 0) {
@@ -200,7 +209,7 @@ public class Audio {
 		    int v = b1 + (b2 << 8);
 		    if(v >= 32768)
 			v -= 65536;
-		    dec[ch] = v * 0x1.0p-15;
+		    dec[ch] = v * 0x1.0p-15f;
 		}
 		for(int ch = 0; ch < nch; ch++)
 		    dst[ch][sm] = dec[ch % sch];
@@ -211,8 +220,7 @@ public class Audio {
 
     public static class VorbisClip implements CS {
 	public final VorbisStream clip;
-	private float[][] data = new float[1][0];
-	private int dp = 0;
+	private boolean eof = false;
 
 	public VorbisClip(VorbisStream clip) {
 	    this.clip = clip;
@@ -222,32 +230,31 @@ public class Audio {
 	    this(new VorbisStream(bs));
 	}
 
-	public int get(double[][] dst, int ns) {
-	    int nch = dst.length;
-	    if(data == null)
+	public int get(float[][] dst, int ns) {
+	    if(eof)
 		return(-1);
-	    for(int sm = 0; sm < ns; sm++) {
-		while(dp >= data[0].length) {
-		    try {
-			if((data = clip.decode()) == null)
-			    return((sm > 0)?sm:-1);
-		    } catch(IOException e) {
-			return(-1);
-		    }
-		    dp = 0;
+	    int sm = 0;
+	    while(sm < ns) {
+		int ret;
+		try {
+		    ret = clip.decode(dst, sm, ns - sm);
+		} catch(IOException e) {
+		    return(-1);
 		}
-		for(int ch = 0; ch < nch; ch++)
-		    dst[ch][sm] = data[ch % clip.chn][dp];
-		dp++;
+		if(ret < 0) {
+		    eof = true;
+		    break;
+		}
+		sm += ret;
 	    }
-	    return(ns);
+	    return((sm > 0)?sm:-1);
 	}
     }
 
     public static class VolAdjust implements CS {
 	public final CS bk;
 	public double vol = 1.0, bal = 0.0;
-	private double[] cvol = {};
+	private float[] cvol = {};
 
 	public VolAdjust(CS bk, double vol) {
 	    this.bk = bk;
@@ -258,22 +265,24 @@ public class Audio {
 	    this(bk, 1.0);
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
 	    int ret = bk.get(dst, ns);
 	    if(ret < 0)
 		return(ret);
 	    if(cvol.length != nch)
-		cvol = new double[nch];
+		cvol = new float[nch];
 	    for(int i = 0; i < cvol.length; i++)
-		cvol[i] = vol;
+		cvol[i] = (float)vol;
 	    if(bal < 0)
-		cvol[1] *= 1.0 + bal;
+		cvol[1] *= (float)(1.0 + bal);
 	    if(bal > 0)
-		cvol[0] *= 1.0 - bal;
+		cvol[0] *= (float)(1.0 - bal);
 	    for(int ch = 0; ch < nch; ch++) {
+		float[] d = dst[ch];
+		float cv = cvol[ch % cvol.length];
 		for(int sm = 0; sm < ret; sm++)
-		    dst[ch][sm] *= cvol[ch % cvol.length];
+		    d[sm] *= cv;
 	    }
 	    return(ret);
 	}
@@ -284,8 +293,8 @@ public class Audio {
 	public double irate, orate;
 	public double sp;
 	private double ack;
-	private double[] lval = {0}, nval = {0};
-	private double[][] data = {};
+	private float[] lval = {0}, nval = {0};
+	private float[][] data = {};
 	private int dp = 0, dl = 0;
 
 	public Resampler(CS bk, double irate, double orate) {
@@ -302,14 +311,14 @@ public class Audio {
 	    this(bk, fmt.getSampleRate());
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
 	    if(nval.length != nch) {
-		nval = new double[nch];
-		lval = new double[nch];
+		nval = new float[nch];
+		lval = new float[nch];
 	    }
 	    if(data.length != nch)
-		data = new double[nch][512];
+		data = new float[nch][512];
 	    double esp = sp * irate / orate;
 	    for(int sm = 0; sm < ns; sm++) {
 		ack += esp;
@@ -326,8 +335,9 @@ public class Audio {
 		    dp++;
 		    ack -= 1.0;
 		}
+		float a = (float)ack;
 		for(int ch = 0; ch < nch; ch++)
-		    dst[ch][sm] = (lval[ch] * (1.0 - ack)) + (nval[ch] * ack);
+		    dst[ch][sm] = (lval[ch] * (1.0f - a)) + (nval[ch] * a);
 	    }
 	    return(ns);
 	}
@@ -343,7 +353,7 @@ public class Audio {
 	    this.bk = bk;
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int ret = bk.get(dst, ns);
 	    if((ret < 0) && !eof) {
 		eof = true;
@@ -370,7 +380,7 @@ public class Audio {
     public static abstract class Repeater implements CS {
 	private CS cur = null;
 
-	public int get(double[][] buf, int ns) {
+	public int get(float[][] buf, int ns) {
 	    while(true) {
 		if(cur == null) {
 		    if((cur = cons()) == null)
@@ -400,7 +410,7 @@ public class Audio {
 	    this(bk, 44100);
 	}
 
-	public int get(double[][] buf, int ns) {
+	public int get(float[][] buf, int ns) {
 	    int nch = buf.length;
 	    int ret = bk.get(buf, ns);
 	    if(ret < 0) {
@@ -422,10 +432,35 @@ public class Audio {
 	}
     }
 
+    /* Scales and clamps the first ns samples of each channel in
+     * place, then interleaves them into dst as signed 16-bit
+     * little-endian PCM. Each pass runs straight over one channel
+     * array, so that the JIT can vectorize it. */
+    public static int topcm(float[][] src, int ns, float vol, byte[] dst, int off) {
+	int nch = src.length, st = nch * 2;
+	for(int ch = 0; ch < nch; ch++) {
+	    float[] b = src[ch];
+	    for(int i = 0; i < ns; i++)
+		b[i] = Math.max(Math.min(b[i] * vol, 1.0f), -1.0f);
+	}
+	for(int ch = 0; ch < nch; ch++) {
+	    float[] b = src[ch];
+	    for(int i = 0, o = off + (ch * 2); i < ns; i++, o += st) {
+		int iv = (int)(b[i] * 32767.0f);
+		dst[o] = (byte)iv;
+		dst[o + 1] = (byte)(iv >> 8);
+	    }
+	}
+	return(ns * st);
+    }
+
     private static class Player extends HackThread {
 	private final CS stream;
 	private final int nch;
 	private volatile boolean reopen = false;
+	private float[][] val = {};
+	private long mixtime, convtime, nsamples;
+	private int underruns;
 	
 	Player(CS stream) {
 	    super("Haven audio player");
@@ -436,29 +471,23 @@ public class Audio {
 	
 	private int fillbuf(byte[] dst, int off, int len) {
 	    int ns = len / (2 * nch);
-	    double[][] val = new double[nch][ns];
+	    if((val.length != nch) || (val[0].length < ns))
+		val = new float[nch][ns];
+	    float vol = (float)volume;
 	    int left = ns, wr = 0;
 	    while(left > 0) {
+		long st = System.nanoTime();
 		int ret = stream.get(val, left);
+		long mt = System.nanoTime();
 		if(ret <= 0)
 		    return((wr > 0)?wr:-1);
-		for(int i = 0; i < ret; i++) {
-		    for(int o = 0; o < nch; o++) {
-			int iv = (int)(val[o][i] * volume * 32767.0);
-			if(iv < 0) {
-			    if(iv < -32768)
-				iv = -32768;
-			    iv += 65536;
-			} else {
-			    if(iv > 32767)
-				iv = 32767;
-			}
-			dst[off++] = (byte)(iv & 0xff);
-			dst[off++] = (byte)((iv & 0xff00) >> 8);
-			wr += 2;
-		    }
-		}
+		wr += topcm(val, ret, vol, dst, off + wr);
 		left -= ret;
+		synchronized(this) {
+		    mixtime += mt - st;
+		    convtime += System.nanoTime() - mt;
+		    nsamples += ret;
+		}
 	    }
 	    return(wr);
 	}
@@ -480,13 +509,20 @@ public class Audio {
 			this.notifyAll();
 		    }
 		    byte[] buf = new byte[bufsize / 2];
+		    boolean primed = false;
 		    while(true) {
 			if(Thread.interrupted())
 			    throw(new InterruptedException());
 			int ret = fillbuf(buf, 0, buf.length);
 			if(ret < 0)
 			    return;
+			if(primed && (line.available() >= line.getBufferSize())) {
+			    synchronized(this) {
+				underruns++;
+			    }
+			}
 			for(int off = 0; off < ret; off += line.write(buf, off, ret - off));
+			primed = true;
 			if(reopen)
 			    break;
 		    }
@@ -514,6 +550,20 @@ public class Audio {
 		Thread.currentThread().interrupt();
 	    }
 	}
+
+	synchronized String stats() {
+	    double rt = nsamples / (double)fmt.getSampleRate();
+	    return(String.format("%d underruns, %.1fs played, mix %.2f%%, convert %.2f%% of real time, %d streams",
+				 underruns, rt,
+				 (rt > 0) ? (mixtime * 1e-7 / rt) : 0.0,
+				 (rt > 0) ? (convtime * 1e-7 / rt) : 0.0,
+				 ((Mixer)stream).size()));
+	}
+
+	synchronized void resetstats() {
+	    mixtime = convtime = nsamples = 0;
+	    underruns = 0;
+	}
     }
 
     private static Player ckpl(boolean creat) {
@@ -604,6 +654,17 @@ public class Audio {
 	    int nsz = Integer.parseInt(args[1]);
 	    audiobuf(nsz);
 	});
+	Console.setscmd("audiostat", (cons, args) -> {
+	    Player pl = ckpl(false);
+	    if((args.length > 1) && args[1].equals("reset")) {
+		if(pl != null)
+		    pl.resetstats();
+		PCMCache.resetstats();
+	    } else {
+		cons.out.println("audio: " + ((pl == null) ? "not playing" : pl.stats()));
+		cons.out.println("pcmcache: " + PCMCache.stats());
+	    }
+	});
     }
     
     public static void audiobuf(int nsz) throws Exception {
@@ -457,6 +457,7 @@ public class BuddyWnd extends Widget implements Iterable<BuddyWnd.Buddy> {
     public BuddyWnd() {
 	super(new Coord(width, 0));
 	setfocustab(true);
+	rcache(true);
 	Widget prev;
         prev = add(new Img(CharWnd.catf.render(L10N.label("Kin")).tex()));
 
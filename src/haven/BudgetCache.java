@@ -0,0 +1,164 @@
+package haven;
+
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * Map that keeps its values strongly reachable only within a budget
+ * of estimated bytes, evicting by the GreedyDual-Size policy: each
+ * entry is ranked by the cost of recreating it per byte, aged by an
+ * inflation value that rises with every eviction, so that large and
+ * cheap entries go first while recently used ones are kept. Evicted
+ * entries are still found for as long as they are referenced from
+ * elsewhere, so eviction never causes a second copy of something
+ * that is still in use. Sizes are measured when an entry is inserted,
+ * and again only when remeasure() is called, so that hits stay cheap
+ * while owners of values that grow after insertion can still have
+ * them charged for it. Not thread-safe.
+ */
+public class BudgetCache<K, V> extends AbstractMap<K, V> {
+    private final Map<K, V> live = new CacheMap<>(CacheMap.RefType.WEAK);
+    private final Map<K, Held> held = new HashMap<>();
+    private final TreeSet<Held> order = new TreeSet<>((a, b) -> (a.prio != b.prio) ? Double.compare(a.prio, b.prio) : Long.compare(a.seq, b.seq));
+    private final ToLongFunction<? super V> sizer;
+    private final ToDoubleFunction<? super V> coster;
+    private long budget, used = 0;
+    private double clock = 0;
+    private long seq = 0;
+    public long hits, revived, misses, evictions, evbytes;
+
+    private class Held {
+	final K key;
+	final V val;
+	long size;
+	final double cost;
+	double prio;
+	long seq;
+
+	Held(K key, V val) {
+	    this.key = key;
+	    this.val = val;
+	    this.size = Math.max(sizer.applyAsLong(val), 1);
+	    this.cost = coster.applyAsDouble(val);
+	}
+    }
+
+    public BudgetCache(long budget, ToLongFunction<? super V> sizer, ToDoubleFunction<? super V> coster) {
+	this.budget = budget;
+	this.sizer = sizer;
+	this.coster = coster;
+    }
+
+    private void touch(Held h) {
+	order.remove(h);
+	h.prio = clock + (h.cost / h.size);
+	h.seq = seq++;
+	order.add(h);
+    }
+
+    private void hold(K k, V v) {
+	Held p = held.remove(k);
+	if(p != null) {
+	    order.remove(p);
+	    used -= p.size;
+	}
+	Held h = new Held(k, v);
+	held.put(k, h);
+	used += h.size;
+	touch(h);
+	evict();
+    }
+
+    private void evict() {
+	while((used > budget) && (order.size() > 1)) {
+	    Held h = order.pollFirst();
+	    held.remove(h.key);
+	    used -= h.size;
+	    clock = h.prio;
+	    evictions++;
+	    evbytes += h.size;
+	}
+    }
+
+    public V get(Object k) {
+	Held h = held.get(k);
+	if(h != null) {
+	    hits++;
+	    touch(h);
+	    evict();
+	    return(h.val);
+	}
+	V v = live.get(k);
+	if(v == null) {
+	    misses++;
+	    return(null);
+	}
+	revived++;
+	@SuppressWarnings("unchecked") K key = (K)k;
+	hold(key, v);
+	return(v);
+    }
+
+    /* Returns the held value without counting or touching it. */
+    public V peek(Object k) {
+	Held h = held.get(k);
+	return((h == null) ? null : h.val);
+    }
+
+    public void remeasure(Object k) {
+	Held h = held.get(k);
+	if(h != null) {
+	    long nsz = Math.max(sizer.applyAsLong(h.val), 1);
+	    used += nsz - h.size;
+	    h.size = nsz;
+	    touch(h);
+	    evict();
+	}
+    }
+
+    public boolean containsKey(Object k) {
+	return(held.containsKey(k) || live.containsKey(k));
+    }
+
+    public V put(K k, V v) {
+	V ret = live.put(k, v);
+	hold(k, v);
+	return(ret);
+    }
+
+    public V remove(Object k) {
+	Held h = held.remove(k);
+	if(h != null) {
+	    order.remove(h);
+	    used -= h.size;
+	}
+	return(live.remove(k));
+    }
+
+    public void clear() {
+	held.clear();
+	order.clear();
+	used = 0;
+	live.clear();
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+	return(Collections.unmodifiableSet(live.entrySet()));
+    }
+
+    public long budget() {return(budget);}
+    public long used() {return(used);}
+    public int held() {return(held.size());}
+
+    public void budget(long budget) {
+	this.budget = budget;
+	evict();
+    }
+
+    public String stats() {
+	long n = hits + revived + misses;
+	return(String.format("%,d held (%,d kB of %,d kB), %,d live; %.1f%% hits, %,d revived, %,d misses; %,d evictions (%,d kB)",
+			     held.size(), used >> 10, budget >> 10, live.size(),
+			     (n == 0) ? 0.0 : (hits * 100.0) / n, revived, misses, evictions, evbytes >> 10));
+    }
+}
@@ -29,6 +29,7 @@ public class CFG<T> {
     public static final CFG<Boolean> SIMPLE_CROPS = new CFG<>("display.simple_crops", false);
     public static final CFG<Boolean> PARTY_HIGHLIGHT = new CFG<>("display.party_highlight", true);
     public static final CFG<Boolean> STORE_MAP = new CFG<>("general.storemap", false);
+    public static final CFG<Boolean> RES_PRELOAD = new CFG<>("general.res_preload", false);
     public static final CFG<Boolean> SHOW_TOOLBELT_0 = new CFG<>("general.toolbelt0", true);
     public static final CFG<Boolean> SHOW_TOOLBELT_1 = new CFG<>("general.toolbelt1", false);
     public static final CFG<Boolean> FLATWORLD = new CFG<>("general.flatworld", false);
@@ -142,6 +143,7 @@ public class CFG<T> {
 
     public void set(T value) {
 	CFG.set(this, value);
+	WidgetCache.invalidateall();
 	observe();
     }
 
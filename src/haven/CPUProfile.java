@@ -37,6 +37,7 @@ public class CPUProfile extends Profile {
 	private List<Long> pw = new LinkedList<Long>();
 	private List<String> nw = new LinkedList<String>();
 	private long then, last, sub;
+	public String stats = null;
 
 	public Frame() {
 	    last = then = System.nanoTime();
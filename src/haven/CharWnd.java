@@ -163,6 +163,7 @@ public class CharWnd extends WindowX {
 		    g.chcolor(new Color(col.getRed(), col.getGreen(), col.getBlue(), alpha));
 		    g.frect(new Coord(marg.x + l, marg.y), new Coord(r - l, sz.y - (marg.y * 2)));
 		} catch(Loading e) {
+		    invalidate();
 		}
 	    }
 	}
@@ -173,6 +174,7 @@ public class CharWnd extends WindowX {
 		    Collections.sort(enew, dcmp);
 		    els = enew;
 		    rtip = null;
+		    invalidate();
 		} catch(Loading l) {}
 		enew = null;
 	    }
@@ -182,6 +184,7 @@ public class CharWnd extends WindowX {
 		    trol = new TexI(mktrol(etr, trev));
 		    trtm = Utils.rtime();
 		    trev = null;
+		    invalidate();
 		} catch(Loading l) {}
 	    }
 	}
@@ -199,6 +202,7 @@ public class CharWnd extends WindowX {
 		GOut g2 = g.reclipl(trmg.inv(), sz.add(trmg.mul(2)));
 		g2.chcolor(255, 255, 255, (int)(255 - ((d * 255) * (1.0 / 2.5))));
 		g2.image(trol, Coord.z);
+		invalidate();
 	    } else {
 		trtm = 0;
 	    }
@@ -1922,6 +1926,7 @@ public class CharWnd extends WindowX {
 
     public CharWnd(Glob glob) {
 	super(UI.scale(new Coord(300, 290)), "Character Sheet");
+	rcache(true);
 
 	final Tabs tabs = new Tabs(new Coord(15, 10), Coord.z, this);
         Tabs.Tab battr = tabs.add();
@@ -0,0 +1,190 @@
+package haven;
+
+import java.awt.Color;
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/* Append-only store for the old messages of one chat channel, which
+ * the channel no longer keeps in memory. Records are written to a
+ * temporary file and read back a page at a time as they are scrolled
+ * into view. Only the offset and the height of every record are kept
+ * in memory, so that the channel can scroll without reading anything
+ * that is not visible. Searches scan the file, and may do so from
+ * another thread than the one appending records and scrolling; the
+ * file and the page cache are only accessed with the log locked. */
+public class ChatLog implements AutoCloseable {
+    public static final int PAGE = 64;
+    private final Path path;
+    private final RandomAccessFile fp;
+    private long[] off = new long[PAGE + 1];
+    private int[] ys = new int[PAGE + 1];
+    private int n = 0;
+    private final Map<Integer, Record[]> pages = new LinkedHashMap<Integer, Record[]>(16, 0.75f, true) {
+	protected boolean removeEldestEntry(Map.Entry<Integer, Record[]> eldest) {
+	    return(size() > 16);
+	}
+    };
+
+    public static class Record {
+	public final double time;
+	public final String markup;
+	public final Color col;
+	public final int w;
+	public final Coord sz;
+
+	public Record(double time, String markup, Color col, int w, Coord sz) {
+	    this.time = time;
+	    this.markup = markup;
+	    this.col = col;
+	    this.w = w;
+	    this.sz = sz;
+	}
+    }
+
+    public ChatLog() throws IOException {
+	path = Files.createTempFile("hafen-chat-", ".log");
+	path.toFile().deleteOnExit();
+	fp = new RandomAccessFile(path.toFile(), "rw");
+    }
+
+    public int size() {
+	return(n);
+    }
+
+    /* The total height of all records. */
+    public int height() {
+	return(ys[n]);
+    }
+
+    /* The offset of the top of record i from the top of the first. */
+    public int y(int i) {
+	return(ys[i]);
+    }
+
+    /* The index of the record that covers the given offset. */
+    public int find(int y) {
+	int lo = 0, hi = n;
+	while(hi - lo > 1) {
+	    int mid = (lo + hi) >>> 1;
+	    if(ys[mid] <= y)
+		lo = mid;
+	    else
+		hi = mid;
+	}
+	return(lo);
+    }
+
+    public static List<String> words(String text) {
+	List<String> ret = new ArrayList<>();
+	int st = -1;
+	for(int i = 0; i <= text.length(); i++) {
+	    boolean wc = (i < text.length()) && Character.isLetterOrDigit(text.charAt(i));
+	    if(wc && (st < 0)) {
+		st = i;
+	    } else if(!wc && (st >= 0)) {
+		ret.add(text.substring(st, i).toLowerCase());
+		st = -1;
+	    }
+	}
+	return(ret);
+    }
+
+    public synchronized void append(Record rec) throws IOException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	byte[] text = rec.markup.getBytes(StandardCharsets.UTF_8);
+	out.writeDouble(rec.time);
+	out.writeBoolean(rec.col != null);
+	out.writeInt((rec.col == null) ? 0 : rec.col.getRGB());
+	out.writeInt(rec.w);
+	out.writeInt(rec.sz.x);
+	out.writeInt(rec.sz.y);
+	out.writeInt(text.length);
+	out.write(text);
+	if(n + 1 >= off.length) {
+	    off = Arrays.copyOf(off, off.length * 2);
+	    ys = Arrays.copyOf(ys, ys.length * 2);
+	}
+	fp.seek(off[n]);
+	fp.write(buf.toByteArray());
+	off[n + 1] = off[n] + buf.size();
+	ys[n + 1] = ys[n] + rec.sz.y;
+	pages.remove(n / PAGE);
+	n++;
+    }
+
+    private Record[] read(int from, int to) throws IOException {
+	byte[] data = new byte[(int)(off[to] - off[from])];
+	fp.seek(off[from]);
+	fp.readFully(data);
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+	Record[] ret = new Record[to - from];
+	for(int i = 0; i < ret.length; i++) {
+	    double time = in.readDouble();
+	    boolean hascol = in.readBoolean();
+	    int rgb = in.readInt();
+	    int w = in.readInt();
+	    Coord sz = Coord.of(in.readInt(), in.readInt());
+	    byte[] text = new byte[in.readInt()];
+	    in.readFully(text);
+	    ret[i] = new Record(time, new String(text, StandardCharsets.UTF_8), hascol ? new Color(rgb, true) : null, w, sz);
+	}
+	return(ret);
+    }
+
+    private Record[] page(int p) throws IOException {
+	Record[] ret = pages.get(p);
+	if(ret == null) {
+	    int from = p * PAGE;
+	    pages.put(p, ret = read(from, Math.min(from + PAGE, n)));
+	}
+	return(ret);
+    }
+
+    public synchronized Record get(int i) throws IOException {
+	if((i < 0) || (i >= n))
+	    throw(new IndexOutOfBoundsException(Integer.toString(i)));
+	return(page(i / PAGE)[i % PAGE]);
+    }
+
+    /* Returns, in ascending order, the indices of the records below
+     * n that contain all the words of the query. The file is read
+     * through page by page, bypassing the page cache so as not to
+     * evict the pages in view, and the log is only locked while a
+     * page is read, so that records can be appended meanwhile. */
+    public int[] search(String query, int n) throws IOException, InterruptedException {
+	List<String> words = words(query);
+	int[] ret = new int[16];
+	int rn = 0;
+	if(words.isEmpty())
+	    return(new int[0]);
+	for(int from = 0; from < n; from += PAGE) {
+	    if(Thread.interrupted())
+		throw(new InterruptedException());
+	    Record[] page;
+	    synchronized(this) {
+		page = pages.get(from / PAGE);
+		if(page == null)
+		    page = read(from, Math.min(from + PAGE, n));
+	    }
+	    for(int i = 0; i < page.length; i++) {
+		if(words(page[i].markup).containsAll(words)) {
+		    if(rn == ret.length)
+			ret = Arrays.copyOf(ret, rn * 2);
+		    ret[rn++] = from + i;
+		}
+	    }
+	}
+	return(Arrays.copyOf(ret, rn));
+    }
+
+    public synchronized void close() {
+	try {
+	    fp.close();
+	    Files.deleteIfExists(path);
+	} catch(IOException e) {
+	}
+    }
+}
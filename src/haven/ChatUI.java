@@ -30,6 +30,7 @@ import auto.Bot;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.IntConsumer;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.event.KeyEvent;
@@ -44,7 +45,7 @@ import java.awt.datatransfer.*;
 
 import static auto.Bot.*;
 
-public class ChatUI extends Widget {
+public class ChatUI extends Widget implements Console.Directory {
     public static final RichText.Foundry fnd = new RichText.Foundry(new ChatParser(TextAttribute.FONT, Text.dfont.deriveFont(UI.scale(12f)), TextAttribute.FOREGROUND, Color.BLACK));
     public static final Text.Foundry qfnd = new Text.Foundry(Text.dfont, 12, new java.awt.Color(192, 255, 192));
     public static final int selw = UI.scale(130);
@@ -142,7 +143,17 @@ public class ChatUI extends Widget {
     }
 
     public static abstract class Channel extends Widget {
-	public final List<Message> msgs = new LinkedList<Message>();
+	/* The most recent messages. Older ones are spilled to the
+	 * channel's ChatLog, if it could be created. */
+	public final List<Message> msgs = new ArrayList<Message>();
+	private ChatLog spill = null;
+	private boolean nospill = false;
+	private int nmsgs = 0;
+	private final Map<Integer, Message> paged = new LinkedHashMap<Integer, Message>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Message> eldest) {
+		    return(size() > 128);
+		}
+	    };
 	private final Scrollbar sb;
 	private final IButton cb;
 	public int urgency = 0;
@@ -184,36 +195,102 @@ public class ChatUI extends Widget {
 	}
 	
 	public static abstract class Message {
-	    public final double time = Utils.ntime();
+	    public final double time;
+	    /* The position of the message in its channel, counting from
+	     * the first ever appended to it. */
+	    int idx = -1;
+
+	    public Message(double time) {
+		this.time = time;
+	    }
+
+	    public Message() {
+		this(Utils.ntime());
+	    }
 	    
 	    public abstract Text text();
 	    public abstract Tex tex();
 	    public abstract Coord sz();
 	}
-	
-	public static class SimpleMessage extends Message {
-	    private final Text t;
-	    
-	    public SimpleMessage(String text, Color col, int w) {
-		if(CFG.SHOW_CHAT_TIMESTAMP.get()){
-		    text = Utils.timestamp(text);
+
+	/* Rendered chat text is kept only for the most recently drawn
+	 * messages of all channels; the rest are re-rendered from their
+	 * markup when they are scrolled back into view. */
+	private static final Map<RichMessage, Text> rendered = new LinkedHashMap<RichMessage, Text>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<RichMessage, Text> eldest) {
+		    if(size() > Config.chatrender) {
+			eldest.getValue().dispose();
+			return(true);
+		    }
+		    return(false);
 		}
-		if(col == null)
-		    this.t = fnd.render(RichText.Parser.quote(text), w);
-		else
-		    this.t = fnd.render(RichText.Parser.quote(text), w, TextAttribute.FOREGROUND, col);
+	    };
+
+	public static class RichMessage extends Message {
+	    public final Color col;
+	    public final int w;
+	    private final String markup;
+	    private String szmk = null;
+	    private Coord sz = null;
+
+	    public RichMessage(double time, String markup, Color col, int w) {
+		super(time);
+		this.markup = markup;
+		this.col = col;
+		this.w = w;
 	    }
-	    
+
+	    public RichMessage(String markup, Color col, int w) {
+		this(Utils.ntime(), markup, col, w);
+	    }
+
+	    RichMessage(double time, String markup, Color col, int w, Coord sz) {
+		this(time, markup, col, w);
+		this.szmk = markup;
+		this.sz = sz;
+	    }
+
+	    public String markup() {
+		return(markup);
+	    }
+
 	    public Text text() {
-		return(t);
+		String mk = markup();
+		synchronized(rendered) {
+		    Text t = rendered.get(this);
+		    if((t == null) || !t.text.equals(mk)) {
+			if(t != null)
+			    t.dispose();
+			if(col == null)
+			    t = fnd.render(mk, w);
+			else
+			    t = fnd.render(mk, w, TextAttribute.FOREGROUND, col);
+			rendered.put(this, t);
+		    }
+		    return(t);
+		}
 	    }
 
 	    public Tex tex() {
-		return(t.tex());
+		return(text().tex());
 	    }
-	    
+
 	    public Coord sz() {
-		return(t.sz());
+		String mk = markup();
+		if((sz == null) || !mk.equals(szmk)) {
+		    if(col == null)
+			sz = fnd.measure(mk, w);
+		    else
+			sz = fnd.measure(mk, w, TextAttribute.FOREGROUND, col);
+		    szmk = mk;
+		}
+		return(sz);
+	    }
+	}
+	
+	public static class SimpleMessage extends RichMessage {
+	    public SimpleMessage(String text, Color col, int w) {
+		super(RichText.Parser.quote(CFG.SHOW_CHAT_TIMESTAMP.get() ? Utils.timestamp(text) : text), col, w);
 	    }
 	}
 
@@ -251,7 +328,7 @@ public class ChatUI extends Widget {
 		createLog();
 	    }
 	    if(log != null) {
-		String text = msg.text().text;
+		String text = (msg instanceof RichMessage) ? ((RichMessage)msg).markup() : msg.text().text;
 		log.println(text);
 		log.flush();
 	    }
@@ -269,16 +346,202 @@ public class ChatUI extends Widget {
 	public void destroy() {
 	    super.destroy();
 	    closeLog();
+	    if(finding != null) {
+		finding.cancel();
+		finding = null;
+	    }
+	    synchronized(msgs) {
+		if(spill != null) {
+		    spill.close();
+		    spill = null;
+		}
+	    }
+	}
+
+	/* All of the following must be called with msgs locked. */
+	private int nspilled() {
+	    return((spill == null) ? 0 : spill.size());
+	}
+
+	private int count() {
+	    return(nspilled() + msgs.size());
+	}
+
+	private int height() {
+	    int y = (spill == null) ? 0 : spill.height();
+	    for(Message m : msgs)
+		y += m.sz().y;
+	    return(y);
+	}
+
+	/* The offset of the top of message i from the top of the first. */
+	private int ystart(int i) {
+	    int sn = nspilled();
+	    if(i < sn)
+		return(spill.y(i));
+	    int y = (spill == null) ? 0 : spill.height();
+	    for(int o = 0; o < i - sn; o++)
+		y += msgs.get(o).sz().y;
+	    return(y);
+	}
+
+	/* The index of the message covering offset y, or count() if
+	 * y is past the last message. */
+	private int findy(int y) {
+	    int sn = nspilled();
+	    if((sn > 0) && (y < spill.height()))
+		return(spill.find(Math.max(y, 0)));
+	    int my = (spill == null) ? 0 : spill.height(), i = sn;
+	    for(Message m : msgs) {
+		int h = m.sz().y;
+		if(my + h > y)
+		    return(i);
+		my += h;
+		i++;
+	    }
+	    return(i);
+	}
+
+	public Message message(int i) {
+	    synchronized(msgs) {
+		int sn = nspilled();
+		if(i >= sn)
+		    return(msgs.get(i - sn));
+		Message ret = paged.get(i);
+		if(ret == null) {
+		    ChatLog.Record rec;
+		    try {
+			rec = spill.get(i);
+		    } catch(IOException e) {
+			return(null);
+		    }
+		    ret = new RichMessage(rec.time, rec.markup, rec.col, rec.w, rec.sz);
+		    ret.idx = i;
+		    paged.put(i, ret);
+		}
+		return(ret);
+	    }
+	}
+
+	/* Searches, in the background, for the indices of the messages
+	 * that contain all the words of the query, in ascending order.
+	 * The messages in memory are searched at once, but the spilled
+	 * ones are left to the returned future, so that neither the UI
+	 * thread nor the message lock is held up by reading them. */
+	public Defer.Future<int[]> search(String query) {
+	    List<String> words = ChatLog.words(query);
+	    ChatLog spill;
+	    int sn;
+	    int[] mem;
+	    synchronized(msgs) {
+		spill = this.spill;
+		sn = nspilled();
+		mem = new int[msgs.size()];
+		int n = 0;
+		if(!words.isEmpty()) {
+		    for(int i = 0; i < msgs.size(); i++) {
+			Message m = msgs.get(i);
+			if((m instanceof RichMessage) && ChatLog.words(((RichMessage)m).markup()).containsAll(words))
+			    mem[n++] = sn + i;
+		    }
+		}
+		mem = Arrays.copyOf(mem, n);
+	    }
+	    int[] fmem = mem;
+	    return(Defer.later(() -> {
+			int[] ret;
+			try {
+			    ret = ((spill == null) || (sn == 0)) ? new int[0] : spill.search(query, sn);
+			} catch(IOException e) {
+			    ret = new int[0];
+			}
+			int n = ret.length;
+			ret = Arrays.copyOf(ret, n + fmem.length);
+			System.arraycopy(fmem, 0, ret, n, fmem.length);
+			return(ret);
+		    }));
+	}
+
+	public void scrollto(int i) {
+	    synchronized(msgs) {
+		sb.val = Math.max(Math.min(ystart(i), sb.max), sb.min);
+	    }
+	}
+
+	private Defer.Future<int[]> finding = null;
+	private IntConsumer found = null;
+
+	/* Scrolls to the closest match of the query above the current
+	 * view, wrapping around to the latest one, once the search has
+	 * finished. The index of the match, or -1 if there is none, is
+	 * then passed to done on the UI thread. A search still running
+	 * is abandoned for the new one. */
+	public void find(String query, IntConsumer done) {
+	    if(finding != null)
+		finding.cancel();
+	    finding = search(query);
+	    found = done;
+	}
+
+	public void tick(double dt) {
+	    super.tick(dt);
+	    if((finding != null) && finding.done()) {
+		int[] hits;
+		try {
+		    hits = finding.get();
+		} catch(Defer.DeferredException e) {
+		    hits = new int[0];
+		}
+		IntConsumer done = found;
+		finding = null;
+		found = null;
+		int ret = -1;
+		if(hits.length > 0) {
+		    ret = hits[hits.length - 1];
+		    synchronized(msgs) {
+			int top = findy(sb.val);
+			for(int i = hits.length - 1; i >= 0; i--) {
+			    if(hits[i] < top) {
+				ret = hits[i];
+				break;
+			    }
+			}
+		    }
+		    scrollto(ret);
+		}
+		if(done != null)
+		    done.accept(ret);
+	    }
+	}
+
+	private void spill() {
+	    while(!nospill && (msgs.size() > Config.chatmem)) {
+		Message m = msgs.get(0);
+		if(!(m instanceof RichMessage))
+		    break;
+		RichMessage rm = (RichMessage)m;
+		try {
+		    if(spill == null)
+			spill = new ChatLog();
+		    spill.append(new ChatLog.Record(rm.time, rm.markup(), rm.col, rm.w, rm.sz()));
+		} catch(IOException e) {
+		    new Warning(e, "could not spill chat messages to disk, keeping them in memory").issue();
+		    nospill = true;
+		    break;
+		}
+		msgs.remove(0);
+		if(((selstart != null) && (selstart.msg == m)) || ((selend != null) && (selend.msg == m)))
+		    selstart = selend = null;
+	    }
 	}
 
 	public void append(Message msg) {
 	    synchronized(msgs) {
+		msg.idx = nmsgs++;
 		msgs.add(msg);
-		int y = 0;
-		for(Message m : msgs)
-		    y += m.sz().y;
+		spill();
 		boolean b = sb.val >= sb.max;
-		sb.max = y - ih();
+		sb.max = height() - ih();
 		if(b)
 		    sb.val = sb.max;
 	    }
@@ -314,25 +577,22 @@ public class ChatUI extends Widget {
 	    g.chcolor(0, 0, 0, 128);
 	    g.frect(Coord.z, sz);
 	    g.chcolor();
-	    int y = 0;
-	    boolean sel = false;
 	    synchronized(msgs) {
-		for(Message msg : msgs) {
-		    if((selstart != null) && (msg == selstart.msg))
-			sel = true;
-		    int y1 = y - sb.val;
-		    int y2 = y1 + msg.sz().y;
-		    if((y2 > 0) && (y1 < ih())) {
-			if(sel)
-			    drawsel(g, msg, y1);
-			g.image(msg.tex(), new Coord(0, y1));
+		int n = count();
+		int i = findy(sb.val);
+		for(int y = ystart(i) - sb.val; (i < n) && (y < ih()); i++) {
+		    Message msg = message(i);
+		    if(msg == null) {
+			y += spill.y(i + 1) - spill.y(i);
+			continue;
 		    }
-		    if((selend != null) && (msg == selend.msg))
-			sel = false;
+		    if((selstart != null) && (i >= selstart.msg.idx) && (i <= selend.msg.idx))
+			drawsel(g, msg, y);
+		    g.image(msg.tex(), new Coord(0, y));
 		    y += msg.sz().y;
 		}
+		sb.max = height() - ih();
 	    }
-	    sb.max = y - ih();
 	    super.draw(g);
 	    updurgency(0);
 	}
@@ -347,13 +607,12 @@ public class ChatUI extends Widget {
 	    if(sb != null) {
 		sb.move(new Coord(sz.x - (UI.scale(12) - marg.x), UI.scale(34) - marg.y));
 		sb.resize(ih() - sb.c.y);
-		int y = 0;
-		for(Message m : msgs)
-		    y += m.sz().y;
-		boolean b = sb.val >= sb.max;
-		sb.max = y - ih();
-		if(b)
-		    sb.val = sb.max;
+		synchronized(msgs) {
+		    boolean b = sb.val >= sb.max;
+		    sb.max = height() - ih();
+		    if(b)
+			sb.val = sb.max;
+		}
 	    }
 	    if(cb != null) {
 		cb.c = new Coord(sz.x + marg.x - cb.sz.x, -marg.y);
@@ -386,15 +645,7 @@ public class ChatUI extends Widget {
 	public final Comparator<CharPos> poscmp = new Comparator<CharPos>() {
 	    public int compare(CharPos a, CharPos b) {
 		if(a.msg != b.msg) {
-		    synchronized(msgs) {
-			for(Message msg : msgs) {
-			    if(msg == a.msg)
-				return(-1);
-			    else if(msg == b.msg)
-				return(1);
-			}
-		    }
-		    throw(new IllegalStateException("CharPos message is no longer contained in the log"));
+		    return(Integer.compare(a.msg.idx, b.msg.idx));
 		} else if(a.part != b.part) {
 		    for(RichText.Part part = ((RichText)a.msg.text()).parts; part != null; part = part.next) {
 			if(part == a.part)
@@ -410,29 +661,29 @@ public class ChatUI extends Widget {
 	};
 
 	public Message messageat(Coord c, Coord hc) {
-	    int y = -sb.val;
+	    int y = c.y + sb.val;
 	    synchronized(msgs) {
-		for(Message msg : msgs) {
-		    Coord sz = msg.sz();
-		    if((c.y >= y) && (c.y < y + sz.y)) {
-			if(hc != null) {
-			    hc.x = c.x;
-			    hc.y = c.y - y;
-			}
-			return(msg);
-		    }
-		    y += sz.y;
+		int i = findy(y);
+		if((y < 0) || (i >= count()))
+		    return(null);
+		Message msg = message(i);
+		if((msg != null) && (hc != null)) {
+		    hc.x = c.x;
+		    hc.y = y - ystart(i);
 		}
+		return(msg);
 	    }
-	    return(null);
 	}
 	
 	public CharPos charat(Coord c) {
 	    if(c.y < -sb.val) {
-		if(msgs.size() < 1)
-		    return(null);
-		Message msg = msgs.get(0);
-		if(!(msg.text() instanceof RichText))
+		Message msg;
+		synchronized(msgs) {
+		    if(count() < 1)
+			return(null);
+		    msg = message(0);
+		}
+		if((msg == null) || !(msg.text() instanceof RichText))
 		    return(null);
 		RichText.TextPart fp = null;
 		for(RichText.Part part = ((RichText)msg.text()).parts; part != null; part = part.next) {
@@ -511,8 +762,9 @@ public class ChatUI extends Widget {
 	    StringBuilder buf = new StringBuilder();
 	    synchronized(msgs) {
 		boolean sel = false;
-		for(Message msg : msgs) {
-		    if(!(msg.text() instanceof RichText))
+		for(int mi = start.msg.idx; mi <= end.msg.idx; mi++) {
+		    Message msg = message(mi);
+		    if((msg == null) || !(msg.text() instanceof RichText))
 			continue;
 		    RichText rt = (RichText)msg.text();
 		    RichText.Part part = null;
@@ -777,44 +1029,30 @@ public class ChatUI extends Widget {
 	private final String name;
 	private final Map<Integer, Color> pc = new HashMap<Integer, Color>();
 	
-	public class NamedMessage extends Message {
+	public class NamedMessage extends RichMessage {
 	    public final int from;
 	    public final String text;
-	    public final int w;
-	    public final Color col;
-	    private String cn;
-	    private Text r = null;
+	    private final String stamp;
+	    private String cn, mk;
 	    
 	    public NamedMessage(int from, String text, Color col, int w) {
+		super(null, col, w);
 		this.from = from;
 		this.text = text;
-		this.w = w;
-		this.col = col;
+		this.stamp = CFG.SHOW_CHAT_TIMESTAMP.get() ? Utils.timestamp() : null;
 	    }
 
-	    public Text text() {
+	    public String markup() {
 		BuddyWnd.Buddy b = getparent(GameUI.class).buddies.find(from);
 		String nm = (b == null)?"???":(b.name);
-		if((r == null) || !nm.equals(cn)) {
+		if((mk == null) || !nm.equals(cn)) {
 		    String line = RichText.Parser.quote(String.format("%s: %s", nm, text));
-		    if(CFG.SHOW_CHAT_TIMESTAMP.get()) {
-			line = Utils.timestamp(line);
-		    }
-		    r = fnd.render(line, w, TextAttribute.FOREGROUND, col);
+		    if(stamp != null)
+			line = String.format("[%s] %s", stamp, line);
+		    mk = line;
 		    cn = nm;
 		}
-		return(r);
-	    }
-
-	    public Tex tex() {
-		return(text().tex());
-	    }
-
-	    public Coord sz() {
-		if(r == null)
-		    return(text().sz());
-		else
-		    return(r.sz());
+		return(mk);
 	    }
 	}
 
@@ -992,6 +1230,26 @@ public class ChatUI extends Widget {
 	}
     }
 
+    private final Map<String, Console.Command> cmdmap = new TreeMap<String, Console.Command>();
+    {
+	cmdmap.put("chatfind", (cons, args) -> {
+		if(args.length < 2)
+		    throw(new Exception("usage: chatfind WORD..."));
+		if(sel == null)
+		    throw(new Exception("no chat channel is selected"));
+		String query = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+		Channel chan = sel;
+		chan.find(query, idx -> {
+			GameUI gui = getparent(GameUI.class);
+			if((idx < 0) && (gui != null))
+			    gui.error("Not found in " + chan.name() + ": " + query);
+		    });
+	    });
+    }
+    public Map<String, Console.Command> findcmds() {
+	return(cmdmap);
+    }
+
     public void addchild(Widget child, Object... args) {
 	add(child);
     }
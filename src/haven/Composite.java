@@ -133,6 +133,12 @@ public class Composite extends Drawable {
 	    updequ();
 	}
 	processResId();
+	AnimLOD lod = gob.glob.animlod;
+	try {
+	    comp.lod = (lod == null) ? AnimLOD.FULL : lod.level(gob.getc());
+	} catch(Loading l) {
+	    comp.lod = AnimLOD.FULL;
+	}
 	comp.tick(dt);
     }
 
@@ -42,6 +42,10 @@ public class Composited implements RenderTree.Node {
     public List<ED> cequ = new LinkedList<ED>();
     public Sprite.Owner eqowner = null;
     private final Collection<RenderTree.Slot> slots = new ArrayList<>(1);
+    /* Animation level of detail, as set by the owner before ticking;
+     * see AnimLOD. */
+    public int lod = AnimLOD.FULL;
+    private double lodacc = 0;
 
     public class Poses {
 	public final PoseMod[] mods;
@@ -68,6 +72,8 @@ public class Composited implements RenderTree.Node {
 	}
 
 	private void rebuild() {
+	    if((ipold <= 0.0f) && pose.share(mods))
+		return;
 	    pose.reset();
 	    for(PoseMod m : mods)
 		m.apply(pose);
@@ -151,6 +157,7 @@ public class Composited implements RenderTree.Node {
 	public final int id;
 	private final Collection<RenderTree.Slot> slots = new ArrayList<>(1);
 	private int z = 0, lz = 0;
+	private Pipe.Op lst = null;
 
 	public class Layer implements RenderTree.Node {
 	    public final Material mat;
@@ -197,9 +204,14 @@ public class Composited implements RenderTree.Node {
 
 	public TickList.Ticking ticker() {return(this);}
 	public void autotick(double dt) {
+	    /* The morph state only changes when the pose has been
+	     * rebuilt, which need not be on every tick. */
 	    Pipe.Op nst = morph.state();
+	    if(nst == lst)
+		return;
 	    for(RenderTree.Slot slot : slots)
 		slot.ostate(nst);
+	    lst = nst;
 	}
     }
 
@@ -536,8 +548,15 @@ public class Composited implements RenderTree.Node {
     }
     
     public void tick(double dt) {
-	if(poses != null)
-	    poses.tick((float)dt);
+	if(poses != null) {
+	    lodacc += dt;
+	    boolean upd = lodacc >= AnimLOD.ival[lod];
+	    if(upd) {
+		poses.tick((float)lodacc);
+		lodacc = 0;
+	    }
+	    AnimLOD.count(lod, upd);
+	}
 	for(Equ equ : this.equ)
 	    equ.tick(dt);
     }
@@ -57,6 +57,33 @@ public class Config {
     public static boolean fscache = getbool("haven.fscache", true);
     public static Path resdir = getpath("haven.resdir", System.getenv("HAFEN_RESDIR"));
     public static boolean nopreload = getbool("haven.nopreload", true);
+    public static int resloaders = getint("haven.resloaders", 16);
+    public static long resmem = (long)getint("haven.resmem", (int)Math.min(Runtime.getRuntime().maxMemory() >> 22, 1024)) << 20;
+    public static boolean lazylayers = getbool("haven.lazylayers", true);
+    public static boolean fastpng = getbool("haven.fastpng", true);
+    public static int resconns = getint("haven.resconns", resloaders);
+    public static boolean resrevalidate = getbool("haven.resrevalidate", true);
+    public static int instmin = getint("haven.instmin", 2);
+    public static boolean instmerge = getbool("haven.instmerge", false);
+    public static boolean progcache = getbool("haven.progcache", true);
+    public static int progwarm = getint("haven.progwarm", 512);
+    public static int textcache = getint("haven.textcache", 4096);
+    public static boolean wcache = getbool("haven.wcache", false);
+    public static double wcacheage = getfloat("haven.wcacheage", 1.0);
+    public static double posequant = getfloat("haven.posequant", 1.0 / 60.0);
+    public static int posecache = getint("haven.posecache", 256);
+    public static boolean animlod = getbool("haven.animlod", true);
+    public static double animlodnear = getfloat("haven.animlodnear", 12.0);
+    public static double animlodfar = getfloat("haven.animlodfar", 5.0);
+    public static int mipthreads = getint("haven.mipthreads", Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    public static boolean mipahead = getbool("haven.mipahead", true);
+    public static boolean raypick = getbool("haven.raypick", true);
+    public static int pcmcache = getint("haven.pcmcache", 32);
+    public static int pcmclip = getint("haven.pcmclip", 48);
+    public static int chatmem = getint("haven.chatmem", 500);
+    public static int chatrender = getint("haven.chatrender", 256);
+    public static int l10ncache = getint("haven.l10ncache", 4096);
+    public static int richcache = getint("haven.richcache", 512);
     public static Path loadwaited = getpath("haven.loadwaited", null);
     public static Path allused = getpath("haven.allused", null);
     public static int mainport = getint("haven.mainport", 1870);
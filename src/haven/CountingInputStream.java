@@ -48,13 +48,15 @@ public class CountingInputStream extends InputStream {
 
     public int read(byte[] buf, int off, int len) throws IOException {
 	int rv = bk.read(buf, off, len);
-	update(rv);
+	if(rv > 0)
+	    update(rv);
 	return(rv);
     }
 
     public int read() throws IOException {
 	int rv = bk.read();
-	update(1);
+	if(rv >= 0)
+	    update(1);
 	return(rv);
     }
 
@@ -88,6 +88,7 @@ public class CraftDBWnd extends WindowX implements DTarget2 {
     
     public CraftDBWnd() {
 	super(WND_SZ.add(UI.scale(0, 5)), "Craft window");
+	rcache(true);
 	CFG.REAL_TIME_CURIO.observe(cfg -> updateDescription(descriptionPagina));
 	CFG.SHOW_CURIO_LPH.observe(cfg -> updateDescription(descriptionPagina));
     }
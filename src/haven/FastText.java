@@ -26,80 +26,30 @@
 
 package haven;
 
-import haven.render.*;
 import java.awt.Font;
 import java.awt.FontMetrics;
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
+import java.awt.Color;
 
 public class FastText {
-    public static final VertexArray.Layout vf = new VertexArray.Layout(new VertexArray.Layout.Input(Ortho2D.pos, new VectorFormat(2, NumberFormat.SINT16), 0, 0, 8),
-								       new VertexArray.Layout.Input(ColorTex.texc, new VectorFormat(2, NumberFormat.UNORM16), 0, 4, 8));
     public static final Font font = UI.scale(Text.sans, 10);
-    public static final int h;
-    public static final FontMetrics meter;
-    private static final TexI ct;
-    private static final int[] sx = new int[256], cw = new int[256];
+    public static final GlyphAtlas atlas = GlyphAtlas.get(font, false);
+    public static final int h = atlas.height;
+    public static final FontMetrics meter = atlas.m;
 
     private FastText() {}
 
-    static {
-	BufferedImage junk = TexI.mkbuf(new Coord(1, 1));
-	Graphics tmpl = junk.getGraphics();
-	tmpl.setFont(font);
-	meter = tmpl.getFontMetrics();
-	h = meter.getHeight();
-	tmpl.dispose();
-	int cx = 0;
-	for(char i = 32; i < 256; i++) {
-	    cw[i] = meter.stringWidth(Character.toString(i));
-	    sx[i] = cx;
-	    cx += cw[i] + 2;
-	}
-	BufferedImage buf = TexI.mkbuf(new Coord(cx, meter.getAscent() + meter.getDescent()));
-	Graphics g = buf.getGraphics();
-	g.setFont(font);
-	for(char i = 32; i < 256; i++)
-	    g.drawString(Character.toString(i), sx[i], meter.getAscent());
-	g.dispose();
-	ct = new TexI(buf);
-    }
-
     public static int textw(String text) {
-	int r = 0;
-	for(int i = 0; i < text.length(); i++)
-	    r += cw[text.charAt(i)];
-	return(r);
+	return(atlas.textw(text));
     }
     
     public static void aprint(GOut g, Coord c, double ax, double ay, String text) {
-	Coord lc = c.add(g.tx);
+	Coord lc = new Coord(c);
 	if(ax > 0)
 	    lc.x -= Math.round(textw(text) * ax);
 	int h = meter.getAscent() + meter.getDescent();
 	if(ay > 0)
 	    lc.y -= Math.round(h * ay);
-	short[] data = new short[text.length() * 4 * 4];
-	short[] idx = new short[text.length() * 6];
-	for(int i = 0; i < text.length(); i++) {
-	    char cc = text.charAt(i);
-	    int vo = i * 4, so = vo * 4, io = i * 6;
-	    int w = cw[cc];
-	    short x1 = (short)lc.x, x2 = (short)(lc.x + w), y1 = (short)lc.y, y2 = (short)(lc.y + h);
-	    short tx1 = (short)(((sx[cc] * 65535) + (ct.tdim.x / 2)) / ct.tdim.x), tx2 = (short)((((sx[cc] + w) * 65535) + (ct.tdim.x / 2)) / ct.tdim.x);
-	    short ty1 = 0, ty2 = (short)((h * 65535) / ct.tdim.y);
-	    data[so +  0] = x1; data[so +  1] = y1; data[so +  2] = tx1; data[so +  3] = ty1;
-	    data[so +  4] = x1; data[so +  5] = y2; data[so +  6] = tx1; data[so +  7] = ty2;
-	    data[so +  8] = x2; data[so +  9] = y1; data[so + 10] = tx2; data[so + 11] = ty1;
-	    data[so + 12] = x2; data[so + 13] = y2; data[so + 14] = tx2; data[so + 15] = ty2;
-	    idx[io + 0] = (short)(vo + 0); idx[io + 1] = (short)(vo + 1); idx[io + 2] = (short)(vo + 2);
-	    idx[io + 3] = (short)(vo + 1); idx[io + 4] = (short)(vo + 3); idx[io + 5] = (short)(vo + 2);
-	    lc.x += w;
-	}
-	g.out.draw1(g.state().copy().prep(ct.st()),
-		    new Model(Model.Mode.TRIANGLES,
-			      new VertexArray(vf, new VertexArray.Buffer(data.length * 2, DataBuffer.Usage.EPHEMERAL, DataBuffer.Filler.of(data))),
-			      new Model.Indices(idx.length, NumberFormat.UINT16, DataBuffer.Usage.EPHEMERAL, DataBuffer.Filler.of(idx))));
+	atlas.print(g, lc.sub(0, meter.getLeading()), text, Color.WHITE, null);
     }
     
     public static void print(GOut g, Coord c, String text) {
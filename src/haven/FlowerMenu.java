@@ -112,14 +112,19 @@ public class FlowerMenu extends Widget {
 	public String name;
 	public double ta, tr;
 	public int num;
-	private Text text;
+	private final TextCache.Ref text;
 	private double a = 1;
 
 	public Petal(String name) {
 	    super(Coord.z);
 	    this.name = name;
-	    text = ptf.render(L10N.flower(name), ptc);
-	    resize(text.sz().x + UI.scale(25), ph);
+	    text = TextCache.global.get(ptf, L10N.flower(name), ptc, null);
+	    resize(text.line.sz().x + UI.scale(25), ph);
+	}
+
+	public void dispose() {
+	    text.dispose();
+	    super.dispose();
 	}
 
 	public void move(Coord c) {
@@ -134,7 +139,7 @@ public class FlowerMenu extends Widget {
 	    g.chcolor(new Color(255, 255, 255, (int)(255 * a)));
 	    g.image(pbg, new Coord(3, 3), new Coord(3, 3), sz.add(new Coord(-6, -6)), UI.scale(pbg.sz()));
 	    pbox.draw(g, Coord.z, sz);
-	    g.image(text.tex(), sz.div(2).sub(text.sz().div(2)));
+	    g.image(text.tex(), sz.div(2).sub(text.line.sz().div(2)));
 	}
 
 	public boolean mousedown(Coord c, int button) {
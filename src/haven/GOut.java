@@ -221,7 +221,7 @@ public class GOut {
     }
 
     /* Draw texture at c, with the extra state s applied. */
-    public void image(Tex tex, Coord c, State s) {
+    public void image(Tex tex, Coord c, Pipe.Op s) {
 	Pipe bk = cur2d.copy();
 	cur2d.prep(s);
 	tex.crender(this, c.add(tx), ul, br);
@@ -229,17 +229,11 @@ public class GOut {
     }
 
     public void atext(String text, Coord c, double ax, double ay) {
-	Text t = Text.render(text);
-	Tex T = t.tex();
-	aimage(T, c, ax, ay);
-	T.dispose();
+	Text.std.atlas().aprint(this, c, ax, ay, text, Color.WHITE, null);
     }
     
     public void atext(String text, Coord c, double ax, double ay, Text.Foundry font) {
-	Text t = Text.renderstroked(text, font);
-	Tex T = t.tex();
-	aimage(T, c, ax, ay);
-	T.dispose();
+	font.atlas().aprint(this, c, ax, ay, text, Color.WHITE, Color.BLACK);
     }
 
     public void text(String text, Coord c) {
@@ -39,6 +39,7 @@ public class GPUProfile extends Profile {
     public class Frame extends Profile.Frame {
 	private List<String> nw = new ArrayList<>(16);
 	private List<Long> queries = new ArrayList<>(16);
+	public String stats = null;
 
 	public Frame(Render out) {
 	    query(out);
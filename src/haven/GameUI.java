@@ -264,6 +264,7 @@ public class GameUI extends ConsoleHost implements Console.Directory {
 	this.chrid = chrid;
 	this.plid = plid;
 	this.genus = genus;
+	ResPreload.login(Resource.remote());
 	setcanfocus(true);
 	setfocusctl(true);
 	chat = add(new ChatUI(0, 0));
@@ -64,7 +64,7 @@ public class GeneralGobInfo extends GobInfo {
 
     private BufferedImage quality() {
 	if(q != 0) {
-	    return Text.std.renderstroked(String.format("Q: %d", q), Q_COL, Color.BLACK).img;
+	    return TextCache.global.line(Text.std, String.format("Q: %d", q), Q_COL, Color.BLACK).img;
 	}
 	return null;
     }
@@ -93,7 +93,7 @@ public class GeneralGobInfo extends GobInfo {
 		int stage = data.uint8();
 		if(stage > maxStage) {stage = maxStage;}
 		Color c = Utils.blendcol((double) stage / maxStage, Color.RED, Color.ORANGE, Color.YELLOW, Color.GREEN);
-		line = Text.std.renderstroked(String.format("%d/%d", stage, maxStage), c, Color.BLACK);
+		line = TextCache.global.line(Text.std, String.format("%d/%d", stage, maxStage), c, Color.BLACK);
 	    }
 	} else if(isSpriteKind(gob, "Tree")) {
 	    Message data = getDrawableData(gob);
@@ -107,7 +107,7 @@ public class GeneralGobInfo extends GobInfo {
 			growth = (int) (BUSH_MULT * (growth - BUSH_START));
 		    }
 		    Color c = Utils.blendcol(growth / 100.0, Color.RED, Color.ORANGE, Color.YELLOW, Color.GREEN);
-		    line = Text.std.renderstroked(String.format("%d%%", growth), c, Color.BLACK);
+		    line = TextCache.global.line(Text.std, String.format("%d%%", growth), c, Color.BLACK);
 		}
 	    }
 	}
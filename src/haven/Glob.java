@@ -56,6 +56,7 @@ public class Glob {
     public final Map<String, CAttr> cattr = new HashMap<String, CAttr>();
     private Map<Indir<Resource>, Object> wmap = new HashMap<Indir<Resource>, Object>();
     public volatile long attrseq = 0;
+    public volatile AnimLOD animlod = null;
     
     public Glob(Session sess) {
 	this.sess = sess;
@@ -0,0 +1,320 @@
+package haven;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Color;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextAttribute;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.*;
+import haven.render.*;
+import haven.render.Texture2D.Sampler2D;
+
+/* Draws text from lazily populated per-font glyph textures, rather
+ * than rasterizing whole strings into images of their own. Layout
+ * follows that of Text.Foundry, with glyph advances, kerning (for
+ * fonts that have it turned on) and line height taken from the same
+ * font metrics, and stroking matching Utils.outline2, so that the
+ * output matches that of rendered Text.Lines. Glyphs are stored in
+ * white and tinted by the current color. */
+public class GlyphAtlas {
+    public static final int PAGESZ = 256;
+    private static final Map<Object, GlyphAtlas> atlases = new HashMap<>();
+    public final Font font;
+    public final boolean aa;
+    public final FontMetrics m;
+    public final int height, ascent, margin;
+    private final boolean kern;
+    private final Map<Integer, Char> chars = new HashMap<>();
+    private final Map<Long, Integer> kerns = new HashMap<>();
+    private final List<Page> pages = new ArrayList<>();
+    private final Graphics2D tmpl;
+
+    private GlyphAtlas(Font font, boolean aa) {
+	this.font = font;
+	this.aa = aa;
+	BufferedImage junk = TexI.mkbuf(new Coord(1, 1));
+	tmpl = (Graphics2D)junk.getGraphics();
+	if(aa)
+	    Utils.AA(tmpl);
+	tmpl.setFont(font);
+	m = tmpl.getFontMetrics();
+	height = m.getHeight();
+	ascent = m.getLeading() + m.getAscent();
+	/* Room for glyph parts reaching outside their advance. */
+	margin = (height + 3) / 4;
+	kern = TextAttribute.KERNING_ON.equals(font.getAttributes().get(TextAttribute.KERNING));
+    }
+
+    public static GlyphAtlas get(Font font, boolean aa) {
+	List<Object> key = Arrays.asList(font, aa);
+	synchronized(atlases) {
+	    GlyphAtlas ret = atlases.get(key);
+	    if(ret == null)
+		atlases.put(key, ret = new GlyphAtlas(font, aa));
+	    return(ret);
+	}
+    }
+
+    private class Page {
+	final BufferedImage img = TexI.mkbuf(new Coord(PAGESZ, PAGESZ));
+	final byte[] data = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+	int sx = 0, sy = 0, sh = 0;
+	boolean dirty = true;
+	Texture2D tex;
+	ColorTex st;
+
+	Coord alloc(int w, int h) {
+	    if(sx + w > PAGESZ) {
+		sx = 0;
+		sy += sh;
+		sh = 0;
+	    }
+	    if((sy + h > PAGESZ) || (w > PAGESZ))
+		return(null);
+	    Coord ret = new Coord(sx, sy);
+	    sx += w;
+	    sh = Math.max(sh, h);
+	    return(ret);
+	}
+
+	/* Pages only ever grow, so whenever glyphs have been added
+	 * the whole page is simply uploaded again. That only happens
+	 * as new characters are first seen, and keeps the textures
+	 * themselves static. */
+	ColorTex st(GOut g) {
+	    if(!dirty)
+		return(st);
+	    byte[] snap = data.clone();
+	    DataBuffer.Filler<Texture.Image> fill = (img, env) -> {
+		FillBuffer buf = env.fillbuf(img);
+		buf.pull(ByteBuffer.wrap(snap));
+		return(buf);
+	    };
+	    if(tex == null) {
+		tex = new Texture2D(PAGESZ, PAGESZ, DataBuffer.Usage.STATIC, new VectorFormat(4, NumberFormat.UNORM8), new VectorFormat(4, NumberFormat.UNORM8), fill);
+		tex.desc(GlyphAtlas.this);
+		Sampler2D data = new Sampler2D(tex);
+		data.magfilter(Texture.Filter.NEAREST).minfilter(Texture.Filter.NEAREST);
+		st = new ColorTex(data);
+	    } else {
+		g.out.update(tex.image(0), fill);
+	    }
+	    dirty = false;
+	    return(st);
+	}
+    }
+
+    private static class Glyph {
+	final Page page;
+	final int x, y, w, h;
+
+	Glyph(Page page, int x, int y, int w, int h) {
+	    this.page = page;
+	    this.x = x; this.y = y;
+	    this.w = w; this.h = h;
+	}
+    }
+
+    private static class Char {
+	final int cp, adv;
+	Glyph fill, outline;
+
+	Char(int cp, int adv) {
+	    this.cp = cp;
+	    this.adv = adv;
+	}
+    }
+
+    private Glyph place(BufferedImage img) {
+	int w = img.getWidth(), h = img.getHeight();
+	Page page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+	Coord c = (page == null) ? null : page.alloc(w, h);
+	if(c == null) {
+	    pages.add(page = new Page());
+	    if((c = page.alloc(w, h)) == null)
+		throw(new RuntimeException("glyph too large for atlas: " + w + "x" + h));
+	}
+	Graphics2D g = page.img.createGraphics();
+	g.drawImage(img, c.x, c.y, null);
+	g.dispose();
+	page.dirty = true;
+	return(new Glyph(page, c.x, c.y, w, h));
+    }
+
+    private BufferedImage rglyph(Char ch) {
+	BufferedImage img = TexI.mkbuf(new Coord(ch.adv + (margin * 2), height));
+	Graphics2D g = img.createGraphics();
+	if(aa)
+	    Utils.AA(g);
+	g.setFont(font);
+	g.setColor(Color.WHITE);
+	g.drawString(new String(Character.toChars(ch.cp)), margin, ascent);
+	g.dispose();
+	return(img);
+    }
+
+    private Char ch(int cp) {
+	Char ret = chars.get(cp);
+	if(ret == null)
+	    chars.put(cp, ret = new Char(cp, m.charWidth(cp)));
+	return(ret);
+    }
+
+    private Glyph fill(Char ch) {
+	if(ch.fill == null)
+	    ch.fill = place(rglyph(ch));
+	return(ch.fill);
+    }
+
+    private Glyph outline(Char ch) {
+	if(ch.outline == null)
+	    ch.outline = place(Utils.outline(rglyph(ch), Color.WHITE, true));
+	return(ch.outline);
+    }
+
+    private int kern(int a, int b) {
+	if(!kern)
+	    return(0);
+	long key = ((long)a << 32) | (b & 0xffffffffl);
+	Integer ret = kerns.get(key);
+	if(ret == null) {
+	    FontRenderContext frc = tmpl.getFontRenderContext();
+	    char[] buf = (new String(Character.toChars(a)) + new String(Character.toChars(b))).toCharArray();
+	    GlyphVector gv = font.layoutGlyphVector(frc, buf, 0, buf.length, Font.LAYOUT_LEFT_TO_RIGHT);
+	    int n = gv.getNumGlyphs();
+	    int full = (int)Math.round(gv.getGlyphPosition(n).getX());
+	    kerns.put(key, ret = full - m.charWidth(a) - m.charWidth(b));
+	}
+	return(ret);
+    }
+
+    /* Layout of text, with code points and pen positions. */
+    private int layout(String text, int[] cps, int[] xs) {
+	int n = 0, x = 0, prev = -1;
+	for(int i = 0; i < text.length();) {
+	    int cp = text.codePointAt(i);
+	    i += Character.charCount(cp);
+	    if(prev >= 0)
+		x += kern(prev, cp);
+	    cps[n] = cp;
+	    xs[n] = x;
+	    x += ch(cp).adv;
+	    n++;
+	    prev = cp;
+	}
+	xs[n] = x;
+	return(n);
+    }
+
+    public synchronized int textw(String text) {
+	int[] cps = new int[text.length()], xs = new int[text.length() + 1];
+	return(xs[layout(text, cps, xs)]);
+    }
+
+    public Coord strsize(String text) {
+	return(new Coord(textw(text), height));
+    }
+
+    /* Size of the equivalent rendered line, for alignment. */
+    public Coord strsize(String text, boolean stroked) {
+	Coord ret = strsize(text);
+	return(stroked ? ret.add(2, 2) : ret);
+    }
+
+    private static int quad(float[] buf, int o, Glyph gl, int x, int y, Coord cul, Coord cbr) {
+	float x1 = x, y1 = y, x2 = x + gl.w, y2 = y + gl.h;
+	float u1 = gl.x, v1 = gl.y, u2 = gl.x + gl.w, v2 = gl.y + gl.h;
+	if((x1 >= cbr.x) || (y1 >= cbr.y) || (x2 <= cul.x) || (y2 <= cul.y))
+	    return(o);
+	if(x1 < cul.x) {u1 += cul.x - x1; x1 = cul.x;}
+	if(y1 < cul.y) {v1 += cul.y - y1; y1 = cul.y;}
+	if(x2 > cbr.x) {u2 -= x2 - cbr.x; x2 = cbr.x;}
+	if(y2 > cbr.y) {v2 -= y2 - cbr.y; y2 = cbr.y;}
+	u1 /= PAGESZ; v1 /= PAGESZ; u2 /= PAGESZ; v2 /= PAGESZ;
+	buf[o++] = x1; buf[o++] = y1; buf[o++] = u1; buf[o++] = v1;
+	buf[o++] = x1; buf[o++] = y2; buf[o++] = u1; buf[o++] = v2;
+	buf[o++] = x2; buf[o++] = y1; buf[o++] = u2; buf[o++] = v1;
+	buf[o++] = x1; buf[o++] = y2; buf[o++] = u1; buf[o++] = v2;
+	buf[o++] = x2; buf[o++] = y2; buf[o++] = u2; buf[o++] = v2;
+	buf[o++] = x2; buf[o++] = y1; buf[o++] = u2; buf[o++] = v1;
+	return(o);
+    }
+
+    private static Color mul(Color a, Color b) {
+	if(a == null)
+	    return(b);
+	return(new Color((a.getRed() * b.getRed()) / 255, (a.getGreen() * b.getGreen()) / 255,
+			 (a.getBlue() * b.getBlue()) / 255, (a.getAlpha() * b.getAlpha()) / 255));
+    }
+
+    private void pass(GOut g, Glyph[] gls, int[] xs, int y, int n, Color col) {
+	BaseColor prev = g.curstate(BaseColor.slot);
+	g.chcolor(mul((prev == null) ? null : prev.color(), col));
+	Coord cul = g.ul, cbr = g.br;
+	float[] buf = new float[n * 24];
+	for(Page page : pages) {
+	    int o = 0;
+	    for(int i = 0; i < n; i++) {
+		if(gls[i].page == page)
+		    o = quad(buf, o, gls[i], xs[i], y, cul, cbr);
+	    }
+	    if(o == 0)
+		continue;
+	    g.usestate(page.st(g));
+	    g.drawt(Model.Mode.TRIANGLES, Arrays.copyOf(buf, o), o / 4);
+	}
+	g.usestate(ColorTex.slot);
+	if(prev == null)
+	    g.chcolor();
+	else
+	    g.usestate(prev);
+    }
+
+    /* Draws text as col with its upper left corner at c, or if
+     * stroke is non-null, stroked, as from Foundry.renderstroked. */
+    public synchronized void print(GOut g, Coord c, String text, Color col, Color stroke) {
+	int[] cps = new int[text.length()], xs = new int[text.length() + 1];
+	int n = layout(text, cps, xs);
+	if(n == 0)
+	    return;
+	Coord tc = c.add(g.tx);
+	Glyph[] gls = new Glyph[n];
+	int[] gx = new int[n];
+	if(stroke != null) {
+	    for(int i = 0; i < n; i++) {
+		gls[i] = outline(ch(cps[i]));
+		gx[i] = tc.x + xs[i] - margin;
+	    }
+	    pass(g, gls, gx, tc.y, n, stroke);
+	    tc = tc.add(1, 1);
+	}
+	for(int i = 0; i < n; i++) {
+	    gls[i] = fill(ch(cps[i]));
+	    gx[i] = tc.x + xs[i] - margin;
+	}
+	pass(g, gls, gx, tc.y, n, col);
+    }
+
+    public void aprint(GOut g, Coord c, double ax, double ay, String text, Color col, Color stroke) {
+	Coord sz = strsize(text, stroke != null);
+	print(g, c.add((int)((double)sz.x * -ax), (int)((double)sz.y * -ay)), text, col, stroke);
+    }
+
+    public synchronized String stats() {
+	return(String.format("%s: %d chars, %d pages", font, chars.size(), pages.size()));
+    }
+
+    static {
+	Console.setscmd("glyphs", (cons, args) -> {
+		synchronized(atlases) {
+		    for(GlyphAtlas a : atlases.values())
+			cons.out.println(a.stats());
+		}
+	    });
+    }
+}
@@ -52,7 +52,7 @@ public class GobHealth extends GAttrib implements Gob.SetupMod {
     public BufferedImage text() {
 	if(hp < 1) {
 	    int c = 75 + (int) Math.floor(hp * 180);
-	    return Text.renderstroked(String.format("%d%%", Math.round(100 * hp)), new Color(255, c, c), Color.BLACK, gobhpf).img;
+	    return TextCache.global.line(gobhpf, String.format("%d%%", Math.round(100 * hp)), new Color(255, c, c), Color.BLACK).img;
 	}
 	return null;
     }
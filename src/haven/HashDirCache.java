@@ -31,12 +31,18 @@ import java.io.*;
 import java.nio.file.*;
 import java.nio.channels.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 import static haven.Utils.pj;
 
 public class HashDirCache implements ResCache {
     private final Path base;
     public final URI id;
     private final long idhash;
+    private final Index index;
+    private final AtomicLong nfetch = new AtomicLong(), nhit = new AtomicLong(), nslow = new AtomicLong(), nmiss = new AtomicLong();
+    private final AtomicLong fetchtime = new AtomicLong();
 
     public static Path findbase() {
 	try {
@@ -83,6 +89,23 @@ public class HashDirCache implements ResCache {
 	this.base = findbase();
 	this.id = id;
 	this.idhash = namehash(0, id.toString());
+	Index index = null;
+	try {
+	    index = new Index(pj(base, String.format("%016x.idx", idhash)));
+	} catch(IOException e) {
+	    new Warning(e, "could not open cache index for " + id).issue();
+	}
+	this.index = index;
+	if((index != null) && index.fresh) {
+	    Defer.later(() -> {
+		    try {
+			migrate();
+		    } catch(IOException e) {
+			new Warning(e, "could not index existing cache files for " + id).issue();
+		    }
+		    return(null);
+		});
+	}
     }
 
     private static final Map<URI, HashDirCache> current = new CacheMap<>();
@@ -113,6 +136,19 @@ public class HashDirCache implements ResCache {
 	return(h);
     }
 
+    /* Deliberately a different function than namehash, so that
+     * names sharing a hash chain get distinct index keys. */
+    private long idxkey(String name) {
+	long h = 0xcbf29ce484222325L;
+	String cid = id.toString();
+	for(int i = 0; i < cid.length(); i++)
+	    h = (h ^ cid.charAt(i)) * 0x100000001b3L;
+	h = (h ^ 0) * 0x100000001b3L;
+	for(int i = 0; i < name.length(); i++)
+	    h = (h ^ name.charAt(i)) * 0x100000001b3L;
+	return((h == 0) ? 1 : h);
+    }
+
     private static class Header {
 	String cid, name;
     }
@@ -212,16 +248,25 @@ public class HashDirCache implements ResCache {
     private static class CacheFile implements AutoCloseable {
 	final Path p;
 	final Header h;
+	final int slot;
 	FileChannel f;
 
-	CacheFile(Path p, Header h, LockedFile lf) throws IOException {
+	CacheFile(Path p, Header h, int slot, LockedFile lf) throws IOException {
 	    this.p = p;
 	    this.h = h;
+	    this.slot = slot;
 	    this.f = lf.f;
 	    lf.release();
 	    lf.f = null;
 	}
 
+	CacheFile(Path p, Header h, int slot, FileChannel f) {
+	    this.p = p;
+	    this.h = h;
+	    this.slot = slot;
+	    this.f = f;
+	}
+
 	FileChannel acquire() {
 	    FileChannel ret = this.f;
 	    this.f = null;
@@ -274,10 +319,10 @@ public class HashDirCache implements ResCache {
 				head = new Header();
 				head.cid = id.toString();
 				head.name = name;
-				return(new CacheFile(path, head, lf));
+				return(indexed(name, new CacheFile(path, head, idx, lf)));
 			    }
 			    if(head.cid.equals(id.toString()) && head.name.equals(name))
-				return(new CacheFile(path, head, lf));
+				return(indexed(name, new CacheFile(path, head, idx, lf)));
 			} finally {
 			    if(idx != 0)
 				fp.close();
@@ -298,16 +343,74 @@ public class HashDirCache implements ResCache {
 	}
     }
 
+    private CacheFile indexed(String name, CacheFile cf) {
+	if(index != null) {
+	    try {
+		index.put(idxkey(name), cf.slot);
+	    } catch(IOException e) {
+		/* The index is only an optimization. */
+	    }
+	}
+	return(cf);
+    }
+
+    /* Lock-free lookup through the index. Returns null whenever the
+     * index does not point to a file with a matching header, in
+     * which case the caller should fall back to lookup(). */
+    private CacheFile quick(String name) {
+	if(index == null)
+	    return(null);
+	int slot = index.get(idxkey(name));
+	if(slot < 0)
+	    return(null);
+	Path path = pj(base, String.format("%016x.%d", namehash(idhash, name), slot));
+	FileChannel fp = null;
+	try {
+	    fp = FileChannel.open(path, StandardOpenOption.READ);
+	    Header head = readhead(fp);
+	    if((head != null) && head.cid.equals(id.toString()) && head.name.equals(name)) {
+		CacheFile ret = new CacheFile(path, head, slot, fp);
+		fp = null;
+		return(ret);
+	    }
+	} catch(IOException e) {
+	} finally {
+	    if(fp != null) {
+		try {
+		    fp.close();
+		} catch(IOException e) {}
+	    }
+	}
+	return(null);
+    }
+
+    private static final DirectoryStream.Filter<Path> slotfiles =
+	fnfilter(f -> (f.length() >= 18) && (f.charAt(16) == '.') && Utils.strcheck(f.substring(17), Character::isDigit));
+
+    private void migrate() throws IOException {
+	Collection<Pair<Long, Integer>> ents = new ArrayList<>();
+	try(DirectoryStream<Path> dir = Files.newDirectoryStream(base, slotfiles)) {
+	    for(Path path : dir) {
+		String fn = path.getFileName().toString();
+		try(FileChannel fp = FileChannel.open(path, StandardOpenOption.READ)) {
+		    Header head = readhead(fp);
+		    if((head != null) && head.cid.equals(id.toString()) &&
+		       (namehash(idhash, head.name) == Long.parseUnsignedLong(fn.substring(0, 16), 16)))
+			ents.add(new Pair<>(idxkey(head.name), Integer.parseInt(fn.substring(17))));
+		} catch(IOException | NumberFormatException e) {
+		    continue;
+		}
+	    }
+	}
+	index.put(ents);
+    }
+
     private static DirectoryStream.Filter<Path> fnfilter(java.util.function.Predicate<String> filter) {
 	return(p -> filter.test(p.getFileName().toString()));
     }
 
     private Iterator<String> list(boolean filter) throws IOException {
-	Iterator<Path> files =
-	    Files.newDirectoryStream(base, fnfilter(f -> (f.length() >= 18) &&
-						    (f.charAt(16) == '.') &&
-						    Utils.strcheck(f.substring(17), Character::isDigit)))
-	    .iterator();
+	Iterator<Path> files = Files.newDirectoryStream(base, slotfiles).iterator();
 	return(new Iterator<String>() {
 		int i = 0;
 		String next = null;
@@ -351,11 +454,18 @@ public class HashDirCache implements ResCache {
 	return(list(true));
     }
 
-    public OutputStream store(String name) throws IOException {
-	Path path;
+    private Path storepath(String name) throws IOException {
+	try(CacheFile cf = quick(name)) {
+	    if(cf != null)
+		return(cf.p);
+	}
 	try(CacheFile cf = lookup(name, true)) {
-	    path = cf.p;
+	    return(cf.p);
 	}
+    }
+
+    public OutputStream store(String name) throws IOException {
+	Path path = storepath(name);
 	Path dir = path.getParent();
 	Path tmp = Files.createTempFile(dir, "cache", ".new");
 	FileChannel fp = open2(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
@@ -384,11 +494,26 @@ public class HashDirCache implements ResCache {
     }
 
     public InputStream fetch(String name) throws IOException {
-	try(CacheFile cf = lookup(name, false)) {
-	    if(cf == null)
-		throw(new FileNotFoundException(name));
-	    FileChannel fp = cf.acquire();
-	    return(Channels.newInputStream(fp));
+	long start = System.nanoTime();
+	nfetch.incrementAndGet();
+	try {
+	    try(CacheFile cf = quick(name)) {
+		if(cf != null) {
+		    nhit.incrementAndGet();
+		    return(Channels.newInputStream(cf.acquire()));
+		}
+	    }
+	    try(CacheFile cf = lookup(name, false)) {
+		if(cf == null) {
+		    nmiss.incrementAndGet();
+		    throw(new FileNotFoundException(name));
+		}
+		nslow.incrementAndGet();
+		FileChannel fp = cf.acquire();
+		return(Channels.newInputStream(fp));
+	    }
+	} finally {
+	    fetchtime.addAndGet(System.nanoTime() - start);
 	}
     }
 
@@ -399,12 +524,264 @@ public class HashDirCache implements ResCache {
 	    cf.close();
 	    Files.deleteIfExists(cf.p);
 	}
+	if(index != null)
+	    index.put(idxkey(name), -1);
+    }
+
+    public String stats() {
+	long n = nfetch.get();
+	return(String.format("%s: %,d fetches, %,d indexed, %,d unindexed, %,d missing, avg. %.3f ms",
+			     id, n, nhit.get(), nslow.get(), nmiss.get(), (n == 0) ? 0.0 : (fetchtime.get() * 1e-6) / n));
+    }
+
+    static {
+	Console.setscmd("cachestats", (cons, args) -> {
+		synchronized(current) {
+		    for(HashDirCache cache : current.values())
+			cons.out.println(cache.stats());
+		}
+	    });
     }
 
     public String toString() {
 	return("HashDirCache(" + id + ")");
     }
 
+    /*
+     * Memory-mapped index from names to the slot files holding them,
+     * so that lookups of cached names can go straight to the right
+     * file without taking any locks or probing the hash chain. The
+     * index is only ever a hint: entries are verified against the
+     * header of the file they point to, and a stale or missing entry
+     * just causes a fall-back to the ordinary locked lookup, which
+     * then corrects it. That also keeps it compatible with clients
+     * that do not maintain it. Writers take a file lock on the index
+     * itself, so that several client processes can share it.
+     */
+    private static class Index {
+	static final int MAGIC = 0x49434448, VERSION = 1;
+	static final int HDRSZ = 64, ENTSZ = 16, MINCAP = 1 << 16;
+	static final int O_MAGIC = 0, O_VER = 4, O_CAP = 8, O_USED = 12, O_OBSOLETE = 16;
+	static final int MAXCAP = 1 << 26;
+	final Path path;
+	private FileChannel ch;
+	private volatile MappedByteBuffer map;
+	private boolean nogrow = false;
+	boolean fresh = false;
+
+	Index(Path path) throws IOException {
+	    this.path = path;
+	    open();
+	}
+
+	/* Each capacity has a file of its own, since a file that is
+	 * mapped, by this or another process, cannot be replaced or
+	 * resized on all platforms. Growing writes the next larger file
+	 * and marks the old one obsolete. */
+	private Path path(int cap) {
+	    if(cap == MINCAP)
+		return(path);
+	    return(path.resolveSibling(path.getFileName() + "." + Integer.numberOfTrailingZeros(cap)));
+	}
+
+	private void open() throws IOException {
+	    int cap = MINCAP;
+	    for(int c = MINCAP * 2; c <= MAXCAP; c *= 2) {
+		if(Files.exists(path(c)))
+		    cap = c;
+	    }
+	    ch = FileChannel.open(path(cap), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	    try(FileLock lk = lock()) {
+		if(!valid(cap)) {
+		    init(ch, cap);
+		    fresh = true;
+		}
+		mapall();
+	    }
+	    for(int c = MINCAP; c < cap; c *= 2) {
+		try {
+		    Files.deleteIfExists(path(c));
+		} catch(IOException e) {
+		    /* Still mapped somewhere; try again next time. */
+		}
+	    }
+	}
+
+	private boolean valid(int cap) throws IOException {
+	    if(ch.size() < HDRSZ)
+		return(false);
+	    ByteBuffer hdr = ByteBuffer.allocate(HDRSZ);
+	    ch.read(hdr, 0);
+	    return((hdr.getInt(O_MAGIC) == MAGIC) && (hdr.getInt(O_VER) == VERSION) &&
+		   (hdr.getInt(O_CAP) == cap) && (ch.size() == HDRSZ + ((long)cap * ENTSZ)) &&
+		   (hdr.getInt(O_OBSOLETE) == 0));
+	}
+
+	private static void init(FileChannel ch, int cap) throws IOException {
+	    ch.truncate(0);
+	    ByteBuffer hdr = ByteBuffer.allocate(HDRSZ);
+	    hdr.putInt(O_MAGIC, MAGIC).putInt(O_VER, VERSION).putInt(O_CAP, cap);
+	    ch.write(hdr, 0);
+	    ch.write(ByteBuffer.allocate(1), HDRSZ + ((long)cap * ENTSZ) - 1);
+	}
+
+	private void mapall() throws IOException {
+	    map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+	}
+
+	/* The capacity is taken from the header of the same mapping
+	 * that is probed, so that it always matches it even while
+	 * the index is being replaced by a larger one. It never
+	 * changes once a file has been initialized. */
+	private static int cap(MappedByteBuffer map) {
+	    return(map.getInt(O_CAP));
+	}
+
+	private FileLock lock() throws IOException {
+	    boolean intr = false;
+	    try {
+		while(true) {
+		    try {
+			return(ch.lock(0, 1, false));
+		    } catch(FileLockInterruptionException e) {
+			Thread.interrupted();
+			intr = true;
+		    }
+		}
+	    } finally {
+		if(intr)
+		    Thread.currentThread().interrupt();
+	    }
+	}
+
+	/* The index has grown into a new file since it was mapped, by
+	 * this or another process, so reopen it. */
+	private void ckobsolete() throws IOException {
+	    if(map.getInt(O_OBSOLETE) != 0) {
+		synchronized(this) {
+		    if(map.getInt(O_OBSOLETE) != 0) {
+			ch.close();
+			open();
+		    }
+		}
+	    }
+	}
+
+	int get(long key) {
+	    try {
+		ckobsolete();
+	    } catch(IOException e) {
+		return(-1);
+	    }
+	    MappedByteBuffer map = this.map;
+	    int cap = cap(map);
+	    for(int i = 0, e = (int)(key & (cap - 1)); i < cap; i++, e = (e + 1) & (cap - 1)) {
+		int off = HDRSZ + (e * ENTSZ);
+		long k = map.getLong(off);
+		if(k == 0)
+		    return(-1);
+		if(k == key)
+		    return(map.getInt(off + 8));
+	    }
+	    return(-1);
+	}
+
+	private boolean put0(long key, int slot) {
+	    MappedByteBuffer map = this.map;
+	    int cap = cap(map);
+	    for(int i = 0, e = (int)(key & (cap - 1)); i < cap; i++, e = (e + 1) & (cap - 1)) {
+		int off = HDRSZ + (e * ENTSZ);
+		long k = map.getLong(off);
+		if(k == key) {
+		    map.putInt(off + 8, slot);
+		    return(true);
+		} else if(k == 0) {
+		    /* Write the slot before the key, so that concurrent
+		     * readers never see a key with a garbage slot. */
+		    map.putInt(off + 8, slot);
+		    map.putLong(off, key);
+		    map.putInt(O_USED, map.getInt(O_USED) + 1);
+		    return(true);
+		}
+	    }
+	    return(false);
+	}
+
+	private void grow() throws IOException {
+	    MappedByteBuffer map = this.map;
+	    int cap = cap(map), ncap = cap * 2;
+	    if(ncap > MAXCAP)
+		throw(new IOException("cache index is full"));
+	    Path npath = path(ncap);
+	    try(FileChannel nch = FileChannel.open(npath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+		init(nch, ncap);
+		MappedByteBuffer nmap = nch.map(FileChannel.MapMode.READ_WRITE, 0, nch.size());
+		int used = 0;
+		for(int e = 0; e < cap; e++) {
+		    int off = HDRSZ + (e * ENTSZ);
+		    long k = map.getLong(off);
+		    int slot = map.getInt(off + 8);
+		    if((k == 0) || (slot < 0))
+			continue;
+		    for(int ne = (int)(k & (ncap - 1)); ; ne = (ne + 1) & (ncap - 1)) {
+			int noff = HDRSZ + (ne * ENTSZ);
+			if(nmap.getLong(noff) == 0) {
+			    nmap.putInt(noff + 8, slot);
+			    nmap.putLong(noff, k);
+			    used++;
+			    break;
+			}
+		    }
+		}
+		nmap.putInt(O_USED, used);
+		nmap.force();
+	    } catch(IOException e) {
+		try {
+		    Files.deleteIfExists(npath);
+		} catch(IOException e2) {}
+		throw(e);
+	    }
+	    map.putInt(O_OBSOLETE, 1);
+	}
+
+	synchronized void put(Collection<Pair<Long, Integer>> ents) throws IOException {
+	    while(true) {
+		FileChannel ch = this.ch;
+		try(FileLock lk = lock()) {
+		    if(map.getInt(O_OBSOLETE) != 0) {
+			/* Loop around to lock the new file. */
+		    } else {
+			for(Pair<Long, Integer> ent : ents) {
+			    if(nogrow) {
+				/* Entries that do not fit are simply not
+				 * indexed, and lookups fall back to scanning
+				 * for them. */
+				if(map.getInt(O_USED) < (cap(map) / 4) * 3)
+				    put0(ent.a, ent.b);
+			    } else if((map.getInt(O_USED) >= (cap(map) / 4) * 3) || !put0(ent.a, ent.b)) {
+				try {
+				    grow();
+				} catch(IOException e) {
+				    nogrow = true;
+				    throw(e);
+				}
+				break;
+			    }
+			}
+			if(map.getInt(O_OBSOLETE) == 0)
+			    return;
+		    }
+		}
+		ch.close();
+		open();
+	    }
+	}
+
+	void put(long key, int slot) throws IOException {
+	    put(Collections.singletonList(new Pair<>(key, slot)));
+	}
+    }
+
     public static HashDirCache forjnlp() {
 	try {
 	    javax.jnlp.BasicService basic = (javax.jnlp.BasicService)javax.jnlp.ServiceManager.lookup("javax.jnlp.BasicService");
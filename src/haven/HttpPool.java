@@ -0,0 +1,517 @@
+package haven;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/* A minimal HTTP/1.1 client for fetching many small files from a
+ * few hosts, as the resource loaders do. Connections are kept alive
+ * and reused between requests, and the number of connections (and
+ * thus concurrent requests) to each host is bounded. Only what the
+ * resource server needs is implemented: GET requests, and
+ * fixed-length, chunked and close-delimited response bodies.
+ * Proxies are taken from the default ProxySelector, so the usual
+ * http.proxyHost, https.proxyHost and socksProxyHost properties
+ * apply as they do to URLConnection. */
+public class HttpPool {
+    public static final int IDLETIME = 15000;
+    public final int maxconns;
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    public HttpPool(int maxconns) {
+	this.maxconns = maxconns;
+    }
+
+    public static class StatusException extends IOException {
+	public final int code;
+
+	public StatusException(URL url, int code, String msg) {
+	    super(url + ": " + code + " " + msg);
+	    this.code = code;
+	}
+    }
+
+    public class Host {
+	public final String proto, host;
+	public final int port;
+	private final Semaphore slots = new Semaphore(maxconns, true);
+	private final Deque<Conn> idle = new ArrayDeque<>();
+	public final AtomicLong requests = new AtomicLong(), connects = new AtomicLong(), reused = new AtomicLong();
+	public final AtomicLong notmod = new AtomicLong(), errors = new AtomicLong();
+	public final AtomicLong bytes = new AtomicLong(), xfertime = new AtomicLong(), waittime = new AtomicLong();
+	private double latency = 0;
+
+	private Host(String proto, String host, int port) {
+	    this.proto = proto;
+	    this.host = host;
+	    this.port = port;
+	}
+
+	private Conn get(SslHelper ssl) throws IOException {
+	    long now = System.currentTimeMillis();
+	    synchronized(idle) {
+		while(!idle.isEmpty()) {
+		    Conn c = idle.pollLast();
+		    if(now - c.lastused < IDLETIME) {
+			reused.incrementAndGet();
+			c.reused = true;
+			return(c);
+		    }
+		    c.close();
+		}
+	    }
+	    connects.incrementAndGet();
+	    return(new Conn(this, ssl));
+	}
+
+	private void put(Conn c) {
+	    c.lastused = System.currentTimeMillis();
+	    synchronized(idle) {
+		idle.addLast(c);
+	    }
+	}
+
+	private synchronized void latency(long ns) {
+	    latency = (latency == 0) ? (ns * 1e-9) : ((latency * 0.9) + (ns * 1e-9 * 0.1));
+	}
+
+	public int active() {
+	    return(maxconns - slots.availablePermits());
+	}
+
+	public int idle() {
+	    synchronized(idle) {
+		return(idle.size());
+	    }
+	}
+
+	/* Bytes per second of actual transfer time, summed over
+	 * concurrent connections. */
+	public double throughput() {
+	    long t = xfertime.get();
+	    return((t == 0) ? 0 : (bytes.get() / (t * 1e-9)));
+	}
+
+	public synchronized double latency() {
+	    return(latency);
+	}
+
+	public String toString() {
+	    return(proto + "://" + host + ":" + port);
+	}
+    }
+
+    private static class Conn {
+	final Host host;
+	final Socket sk;
+	final InputStream in;
+	final OutputStream out;
+	/* Set when requests go through a plain HTTP proxy, which
+	 * needs absolute URLs in the request line. */
+	final boolean absolute;
+	long lastused;
+	boolean reused;
+
+	Conn(Host host, SslHelper ssl) throws IOException {
+	    this.host = host;
+	    boolean tls = host.proto.equals("https");
+	    if(tls && (ssl == null))
+		throw(new IOException("No TLS context for " + host));
+	    Proxy proxy = proxy(host);
+	    boolean absolute = false;
+	    if(proxy.type() == Proxy.Type.DIRECT) {
+		if(tls) {
+		    sk = ssl.connect(host.host, host.port);
+		} else {
+		    sk = new HackSocket();
+		    sk.connect(new InetSocketAddress(host.host, host.port), 5000);
+		}
+	    } else {
+		Socket raw;
+		if(proxy.type() == Proxy.Type.SOCKS) {
+		    raw = new Socket(proxy);
+		} else {
+		    raw = new HackSocket();
+		}
+		try {
+		    if(proxy.type() == Proxy.Type.SOCKS) {
+			raw.connect(InetSocketAddress.createUnresolved(host.host, host.port), 5000);
+		    } else {
+			InetSocketAddress pa = (InetSocketAddress)proxy.address();
+			raw.connect(pa.isUnresolved() ? new InetSocketAddress(pa.getHostString(), pa.getPort()) : pa, 5000);
+			if(tls)
+			    tunnel(raw, host);
+			else
+			    absolute = true;
+		    }
+		    sk = tls ? ssl.connect(raw, host.host, host.port, true) : raw;
+		} catch(IOException e) {
+		    raw.close();
+		    throw(e);
+		}
+	    }
+	    this.absolute = absolute;
+	    try {
+		sk.setTcpNoDelay(true);
+		sk.setSoTimeout(30000);
+		in = new BufferedInputStream(sk.getInputStream(), 65536);
+		out = new BufferedOutputStream(sk.getOutputStream(), 4096);
+	    } catch(IOException e) {
+		sk.close();
+		throw(e);
+	    }
+	}
+
+	void close() {
+	    try {
+		sk.close();
+	    } catch(IOException e) {
+	    }
+	}
+
+	private static Proxy proxy(Host host) {
+	    ProxySelector sel = ProxySelector.getDefault();
+	    if(sel != null) {
+		try {
+		    List<Proxy> proxies = sel.select(new URI(host.proto, null, host.host, host.port, "/", null, null));
+		    if((proxies != null) && !proxies.isEmpty())
+			return(proxies.get(0));
+		} catch(URISyntaxException | IllegalArgumentException e) {
+		}
+	    }
+	    return(Proxy.NO_PROXY);
+	}
+
+	/* Opens a tunnel through an HTTP proxy for a TLS connection. */
+	private static void tunnel(Socket sk, Host host) throws IOException {
+	    sk.setSoTimeout(30000);
+	    String target = host.host + ":" + host.port;
+	    OutputStream out = sk.getOutputStream();
+	    out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(Utils.ascii));
+	    out.flush();
+	    /* Read unbuffered, so that nothing of the TLS handshake
+	     * is consumed along with the proxy's response. */
+	    InputStream in = sk.getInputStream();
+	    String status = readline(in);
+	    String[] sp = status.split(" ", 3);
+	    if((sp.length < 2) || !sp[0].startsWith("HTTP/") || !sp[1].equals("200"))
+		throw(new IOException("Proxy refused tunnel to " + target + ": " + status));
+	    while(readline(in).length() > 0);
+	}
+    }
+
+    public class Response implements AutoCloseable {
+	public final URL url;
+	public final int code;
+	public final String msg;
+	public final Map<String, String> headers;
+	public final InputStream body;
+	private final Host host;
+	private Conn conn;
+	private final boolean keep;
+	private final long start;
+	private long read;
+
+	private Response(URL url, Host host, Conn conn, int code, String msg, Map<String, String> headers, boolean keep, long start) throws IOException {
+	    this.url = url;
+	    this.host = host;
+	    this.conn = conn;
+	    this.code = code;
+	    this.msg = msg;
+	    this.headers = headers;
+	    this.keep = keep;
+	    this.start = start;
+	    InputStream raw;
+	    long len = -1;
+	    if(headers.containsKey("content-length")) {
+		try {
+		    len = Long.parseLong(headers.get("content-length").trim());
+		} catch(NumberFormatException e) {
+		    throw(new IOException("Invalid content length: " + headers.get("content-length")));
+		}
+	    }
+	    if((code == 204) || (code == 304) || ((code >= 100) && (code < 200)))
+		raw = new Limited(conn.in, len = 0);
+	    else if(header("transfer-encoding", "").toLowerCase().contains("chunked"))
+		raw = new Chunked(conn.in);
+	    else if(len >= 0)
+		raw = new Limited(conn.in, len);
+	    else
+		raw = new Unlimited(conn.in);
+	    this.body = new Body(raw, len == 0);
+	}
+
+	public String header(String name, String def) {
+	    String ret = headers.get(name.toLowerCase());
+	    return((ret == null) ? def : ret);
+	}
+
+	private class Body extends FilterInputStream {
+	    private boolean eof;
+
+	    Body(InputStream raw, boolean eof) {
+		super(raw);
+		this.eof = eof;
+	    }
+
+	    public int read() throws IOException {
+		byte[] b = new byte[1];
+		return((read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff));
+	    }
+
+	    public int read(byte[] buf, int off, int len) throws IOException {
+		if(eof)
+		    return(-1);
+		if(conn == null)
+		    throw(new IOException("Response body already closed"));
+		int rv = in.read(buf, off, len);
+		if(rv < 0)
+		    eof = true;
+		else
+		    read += rv;
+		return(rv);
+	    }
+
+	    public void close() {
+		Response.this.close(eof);
+	    }
+	}
+
+	private void close(boolean complete) {
+	    Conn conn;
+	    synchronized(this) {
+		if((conn = this.conn) == null)
+		    return;
+		this.conn = null;
+	    }
+	    host.bytes.addAndGet(read);
+	    host.xfertime.addAndGet(System.nanoTime() - start);
+	    if(complete && keep)
+		host.put(conn);
+	    else
+		conn.close();
+	    host.slots.release();
+	}
+
+	public void close() {
+	    /* Bodies of error replies and the like are usually short, so
+	     * try to keep the connection if it is already at hand. */
+	    try {
+		if(!((Body)body).eof && (body.available() > 0)) {
+		    byte[] buf = new byte[1024];
+		    for(int i = 0; (i < 64) && (body.available() > 0); i++) {
+			if(body.read(buf) < 0)
+			    break;
+		    }
+		}
+	    } catch(IOException e) {
+	    }
+	    close(((Body)body).eof);
+	}
+    }
+
+    private static String readline(InputStream in) throws IOException {
+	StringBuilder buf = new StringBuilder();
+	while(true) {
+	    int c = in.read();
+	    if(c < 0)
+		throw(new EOFException("Connection closed by server"));
+	    if(c == '\n')
+		break;
+	    if(c != '\r')
+		buf.append((char)c);
+	    if(buf.length() > 8192)
+		throw(new IOException("Overlong HTTP header line"));
+	}
+	return(buf.toString());
+    }
+
+    private static class Limited extends FilterInputStream {
+	private long left;
+
+	Limited(InputStream in, long len) {
+	    super(in);
+	    this.left = len;
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+	    if(left <= 0)
+		return(-1);
+	    int rv = in.read(buf, off, (int)Math.min(len, left));
+	    if(rv < 0)
+		throw(new EOFException("Premature end of response body"));
+	    left -= rv;
+	    return(rv);
+	}
+
+	public int available() throws IOException {
+	    return((int)Math.min(in.available(), left));
+	}
+
+	public void close() {}
+    }
+
+    private static class Unlimited extends FilterInputStream {
+	Unlimited(InputStream in) {
+	    super(in);
+	}
+
+	public void close() {}
+    }
+
+    private static class Chunked extends FilterInputStream {
+	private long left = 0;
+	private boolean eof = false;
+
+	Chunked(InputStream in) {
+	    super(in);
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+	    if(eof)
+		return(-1);
+	    if(left == 0) {
+		String ln = readline(in);
+		int p = ln.indexOf(';');
+		if(p >= 0)
+		    ln = ln.substring(0, p);
+		try {
+		    left = Long.parseLong(ln.trim(), 16);
+		} catch(NumberFormatException e) {
+		    throw(new IOException("Invalid chunk size: " + ln));
+		}
+		if(left == 0) {
+		    while(readline(in).length() > 0);
+		    eof = true;
+		    return(-1);
+		}
+	    }
+	    int rv = in.read(buf, off, (int)Math.min(len, left));
+	    if(rv < 0)
+		throw(new EOFException("Premature end of chunked response body"));
+	    if((left -= rv) == 0)
+		readline(in);
+	    return(rv);
+	}
+
+	public int available() throws IOException {
+	    return(eof ? 0 : (int)Math.min(in.available(), left));
+	}
+
+	public void close() {}
+    }
+
+    public Host host(URL url) {
+	String proto = url.getProtocol();
+	int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+	String key = proto + "://" + url.getHost() + ":" + port;
+	synchronized(hosts) {
+	    Host ret = hosts.get(key);
+	    if(ret == null)
+		hosts.put(key, ret = new Host(proto, url.getHost(), port));
+	    return(ret);
+	}
+    }
+
+    public Collection<Host> hosts() {
+	synchronized(hosts) {
+	    return(new ArrayList<>(hosts.values()));
+	}
+    }
+
+    private Response request(Host host, Conn conn, URL url, Map<String, String> headers) throws IOException {
+	long start = System.nanoTime();
+	StringBuilder req = new StringBuilder();
+	String path = url.getFile();
+	req.append("GET ");
+	if(conn.absolute)
+	    req.append(url.getProtocol()).append("://").append(url.getAuthority());
+	req.append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+	req.append("Host: ").append(url.getHost());
+	if(url.getPort() >= 0)
+	    req.append(':').append(url.getPort());
+	req.append("\r\n");
+	for(Map.Entry<String, String> hdr : headers.entrySet())
+	    req.append(hdr.getKey()).append(": ").append(hdr.getValue()).append("\r\n");
+	req.append("\r\n");
+	conn.out.write(req.toString().getBytes(Utils.ascii));
+	conn.out.flush();
+	String status = readline(conn.in);
+	String[] sp = status.split(" ", 3);
+	if((sp.length < 2) || !sp[0].startsWith("HTTP/"))
+	    throw(new IOException("Invalid HTTP status line: " + status));
+	int code;
+	try {
+	    code = Integer.parseInt(sp[1]);
+	} catch(NumberFormatException e) {
+	    throw(new IOException("Invalid HTTP status line: " + status));
+	}
+	Map<String, String> rhead = new HashMap<>();
+	for(String ln = readline(conn.in); ln.length() > 0; ln = readline(conn.in)) {
+	    int p = ln.indexOf(':');
+	    if(p > 0)
+		rhead.put(ln.substring(0, p).trim().toLowerCase(), ln.substring(p + 1).trim());
+	}
+	String cv = rhead.getOrDefault("connection", "").toLowerCase();
+	boolean keep = sp[0].equals("HTTP/1.0") ? cv.contains("keep-alive") : !cv.contains("close");
+	if(!rhead.containsKey("content-length") && !rhead.getOrDefault("transfer-encoding", "").toLowerCase().contains("chunked") &&
+	   (code != 204) && (code != 304))
+	    keep = false;
+	host.latency(System.nanoTime() - start);
+	return(new Response(url, host, conn, code, (sp.length > 2) ? sp[2] : "", rhead, keep, start));
+    }
+
+    /* Issues a GET request for url, waiting for a free connection
+     * slot if the host is already at its limit. The response must be
+     * closed (or its body read to the end and closed) to release the
+     * connection. */
+    public Response get(URL url, SslHelper ssl, Map<String, String> headers) throws IOException {
+	Host host = host(url);
+	long wstart = System.nanoTime();
+	try {
+	    host.slots.acquire();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw(new InterruptedIOException("interrupted while waiting for connection to " + host));
+	}
+	host.waittime.addAndGet(System.nanoTime() - wstart);
+	boolean ok = false;
+	try {
+	    host.requests.incrementAndGet();
+	    while(true) {
+		Conn conn = host.get(ssl);
+		try {
+		    Response ret = request(host, conn, url, headers);
+		    if(ret.code == 304)
+			host.notmod.incrementAndGet();
+		    ok = true;
+		    return(ret);
+		} catch(IOException e) {
+		    conn.close();
+		    /* The server may well have closed an idle
+		     * connection just as it was reused. */
+		    if(!conn.reused)
+			throw(e);
+		}
+	    }
+	} catch(IOException e) {
+	    host.errors.incrementAndGet();
+	    throw(e);
+	} finally {
+	    if(!ok)
+		host.slots.release();
+	}
+    }
+
+    public void close() {
+	for(Host host : hosts()) {
+	    synchronized(host.idle) {
+		for(Conn c : host.idle)
+		    c.close();
+		host.idle.clear();
+	    }
+	}
+    }
+}
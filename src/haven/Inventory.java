@@ -102,6 +102,7 @@ public class Inventory extends Widget implements DTarget {
     public Inventory(Coord sz) {
 	super(sqsz.mul(sz).add(1, 1));
 	isz = sz;
+	rcache(true);
     }
     
     public boolean mousewheel(Coord c, int amount) {
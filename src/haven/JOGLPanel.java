@@ -443,6 +443,7 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
     }
 
     private long prevfree = 0, framealloc = 0;
+    private GLEnvironment.DrawStats lastds = null;
     @SuppressWarnings("deprecation")
     private void drawstats(UI ui, GOut g, GLRender buf) {
 	int y = g.sz().y - UI.scale(190), dy = FastText.h;
@@ -456,6 +457,9 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
 	FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "State slots: %d", State.Slot.numslots());
 	FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "GL progs: %d", buf.env.numprogs());
 	FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "V-Mem: %s", buf.env.memstats());
+	if(lastds != null)
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Draws: %s", lastds);
+	FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Anim LOD: %s", AnimLOD.stats());
 	MapView map = ui.root.findchild(MapView.class);
 	if((map != null) && (map.back != null)) {
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Camera: %s", map.camstats());
@@ -537,7 +541,11 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
 			    ui.sess.glob.ctick();
 			    ui.sess.glob.gtick(buf);
 			}
-			if(curf != null) curf.tick("stick");
+			AnimLOD.cycle();
+			if(curf != null) {
+			    curf.stats = "anim " + AnimLOD.stats();
+			    curf.tick("stick");
+			}
 			ui.tick();
 			ui.gtick(buf);
 			if((ui.root.sz.x != (shape.br.x - shape.ul.x)) || (ui.root.sz.y != (shape.br.y - shape.ul.y)))
@@ -558,6 +566,8 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
 		    }
 
 		    display(ui, buf);
+		    lastds = env.drawstats.cycle();
+		    if(curgf != null) curgf.stats = lastds.toString();
 		    if(curf != null) curf.tick("draw");
 		    if(curgf != null) curgf.tick(buf, "draw");
 		    buf.submit(new ProfileTick(rprofc, "gl"));
@@ -667,6 +677,13 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
 	cmdmap.put("gldebug", (cons, args) -> {
 		debuggl = Utils.parsebool(args[1]);
 	    });
+	cmdmap.put("progcache", (cons, args) -> {
+		GLEnvironment env = this.env;
+		if((env == null) || (env.progcache == null))
+		    cons.out.println("Program cache not in use");
+		else
+		    cons.out.println(env.progcache.stats());
+	    });
     }
     public Map<String, Console.Command> findcmds() {
 	return(cmdmap);
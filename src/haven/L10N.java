@@ -11,12 +11,11 @@ import java.nio.file.*;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
 public class L10N {
     private static final String DEFAULT_LANGUAGE = "en";
-    private static final String SUBSTITUTE_TRANSLATED = "(?<!\\\\)\\$%d";
-    private static final String SUBSTITUTE_DIRECT = "(?<!\\\\)@(%d)";
     
     public static final List<String> LANGUAGES;
     public static final CFG<String> LANGUAGE = new CFG<>("i10n.language", DEFAULT_LANGUAGE);
@@ -45,7 +44,7 @@ public class L10N {
     }
     
     private final static Map<Bundle, Map<String, String>> simple = new HashMap<>();
-    private final static Map<Bundle, Map<Pattern, String>> match = new HashMap<>();
+    private final static Map<Bundle, Rules> match = new HashMap<>();
     
     private final static Gson GSON_OUT = new GsonBuilder().setPrettyPrinting().create();
     private final static Map<Bundle, Map<String, String>> MISSING = new HashMap<>();
@@ -67,6 +66,14 @@ public class L10N {
 	    }
 	    MISSING.put(bundle, new HashMap<>());
 	}
+	
+	Console.setscmd("l10nstat", (cons, args) -> {
+	    if((args.length > 1) && args[1].equals("reset")) {
+		resetstats();
+	    } else {
+		cons.out.print(stats());
+	    }
+	});
     }
     
     public static boolean isDefaultLanguage() {
@@ -131,14 +138,246 @@ public class L10N {
 	return process(Bundle.INGREDIENT, text);
     }
     
+    private static final Pattern INGREDIENT_WORDS = Pattern.compile("[\\w\\s]+");
+    private static final Pattern INGREDIENT_NUMBER = Pattern.compile("[\\d]+");
+    
     private static String ingredient(Matcher m, int g) {
 	String value = m.group(g);
-	if(value.matches("[\\w\\s]+") && !value.matches("[\\d]+")) {
+	if(value == null) {
+	    return "";
+	}
+	if(INGREDIENT_WORDS.matcher(value).matches() && !INGREDIENT_NUMBER.matcher(value).matches()) {
 	    return ingredient(value);
 	}
 	return value;
     }
     
+    /* A translation template, split once into literal text and
+     * references to the groups of its pattern: "@N" inserts group N
+     * as is, "$N" inserts its ingredient translation, and either can
+     * be escaped with a backslash. */
+    private static class Template {
+	private final String[] lits;
+	private final int[] refs;
+	private final boolean[] translate;
+	
+	Template(String format, int ngroups) {
+	    List<String> lits = new ArrayList<>();
+	    List<Integer> refs = new ArrayList<>();
+	    List<Boolean> translate = new ArrayList<>();
+	    int p = 0;
+	    for (int i = 0; i + 1 < format.length(); i++) {
+		char c = format.charAt(i);
+		if((c != '@' && c != '$') || (i > 0 && format.charAt(i - 1) == '\\')) {
+		    continue;
+		}
+		int g = format.charAt(i + 1) - '0';
+		if(g < 1 || g > 9 || g > ngroups) {
+		    continue;
+		}
+		lits.add(format.substring(p, i));
+		refs.add(g);
+		translate.add(c == '$');
+		p = i + 2;
+		i++;
+	    }
+	    lits.add(format.substring(p));
+	    this.lits = lits.toArray(new String[0]);
+	    this.refs = new int[refs.size()];
+	    this.translate = new boolean[refs.size()];
+	    for (int i = 0; i < this.refs.length; i++) {
+		this.refs[i] = refs.get(i);
+		this.translate[i] = translate.get(i);
+	    }
+	}
+	
+	/* Group N of the template's pattern is group base + N of m. */
+	String apply(Matcher m, int base) {
+	    if(refs.length == 0) {
+		return lits[0];
+	    }
+	    StringBuilder buf = new StringBuilder();
+	    for (int i = 0; i < refs.length; i++) {
+		buf.append(lits[i]);
+		if(translate[i]) {
+		    buf.append(ingredient(m, base + refs[i]));
+		} else {
+		    String value = m.group(base + refs[i]);
+		    buf.append(value == null ? "" : value);
+		}
+	    }
+	    buf.append(lits[refs.length]);
+	    return buf.toString();
+	}
+    }
+    
+    private static class Rule {
+	final String regex;
+	final int ngroups;
+	final boolean backrefs;
+	final Template template;
+	
+	Rule(String regex, String format) {
+	    this.ngroups = Pattern.compile(regex).matcher("").groupCount();
+	    this.regex = regex;
+	    this.backrefs = hasBackrefs(regex);
+	    this.template = new Template(format, ngroups);
+	}
+	
+	private static boolean hasBackrefs(String regex) {
+	    for (int i = 0; i + 1 < regex.length(); i++) {
+		if(regex.charAt(i) == '\\') {
+		    char c = regex.charAt(++i);
+		    if((c >= '1' && c <= '9') || c == 'k') {
+			return true;
+		    }
+		}
+	    }
+	    return false;
+	}
+    }
+    
+    /* A number of rules joined into one alternation, so that a key is
+     * tried against all of them in a single pass. The alternative that
+     * matched is found from which of the wrapping groups took part. A
+     * single rule is compiled as it is, so that its groups keep their
+     * numbers, which its backreferences depend on. */
+    private static class Run {
+	final Pattern pattern;
+	final Rule[] rules;
+	final int[] bases;
+	
+	Run(List<Rule> rules) {
+	    StringBuilder buf = new StringBuilder();
+	    this.rules = rules.toArray(new Rule[0]);
+	    this.bases = new int[this.rules.length];
+	    if(this.rules.length == 1) {
+		this.pattern = Pattern.compile(this.rules[0].regex);
+		return;
+	    }
+	    int g = 1;
+	    for (int i = 0; i < this.rules.length; i++) {
+		if(i > 0) {
+		    buf.append('|');
+		}
+		buf.append('(').append(this.rules[i].regex).append(')');
+		bases[i] = g;
+		g += 1 + this.rules[i].ngroups;
+	    }
+	    this.pattern = Pattern.compile(buf.toString());
+	}
+	
+	String translate(String key) {
+	    Matcher m = pattern.matcher(key);
+	    if(!m.find()) {
+		return null;
+	    }
+	    for (int i = 0; i < rules.length; i++) {
+		if(m.start(bases[i]) >= 0) {
+		    return rules[i].template.apply(m, bases[i]);
+		}
+	    }
+	    return null;
+	}
+    }
+    
+    /* The match rules of a bundle, in their original order, along with
+     * a bounded cache of the translations of recently seen keys. Rules
+     * using backreferences, which would change meaning when their
+     * groups are renumbered, are kept in runs of their own. */
+    private static class Rules {
+	final Bundle bundle;
+	final List<Run> runs = new ArrayList<>();
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+		return size() > Config.l10ncache;
+	    }
+	};
+	long hits, misses, missns, maxns;
+	
+	Rules(Bundle bundle, List<Rule> rules) {
+	    this.bundle = bundle;
+	    List<Rule> cur = new ArrayList<>();
+	    for (Rule rule : rules) {
+		if(rule.backrefs) {
+		    flush(cur);
+		    runs.add(new Run(Collections.singletonList(rule)));
+		} else {
+		    cur.add(rule);
+		}
+	    }
+	    flush(cur);
+	}
+	
+	private void flush(List<Rule> cur) {
+	    if(cur.isEmpty()) {
+		return;
+	    }
+	    try {
+		runs.add(new Run(cur));
+	    } catch (PatternSyntaxException e) {
+		/* Such as duplicate group names across rules. */
+		for (Rule rule : cur) {
+		    runs.add(new Run(Collections.singletonList(rule)));
+		}
+	    }
+	    cur.clear();
+	}
+	
+	String translate(String key) {
+	    synchronized (cache) {
+		if(cache.containsKey(key)) {
+		    hits++;
+		    return cache.get(key);
+		}
+	    }
+	    long st = System.nanoTime();
+	    String result = null;
+	    for (Run run : runs) {
+		if((result = run.translate(key)) != null) {
+		    break;
+		}
+	    }
+	    long ns = System.nanoTime() - st;
+	    synchronized (cache) {
+		cache.put(key, result);
+		misses++;
+		missns += ns;
+		maxns = Math.max(maxns, ns);
+	    }
+	    return result;
+	}
+	
+	String stats() {
+	    synchronized (cache) {
+		long n = hits + misses;
+		return String.format("%s: %d cached, %d hits, %d misses (%.1f%% hit rate), %.1f us avg miss, %.1f us max",
+		    bundle.name, cache.size(), hits, misses, (n > 0) ? (hits * 100.0 / n) : 0.0,
+		    (misses > 0) ? (missns / 1000.0 / misses) : 0.0, maxns / 1000.0);
+	    }
+	}
+	
+	void resetstats() {
+	    synchronized (cache) {
+		hits = misses = missns = maxns = 0;
+	    }
+	}
+    }
+    
+    public static String stats() {
+	StringBuilder buf = new StringBuilder();
+	for (Rules rules : match.values()) {
+	    buf.append(rules.stats()).append('\n');
+	}
+	return buf.toString();
+    }
+    
+    public static void resetstats() {
+	for (Rules rules : match.values()) {
+	    rules.resetstats();
+	}
+    }
+    
     public static String pagina(Resource res, String def) {
 	return process(Bundle.PAGINA, res.name, def);
     }
@@ -157,20 +396,7 @@ public class L10N {
 	    return def;
 	}
 	if(bundle.useMatch) {
-	    Map<Pattern, String> patterns = match.get(bundle);
-	    Matcher m = patterns.keySet().stream().map(p -> p.matcher(key)).filter(Matcher::find).findFirst().orElse(null);
-	    if(m != null) {
-		String format = patterns.get(m.pattern());
-		int k = m.groupCount();
-		result = format;
-		for (int i = 1; i <= k; i++) {
-		    result = result.replaceAll(String.format(SUBSTITUTE_DIRECT, i), m.group(i));
-		    String regex = String.format(SUBSTITUTE_TRANSLATED, i);
-		    if(result.matches(".*" + regex + ".*")) {//crude way to say 'any match'
-			result = result.replaceAll(regex, ingredient(m, i));
-		    }
-		}
-	    }
+	    result = match.get(bundle).translate(key);
 	} else {
 	    Map<String, String> map = simple.get(bundle);
 	    if(map == null) {
@@ -199,7 +425,7 @@ public class L10N {
     }
     
     private static Map<String, String> loadSimple(Bundle bundle) {
-	Map<String, String> map = new HashMap<>();
+	Map<String, String> map = new LinkedHashMap<>();
 	if(!isDefaultLanguage()) {
 	    String name = String.format("i10n/%s/%s.json", language, bundle.name);
 	    map.putAll(parseJSON(Config.loadJarFile(name)));
@@ -208,17 +434,17 @@ public class L10N {
 	return map;
     }
     
-    private static Map<Pattern, String> loadMatch(Bundle bundle) {
+    private static Rules loadMatch(Bundle bundle) {
 	Map<String, String> tmp = loadSimple(bundle);
-	HashMap<Pattern, String> map = new HashMap<>();
+	List<Rule> rules = new ArrayList<>();
 	for (Map.Entry<String, String> e : tmp.entrySet()) {
 	    try {
-		map.put(Pattern.compile(String.format("^%s$", e.getKey())), e.getValue());
+		rules.add(new Rule(String.format("^%s$", e.getKey()), e.getValue()));
 	    } catch (Exception error) {
 		error.printStackTrace();
 	    }
 	}
-	return map;
+	return new Rules(bundle, rules);
     }
     
     private static Map<String, String> parseJSON(String json) {
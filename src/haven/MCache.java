@@ -972,6 +972,7 @@ public class MCache implements MapSource {
 		grids.clear();
 		req.clear();
 		MapDumper.newSession();
+		ResPreload.area();
 		cached = null;
 	    }
 	    gridwait.wnotify();
@@ -2,15 +2,19 @@ package haven;
 
 import haven.resutil.Ridges;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Writer;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static haven.MCache.cmaps;
 
 public class MapDumper implements Defer.Callable<Object> {
     private static long start = 0;
@@ -35,8 +39,8 @@ public class MapDumper implements Defer.Callable<Object> {
     }
 
     public static void dump(MCache mCache, MCache.Grid grid) {
+	Type newType = gettype(mCache, grid);
 	synchronized (sync) {
-	    Type newType = gettype(mCache, grid);
 	    if(newType != type) {
 		newSession();
 	    }
@@ -122,9 +126,10 @@ public class MapDumper implements Defer.Callable<Object> {
 	if(img == null) {
 	    return;
 	}
-	try {
-	    ImageIO.write(img, "png", file);
-	} catch (IOException ignored) {
+	try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)); PNGEncoder enc = new PNGEncoder()) {
+	    enc.write(out, img);
+	} catch (IOException | IllegalArgumentException e) {
+	    new Warning(e, "could not store map tile " + file).issue();
 	}
     }
 
@@ -192,4 +197,216 @@ public class MapDumper implements Defer.Callable<Object> {
 	}
 	return (buf);
     }
+
+    /*
+     * Bulk export of already recorded map data, for external map
+     * viewers. Grids are rendered and encoded in parallel on a
+     * bounded pool, and a manifest of content hashes is kept in the
+     * output directory so that re-running an export only rewrites
+     * the tiles whose contents have actually changed.
+     */
+    public static class Bulk {
+	public static final String MANIFEST = "manifest.txt";
+	private static final int VERSION = 1;
+	public final MapFile file;
+	public final Path dir;
+	public final int nthreads;
+	private final Map<String, Tile> prev = new HashMap<>();
+	private final Map<String, Tile> tiles = new ConcurrentHashMap<>();
+	private final Collection<PNGEncoder> encoders = new ArrayList<>();
+	private final ThreadLocal<PNGEncoder> encoder = ThreadLocal.withInitial(() -> {
+		PNGEncoder ret = new PNGEncoder();
+		synchronized(encoders) {
+		    encoders.add(ret);
+		}
+		return(ret);
+	    });
+	public int written, unchanged, missing, failed;
+
+	private static class Tile {
+	    final long seg, id;
+	    final Coord sc;
+	    final String hash;
+
+	    Tile(long seg, Coord sc, long id, String hash) {
+		this.seg = seg;
+		this.sc = sc;
+		this.id = id;
+		this.hash = hash;
+	    }
+	}
+
+	public Bulk(MapFile file, Path dir, int nthreads) {
+	    this.file = file;
+	    this.dir = dir;
+	    this.nthreads = Math.max(nthreads, 1);
+	}
+
+	public Bulk(MapFile file, Path dir) {
+	    this(file, dir, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+	}
+
+	private static String key(long seg, Coord sc) {
+	    return(String.format("%016x/%d_%d", seg, sc.x, sc.y));
+	}
+
+	private static Path tilepath(Path dir, long seg, Coord sc) {
+	    return(dir.resolve(String.format("%016x", seg)).resolve(tileName(sc)));
+	}
+
+	public static String hash(MapFile.DataGrid grid, Coord sc) {
+	    MessageDigest dig;
+	    try {
+		dig = MessageDigest.getInstance("SHA-1");
+	    } catch(NoSuchAlgorithmException e) {
+		throw(new AssertionError(e));
+	    }
+	    MessageBuf buf = new MessageBuf();
+	    buf.adduint8(VERSION);
+	    buf.addcoord(sc);
+	    buf.adduint8(grid.tilesets.length);
+	    for(MapFile.TileInfo tinf : grid.tilesets) {
+		buf.addstring(tinf.res.name);
+		buf.adduint16(tinf.res.ver);
+		buf.adduint8(tinf.prio);
+	    }
+	    dig.update(buf.fin());
+	    dig.update(grid.tiles);
+	    return(Utils.byte2hex(dig.digest()));
+	}
+
+	private void readmanifest() {
+	    Path path = dir.resolve(MANIFEST);
+	    if(!Files.exists(path))
+		return;
+	    try {
+		for(String ln : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+		    String[] w = ln.split("\\t");
+		    if((w.length >= 5) && !w[0].startsWith("#")) {
+			Tile t = new Tile(Long.parseUnsignedLong(w[0], 16), Coord.of(Integer.parseInt(w[1]), Integer.parseInt(w[2])),
+					  Long.parseUnsignedLong(w[3], 16), w[4]);
+			prev.put(key(t.seg, t.sc), t);
+		    }
+		}
+	    } catch(IOException | NumberFormatException e) {
+		MapFile.warn(e, "could not read map dump manifest, rewriting all tiles: %s", e);
+		prev.clear();
+	    }
+	}
+
+	/* Tiles from earlier runs that this run did not visit, such as
+	 * segments excluded by the filter, are kept in the manifest. */
+	private void writemanifest() throws IOException {
+	    Map<String, Tile> all = new HashMap<>(prev);
+	    all.putAll(tiles);
+	    List<Tile> buf = new ArrayList<>(all.values());
+	    buf.sort(Comparator.comparingLong((Tile t) -> t.seg).thenComparingInt(t -> t.sc.y).thenComparingInt(t -> t.sc.x));
+	    Path tmp = dir.resolve(MANIFEST + ".new");
+	    try(Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+		out.write("# segment\tx\ty\tgrid\thash\tfile\n");
+		for(Tile t : buf) {
+		    out.write(String.format("%016x\t%d\t%d\t%016x\t%s\t%s\n", t.seg, t.sc.x, t.sc.y, t.id, t.hash,
+					    dir.relativize(tilepath(dir, t.seg, t.sc)).toString().replace('\\', '/')));
+		}
+	    }
+	    try {
+		Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+	    } catch(AtomicMoveNotSupportedException e) {
+		Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	}
+
+	/* Returns true if the tile was (re)written, false if it was
+	 * unchanged since the last run, and null if the grid data is
+	 * missing from the map file. */
+	private Boolean dump(long seg, Coord sc, long id) throws InterruptedException, IOException {
+	    MapFile.Grid grid = MapFile.Grid.load(file, id);
+	    if(grid == null)
+		return(null);
+	    String hash = hash(grid, sc);
+	    Path out = tilepath(dir, seg, sc);
+	    Tile tile = new Tile(seg, sc, id, hash);
+	    Tile last = prev.get(key(seg, sc));
+	    if((last != null) && hash.equals(last.hash) && Files.exists(out)) {
+		tiles.put(key(seg, sc), tile);
+		return(false);
+	    }
+	    BufferedImage img = Loading.waitforint(() -> grid.render(sc.mul(cmaps)));
+	    Files.createDirectories(out.getParent());
+	    Path tmp = out.resolveSibling(out.getFileName() + ".new");
+	    try(OutputStream fp = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+		encoder.get().write(fp, img);
+	    }
+	    try {
+		Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE);
+	    } catch(AtomicMoveNotSupportedException e) {
+		Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    tiles.put(key(seg, sc), tile);
+	    return(true);
+	}
+
+	public void run(MapFile.ExportFilter filter, MapFile.ExportStatus prog) throws InterruptedException, IOException {
+	    if(prog == null) prog = new MapFile.ExportStatus() {};
+	    Files.createDirectories(dir);
+	    readmanifest();
+	    List<Long> segs = new ArrayList<>();
+	    file.lock.readLock().lock();
+	    try {
+		for(Long sid : file.knownsegs) {
+		    if(filter.includeseg(sid))
+			segs.add(sid);
+		}
+	    } finally {
+		file.lock.readLock().unlock();
+	    }
+	    ExecutorService pool = Executors.newFixedThreadPool(nthreads, tgt -> {
+		    Thread th = new HackThread(tgt, "Bulk map dumper");
+		    th.setDaemon(true);
+		    return(th);
+		});
+	    try {
+		for(int si = 0; si < segs.size(); si++) {
+		    long sid = segs.get(si);
+		    Collection<Pair<Coord, Long>> grids;
+		    file.lock.readLock().lock();
+		    try {
+			grids = file.segments.get(sid).grids(filter);
+		    } finally {
+			file.lock.readLock().unlock();
+		    }
+		    CompletionService<Boolean> done = new ExecutorCompletionService<>(pool);
+		    for(Pair<Coord, Long> gd : grids)
+			done.submit(() -> dump(sid, gd.a, gd.b));
+		    for(int gi = 0; gi < grids.size(); gi++) {
+			prog.grid(si, segs.size(), gi, grids.size());
+			try {
+			    Boolean res = done.take().get();
+			    if(res == null)
+				missing++;
+			    else if(res)
+				written++;
+			    else
+				unchanged++;
+			} catch(ExecutionException e) {
+			    failed++;
+			    MapFile.warn(e.getCause(), "could not dump grid in segment %x: %s", sid, e.getCause());
+			}
+		    }
+		}
+	    } finally {
+		pool.shutdownNow();
+		try {
+		    pool.awaitTermination(1, TimeUnit.MINUTES);
+		} finally {
+		    synchronized(encoders) {
+			for(PNGEncoder enc : encoders)
+			    enc.close();
+			encoders.clear();
+		    }
+		}
+	    }
+	    writemanifest();
+	}
+    }
 }
@@ -1118,6 +1118,16 @@ public class MapFile {
 
 	public MapFile file() {return(MapFile.this);}
 
+	public Collection<Pair<Coord, Long>> grids(ExportFilter filter) {
+	    checklock();
+	    Collection<Pair<Coord, Long>> ret = new ArrayList<>();
+	    for(Map.Entry<Coord, Long> gd : map.entrySet()) {
+		if(filter.includegrid(this, gd.getKey(), gd.getValue()))
+		    ret.add(new Pair<>(gd.getKey(), gd.getValue()));
+	    }
+	    return(ret);
+	}
+
 	private class Cached implements Indir<Grid> {
 	    Grid loaded;
 	    Future<Grid> loading;
@@ -1615,14 +1625,11 @@ public class MapFile {
 	    if(!filter.includeseg(sid))
 		continue;
 	    Segment seg;
-	    Collection<Pair<Coord, Long>> gridbuf = new ArrayList<>();
+	    Collection<Pair<Coord, Long>> gridbuf;
 	    lock.readLock().lock();
 	    try {
 		seg = segments.get(sid);
-		for(Map.Entry<Coord, Long> gd : seg.map.entrySet()) {
-		    if(filter.includegrid(seg, gd.getKey(), gd.getValue()))
-			gridbuf.add(new Pair<>(gd.getKey(), gd.getValue()));
-		}
+		gridbuf = seg.grids(filter);
 	    } finally {
 		lock.readLock().unlock();
 	    }
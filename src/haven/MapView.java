@@ -1813,6 +1813,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
     }
 
     private Loading camload = null, lastload = null;
+    private RayPick pick = null;
     public void draw(GOut g) {
 	Loader.Future<Plob> placing = this.placing;
 	if((placing != null) && placing.done())
@@ -1860,6 +1861,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	    camoff.y = (float)((Math.random() - 0.5) * shake);
 	    camoff.z = (float)((Math.random() - 0.5) * shake);
 	    camera.tick(dt);
+	    glob.animlod = new AnimLOD(camera.proj, camera.view, sz);
 	} catch(Loading e) {
 	    camload = e;
 	}
@@ -1874,6 +1876,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		gridlines.tick();
 	    clickmap.tick();
 	}
+	pick = (camload == null) ? new RayPick(camera.proj, camera.view, sz, clickmap.area) : null;
 	Loader.Future<Plob> placing = this.placing;
 	if((placing != null) && placing.done())
 	    placing.get().ctick(dt);
@@ -2088,6 +2091,22 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	}
 
 	public void run() {
+	    RayPick pick = MapView.this.pick;
+	    if(pick != null) {
+		try {
+		    Coord3f hc = pick.terrain(glob.map, pick.ray(pc, 0));
+		    RayPick.count(true);
+		    synchronized(ui) {
+			if(hc != null)
+			    hit(pc, Coord2d.of(hc));
+			else
+			    nohit(pc);
+		    }
+		    return;
+		} catch(RayPick.Ambiguous e) {
+		    RayPick.count(false);
+		}
+	    }
 	    Environment env = ui.env;
 	    Render out = env.render();
 	    Pipe.Op basic = clickbasic(MapView.this.sz);
@@ -2125,6 +2144,21 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	}
 	
 	public void run() {
+	    RayPick pick = MapView.this.pick;
+	    if(pick != null) {
+		try {
+		    RayPick.Ray ray = pick.ray(pc, gobclfuzz);
+		    Coord3f hc = pick.terrain(glob.map, ray);
+		    pick.nogobs(glob.oc, ray, hc);
+		    RayPick.count(true);
+		    mapcl = (hc == null) ? null : Coord2d.of(hc);
+		    objcl = null;
+		    done();
+		    return;
+		} catch(RayPick.Ambiguous e) {
+		    RayPick.count(false);
+		}
+	    }
 	    Environment env = ui.env;
 	    Render out = env.render();
 	    Pipe.Op basic = clickbasic(MapView.this.sz);
@@ -2147,20 +2181,22 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		/* XXX: This is somewhat doubtfully nice, but running
 		 * it in the defer group would cause unnecessary
 		 * latency, and it shouldn't really be a problem. */
-		new HackThread(() -> {
-			synchronized(ui) {
-			    if(mapcl != null) {
-				if(Config.center_tile) { mapcl = mapcl.floor(tilesz).mul(tilesz).add(5, 5); }
-				ui.pathQueue().ifPresent(pathQueue -> pathQueue.click(mapcl, objcl));
-				if(objcl == null)
-				    hit(pc, mapcl, null);
-				else
-				    hit(pc, mapcl, objcl);
-			    } else {
-				nohit(pc);
-			    }
-			}
-		}, "Hit-test callback").start();
+		new HackThread(this::done, "Hit-test callback").start();
+	    }
+	}
+
+	private void done() {
+	    synchronized(ui) {
+		if(mapcl != null) {
+		    if(Config.center_tile) { mapcl = mapcl.floor(tilesz).mul(tilesz).add(5, 5); }
+		    ui.pathQueue().ifPresent(pathQueue -> pathQueue.click(mapcl, objcl));
+		    if(objcl == null)
+			hit(pc, mapcl, null);
+		    else
+			hit(pc, mapcl, objcl);
+		} else {
+		    nohit(pc);
+		}
 	    }
 	}
 	
@@ -2597,6 +2633,14 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		    l.printStackTrace(cons.out);
 		}
 	    });
+	cmdmap.put("instreport", new Console.Command() {
+		public void run(Console cons, String[] args) throws Exception {
+		    InstanceList inst = instancer;
+		    if(inst == null)
+			throw(new Exception("Not instancing"));
+		    inst.report(cons.out, (args.length > 1) ? Integer.parseInt(args[1]) : 20);
+		}
+	    });
     }
     public Map<String, Console.Command> findcmds() {
 	return(cmdmap);
@@ -1038,6 +1038,25 @@ public class MapWnd extends WindowX implements Console.Directory {
 	gui.adda(prog, gui.sz.div(2), 0.5, 1.0);
     }
 
+    public void dumpmap(Path dir, MapFile.ExportFilter filter) {
+	GameUI gui = getparent(GameUI.class);
+	ExportWindow prog = new ExportWindow();
+	Thread th = new HackThread(() -> {
+		try {
+		    MapDumper.Bulk dump = new MapDumper.Bulk(file, dir);
+		    dump.run(filter, prog);
+		    gui.msg(String.format("Dumped map tiles to %s: %,d written, %,d unchanged, %,d missing, %,d failed",
+					  dir, dump.written, dump.unchanged, dump.missing, dump.failed));
+		} catch(IOException e) {
+		    e.printStackTrace(Debug.log);
+		    gui.error("Unexpected error occurred when dumping map tiles.");
+		} catch(InterruptedException e) {
+		}
+	}, "Map tile dumper");
+	prog.run(th);
+	gui.adda(prog, gui.sz.div(2), 0.5, 1.0);
+    }
+
     public void importmap(Path path) {
 	GameUI gui = getparent(GameUI.class);
 	ImportWindow prog = new ImportWindow();
@@ -1246,6 +1265,20 @@ public class MapWnd extends WindowX implements Console.Directory {
 			exportmap();
 		}
 	    });
+	cmdmap.put("dumpmap", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    boolean all = (args.length > 1) && args[1].equals("all");
+		    Path dir = Utils.path((args.length > (all ? 2 : 1)) ? args[all ? 2 : 1] : "map/bulk");
+		    if(all) {
+			dumpmap(dir, MapFile.ExportFilter.all);
+		    } else {
+			long seg = playerSegmentId();
+			if(seg == 0)
+			    throw(new RuntimeException("No current map segment"));
+			dumpmap(dir, MapFile.ExportFilter.segment(seg));
+		    }
+		}
+	    });
 	cmdmap.put("importmap", new Console.Command() {
 		public void run(Console cons, String[] args) {
 		    if(args.length > 1)
@@ -27,12 +27,37 @@
 package haven;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.nio.ByteBuffer;
 import java.awt.image.*;
 import haven.render.VectorFormat;
+import haven.render.NumberFormat;
 
 public abstract class Mipmapper {
+    public static int threads = Config.mipthreads;
+    public static boolean ahead = Config.mipahead;
+    /* Levels smaller than this are not worth splitting between
+     * threads, and no thread is given fewer rows than this. */
+    public static int parmin = 256 * 256, bandrows = 32;
+    private static ForkJoinPool pool = null;
+
     public abstract byte[] gen4(Coord dim, byte[] data, VectorFormat fmt);
 
+    /* Generates rows y0 to y1 of the level following the one of
+     * size dim at offset off in data, into ndata at offset no. Only
+     * mipmappers computing every pixel from the 2x2 block above it
+     * alone can do so, the rest return false. */
+    public boolean band4(Coord dim, byte[] data, int off, byte[] ndata, int no, int y0, int y1) {
+	return(false);
+    }
+
+    static byte[] boxgen4(Mipmapper m, Coord dim, byte[] data) {
+	Coord ndim = nextsz(dim);
+	byte[] ndata = new byte[ndim.x * ndim.y * 4];
+	m.band4(dim, data, 0, ndata, 0, 0, ndim.y);
+	return(ndata);
+    }
+
     public static abstract class Mipmapper3 extends Mipmapper {
 	public abstract byte[] gen3(Coord dim, byte[] data, VectorFormat fmt);
     }
@@ -43,17 +68,113 @@ public abstract class Mipmapper {
 	return(ndim);
     }
 
+    /* A complete chain of RGBA levels, all but the first of which
+     * are kept one after another in a single array. */
+    public static class Chain {
+	public final Coord[] dims;
+	public final byte[] base, data;
+	private final int[] offs;
+
+	private Chain(Coord[] dims, byte[] base, byte[] data, int[] offs) {
+	    this.dims = dims;
+	    this.base = base;
+	    this.data = data;
+	    this.offs = offs;
+	}
+
+	public int levels() {
+	    return(dims.length);
+	}
+
+	public ByteBuffer level(int lvl) {
+	    if(lvl == 0)
+		return(ByteBuffer.wrap(base));
+	    Coord d = dims[lvl];
+	    return(ByteBuffer.wrap(data, offs[lvl], d.x * d.y * 4).slice());
+	}
+    }
+
+    private static synchronized ForkJoinPool pool() {
+	if(pool == null)
+	    pool = new ForkJoinPool(threads);
+	return(pool);
+    }
+
+    private static class Bands extends RecursiveAction {
+	final Mipmapper m;
+	final Coord dim;
+	final byte[] data, ndata;
+	final int off, no, y0, y1;
+
+	Bands(Mipmapper m, Coord dim, byte[] data, int off, byte[] ndata, int no, int y0, int y1) {
+	    this.m = m; this.dim = dim;
+	    this.data = data; this.off = off;
+	    this.ndata = ndata; this.no = no;
+	    this.y0 = y0; this.y1 = y1;
+	}
+
+	protected void compute() {
+	    if(y1 - y0 < bandrows * 2) {
+		m.band4(dim, data, off, ndata, no, y0, y1);
+		return;
+	    }
+	    int mid = (y0 + y1) >>> 1;
+	    invokeAll(new Bands(m, dim, data, off, ndata, no, y0, mid),
+		      new Bands(m, dim, data, off, ndata, no, mid, y1));
+	}
+    }
+
+    /* Builds all levels following the given base level at once.
+     * Mipmappers that can work on bands of rows get large levels
+     * split between the threads of a pool of their own, so that it
+     * is also safe to call from any other pool. */
+    public static Chain chain(Mipmapper m, Coord dim, byte[] base) {
+	List<Coord> dims = new ArrayList<>();
+	dims.add(dim);
+	if(m != null) {
+	    for(Coord c = dim; (c.x > 1) || (c.y > 1);)
+		dims.add(c = nextsz(c));
+	}
+	int[] offs = new int[dims.size()];
+	int sz = 0;
+	for(int i = 1; i < offs.length; i++) {
+	    offs[i] = sz;
+	    sz += dims.get(i).x * dims.get(i).y * 4;
+	}
+	byte[] data = new byte[sz];
+	VectorFormat fmt = new VectorFormat(4, NumberFormat.UNORM8);
+	byte[] prev = base;
+	int poff = 0;
+	for(int i = 1; i < offs.length; i++) {
+	    Coord pdim = dims.get(i - 1), ndim = dims.get(i);
+	    /* An empty band tells whether bands are supported at all. */
+	    if((ndim.x * ndim.y >= parmin) && (threads > 1) && m.band4(pdim, prev, poff, data, offs[i], 0, 0)) {
+		pool().invoke(new Bands(m, pdim, prev, poff, data, offs[i], 0, ndim.y));
+	    } else if(!m.band4(pdim, prev, poff, data, offs[i], 0, ndim.y)) {
+		byte[] src = (poff == 0) && (prev.length == pdim.x * pdim.y * 4) ? prev : Arrays.copyOfRange(prev, poff, poff + (pdim.x * pdim.y * 4));
+		byte[] gen = m.gen4(pdim, src, fmt);
+		System.arraycopy(gen, 0, data, offs[i], ndim.x * ndim.y * 4);
+	    }
+	    prev = data;
+	    poff = offs[i];
+	}
+	return(new Chain(dims.toArray(new Coord[0]), base, data, offs));
+    }
+
     public static final Mipmapper3 avg = new Mipmapper3() {
 	    public byte[] gen4(Coord dim, byte[] data, VectorFormat fmt) {
+		return(boxgen4(this, dim, data));
+	    }
+
+	    public boolean band4(Coord dim, byte[] data, int off, byte[] ndata, int no, int y0, int y1) {
 		int dst = dim.x * 4;
 		dim = dim.div(2);
 		boolean lx = false, ly = false;
 		if(dim.x < 1) {dim.x = 1; lx = true;}
 		if(dim.y < 1) {dim.y = 1; ly = true;}
-		byte[] ndata = new byte[dim.x * dim.y * 4];
 		int[] r = new int[4], g = new int[4], b = new int[4], a = new int[4];
-		int na = 0, da = 0;
-		for(int y = 0; y < dim.y; y++) {
+		int na = no + (y0 * dim.x * 4), da = off + (y0 * ((dim.x * (lx?4:8)) + (ly?0:dst)));
+		for(int y = y0; y < y1; y++) {
 		    for(int x = 0; x < dim.x; x++) {
 			r[0] = ((int)data[da + 0]) & 0xff;
 			g[0] = ((int)data[da + 1]) & 0xff;
@@ -107,7 +228,7 @@ public abstract class Mipmapper {
 		    }
 		    da += ly?0:dst;
 		}
-		return(ndata);
+		return(true);
 	    }
 
 	    public byte[] gen3(Coord dim, byte[] data, VectorFormat fmt) {
@@ -167,20 +288,23 @@ public abstract class Mipmapper {
 
     public static final Mipmapper rnd = new Mipmapper() {
 	    public byte[] gen4(Coord dim, byte[] data, VectorFormat fmt) {
+		return(boxgen4(this, dim, data));
+	    }
+
+	    public boolean band4(Coord dim, byte[] data, int off, byte[] ndata, int no, int y0, int y1) {
 		Random rnd = new Random();
 		int dst = dim.x * 4;
 		dim = dim.div(2);
 		boolean lx = false, ly = false;
 		if(dim.x < 1) {dim.x = 1; lx = true;}
 		if(dim.y < 1) {dim.y = 1; ly = true;}
-		byte[] ndata = new byte[dim.x * dim.y * 4];
 		int[] o = new int[4];
 		o[0] = 0;
 		o[1] = lx?0:4;
 		o[2] = ly?0:dst;
 		o[3] = lx?dst:(ly?4:(dst + 4));
-		int na = 0, da = 0;
-		for(int y = 0; y < dim.y; y++) {
+		int na = no + (y0 * dim.x * 4), da = off + (y0 * ((dim.x * (lx?4:8)) + (ly?0:dst)));
+		for(int y = y0; y < y1; y++) {
 		    for(int x = 0; x < dim.x; x++) {
 			int so = da + o[rnd.nextInt(4)];
 			ndata[na + 0] = data[so + 0];
@@ -192,21 +316,24 @@ public abstract class Mipmapper {
 		    }
 		    da += ly?0:dst;
 		}
-		return(ndata);
+		return(true);
 	    }
 	};
 
     public static final Mipmapper cnt = new Mipmapper() {
 	    public byte[] gen4(Coord dim, byte[] data, VectorFormat fmt) {
+		return(boxgen4(this, dim, data));
+	    }
+
+	    public boolean band4(Coord dim, byte[] data, int off, byte[] ndata, int no, int y0, int y1) {
 		int dst = dim.x * 4;
 		dim = dim.div(2);
 		boolean lx = false, ly = false;
 		if(dim.x < 1) {dim.x = 1; lx = true;}
 		if(dim.y < 1) {dim.y = 1; ly = true;}
-		byte[] ndata = new byte[dim.x * dim.y * 4];
 		int[] r = new int[4], g = new int[4], b = new int[4], a = new int[4];
-		int na = 0, da = 0;
-		for(int y = 0; y < dim.y; y++) {
+		int na = no + (y0 * dim.x * 4), da = off + (y0 * ((dim.x * (lx?4:8)) + (ly?0:dst)));
+		for(int y = y0; y < y1; y++) {
 		    for(int x = 0; x < dim.x; x++) {
 			r[0] = ((int)data[da + 0]) & 0xff;
 			g[0] = ((int)data[da + 1]) & 0xff;
@@ -271,21 +398,24 @@ public abstract class Mipmapper {
 		    }
 		    da += ly?0:dst;
 		}
-		return(ndata);
+		return(true);
 	    }
 	};
 
     public static final Mipmapper dav = new Mipmapper() {
 	    public byte[] gen4(Coord dim, byte[] data, VectorFormat fmt) {
+		return(boxgen4(this, dim, data));
+	    }
+
+	    public boolean band4(Coord dim, byte[] data, int off, byte[] ndata, int no, int y0, int y1) {
 		int dst = dim.x * 4;
 		dim = dim.div(2);
 		boolean lx = false, ly = false;
 		if(dim.x < 1) {dim.x = 1; lx = true;}
 		if(dim.y < 1) {dim.y = 1; ly = true;}
-		byte[] ndata = new byte[dim.x * dim.y * 4];
 		int[] r = new int[4], g = new int[4], b = new int[4], a = new int[4];
-		int na = 0, da = 0;
-		for(int y = 0; y < dim.y; y++) {
+		int na = no + (y0 * dim.x * 4), da = off + (y0 * ((dim.x * (lx?4:8)) + (ly?0:dst)));
+		for(int y = y0; y < y1; y++) {
 		    for(int x = 0; x < dim.x; x++) {
 			r[0] = ((int)data[da + 0]) & 0xff;
 			g[0] = ((int)data[da + 1]) & 0xff;
@@ -350,7 +480,7 @@ public abstract class Mipmapper {
 		    }
 		    da += ly?0:dst;
 		}
-		return(ndata);
+		return(true);
 	    }
 	};
 
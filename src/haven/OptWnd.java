@@ -809,6 +809,9 @@ public class OptWnd extends WindowX {
     
 	y += STEP;
 	panel.add(new CFGBox("Store chat logs", CFG.STORE_CHAT_LOGS, "Logs are stored in 'chats' folder"), new Coord(x, y));
+    
+	y += STEP;
+	panel.add(new CFGBox("Preload resources", CFG.RES_PRELOAD, "Learn which resources are needed after login and area changes and load them in advance (needs restart)"), new Coord(x, y));
  
 	y += STEP;
 	panel.add(new CFGBox("Flatworld", CFG.FLATWORLD), new Coord(x, y));
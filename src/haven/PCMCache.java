@@ -0,0 +1,224 @@
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.lang.ref.*;
+import dolda.xiphutil.*;
+
+/* Keeps the decoded PCM of short audio clips, so that sounds played
+ * over and over, like footsteps and hits, need not be run through the
+ * Vorbis decoder each time. A clip is decoded in the background the
+ * second time it is played without being cached, so that sounds
+ * played only once are never decoded twice. Clips whose coded data
+ * exceeds a limit, such as music and ambience, are always streamed,
+ * as are clips found to decode to more than a quarter of the budget.
+ * Clips are held weakly, so that the cache does not keep unloaded
+ * resources alive. */
+public class PCMCache {
+    public static boolean enabled = Config.pcmcache > 0;
+    public static long budget = (long)Math.max(Config.pcmcache, 0) << 20;
+    public static int maxcoded = Config.pcmclip << 10;
+    private static final ReferenceQueue<Resource.Audio> cleared = new ReferenceQueue<>();
+    private static final Map<Key, Decoded> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Set<Resource.Audio> pending = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final Set<Resource.Audio> missed = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final Set<Resource.Audio> toolong = Collections.newSetFromMap(new WeakHashMap<>());
+    private static long used = 0;
+    private static int hits, misses, ndecoded, evicted;
+
+    private static class Key extends WeakReference<Resource.Audio> {
+	private final int hash;
+
+	Key(Resource.Audio clip, ReferenceQueue<Resource.Audio> queue) {
+	    super(clip, queue);
+	    this.hash = System.identityHashCode(clip);
+	}
+
+	public int hashCode() {
+	    return(hash);
+	}
+
+	public boolean equals(Object o) {
+	    if(o == this)
+		return(true);
+	    if(!(o instanceof Key))
+		return(false);
+	    Resource.Audio clip = get();
+	    return((clip != null) && (clip == ((Key)o).get()));
+	}
+    }
+
+    public static class Decoded {
+	public final float[][] data;
+	public final int len;
+
+	public Decoded(float[][] data, int len) {
+	    this.data = data;
+	    this.len = len;
+	}
+
+	public long size() {
+	    return((long)data.length * len * 4);
+	}
+    }
+
+    public static class Clip implements Audio.CS {
+	public final Decoded pcm;
+	private int pos = 0;
+
+	public Clip(Decoded pcm) {
+	    this.pcm = pcm;
+	}
+
+	public int get(float[][] dst, int ns) {
+	    int nch = dst.length, left = pcm.len - pos;
+	    if(left <= 0)
+		return(-1);
+	    int n = Math.min(ns, left);
+	    for(int ch = 0; ch < nch; ch++)
+		System.arraycopy(pcm.data[ch % pcm.data.length], pos, dst[ch], 0, n);
+	    pos += n;
+	    return(n);
+	}
+    }
+
+    public static Decoded decode(byte[] coded) throws IOException {
+	VorbisStream str = new VorbisStream(new ByteArrayInputStream(coded));
+	float[][] buf = new float[str.chn][4096];
+	int len = 0;
+	while(true) {
+	    if(len == buf[0].length) {
+		for(int ch = 0; ch < buf.length; ch++)
+		    buf[ch] = Arrays.copyOf(buf[ch], len * 2);
+	    }
+	    int ret = str.decode(buf, len, buf[0].length - len);
+	    if(ret < 0)
+		break;
+	    len += ret;
+	}
+	for(int ch = 0; ch < buf.length; ch++)
+	    buf[ch] = Arrays.copyOf(buf[ch], len);
+	return(new Decoded(buf, len));
+    }
+
+    private static boolean cacheable(Resource.Audio clip) {
+	if(!enabled || (clip.coded == null) || (clip.coded.length > maxcoded))
+	    return(false);
+	synchronized(cache) {
+	    return(!toolong.contains(clip));
+	}
+    }
+
+    /* Drops the entries of clips that have been collected. Called
+     * with the cache locked. */
+    private static void purge() {
+	for(Reference<? extends Resource.Audio> ref; (ref = cleared.poll()) != null;) {
+	    Decoded pcm = cache.remove(ref);
+	    if(pcm != null)
+		used -= pcm.size();
+	}
+    }
+
+    private static void store(Resource.Audio clip, Decoded pcm) {
+	synchronized(cache) {
+	    purge();
+	    ndecoded++;
+	    if(pcm.size() > budget / 4) {
+		toolong.add(clip);
+		return;
+	    }
+	    Key key = new Key(clip, cleared);
+	    if(cache.containsKey(key))
+		return;
+	    cache.put(key, pcm);
+	    used += pcm.size();
+	    for(Iterator<Decoded> i = cache.values().iterator(); (used > budget) && i.hasNext();) {
+		used -= i.next().size();
+		i.remove();
+		evicted++;
+	    }
+	}
+    }
+
+    private static void decodebg(Resource.Audio clip) {
+	synchronized(cache) {
+	    if(!pending.add(clip))
+		return;
+	}
+	Defer.later(() -> {
+		try {
+		    store(clip, decode(clip.coded));
+		} catch(IOException e) {
+		} finally {
+		    synchronized(cache) {
+			pending.remove(clip);
+		    }
+		}
+		return(null);
+	    });
+    }
+
+    /* Returns a stream playing the cached PCM of the clip, or null if
+     * it should be streamed from its coded data instead. A clip that
+     * is missing from the cache is streamed, and on its second miss
+     * decoded in the background for the next play. */
+    public static Audio.CS stream(Resource.Audio clip) {
+	if(!cacheable(clip))
+	    return(null);
+	Decoded pcm;
+	boolean decode = false;
+	synchronized(cache) {
+	    purge();
+	    if((pcm = cache.get(new Key(clip, null))) != null) {
+		hits++;
+	    } else {
+		misses++;
+		decode = !missed.add(clip);
+	    }
+	}
+	if(pcm == null) {
+	    if(decode)
+		decodebg(clip);
+	    return(null);
+	}
+	return(new Clip(pcm));
+    }
+
+    public static void clear() {
+	synchronized(cache) {
+	    cache.clear();
+	    missed.clear();
+	    toolong.clear();
+	    used = 0;
+	}
+    }
+
+    public static String stats() {
+	synchronized(cache) {
+	    int n = hits + misses;
+	    return(String.format("%d clips, %.1f of %d MB, %d hits, %d misses (%.1f%% hit rate), %d decoded, %d evicted",
+				 cache.size(), used / 1048576.0, budget >> 20, hits, misses,
+				 (n > 0) ? (hits * 100.0 / n) : 0.0, ndecoded, evicted));
+	}
+    }
+
+    public static void resetstats() {
+	synchronized(cache) {
+	    hits = misses = ndecoded = evicted = 0;
+	}
+    }
+
+    static {
+	Console.setscmd("pcmcache", (cons, args) -> {
+		if(args.length < 2) {
+		    cons.out.printf("pcmcache: %s; %s\n", enabled, stats());
+		} else if(args[1].equals("clear")) {
+		    clear();
+		} else {
+		    enabled = Utils.parsebool(args[1]);
+		    if(!enabled)
+			clear();
+		}
+	    });
+    }
+}
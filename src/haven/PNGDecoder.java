@@ -0,0 +1,402 @@
+package haven;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import java.awt.image.*;
+
+/* Decodes the kinds of PNG images that make up nearly all resource
+ * graphics (8-bit RGB and RGBA, and paletted images of any depth)
+ * straight into 8-bit RGBA rows, which is the layout textures are
+ * uploaded in, so that neither ImageIO nor a later conversion is
+ * needed for them. Anything else (grayscale, 16-bit and interlaced
+ * images) is left to ImageIO by returning null.
+ *
+ * Instances keep their inflater and scanline buffers between images
+ * and are not thread-safe. The inflater holds native memory until
+ * dispose() is called; read() borrows from a small shared pool of
+ * instances instead, so that it is not held by every thread that has
+ * ever decoded an image. */
+public class PNGDecoder {
+    private static final byte[] sig = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private final Inflater inflater = new Inflater();
+    private byte[] cur = new byte[0], prev = new byte[0], row = new byte[0];
+    private int[] idat = new int[32];
+    private final byte[] pal = new byte[256 * 4];
+    private byte[] src;
+    private int nidat, nextidat;
+    private int w, h, depth, ctype, trns;
+    private boolean haspal, hastrns;
+
+    public static class FormatException extends IOException {
+	public FormatException(String msg) {
+	    super(msg);
+	}
+    }
+
+    private static int int32(byte[] buf, int off) {
+	return(((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff));
+    }
+
+    private static boolean istype(byte[] buf, int off, String type) {
+	for(int i = 0; i < 4; i++) {
+	    if(buf[off + i] != type.charAt(i))
+		return(false);
+	}
+	return(true);
+    }
+
+    public static boolean png(byte[] data, int off, int len) {
+	if(len < sig.length)
+	    return(false);
+	for(int i = 0; i < sig.length; i++) {
+	    if(data[off + i] != sig[i])
+		return(false);
+	}
+	return(true);
+    }
+
+    /* Parses the chunk structure of an image, returning false if it
+     * is not of a supported kind. */
+    private boolean parse(byte[] data, int off, int len) throws IOException {
+	if(!png(data, off, len))
+	    throw(new FormatException("Not a PNG image"));
+	int end = off + len;
+	int p = off + sig.length;
+	boolean ihdr = false;
+	haspal = hastrns = false;
+	nidat = 0;
+	for(int i = 0; i < 256; i++) {
+	    pal[i * 4] = pal[i * 4 + 1] = pal[i * 4 + 2] = 0;
+	    pal[i * 4 + 3] = (byte)255;
+	}
+	while(true) {
+	    if(p + 8 > end)
+		throw(new FormatException("Truncated PNG image"));
+	    int clen = int32(data, p), coff = p + 8;
+	    if((clen < 0) || (coff + clen + 4 > end))
+		throw(new FormatException("Truncated PNG chunk"));
+	    if(istype(data, p + 4, "IHDR")) {
+		if(clen < 13)
+		    throw(new FormatException("Short IHDR chunk"));
+		w = int32(data, coff);
+		h = int32(data, coff + 4);
+		depth = data[coff + 8] & 0xff;
+		ctype = data[coff + 9] & 0xff;
+		int interlace = data[coff + 12] & 0xff;
+		if((w <= 0) || (h <= 0) || ((long)w * h > (1 << 28)))
+		    throw(new FormatException("Bad PNG dimensions: " + w + "x" + h));
+		if((data[coff + 10] != 0) || (data[coff + 11] != 0) || (interlace != 0))
+		    return(false);
+		if(((ctype == 2) || (ctype == 6)) && (depth == 8)) {
+		} else if((ctype == 3) && ((depth == 1) || (depth == 2) || (depth == 4) || (depth == 8))) {
+		} else {
+		    /* Grayscale images in particular go through a linear
+		     * color space in ImageIO, which is kept as it is. */
+		    return(false);
+		}
+		ihdr = true;
+	    } else if(!ihdr) {
+		throw(new FormatException("PNG image does not start with IHDR"));
+	    } else if(istype(data, p + 4, "PLTE")) {
+		for(int i = 0; (i < 256) && (i * 3 + 2 < clen); i++) {
+		    pal[i * 4 + 0] = data[coff + i * 3 + 0];
+		    pal[i * 4 + 1] = data[coff + i * 3 + 1];
+		    pal[i * 4 + 2] = data[coff + i * 3 + 2];
+		}
+		haspal = true;
+	    } else if(istype(data, p + 4, "tRNS")) {
+		if(ctype == 3) {
+		    for(int i = 0; (i < 256) && (i < clen); i++)
+			pal[i * 4 + 3] = data[coff + i];
+		} else if(ctype == 2) {
+		    if(clen < 6)
+			throw(new FormatException("Short tRNS chunk"));
+		    trns = ((data[coff + 1] & 0xff) << 16) | ((data[coff + 3] & 0xff) << 8) | (data[coff + 5] & 0xff);
+		    hastrns = true;
+		}
+	    } else if(istype(data, p + 4, "IDAT")) {
+		if(nidat * 2 + 2 > idat.length)
+		    idat = Arrays.copyOf(idat, idat.length * 2);
+		idat[nidat * 2] = coff;
+		idat[nidat * 2 + 1] = clen;
+		nidat++;
+	    } else if(istype(data, p + 4, "IEND")) {
+		break;
+	    }
+	    p = coff + clen + 4;
+	}
+	if(nidat == 0)
+	    throw(new FormatException("PNG image without data"));
+	if((ctype == 3) && !haspal)
+	    throw(new FormatException("Paletted PNG image without palette"));
+	return(true);
+    }
+
+    private void inflate(byte[] buf, int off, int len) throws IOException {
+	try {
+	    while(len > 0) {
+		int n = inflater.inflate(buf, off, len);
+		if(n == 0) {
+		    if(inflater.needsInput() && (nextidat < nidat)) {
+			inflater.setInput(src, idat[nextidat * 2], idat[nextidat * 2 + 1]);
+			nextidat++;
+		    } else if(inflater.needsInput() || inflater.finished()) {
+			throw(new FormatException("Truncated PNG image data"));
+		    } else if(inflater.needsDictionary()) {
+			throw(new FormatException("PNG image data requires preset dictionary"));
+		    }
+		}
+		off += n;
+		len -= n;
+	    }
+	} catch(DataFormatException e) {
+	    throw(new FormatException("Corrupt PNG image data: " + e.getMessage()));
+	}
+    }
+
+    private static int paeth(int a, int b, int c) {
+	int p = a + b - c;
+	int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+	if((pa <= pb) && (pa <= pc))
+	    return(a);
+	if(pb <= pc)
+	    return(b);
+	return(c);
+    }
+
+    private void unfilter(int rb, int bpp) throws IOException {
+	byte[] cur = this.cur, prev = this.prev;
+	switch(cur[0]) {
+	case 0:
+	    break;
+	case 1:
+	    for(int i = 1 + bpp; i <= rb; i++)
+		cur[i] += cur[i - bpp];
+	    break;
+	case 2:
+	    for(int i = 1; i <= rb; i++)
+		cur[i] += prev[i];
+	    break;
+	case 3:
+	    for(int i = 1; i <= bpp; i++)
+		cur[i] += (prev[i] & 0xff) >> 1;
+	    for(int i = 1 + bpp; i <= rb; i++)
+		cur[i] += ((cur[i - bpp] & 0xff) + (prev[i] & 0xff)) >> 1;
+	    break;
+	case 4:
+	    for(int i = 1; i <= bpp; i++)
+		cur[i] += prev[i];
+	    for(int i = 1 + bpp; i <= rb; i++)
+		cur[i] += paeth(cur[i - bpp] & 0xff, prev[i] & 0xff, prev[i - bpp] & 0xff);
+	    break;
+	default:
+	    throw(new FormatException("Invalid PNG filter type: " + cur[0]));
+	}
+    }
+
+    /* Converts the current, unfiltered scanline to RGBA. */
+    private void convert(byte[] out, int o) {
+	byte[] cur = this.cur;
+	switch(ctype) {
+	case 6:
+	    System.arraycopy(cur, 1, out, o, w * 4);
+	    break;
+	case 2:
+	    for(int x = 0, i = 1; x < w; x++, i += 3, o += 4) {
+		byte r = cur[i], g = cur[i + 1], b = cur[i + 2];
+		out[o] = r; out[o + 1] = g; out[o + 2] = b;
+		if(hastrns && ((((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff)) == trns))
+		    out[o + 3] = 0;
+		else
+		    out[o + 3] = (byte)255;
+	    }
+	    break;
+	case 3:
+	    if(depth == 8) {
+		for(int x = 0; x < w; x++, o += 4)
+		    System.arraycopy(pal, (cur[x + 1] & 0xff) * 4, out, o, 4);
+	    } else {
+		int mask = (1 << depth) - 1, ppb = 8 / depth;
+		for(int x = 0; x < w; x++, o += 4) {
+		    int shift = 8 - depth * ((x % ppb) + 1);
+		    int idx = ((cur[1 + (x / ppb)] & 0xff) >> shift) & mask;
+		    System.arraycopy(pal, idx * 4, out, o, 4);
+		}
+	    }
+	    break;
+	}
+    }
+
+    /* Returns the size of the image, or null if it is not of a kind
+     * supported by this decoder. */
+    public Coord size(byte[] data, int off, int len) throws IOException {
+	if(!parse(data, off, len))
+	    return(null);
+	return(Coord.of(w, h));
+    }
+
+    /* Decodes an image into dst, starting at its current position
+     * and with rows stride bytes apart. Returns false, without
+     * touching dst, if the image is not of a supported kind. */
+    public boolean decode(byte[] data, int off, int len, ByteBuffer dst, int stride) throws IOException {
+	if(!parse(data, off, len))
+	    return(false);
+	if(stride < w * 4)
+	    throw(new IllegalArgumentException("stride " + stride + " < " + (w * 4)));
+	int chans = (ctype == 6) ? 4 : (ctype == 2) ? 3 : 1;
+	int bpp = Math.max((chans * depth) / 8, 1);
+	int rb = (w * chans * depth + 7) / 8;
+	if(cur.length < rb + 1) {
+	    cur = new byte[rb + 1];
+	    prev = new byte[rb + 1];
+	} else {
+	    Arrays.fill(prev, 0, rb + 1, (byte)0);
+	}
+	byte[] out;
+	int base, ostride;
+	if(dst.hasArray()) {
+	    out = dst.array();
+	    base = dst.arrayOffset() + dst.position();
+	    ostride = stride;
+	} else {
+	    if(row.length < w * 4)
+		row = new byte[w * 4];
+	    out = row;
+	    base = 0;
+	    ostride = 0;
+	}
+	int start = dst.position();
+	this.src = data;
+	inflater.reset();
+	nextidat = 0;
+	try {
+	    for(int y = 0; y < h; y++) {
+		inflate(cur, 0, rb + 1);
+		unfilter(rb, bpp);
+		convert(out, base + (y * ostride));
+		if(out == row) {
+		    ((Buffer)dst).position(start + (y * stride));
+		    dst.put(row, 0, w * 4);
+		}
+		byte[] t = prev; prev = cur; cur = t;
+	    }
+	} finally {
+	    this.src = null;
+	    ((Buffer)dst).position(start);
+	}
+	return(true);
+    }
+
+    /* Decodes an image into a BufferedImage of the same layout as
+     * TexI.mkbuf(), or returns null if it is not supported. */
+    public BufferedImage decode(byte[] data, int off, int len) throws IOException {
+	if(!parse(data, off, len))
+	    return(null);
+	int w = this.w, h = this.h;
+	byte[] buf = new byte[w * h * 4];
+	decode(data, off, len, ByteBuffer.wrap(buf), w * 4);
+	return(PUtils.rasterimg(Raster.createInterleavedRaster(new DataBufferByte(buf, buf.length), w, h, w * 4, 4, new int[] {0, 1, 2, 3}, null)));
+    }
+
+    public BufferedImage decode(byte[] data) throws IOException {
+	return(decode(data, 0, data.length));
+    }
+
+    public void dispose() {
+	inflater.end();
+    }
+
+    private static final int MAXPOOL = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+    private static final Deque<PNGDecoder> pool = new ArrayDeque<>();
+
+    /* Decodes an image with a decoder from the shared pool. */
+    public static BufferedImage read(byte[] data) throws IOException {
+	PNGDecoder dec;
+	synchronized(pool) {
+	    dec = pool.poll();
+	}
+	if(dec == null)
+	    dec = new PNGDecoder();
+	try {
+	    return(dec.decode(data));
+	} finally {
+	    boolean keep;
+	    synchronized(pool) {
+		if(keep = (pool.size() < MAXPOOL))
+		    pool.add(dec);
+	    }
+	    if(!keep)
+		dec.dispose();
+	}
+    }
+
+    private static void findpngs(byte[] data, List<byte[]> buf) {
+	for(int i = 0; i + sig.length + 8 <= data.length; i++) {
+	    if((data[i] != sig[0]) || !png(data, i, data.length - i))
+		continue;
+	    int p = i + sig.length;
+	    while(p + 12 <= data.length) {
+		int clen = int32(data, p);
+		if((clen < 0) || (p + 12 + clen > data.length))
+		    break;
+		boolean iend = istype(data, p + 4, "IEND");
+		p += 12 + clen;
+		if(iend) {
+		    buf.add(Arrays.copyOfRange(data, i, p));
+		    i = p - 1;
+		    break;
+		}
+	    }
+	}
+    }
+
+    /* Benchmark against ImageIO. Scans the given files and
+     * directories (typically a resource cache) for embedded PNG
+     * images, decodes each of them both ways, and compares both
+     * the time taken and the decoded pixels. */
+    public static void main(String[] args) throws Exception {
+	List<byte[]> imgs = new ArrayList<>();
+	for(String arg : args) {
+	    try(java.util.stream.Stream<Path> files = Files.walk(Utils.path(arg))) {
+		for(Path file : (Iterable<Path>)files::iterator) {
+		    if(Files.isRegularFile(file))
+			findpngs(Files.readAllBytes(file), imgs);
+		}
+	    }
+	}
+	PNGDecoder dec = new PNGDecoder();
+	int supported = 0, mismatch = 0;
+	long pixels = 0;
+	for(byte[] img : imgs) {
+	    BufferedImage a = dec.decode(img);
+	    if(a == null)
+		continue;
+	    supported++;
+	    BufferedImage b = javax.imageio.ImageIO.read(new ByteArrayInputStream(img));
+	    pixels += (long)a.getWidth() * a.getHeight();
+	    if(!Arrays.equals(a.getRGB(0, 0, a.getWidth(), a.getHeight(), null, 0, a.getWidth()),
+			      b.getRGB(0, 0, b.getWidth(), b.getHeight(), null, 0, b.getWidth())))
+		mismatch++;
+	}
+	System.out.printf("%d images, %d supported, %d mismatching, %d pixels\n", imgs.size(), supported, mismatch, pixels);
+	if(supported == 0)
+	    return;
+	for(int round = 0; round < 5; round++) {
+	    long st = System.nanoTime();
+	    for(byte[] img : imgs) {
+		if(dec.size(img, 0, img.length) != null)
+		    javax.imageio.ImageIO.read(new ByteArrayInputStream(img));
+	    }
+	    long iio = System.nanoTime() - st;
+	    st = System.nanoTime();
+	    for(byte[] img : imgs)
+		dec.decode(img);
+	    long fast = System.nanoTime() - st;
+	    System.out.printf("round %d: ImageIO %.1f ms, direct %.1f ms (%.2fx)\n", round, iio * 1e-6, fast * 1e-6, (double)iio / fast);
+	}
+	dec.dispose();
+    }
+}
@@ -0,0 +1,159 @@
+package haven;
+
+import java.awt.image.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Minimal streaming PNG writer for 8-bit RGB(A) rasters. Unlike
+ * ImageIO, it never builds the whole compressed image in memory, and
+ * an instance keeps its deflater and scanline buffers between images,
+ * so a batch of images can be written without reallocating. The
+ * deflater holds native memory until the encoder is closed. Instances
+ * are not thread-safe.
+ */
+public class PNGEncoder implements AutoCloseable {
+    private static final byte[] SIG = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] IHDR = "IHDR".getBytes(Utils.ascii);
+    private static final byte[] IDAT = "IDAT".getBytes(Utils.ascii);
+    private static final byte[] IEND = "IEND".getBytes(Utils.ascii);
+    private final Deflater zip;
+    private final CRC32 crc = new CRC32();
+    private final byte[] zbuf = new byte[1 << 16];
+    private final byte[] ibuf = new byte[8];
+    private byte[] cur = new byte[0], prev = new byte[0], filt = new byte[0];
+    private int[] pbuf = new int[0];
+
+    public PNGEncoder(int level) {
+	this.zip = new Deflater(level);
+    }
+
+    public PNGEncoder() {
+	this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static void int32be(long num, byte[] buf, int off) {
+	buf[off + 0] = (byte)(num >>> 24);
+	buf[off + 1] = (byte)(num >>> 16);
+	buf[off + 2] = (byte)(num >>>  8);
+	buf[off + 3] = (byte)(num >>>  0);
+    }
+
+    private void chunk(OutputStream out, byte[] type, byte[] data, int off, int len) throws IOException {
+	int32be(len, ibuf, 0);
+	out.write(ibuf, 0, 4);
+	out.write(type);
+	out.write(data, off, len);
+	crc.reset();
+	crc.update(type);
+	crc.update(data, off, len);
+	int32be(crc.getValue(), ibuf, 0);
+	out.write(ibuf, 0, 4);
+    }
+
+    private void drain(OutputStream out) throws IOException {
+	while(!zip.needsInput()) {
+	    int n = zip.deflate(zbuf, 0, zbuf.length);
+	    if(n > 0)
+		chunk(out, IDAT, zbuf, 0, n);
+	    else
+		break;
+	}
+    }
+
+    private void row(Raster img, int y, int nb) {
+	int w = img.getWidth();
+	SampleModel sm = img.getSampleModel();
+	if((img.getDataBuffer() instanceof DataBufferByte) && (sm instanceof PixelInterleavedSampleModel) &&
+	   (sm.getNumBands() == nb) && (((PixelInterleavedSampleModel)sm).getPixelStride() == nb)) {
+	    PixelInterleavedSampleModel psm = (PixelInterleavedSampleModel)sm;
+	    int[] bo = psm.getBandOffsets();
+	    boolean ordered = true;
+	    for(int i = 0; i < nb; i++)
+		ordered &= (bo[i] == i);
+	    if(ordered) {
+		DataBufferByte buf = (DataBufferByte)img.getDataBuffer();
+		int off = buf.getOffset() +
+		    ((img.getMinY() + y - img.getSampleModelTranslateY()) * psm.getScanlineStride()) +
+		    ((img.getMinX() - img.getSampleModelTranslateX()) * nb);
+		System.arraycopy(buf.getData(), off, cur, 0, w * nb);
+		return;
+	    }
+	}
+	img.getPixels(img.getMinX(), img.getMinY() + y, w, 1, pbuf);
+	for(int i = 0; i < w * nb; i++)
+	    cur[i] = (byte)pbuf[i];
+    }
+
+    /* Uses the Paeth filter on every scanline, which gives
+     * consistently good results for the kind of tiled textures the
+     * client writes, without the cost of adaptive filter selection. */
+    private void filter(int ll, int nb) {
+	filt[0] = 4;
+	for(int i = 0; i < ll; i++) {
+	    int a = (i >= nb) ? (cur[i - nb] & 0xff) : 0;
+	    int b = prev[i] & 0xff;
+	    int c = (i >= nb) ? (prev[i - nb] & 0xff) : 0;
+	    int p = a + b - c;
+	    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+	    int pr = ((pa <= pb) && (pa <= pc)) ? a : ((pb <= pc) ? b : c);
+	    filt[i + 1] = (byte)(cur[i] - pr);
+	}
+    }
+
+    public void write(OutputStream out, Raster img) throws IOException {
+	int w = img.getWidth(), h = img.getHeight(), nb = img.getNumBands();
+	if((nb != 3) && (nb != 4))
+	    throw(new IllegalArgumentException("Can only encode RGB or RGBA rasters, not " + nb + " bands"));
+	for(int i = 0; i < nb; i++) {
+	    if(img.getSampleModel().getSampleSize(i) != 8)
+		throw(new IllegalArgumentException("Can only encode 8-bit rasters"));
+	}
+	int ll = w * nb;
+	if(cur.length < ll) {
+	    cur = new byte[ll];
+	    prev = new byte[ll];
+	    filt = new byte[ll + 1];
+	}
+	if(pbuf.length < ll)
+	    pbuf = new int[ll];
+	out.write(SIG);
+	byte[] hdr = new byte[13];
+	int32be(w, hdr, 0);
+	int32be(h, hdr, 4);
+	hdr[8] = 8;
+	hdr[9] = (byte)((nb == 4) ? 6 : 2);
+	chunk(out, IHDR, hdr, 0, hdr.length);
+	zip.reset();
+	java.util.Arrays.fill(prev, 0, ll, (byte)0);
+	for(int y = 0; y < h; y++) {
+	    row(img, y, nb);
+	    filter(ll, nb);
+	    zip.setInput(filt, 0, ll + 1);
+	    drain(out);
+	    byte[] t = prev; prev = cur; cur = t;
+	}
+	zip.finish();
+	while(!zip.finished()) {
+	    int n = zip.deflate(zbuf, 0, zbuf.length);
+	    if(n > 0)
+		chunk(out, IDAT, zbuf, 0, n);
+	}
+	chunk(out, IEND, zbuf, 0, 0);
+    }
+
+    public void write(OutputStream out, BufferedImage img) throws IOException {
+	ColorModel cm = img.getColorModel();
+	if((cm instanceof ComponentColorModel) && !cm.isAlphaPremultiplied() && (img.getRaster().getNumBands() == cm.getNumComponents())) {
+	    write(out, img.getRaster());
+	} else {
+	    write(out, PUtils.coercergba(img).getRaster());
+	}
+    }
+
+    public void close() {
+	zip.end();
+    }
+}
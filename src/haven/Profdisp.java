@@ -98,9 +98,12 @@ public class Profdisp extends Widget {
 	    double t = (h - y) * (mt / h);
 	    Profile.Frame f = prof.hist[x];
 	    if(f != null) {
+		String stats = ((f instanceof GPUProfile.Frame) && (((GPUProfile.Frame)f).stats != null)) ? (", " + ((GPUProfile.Frame)f).stats) : "";
+		if((f instanceof CPUProfile.Frame) && (((CPUProfile.Frame)f).stats != null))
+		    stats = ", " + ((CPUProfile.Frame)f).stats;
 		for(int i = 0; i < f.prt.length; i++) {
 		    if((t -= f.prt[i]) < 0)
-			return(String.format("%.2f ms, %s: %.2f ms", f.total * 1000, f.nm[i], f.prt[i] * 1000));
+			return(String.format("%.2f ms, %s: %.2f ms%s", f.total * 1000, f.nm[i], f.prt[i] * 1000, stats));
 		}
 	    }
 	}
@@ -66,7 +66,7 @@ public class QualityList extends ItemInfo {
     private static TexI render(List<Quality> qualities) {
 	BufferedImage[] imgs = new BufferedImage[qualities.size()];
 	for (int i = 0; i < qualities.size(); i++) {
-	    imgs[i] = qualities.get(i).tex().back;
+	    imgs[i] = qualities.get(i).tex().img();
 	}
 	return new TexI(ItemInfo.catimgs(-6, true, imgs));
     }
@@ -0,0 +1,436 @@
+package haven;
+
+import java.util.*;
+import haven.render.*;
+import haven.resutil.Ridges;
+import static haven.MCache.tilesz;
+import static haven.MCache.cutsz;
+
+/* Hit testing for the map view on the CPU. The map view takes a
+ * snapshot of its camera on every tick, through which screen
+ * positions are cast as rays, against the terrain as MapMesh
+ * triangulates it, and against a bounding volume hierarchy of the
+ * gobs. Gob volumes are only bounds, and clicking a gob must also
+ * tell which of its meshes and overlays was hit, so a ray passing
+ * near any gob is ambiguous, as is one over broken ridges or over
+ * terrain still loading. Those are left to the click-map render
+ * pass, while everything else, mostly pointing at open ground, is
+ * answered at once. */
+public class RayPick {
+    public static boolean enabled = Config.raypick;
+    /* Bounds assumed for gobs whose geometry cannot be found from
+     * their resources. */
+    public static float unkrad = 16, unkh = 33;
+    private static int nhit, nfall;
+    private static final Map<Resource, float[]> resbounds = new WeakHashMap<>();
+    private static final float[] nobounds = {};
+    private final Matrix4f ipv;
+    private final Coord sz;
+    private final Area area;
+    private final double time;
+    private Node gobs = null;
+
+    public static class Ambiguous extends RuntimeException {
+	private Ambiguous() {
+	    super(null, null, false, false);
+	}
+    }
+    public static final Ambiguous ambiguous = new Ambiguous();
+
+    /* The area is that of the map cuts drawn in the click map. */
+    public RayPick(Projection proj, Camera view, Coord sz, Area area) {
+	this.ipv = proj.fin(Matrix4f.id).mul(view.fin(Matrix4f.id)).invert();
+	this.sz = sz;
+	this.area = area;
+	this.time = Utils.rtime();
+    }
+
+    public class Ray {
+	/* Points on the near and far planes, in map coordinates. */
+	public final Coord3f n, f;
+	/* The same for a ray fuzz pixels off, for finding how far
+	 * neighbouring pixels reach. */
+	private final Coord3f on, of;
+
+	private Ray(Coord pc, int fuzz) {
+	    n = unproject(pc.x, pc.y, -1);
+	    f = unproject(pc.x, pc.y, 1);
+	    on = unproject(pc.x + fuzz + 1, pc.y + fuzz + 1, -1);
+	    of = unproject(pc.x + fuzz + 1, pc.y + fuzz + 1, 1);
+	}
+
+	public float spread(float s) {
+	    float dx = (on.x - n.x) + (((of.x - on.x) - (f.x - n.x)) * s);
+	    float dy = (on.y - n.y) + (((of.y - on.y) - (f.y - n.y)) * s);
+	    float dz = (on.z - n.z) + (((of.z - on.z) - (f.z - n.z)) * s);
+	    return((float)Math.sqrt((dx * dx) + (dy * dy) + (dz * dz)));
+	}
+    }
+
+    private Coord3f unproject(float x, float y, float z) {
+	float[] o = ipv.mul4(new float[] {((2 * (x + 0.5f)) / sz.x) - 1, 1 - ((2 * (y + 0.5f)) / sz.y), z, 1});
+	return(Coord3f.of(o[0] / o[3], -o[1] / o[3], o[2] / o[3]));
+    }
+
+    public Ray ray(Coord pc, int fuzz) {
+	if(!enabled || (area == null) || (Utils.rtime() - time > 1.0))
+	    throw(ambiguous);
+	return(new Ray(pc, fuzz));
+    }
+
+    /* Terrain height at a point within a tile, triangulated the same
+     * way as MapMesh.MapSurface does. */
+    private static double tz(double[] z, boolean split, double sx, double sy) {
+	if(split) {
+	    if(sx + sy <= 1)
+		return(z[0] + (sx * (z[1] - z[0])) + (sy * (z[2] - z[0])));
+	    return(z[3] + ((1 - sx) * (z[2] - z[3])) + ((1 - sy) * (z[1] - z[3])));
+	} else {
+	    if(sx >= sy)
+		return(z[0] + (sx * (z[1] - z[0])) + (sy * (z[3] - z[1])));
+	    return(z[0] + (sy * (z[2] - z[0])) + (sx * (z[3] - z[2])));
+	}
+    }
+
+    /* Returns the map coordinates of the first point along the ray
+     * where it meets the terrain, or null if it meets none of the
+     * terrain that is drawn. */
+    public Coord3f terrain(MCache map, Ray r) {
+	try {
+	    return(terrain0(map, r));
+	} catch(Loading l) {
+	    throw(ambiguous);
+	}
+    }
+
+    private Coord3f terrain0(MCache map, Ray r) {
+	boolean flat = CFG.FLATWORLD.get();
+	double tw = tilesz.x, th = tilesz.y;
+	double nx = r.n.x / tw, ny = r.n.y / th, nz = r.n.z;
+	double dx = (r.f.x / tw) - nx, dy = (r.f.y / th) - ny, dz = r.f.z - nz;
+	/* Clip the ray to the drawn area, in tile units. */
+	double s0 = 0, s1 = 1;
+	double[] lo = {area.ul.x * cutsz.x, area.ul.y * cutsz.y}, hi = {area.br.x * cutsz.x, area.br.y * cutsz.y};
+	double[] o = {nx, ny}, d = {dx, dy};
+	for(int i = 0; i < 2; i++) {
+	    if(d[i] == 0) {
+		if((o[i] < lo[i]) || (o[i] >= hi[i]))
+		    return(null);
+		continue;
+	    }
+	    double a = (lo[i] - o[i]) / d[i], b = (hi[i] - o[i]) / d[i];
+	    s0 = Math.max(s0, Math.min(a, b));
+	    s1 = Math.min(s1, Math.max(a, b));
+	}
+	if(s0 >= s1)
+	    return(null);
+	/* Walk the tiles along the ray. */
+	double sm = (s0 + s1) * 0.5;
+	int tx = (int)Math.floor(nx + (dx * Math.min(s0 + 1e-6, sm)));
+	int ty = (int)Math.floor(ny + (dy * Math.min(s0 + 1e-6, sm)));
+	int stx = (dx > 0) ? 1 : -1, sty = (dy > 0) ? 1 : -1;
+	double ddx = (dx == 0) ? Double.POSITIVE_INFINITY : Math.abs(1 / dx);
+	double ddy = (dy == 0) ? Double.POSITIVE_INFINITY : Math.abs(1 / dy);
+	double sxn = (dx == 0) ? Double.POSITIVE_INFINITY : ((tx + ((dx > 0) ? 1 : 0)) - nx) / dx;
+	double syn = (dy == 0) ? Double.POSITIVE_INFINITY : ((ty + ((dy > 0) ? 1 : 0)) - ny) / dy;
+	double[] z = new double[4];
+	double s = s0;
+	boolean first = true;
+	while(s < s1) {
+	    double se = Math.min(Math.min(sxn, syn), s1);
+	    Coord tc = Coord.of(tx, ty);
+	    if(!flat) {
+		z[0] = map.getfz(tc);
+		z[1] = map.getfz(tc.add(1, 0));
+		z[2] = map.getfz(tc.add(0, 1));
+		z[3] = map.getfz(tc.add(1, 1));
+	    }
+	    boolean split = Math.abs(z[0] - z[3]) > Math.abs(z[1] - z[2]);
+	    /* The terrain is planar within each triangle, so the only
+	     * other point needing checking is where the ray crosses
+	     * the diagonal. */
+	    double sd = Double.NaN;
+	    double lx = nx - tx, ly = ny - ty;
+	    if(split) {
+		if(dx + dy != 0)
+		    sd = (1 - lx - ly) / (dx + dy);
+	    } else {
+		if(dx - dy != 0)
+		    sd = (ly - lx) / (dx - dy);
+	    }
+	    double[] ss = ((sd > s) && (sd < se)) ? new double[] {s, sd, se} : new double[] {s, se};
+	    double pg = 0;
+	    double zmin = Double.POSITIVE_INFINITY;
+	    for(int i = 0; i < ss.length; i++) {
+		double cs = ss[i];
+		double rz = nz + (dz * cs);
+		double g = rz - tz(z, split, Utils.clip(lx + (dx * cs), 0, 1), Utils.clip(ly + (dy * cs), 0, 1));
+		zmin = Math.min(zmin, rz);
+		if(i == 0) {
+		    if(first && (g <= 0))
+			throw(ambiguous);
+		} else if(g <= 0) {
+		    double ps = ss[i - 1];
+		    double hs = ps + ((cs - ps) * (pg / (pg - g)));
+		    brokenck(map, tc, flat);
+		    return(Coord3f.of((float)((nx + (dx * hs)) * tw), (float)((ny + (dy * hs)) * th), (float)(nz + (dz * hs))));
+		}
+		pg = g;
+	    }
+	    /* Ridges draw cliffs where MapMesh would have slopes, so
+	     * passing close over broken tiles cannot be told here. */
+	    if(zmin < Math.max(Math.max(z[0], z[1]), Math.max(z[2], z[3])) + tilesz.x)
+		brokenck(map, tc, flat);
+	    first = false;
+	    s = se;
+	    if(sxn < syn) {
+		tx += stx;
+		sxn += ddx;
+	    } else {
+		ty += sty;
+		syn += ddy;
+	    }
+	}
+	return(null);
+    }
+
+    private static void brokenck(MCache map, Coord tc, boolean flat) {
+	if(!flat && Ridges.brokenp(map, tc))
+	    throw(ambiguous);
+    }
+
+    private static float[] bounds(Resource res) {
+	synchronized(resbounds) {
+	    float[] ret = resbounds.get(res);
+	    if(ret != null)
+		return(ret);
+	}
+	float r = 0, z0 = Float.POSITIVE_INFINITY, z1 = Float.NEGATIVE_INFINITY;
+	boolean any = false;
+	for(FastMesh.MeshRes mr : res.layers(FastMesh.MeshRes.class)) {
+	    if(mr.m == null)
+		continue;
+	    Coord3f lo = mr.m.nbounds(), hi = mr.m.pbounds();
+	    if(lo == null)
+		continue;
+	    float x = Math.max(Math.abs(lo.x), Math.abs(hi.x)), y = Math.max(Math.abs(lo.y), Math.abs(hi.y));
+	    r = Math.max(r, (float)Math.sqrt((x * x) + (y * y)));
+	    z0 = Math.min(z0, lo.z);
+	    z1 = Math.max(z1, hi.z);
+	    any = true;
+	}
+	float[] ret;
+	if(any) {
+	    for(Resource.Neg neg : res.layers(Resource.Neg.class)) {
+		float x = Math.max(Math.abs(neg.ac.x), Math.abs(neg.bc.x)), y = Math.max(Math.abs(neg.ac.y), Math.abs(neg.bc.y));
+		r = Math.max(r, (float)Math.sqrt((x * x) + (y * y)));
+	    }
+	    for(Resource.Obst obst : res.layers(Resource.Obst.class)) {
+		for(Coord2d[] poly : obst.polygons) {
+		    for(Coord2d c : poly)
+			r = Math.max(r, (float)(c.abs() * tilesz.x));
+		}
+	    }
+	    ret = new float[] {r, z0, z1};
+	} else {
+	    ret = nobounds;
+	}
+	synchronized(resbounds) {
+	    resbounds.put(res, ret);
+	}
+	return(ret);
+    }
+
+    private static Resource meshres(Resource res) {
+	for(RenderLink.Res link : res.layers(RenderLink.Res.class)) {
+	    if(link.l instanceof RenderLink.MeshMat)
+		return(((RenderLink.MeshMat)link.l).mesh.get());
+	    return(null);
+	}
+	return(res);
+    }
+
+    /* Returns the radius and height range of a gob around its
+     * location, or null if it draws nothing. */
+    private static float[] gobbounds(Gob gob) {
+	Drawable d = gob.getattr(Drawable.class);
+	boolean ols = !gob.ols.isEmpty();
+	if((d == null) && !ols)
+	    return(null);
+	float r = 0, z0 = 0, z1 = 0;
+	boolean unk = ols;
+	try {
+	    if(d instanceof ResDrawable) {
+		Resource res = meshres(((ResDrawable)d).res.get());
+		float[] b = (res == null) ? nobounds : bounds(res);
+		if(b.length == 0) {
+		    unk = true;
+		} else {
+		    r = b[0]; z0 = b[1]; z1 = b[2];
+		}
+	    } else if(d instanceof Composite) {
+		/* Poses move parts well outside their bind-pose
+		 * bounds, hence the extra margin. */
+		Composited comp = ((Composite)d).comp;
+		Collection<Composited.Model> mod = new ArrayList<>(comp.mod);
+		for(Composited.Model m : mod) {
+		    Coord3f lo = m.m.nbounds(), hi = m.m.pbounds();
+		    if(lo == null)
+			continue;
+		    float x = Math.max(Math.abs(lo.x), Math.abs(hi.x)), y = Math.max(Math.abs(lo.y), Math.abs(hi.y));
+		    r = Math.max(r, (float)Math.sqrt((x * x) + (y * y)) * 1.5f);
+		    z0 = Math.min(z0, lo.z);
+		    z1 = Math.max(z1, hi.z * 1.25f);
+		}
+		if(mod.isEmpty() || !comp.equ.isEmpty())
+		    unk = true;
+	    } else if(d != null) {
+		unk = true;
+	    }
+	} catch(Loading l) {
+	    unk = true;
+	} catch(ConcurrentModificationException e) {
+	    unk = true;
+	}
+	if(unk) {
+	    r = Math.max(r, unkrad);
+	    z1 = Math.max(z1, unkh);
+	}
+	return(new float[] {(r * 1.25f) + 1, z0 - 1 - (Math.abs(z0) * 0.25f), (z1 * 1.25f) + 1});
+    }
+
+    private static class Node {
+	final float[] b;
+	final Node l, r;
+	final Gob gob;
+
+	Node(float[] b, Gob gob) {
+	    this.b = b;
+	    this.l = this.r = null;
+	    this.gob = gob;
+	}
+
+	Node(Node l, Node r) {
+	    this.l = l;
+	    this.r = r;
+	    this.gob = null;
+	    this.b = new float[6];
+	    for(int i = 0; i < 3; i++) {
+		b[i] = Math.min(l.b[i], r.b[i]);
+		b[i + 3] = Math.max(l.b[i + 3], r.b[i + 3]);
+	    }
+	}
+
+	static Node build(List<Node> leaves) {
+	    if(leaves.size() == 1)
+		return(leaves.get(0));
+	    float[] lo = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+	    float[] hi = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+	    for(Node n : leaves) {
+		for(int i = 0; i < 3; i++) {
+		    float c = n.b[i] + n.b[i + 3];
+		    lo[i] = Math.min(lo[i], c);
+		    hi[i] = Math.max(hi[i], c);
+		}
+	    }
+	    int ax = 0;
+	    for(int i = 1; i < 3; i++) {
+		if(hi[i] - lo[i] > hi[ax] - lo[ax])
+		    ax = i;
+	    }
+	    int a = ax;
+	    leaves.sort((x, y) -> Float.compare(x.b[a] + x.b[a + 3], y.b[a] + y.b[a + 3]));
+	    int m = leaves.size() / 2;
+	    return(new Node(build(leaves.subList(0, m)), build(leaves.subList(m, leaves.size()))));
+	}
+
+	/* Slab test of the ray segment over [0, se] against the
+	 * bounds, grown by pad. */
+	boolean isect(Coord3f n, Coord3f d, float se, float pad) {
+	    float s0 = 0, s1 = se;
+	    float[] o = {n.x, n.y, n.z}, v = {d.x, d.y, d.z};
+	    for(int i = 0; i < 3; i++) {
+		float lo = b[i] - pad, hi = b[i + 3] + pad;
+		if(v[i] == 0) {
+		    if((o[i] < lo) || (o[i] > hi))
+			return(false);
+		    continue;
+		}
+		float a = (lo - o[i]) / v[i], c = (hi - o[i]) / v[i];
+		s0 = Math.max(s0, Math.min(a, c));
+		s1 = Math.min(s1, Math.max(a, c));
+		if(s0 > s1)
+		    return(false);
+	    }
+	    return(true);
+	}
+
+	/* The tree of no gobs at all, which nothing is found in. */
+	static final Node empty = new Node(new float[6], null);
+
+	Gob find(Coord3f n, Coord3f d, float se, float pad) {
+	    if((this == empty) || !isect(n, d, se, pad))
+		return(null);
+	    if(l == null)
+		return(gob);
+	    Gob ret = l.find(n, d, se, pad);
+	    return((ret != null) ? ret : r.find(n, d, se, pad));
+	}
+    }
+
+    private Node gobs(OCache oc) {
+	synchronized(this) {
+	    if(gobs == null) {
+		List<Node> leaves = new ArrayList<>();
+		for(Gob gob : oc.stream().toArray(Gob[]::new)) {
+		    try {
+			float[] b = gobbounds(gob);
+			if(b == null)
+			    continue;
+			Coord3f c = gob.getc();
+			leaves.add(new Node(new float[] {c.x - b[0], c.y - b[0], c.z + b[1], c.x + b[0], c.y + b[0], c.z + b[2]}, gob));
+		    } catch(Loading l) {
+			/* Not placed, so not drawn either. */
+		    }
+		}
+		gobs = leaves.isEmpty() ? Node.empty : Node.build(leaves);
+	    }
+	    return(gobs);
+	}
+    }
+
+    /* Checks that the ray passes near no gob before reaching the
+     * terrain at hit, which may be null. Gobs behind the terrain may
+     * still show up in pixels nearby, so some distance past it is
+     * included. */
+    public void nogobs(OCache oc, Ray r, Coord3f hit) {
+	Coord3f d = r.f.sub(r.n);
+	float len = d.abs();
+	float se = 1;
+	if(hit != null)
+	    se = Math.min(1, (hit.dist(r.n) + (float)(tilesz.x * 2)) / len);
+	if(gobs(oc).find(r.n, d, se, r.spread(se)) != null)
+	    throw(ambiguous);
+    }
+
+    public static void count(boolean hit) {
+	synchronized(resbounds) {
+	    if(hit)
+		nhit++;
+	    else
+		nfall++;
+	}
+    }
+
+    static {
+	Console.setscmd("raypick", (cons, args) -> {
+		if(args.length < 2) {
+		    synchronized(resbounds) {
+			cons.out.printf("raypick: %s, %d answered, %d left to the click map\n", enabled, nhit, nfall);
+		    }
+		} else {
+		    enabled = Utils.parsebool(args[1]);
+		}
+	    });
+    }
+}
@@ -0,0 +1,259 @@
+package haven;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Records which resources are requested during the first minute
+ * after login and after each area transition, and aggregates those
+ * traces over sessions into a preload plan that is replayed at
+ * background priority the next time the same phase begins. Both
+ * recording and replaying are opt-in through CFG.RES_PRELOAD.
+ */
+public class ResPreload implements Resource.Pool.Tracer {
+    public static final String STORE = "tmp/respreload";
+    public static final long WINDOW = 60000;
+    public static final double DECAY = 0.75, MINWEIGHT = 1.0, PRUNE = 0.1;
+    public static long maxbytes = 64L << 20, maxrate = 2L << 20;
+    public static int maxres = 4096;
+    public static final long DEFSIZE = 16 << 10;
+    private static ResPreload cur = null;
+    public final Resource.Pool pool;
+    private final ResCache store;
+    private final Map<String, Map<String, Entry>> plan = new HashMap<>();
+    private Map<String, Entry> trace = null;
+    private String phase = null;
+    private long pstart;
+    private Thread feeder = null;
+
+    public static class Entry {
+	public final String name;
+	public int ver;
+	public double weight, time;
+	public long size;
+
+	public Entry(String name, int ver, double weight, double time, long size) {
+	    this.name = name;
+	    this.ver = ver;
+	    this.weight = weight;
+	    this.time = time;
+	    this.size = size;
+	}
+    }
+
+    public ResPreload(Resource.Pool pool, ResCache store) {
+	this.pool = pool;
+	this.store = store;
+	load();
+    }
+
+    /* Called as a game session begins, so that the login window
+     * covers what is requested in the game rather than on the login
+     * screen. */
+    public static void login(Resource.Pool pool) {
+	if((ResCache.global == null) || !CFG.RES_PRELOAD.get())
+	    return;
+	ResPreload rp = cur;
+	if(rp == null) {
+	    rp = new ResPreload(pool, ResCache.global);
+	    pool.tracer = rp;
+	    cur = rp;
+	}
+	rp.phase("login");
+    }
+
+    public static void area() {
+	ResPreload rp = cur;
+	if(rp != null)
+	    rp.phase("area");
+    }
+
+    private void load() {
+	try(BufferedReader in = new BufferedReader(new InputStreamReader(store.fetch(STORE), StandardCharsets.UTF_8))) {
+	    String ln;
+	    while((ln = in.readLine()) != null) {
+		String[] w = ln.split("\t");
+		if(w.length < 6)
+		    continue;
+		try {
+		    Entry e = new Entry(w[1], Integer.parseInt(w[2]), Double.parseDouble(w[3]), Double.parseDouble(w[4]), Long.parseLong(w[5]));
+		    plan.computeIfAbsent(w[0], k -> new HashMap<>()).put(e.name, e);
+		} catch(NumberFormatException e) {
+		    continue;
+		}
+	    }
+	} catch(FileNotFoundException e) {
+	} catch(IOException e) {
+	    new Warning(e, "could not read resource preload plan").issue();
+	}
+    }
+
+    private void save() {
+	List<String> lines = new ArrayList<>();
+	synchronized(this) {
+	    for(Map.Entry<String, Map<String, Entry>> ph : plan.entrySet()) {
+		for(Entry e : ph.getValue().values())
+		    lines.add(String.format(Locale.ROOT, "%s\t%s\t%d\t%.3f\t%.0f\t%d", ph.getKey(), e.name, e.ver, e.weight, e.time, e.size));
+	    }
+	}
+	try(Writer out = new OutputStreamWriter(store.store(STORE), StandardCharsets.UTF_8)) {
+	    for(String ln : lines)
+		out.write(ln + "\n");
+	} catch(IOException e) {
+	    new Warning(e, "could not store resource preload plan").issue();
+	}
+    }
+
+    /* Folds the trace of the finished phase into the plan. Every
+     * previously known resource has its weight decayed, and those
+     * seen again are reinforced, so that the weight approximates the
+     * number of recent sessions a resource was requested in. */
+    private void close() {
+	if(trace == null)
+	    return;
+	Map<String, Entry> pp = plan.computeIfAbsent(phase, k -> new HashMap<>());
+	for(Iterator<Entry> i = pp.values().iterator(); i.hasNext();) {
+	    Entry e = i.next();
+	    e.weight *= DECAY;
+	    if(!trace.containsKey(e.name) && (e.weight < PRUNE))
+		i.remove();
+	}
+	for(Entry t : trace.values()) {
+	    Entry e = pp.get(t.name);
+	    if(e == null) {
+		pp.put(t.name, new Entry(t.name, t.ver, 1.0, t.time, t.size));
+	    } else {
+		e.weight += 1.0;
+		e.time = (e.time + t.time) / 2;
+		if(t.ver != -1)
+		    e.ver = t.ver;
+		if(t.size > 0)
+		    e.size = t.size;
+	    }
+	}
+	trace = null;
+	Defer.later(() -> {save(); return(null);});
+    }
+
+    public synchronized void phase(String phase) {
+	close();
+	this.phase = phase;
+	this.pstart = System.currentTimeMillis();
+	this.trace = new HashMap<>();
+	List<Entry> sched = new ArrayList<>();
+	Map<String, Entry> pp = plan.get(phase);
+	if(pp != null) {
+	    for(Entry e : pp.values()) {
+		if(e.weight >= MINWEIGHT)
+		    sched.add(new Entry(e.name, e.ver, e.weight, e.time, e.size));
+	    }
+	}
+	sched.sort(Comparator.comparingDouble(e -> e.time));
+	if(feeder != null)
+	    feeder.interrupt();
+	feeder = null;
+	if(!sched.isEmpty()) {
+	    feeder = new HackThread(() -> feed(sched), "Resource preloader");
+	    feeder.setDaemon(true);
+	    feeder.start();
+	}
+    }
+
+    /* Queues the scheduled resources at background priority, keeping
+     * within the byte and resource count budget, and throttled both
+     * to the configured byte rate and to the depth of the loader
+     * queue so as to not get in the way of foreground loading. */
+    private void feed(List<Entry> sched) {
+	long start = System.currentTimeMillis(), bytes = 0;
+	int n = 0;
+	try {
+	    for(Entry e : sched) {
+		long sz = (e.size > 0) ? e.size : DEFSIZE;
+		if((n >= maxres) || (bytes + sz > maxbytes))
+		    break;
+		while(pool.qdepth() > pool.tgtloaders(Integer.MAX_VALUE) * 2)
+		    Thread.sleep(50);
+		long ahead = (bytes * 1000 / maxrate) - (System.currentTimeMillis() - start);
+		if(ahead > 0)
+		    Thread.sleep(ahead);
+		try {
+		    pool.bgload(e.name, e.ver, -10);
+		} catch(RuntimeException exc) {
+		}
+		bytes += sz;
+		n++;
+	    }
+	} catch(InterruptedException exc) {
+	}
+    }
+
+    public synchronized void requested(String name, int ver) {
+	if(trace == null)
+	    return;
+	long now = System.currentTimeMillis();
+	if(now - pstart > WINDOW) {
+	    close();
+	    return;
+	}
+	Entry e = trace.get(name);
+	if(e == null)
+	    trace.put(name, new Entry(name, ver, 1.0, now - pstart, 0));
+	else if(ver != -1)
+	    e.ver = ver;
+    }
+
+    public void loaded(Resource res, long size) {
+	synchronized(this) {
+	    if(trace == null)
+		return;
+	    Entry e = trace.get(res.name);
+	    if(e != null) {
+		e.size = size;
+		if(e.ver == -1)
+		    e.ver = res.ver;
+	    }
+	}
+    }
+
+    public synchronized void dumplist(String phase, Writer out) throws IOException {
+	Map<String, Entry> pp = plan.get(phase);
+	if(pp == null)
+	    return;
+	List<Entry> buf = new ArrayList<>(pp.values());
+	buf.sort(Comparator.comparingDouble(e -> e.time));
+	for(Entry e : buf) {
+	    if((e.weight >= MINWEIGHT) && (e.ver != -1))
+		out.write(e.name + ":" + e.ver + "\n");
+	}
+    }
+
+    static {
+	Console.setscmd("respreload", (cons, args) -> {
+		ResPreload rp = cur;
+		if(rp == null)
+		    throw(new Exception("Resource preloading is not enabled"));
+		if((args.length > 3) && args[1].equals("save")) {
+		    try(Writer out = new FileWriter(args[3])) {
+			rp.dumplist(args[2], out);
+		    }
+		    return;
+		}
+		synchronized(rp) {
+		    for(Map.Entry<String, Map<String, Entry>> ph : rp.plan.entrySet()) {
+			int n = 0;
+			long sz = 0;
+			for(Entry e : ph.getValue().values()) {
+			    if(e.weight >= MINWEIGHT) {
+				n++;
+				sz += (e.size > 0) ? e.size : DEFSIZE;
+			    }
+			}
+			cons.out.printf("%s: %,d known, %,d planned, %,d kB\n", ph.getKey(), ph.getValue().size(), n, sz >> 10);
+		    }
+		    if(rp.trace != null)
+			cons.out.printf("Recording %s: %,d resources\n", rp.phase, rp.trace.size());
+		}
+	    });
+    }
+}
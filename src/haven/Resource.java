@@ -42,6 +42,7 @@ public class Resource implements Serializable {
     private static ResCache prscache;
     public static ThreadGroup loadergroup = null;
     private static Map<String, LayerFactory<?>> ltypes = new TreeMap<String, LayerFactory<?>>();
+    private static Map<String, DepScanner> depscanners = new TreeMap<String, DepScanner>();
     public static Class<Image> imgc = Image.class;
     public static Class<Neg> negc = Neg.class;
     public static Class<Anim> animc = Anim.class;
@@ -50,12 +51,14 @@ public class Resource implements Serializable {
     public static Class<Audio> audio = Audio.class;
     public static Class<Tooltip> tooltip = Tooltip.class;
     
-    private Collection<Layer> layers = new LinkedList<Layer>();
+    /* Either constructed Layers or Deferred placeholders. */
+    private Object[] layers = {};
     public final String name;
     public int ver;
     public ResSource source;
     public final transient Pool pool;
     private boolean used = false;
+    private transient long rawsize, loadtime;
 
     public abstract static class Named implements Indir<Resource>, Serializable {
 	public final String name;
@@ -196,6 +199,11 @@ public class Resource implements Serializable {
 
     public static interface ResSource {
 	public InputStream get(String name) throws IOException;
+
+	/* ver is -1 when any version will do. */
+	public default InputStream get(String name, int ver) throws IOException {
+	    return(get(name));
+	}
     }
     
     public static abstract class TeeSource implements ResSource, Serializable {
@@ -231,6 +239,28 @@ public class Resource implements Serializable {
 	public InputStream get(String name) throws IOException {
 	    return(cache.fetch("res/" + name));
 	}
+
+	private static final Set<String> revalidated = new HashSet<>();
+
+	/* A request for a specific version is satisfied by a cached
+	 * copy of it without asking the server. When any version
+	 * will do, though, a copy fetched over HTTP is left to the
+	 * HttpSource behind this one, which revalidates it with a
+	 * conditional request. That is only done the first time a
+	 * resource is loaded in a session, so that resources that
+	 * are evicted and loaded again do not cost a round-trip each
+	 * time, and can be turned off with haven.resrevalidate. */
+	public InputStream get(String name, int ver) throws IOException {
+	    if((ver < 0) && Config.resrevalidate && (HttpSource.Validator.load(cache, name) != null)) {
+		boolean first;
+		synchronized(revalidated) {
+		    first = revalidated.add(name);
+		}
+		if(first)
+		    throw(new FileNotFoundException(name));
+	    }
+	    return(get(name));
+	}
 	
 	public String toString() {
 	    return("cache source backed by " + cachedesc);
@@ -314,7 +344,9 @@ public class Resource implements Serializable {
     
     public static class HttpSource implements ResSource, Serializable {
 	public static final String USER_AGENT = "Haven/1.0";
+	public static final HttpPool conns = new HttpPool(Config.resconns);
 	private final transient SslHelper ssl;
+	public final transient ResCache cache;
 	public URL baseurl;
 	
 	{
@@ -329,40 +361,239 @@ public class Resource implements Serializable {
 	    ssl.ignoreName();
 	}
 	
-	public HttpSource(URL baseurl) {
+	/* If a cache is given, fetched resources are stored in it,
+	 * and requests for resources that it already has a copy of
+	 * are made conditional on that copy being out of date. */
+	public HttpSource(URL baseurl, ResCache cache) {
 	    this.baseurl = baseurl;
+	    this.cache = cache;
+	}
+
+	public HttpSource(URL baseurl) {
+	    this(baseurl, null);
 	}
 		
 	private URL encodeurl(URL raw) throws IOException {
 	    /* This is "kinda" ugly. It is, actually, how the Java
 	     * documentation recommend that it be done, though... */
 	    try {
-		return(new URL(new URI(raw.getProtocol(), raw.getHost(), raw.getPath(), raw.getRef()).toASCIIString()));
+		return(new URL(new URI(raw.getProtocol(), null, raw.getHost(), raw.getPort(), raw.getPath(), null, raw.getRef()).toASCIIString()));
 	    } catch(URISyntaxException e) {
 		throw(new IOException(e));
 	    }
 	}
 
+	/* What is known about the cached copy of a resource, as
+	 * of when it was fetched. */
+	private static class Validator {
+	    String etag, lastmod;
+	    int len, crc;
+
+	    void save(ResCache cache, String name) {
+		if((etag == null) && (lastmod == null))
+		    return;
+		MessageBuf buf = new MessageBuf();
+		buf.adduint8(1);
+		buf.addstring((etag == null) ? "" : etag);
+		buf.addstring((lastmod == null) ? "" : lastmod);
+		buf.addint32(len);
+		buf.addint32(crc);
+		try(OutputStream fp = cache.store("res-meta/" + name)) {
+		    fp.write(buf.fin());
+		} catch(IOException e) {
+		}
+	    }
+
+	    static Validator load(ResCache cache, String name) {
+		try(InputStream fp = cache.fetch("res-meta/" + name)) {
+		    Message buf = new StreamMessage(fp);
+		    if(buf.uint8() != 1)
+			return(null);
+		    Validator ret = new Validator();
+		    ret.etag = buf.string();
+		    ret.lastmod = buf.string();
+		    if(ret.etag.equals(""))
+			ret.etag = null;
+		    if(ret.lastmod.equals(""))
+			ret.lastmod = null;
+		    ret.len = buf.int32();
+		    ret.crc = buf.int32();
+		    return(ret);
+		} catch(IOException | Message.BinError e) {
+		    return(null);
+		}
+	    }
+
+	    /* Returns the cached copy, if it is still the one
+	     * this validator was made for. */
+	    byte[] verify(ResCache cache, String name) {
+		try(InputStream fp = cache.fetch("res/" + name)) {
+		    byte[] data = Utils.readall(fp);
+		    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		    crc.update(data);
+		    if((data.length == len) && ((int)crc.getValue() == this.crc))
+			return(data);
+		} catch(IOException e) {
+		}
+		return(null);
+	    }
+	}
+
+	/* Thrown when a fetch is resumed after the resource has
+	 * changed on the server, since the data already read cannot
+	 * be used with what follows. */
+	public static class ChangedException extends IOException {
+	    public ChangedException(URL url) {
+		super("Resource changed while being fetched: " + url);
+	    }
+	}
+
+	private HttpPool.Response request(URL url, long pos, String ifrange, Validator val) throws IOException {
+	    Map<String, String> headers = new LinkedHashMap<>();
+	    String ua = USER_AGENT;
+	    if(!Config.confid.equals(""))
+		ua += " (" + Config.confid + ")";
+	    headers.put("User-Agent", ua);
+	    if(pos > 0) {
+		headers.put("Range", "bytes=" + pos + "-");
+		if(ifrange != null)
+		    headers.put("If-Range", ifrange);
+	    }
+	    if(val != null) {
+		if(val.etag != null)
+		    headers.put("If-None-Match", val.etag);
+		if(val.lastmod != null)
+		    headers.put("If-Modified-Since", val.lastmod);
+	    }
+	    HttpPool.Response resp = conns.get(url, ssl, headers);
+	    if((resp.code == 200) || (resp.code == 206) || ((resp.code == 304) && (val != null)))
+		return(resp);
+	    resp.close();
+	    if((resp.code == 404) || (resp.code == 410))
+		throw(new FileNotFoundException(url.toString()));
+	    throw(new HttpPool.StatusException(url, resp.code, resp.msg));
+	}
+
+	private InputStream caching(String name, InputStream in, Validator val) throws IOException {
+	    StreamTee tee = new StreamTee(in);
+	    tee.setncwe();
+	    tee.attach(cache.store("res/" + name));
+	    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+	    return(new FilterInputStream(tee) {
+		    boolean eof = false;
+		    long len = 0;
+
+		    public int read() throws IOException {
+			byte[] b = new byte[1];
+			return((read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff));
+		    }
+
+		    public int read(byte[] buf, int off, int len) throws IOException {
+			int rv = in.read(buf, off, len);
+			if(rv > 0) {
+			    crc.update(buf, off, rv);
+			    this.len += rv;
+			} else if(rv < 0) {
+			    eof = true;
+			}
+			return(rv);
+		    }
+
+		    public void close() throws IOException {
+			in.close();
+			/* Only describe the copy once it is actually
+			 * stored, which the tee does on closing. */
+			if(eof) {
+			    val.len = (int)len;
+			    val.crc = (int)crc.getValue();
+			    val.save(cache, name);
+			}
+		    }
+		});
+	}
+
 	public InputStream get(String name) throws IOException {
 	    URL resurl = encodeurl(new URL(baseurl, name + ".res"));
-	    return(new RetryingInputStream() {
-		    protected InputStream create() throws IOException {
-			URLConnection c;
-			if(resurl.getProtocol().equals("https"))
-			    c = ssl.connect(resurl);
-			else
-			    c = resurl.openConnection();
-			/* Apparently, some versions of Java Web Start has
-			 * a bug in its internal cache where it refuses to
-			 * reload a URL even when it has changed. */
-			c.setUseCaches(false);
-			String ua = USER_AGENT;
-			if(!Config.confid.equals(""))
-			    ua += " (" + Config.confid + ")";
-			c.addRequestProperty("User-Agent", ua);
-			return(c.getInputStream());
+	    Validator cval = (cache == null) ? null : Validator.load(cache, name);
+	    HttpPool.Response first = null;
+	    try {
+		first = request(resurl, 0, null, cval);
+	    } catch(FileNotFoundException e) {
+		throw(e);
+	    } catch(IOException e) {
+		/* If the server cannot be reached, a copy that could
+		 * not be revalidated is still better than nothing. */
+		if(cval != null) {
+		    byte[] copy = cval.verify(cache, name);
+		    if(copy != null)
+			return(new ByteArrayInputStream(copy));
+		}
+		/* Otherwise, leave it to the retrying stream below. */
+	    }
+	    if((first != null) && (first.code == 304)) {
+		first.close();
+		byte[] copy = cval.verify(cache, name);
+		if(copy != null)
+		    return(new ByteArrayInputStream(copy));
+		first = null;
+	    }
+	    Validator nval = new Validator();
+	    HttpPool.Response init = first;
+	    InputStream ret = new RetryingInputStream() {
+		    HttpPool.Response pending = init;
+
+		    protected void retry(int retries, IOException lasterr) throws IOException {
+			if(lasterr instanceof ChangedException)
+			    throw(lasterr);
+			super.retry(retries, lasterr);
 		    }
-		});
+
+		    protected InputStream create(long pos) throws IOException {
+			HttpPool.Response resp = pending;
+			pending = null;
+			/* A range is only asked for on the condition that
+			 * the resource is still the one that was started
+			 * on, and otherwise the server sends all of it. */
+			String ifrange = (nval.etag != null) ? nval.etag : nval.lastmod;
+			if(resp == null)
+			    resp = request(resurl, (ifrange == null) ? 0 : pos, ifrange, null);
+			if(pos == 0) {
+			    nval.etag = resp.header("ETag", null);
+			    nval.lastmod = resp.header("Last-Modified", null);
+			}
+			InputStream body = resp.body;
+			if((pos > 0) && (resp.code != 206)) {
+			    /* Servers that do not do ranges send all of the
+			     * resource as well, but then its validator still
+			     * matches. */
+			    if((ifrange != null) && !ifrange.equals(resp.header((nval.etag != null) ? "ETag" : "Last-Modified", null))) {
+				resp.close();
+				throw(new ChangedException(resurl));
+			    }
+			    for(long s = 0; s < pos;) {
+				long n = body.skip(pos - s);
+				if(n <= 0) {
+				    if(body.read() < 0)
+					throw(new EOFException("Resource shrank while being retried"));
+				    n = 1;
+				}
+				s += n;
+			    }
+			}
+			return(body);
+		    }
+
+		    public void close() throws IOException {
+			if(pending != null) {
+			    pending.close();
+			    pending = null;
+			}
+			super.close();
+		    }
+		};
+	    if(cache != null)
+		ret = caching(name, ret, nval);
+	    return(ret);
 	}
 
 	public String toString() {
@@ -399,10 +630,13 @@ public class Resource implements Serializable {
     }
 
     public static class Pool {
-	public int nloaders = 2;
+	public int nloaders = 2, maxloaders = Config.resloaders;
+	public final LoadStats stats = new LoadStats();
+	public volatile Tracer tracer = null;
+	private static final ThreadLocal<Boolean> background = new ThreadLocal<>();
 	private final Collection<Loader> loaders = new LinkedList<Loader>();
 	private final List<ResSource> sources = new LinkedList<ResSource>();
-	private final Map<String, Resource> cache = new CacheMap<String, Resource>();
+	private final BudgetCache<String, Resource> cache = new BudgetCache<>(Config.resmem, Resource::memsize, Resource::loadcost);
 	private final PrioQueue<Queued> queue = new PrioQueue<Queued>();
 	private final Map<String, Queued> queued = new HashMap<String, Queued>();
 	private final Pool parent;
@@ -417,16 +651,25 @@ public class Resource implements Serializable {
 	    this(null, sources);
 	}
 
+	public interface Tracer {
+	    public void requested(String name, int ver);
+	    public void loaded(Resource res, long size);
+	}
+
 	public void add(ResSource src) {
 	    sources.add(src);
 	}
 
 	private class Queued extends Named implements Prioritized, Serializable {
 	    transient final Collection<Queued> rdep = new LinkedList<Queued>();
+	    transient final Collection<Queued> deps = new ArrayList<Queued>();
 	    final Waitable.Queue wq = new Waitable.Queue();
+	    final long qtime = System.nanoTime();
+	    long started, finished;
 	    volatile int prio;
 	    Queued awaiting;
 	    volatile boolean done = false;
+	    boolean bg;
 	    Resource res;
 	    LoadException error;
 
@@ -440,8 +683,15 @@ public class Resource implements Serializable {
 	    }
 
 	    public void boostprio(int prio) {
-		if(this.prio < prio)
+		if(this.prio < prio) {
 		    this.prio = prio;
+		    Collection<Queued> deps;
+		    synchronized(this) {
+			deps = this.deps.isEmpty() ? Collections.emptyList() : new ArrayList<>(this.deps);
+		    }
+		    for(Queued dep : deps)
+			dep.boostprio(prio);
+		}
 		Queued p = awaiting;
 		if(p != null)
 		    p.boostprio(prio);
@@ -460,6 +710,7 @@ public class Resource implements Serializable {
 	    private void done() {
 		synchronized(this) {
 		    done = true;
+		    deps.clear();
 		    for(Iterator<Queued> i = rdep.iterator(); i.hasNext();) {
 			Queued dq = i.next();
 			i.remove();
@@ -468,8 +719,12 @@ public class Resource implements Serializable {
 		    wq.wnotify();
 		}
 		if(res != null) {
-		    synchronized(cache) {
-			cache.put(name, res);
+		    /* Resources found through the parent pool are
+		     * charged to its cache only. */
+		    if(res.pool == Pool.this) {
+			synchronized(cache) {
+			    cache.put(name, res);
+			}
 		    }
 		    synchronized(queue) {
 			queued.remove(name);
@@ -496,38 +751,85 @@ public class Resource implements Serializable {
 	}
 
 	private void handle(Queued res) {
-	    for(ResSource src : sources) {
-		try {
-		    InputStream in = src.get(res.name);
+	    res.started = System.nanoTime();
+	    long cpu = LoadStats.cputime();
+	    long size = 0;
+	    srcs: for(ResSource src : sources) {
+		for(int restarts = 0; ; restarts++) {
 		    try {
-			Resource ret = new Resource(this, res.name, res.ver);
-			ret.source = src;
-			ret.load(in);
-			res.res = ret;
-			res.error = null;
+			CountingInputStream in = new CountingInputStream(src.get(res.name, res.ver));
+			try {
+			    Resource ret = new Resource(this, res.name, res.ver);
+			    ret.source = src;
+			    /* Resources loaded as dependencies of a
+			     * background load are background loads too. */
+			    background.set(res.bg ? Boolean.TRUE : null);
+			    try {
+				ret.load(in);
+			    } finally {
+				background.remove();
+			    }
+			    res.res = ret;
+			    res.error = null;
+			    size = ret.rawsize = in.pos;
+			    break srcs;
+			} finally {
+			    in.close();
+			}
+		    } catch(Throwable t) {
+			/* A resource that changed on the server while
+			 * being fetched is fetched again from the start. */
+			if((restarts < 1) && (Utils.hascause(t, HttpSource.ChangedException.class) != null))
+			    continue;
+			LoadException error;
+			if(t instanceof LoadException)
+			    error = (LoadException)t;
+			else
+			    error = new LoadException(String.format("Load error in resource %s(v%d), from %s", res.name, res.ver, src), t, null);
+			error.src = src;
+			if(res.error != null) {
+			    error.prev = res.error;
+			    error.addSuppressed(res.error);
+			}
+			res.error = error;
 			break;
-		    } finally {
-			in.close();
-		    }
-		} catch(Throwable t) {
-		    LoadException error;
-		    if(t instanceof LoadException)
-			error = (LoadException)t;
-		    else
-			error = new LoadException(String.format("Load error in resource %s(v%d), from %s", res.name, res.ver, src), t, null);
-		    error.src = src;
-		    if(res.error != null) {
-			error.prev = res.error;
-			error.addSuppressed(res.error);
 		    }
-		    res.error = error;
 		}
 	    }
+	    res.finished = System.nanoTime();
+	    if(res.res != null)
+		res.res.loadtime = res.finished - res.started;
+	    Tracer tr = tracer;
+	    if((tr != null) && (res.res != null))
+		tr.loaded(res.res, size);
+	    stats.record(res.name, res.started - res.qtime, res.finished - res.started, (cpu < 0) ? -1 : (LoadStats.cputime() - cpu));
 	    res.done();
 	}
 
+	/* Called while a resource is being loaded, with the resources
+	 * it is found to depend on, so that they can be queued at the
+	 * same priority as their dependent before it has finished
+	 * decoding its layers. */
+	private void depload(String parent, String name, int ver) {
+	    Queued pq;
+	    synchronized(queue) {
+		pq = queued.get(parent);
+	    }
+	    Named dep = load(name, ver, (pq == null) ? -5 : pq.prio);
+	    if((pq != null) && (dep instanceof Queued)) {
+		synchronized(pq) {
+		    if(!pq.done)
+			pq.deps.add((Queued)dep);
+		}
+	    }
+	}
+
 	public Named load(String name, int ver, int prio) {
 	    Queued ret;
+	    boolean bg = (background.get() != null);
+	    Tracer tr = tracer;
+	    if((tr != null) && !bg)
+		tr.requested(name, ver);
 	    synchronized(cache) {
 		Resource cur = cache.get(name);
 		if(cur != null) {
@@ -565,6 +867,7 @@ public class Resource implements Serializable {
 			queue.removeid(cq);
 		    }
 		    Queued nq = new Queued(name, ver, prio);
+		    nq.bg = bg;
 		    queued.put(name, nq);
 		    if(parent == null) {
 			queue.add(nq);
@@ -595,19 +898,49 @@ public class Resource implements Serializable {
 	}
 
 	public Named load(String name, int ver) {return(load(name, ver, -5));}
+
+	/* Loads a resource on behalf of some background activity
+	 * rather than of the user, so that neither it nor the
+	 * resources it depends on are reported to the tracer. */
+	public Named bgload(String name, int ver, int prio) {
+	    background.set(Boolean.TRUE);
+	    try {
+		return(load(name, ver, prio));
+	    } finally {
+		background.remove();
+	    }
+	}
 	public Named load(String name) {return(load(name, -1));}
 
 	public Indir<Resource> dynres(long id) {
 	    return(load(String.format("dyn/%x", id), 1));
 	}
 
+	/* Sizes the loader set after the measured share of time that
+	 * loaders spend blocked on I/O rather than decoding, so that
+	 * network-bound loading can use more threads than there are
+	 * CPUs, while never starting more loaders than there are
+	 * queued resources. */
+	public int tgtloaders(int qsz) {
+	    int ncpu = Runtime.getRuntime().availableProcessors();
+	    int want = (int)Math.ceil(ncpu / Math.max(1.0 - stats.iofrac(), 0.1));
+	    return(Math.min(qsz, Utils.clip(want, nloaders, Math.max(nloaders, maxloaders))));
+	}
+
+	public int nloaders() {
+	    synchronized(loaders) {
+		return(loaders.size());
+	    }
+	}
+
 	private void ckld() {
 	    int qsz;
 	    synchronized(queue) {
 		qsz = queue.size();
 	    }
+	    int tgt = tgtloaders(qsz);
 	    synchronized(loaders) {
-		while(loaders.size() < Math.min(nloaders, qsz)) {
+		while(loaders.size() < tgt) {
 		    final Loader n = new Loader();
 		    Thread th = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
 			    public Thread run() {
@@ -673,6 +1006,27 @@ public class Resource implements Serializable {
 	    return(ret);
 	}
 
+	public String cachestats() {
+	    synchronized(cache) {
+		return(cache.stats());
+	    }
+	}
+
+	/* Charges the cache for layers decoded since the resource was
+	 * added to it. */
+	void remeasure(Resource res) {
+	    synchronized(cache) {
+		if(cache.peek(res.name) == res)
+		    cache.remeasure(res.name);
+	    }
+	}
+
+	public void cachebudget(long budget) {
+	    synchronized(cache) {
+		cache.budget(budget);
+	    }
+	}
+
 	public int numloaded() {
 	    int ret = (parent == null)?0:parent.numloaded();
 	    synchronized(cache) {
@@ -736,6 +1090,73 @@ public class Resource implements Serializable {
 	}
     }
 
+    public static class LoadStats {
+	public static final int NRECENT = 256;
+	private static final java.lang.management.ThreadMXBean tmx = tmx();
+	private final String[] rname = new String[NRECENT];
+	private final long[] rwait = new long[NRECENT], rload = new long[NRECENT];
+	private int rpos = 0;
+	private long count, waitsum, loadsum;
+	private double iofrac = 0.5;
+
+	private static java.lang.management.ThreadMXBean tmx() {
+	    try {
+		java.lang.management.ThreadMXBean ret = java.lang.management.ManagementFactory.getThreadMXBean();
+		if(ret.isCurrentThreadCpuTimeSupported()) {
+		    if(!ret.isThreadCpuTimeEnabled())
+			ret.setThreadCpuTimeEnabled(true);
+		    return(ret);
+		}
+	    } catch(RuntimeException e) {
+	    }
+	    return(null);
+	}
+
+	/* Returns the CPU time used by the calling thread in
+	 * nanoseconds, or -1 if it cannot be measured. */
+	public static long cputime() {
+	    if(tmx == null)
+		return(-1);
+	    return(tmx.getCurrentThreadCpuTime());
+	}
+
+	public synchronized void record(String name, long wait, long load, long cpu) {
+	    rname[rpos] = name;
+	    rwait[rpos] = wait;
+	    rload[rpos] = load;
+	    rpos = (rpos + 1) % NRECENT;
+	    count++;
+	    waitsum += wait;
+	    loadsum += load;
+	    if((cpu >= 0) && (load > 0))
+		iofrac = (iofrac * 0.95) + (Utils.clip(1.0 - ((double)cpu / (double)load), 0.0, 1.0) * 0.05);
+	}
+
+	/* Fraction of loading time spent waiting for data rather than
+	 * decoding it, as a moving average over recent loads. */
+	public synchronized double iofrac() {
+	    return(iofrac);
+	}
+
+	public synchronized void dump(PrintWriter out, int nslow) {
+	    if(count == 0) {
+		out.println("No resources loaded");
+		return;
+	    }
+	    out.printf("%,d resources loaded, avg. %.1f ms queued, %.1f ms loading, %.0f%% I/O\n",
+		       count, (waitsum * 1e-6) / count, (loadsum * 1e-6) / count, iofrac * 100);
+	    Integer[] idx = new Integer[NRECENT];
+	    int n = 0;
+	    for(int i = 0; i < NRECENT; i++) {
+		if(rname[i] != null)
+		    idx[n++] = i;
+	    }
+	    Arrays.sort(idx, 0, n, (a, b) -> Long.compare(rwait[b] + rload[b], rwait[a] + rload[a]));
+	    for(int i = 0; i < Math.min(n, nslow); i++)
+		out.printf("  %s: %.1f ms queued, %.1f ms loading\n", rname[idx[i]], rwait[idx[i]] * 1e-6, rload[idx[i]] * 1e-6);
+	}
+    }
+
     private static Pool _local = null;
     public static Pool local() {
 	if(_local == null) {
@@ -774,19 +1195,7 @@ public class Resource implements Serializable {
     }
 
     public static void addurl(URL url) {
-	ResSource src = new HttpSource(url);
-	if(prscache != null) {
-	    class Caching extends TeeSource {
-		private final transient ResCache cache;
-		Caching(ResSource bk, ResCache cache) {super(bk); this.cache = cache;}
-
-		public OutputStream fork(String name) throws IOException {
-		    return(cache.store("res/" + name));
-		}
-	    }
-	    src = new Caching(src, prscache);
-	}
-	remote().add(src);
+	remote().add(new HttpSource(url, prscache));
     }
 
     @Deprecated
@@ -847,6 +1256,28 @@ public class Resource implements Serializable {
 
     public interface LayerFactory<T extends Layer> {
 	public T cons(Resource res, Message buf);
+
+	/* If non-null, construction of layers of this type may be
+	 * put off until they are first looked up, and they are
+	 * guaranteed to be instances of the returned class. */
+	public default Class<? extends T> deferred() {return(null);}
+    }
+
+    /* Marks layer types whose construction is expensive and free of
+     * side-effects, so that they can be decoded on demand. Note that
+     * errors in decoding such layers are then no longer reported by
+     * the loader when the resource is fetched, but as a LoadException
+     * thrown by the first layer lookup that reaches them, on whichever
+     * thread makes it, and by every such lookup after that. */
+    @Target(ElementType.TYPE)
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Lazy {
+    }
+
+    /* Extracts the resources a layer depends on from its raw data,
+     * without constructing it. */
+    public interface DepScanner {
+	public void scan(Message buf, BiConsumer<String, Integer> dep);
     }
 
     public static class LayerConstructor<T extends Layer> implements LayerFactory<T> {
@@ -862,6 +1293,10 @@ public class Resource implements Serializable {
 	    }
 	}
 	
+	public Class<? extends T> deferred() {
+	    return(cl.isAnnotationPresent(Lazy.class) ? cl : null);
+	}
+
 	public T cons(Resource res, Message buf) {
 	    try {
 		return(cons.newInstance(res, buf));
@@ -886,6 +1321,10 @@ public class Resource implements Serializable {
     public static <T extends Layer> void addltype(String name, Class<T> cl) {
 	addltype(name, new LayerConstructor<T>(cl));
     }
+
+    public static void adddepscanner(String name, DepScanner scanner) {
+	depscanners.put(name, scanner);
+    }
     
     @dolda.jglob.Discoverable
     @Target(ElementType.TYPE)
@@ -905,6 +1344,59 @@ public class Resource implements Serializable {
 		throw(new Error("Illegal resource layer class: " + cl));
 	    }
 	}
+	adddepscanner("action", (buf, dep) -> {
+		String pr = buf.string();
+		int pver = buf.uint16();
+		if(pr.length() > 0)
+		    dep.accept(pr, pver);
+	    });
+	adddepscanner("codeentry", (buf, dep) -> {
+		while(!buf.eom()) {
+		    int t = buf.uint8();
+		    if((t == 1) || (t == 3)) {
+			while(true) {
+			    String en = buf.string();
+			    buf.string();
+			    if(en.length() == 0)
+				break;
+			    if(t == 3)
+				buf.list();
+			}
+		    } else if(t == 2) {
+			while(true) {
+			    String ln = buf.string();
+			    if(ln.length() == 0)
+				break;
+			    dep.accept(ln, buf.uint16());
+			}
+		    } else {
+			break;
+		    }
+		}
+	    });
+	adddepscanner("tileset2", Tileset::scandeps);
+	Console.setscmd("rescache", (cons, args) -> {
+		if((args.length > 2) && args[1].equals("budget")) {
+		    remote().cachebudget(Long.parseLong(args[2]) << 20);
+		    local().cachebudget(Long.parseLong(args[2]) << 20);
+		}
+		cons.out.println("local: " + local().cachestats());
+		cons.out.println("remote: " + remote().cachestats());
+	    });
+	Console.setscmd("resload", (cons, args) -> {
+		Pool pool = remote();
+		cons.out.printf("%d loaders running, %d wanted, %d queued\n", pool.nloaders(), pool.tgtloaders(pool.qdepth()), pool.qdepth());
+		pool.stats.dump(cons.out, (args.length > 1) ? Integer.parseInt(args[1]) : 10);
+	    });
+	Console.setscmd("resnet", (cons, args) -> {
+		for(HttpPool.Host host : HttpSource.conns.hosts()) {
+		    cons.out.printf("%s: %d active, %d idle\n", host, host.active(), host.idle());
+		    cons.out.printf("  %d requests, %d connects, %d reused, %d not modified, %d errors\n",
+				    host.requests.get(), host.connects.get(), host.reused.get(), host.notmod.get(), host.errors.get());
+		    cons.out.printf("  %.1f MB, %.1f kB/s, %.0f ms latency, %.1f s waiting for connections\n",
+				    host.bytes.get() / 1048576.0, host.throughput() / 1024, host.latency() * 1000, host.waittime.get() * 1e-9);
+		}
+	    });
     }
 
     public interface IDLayer<T> {
@@ -942,7 +1434,19 @@ public class Resource implements Serializable {
 	}
     }
 
+    /* Common PNG images are decoded directly into the RGBA layout
+     * that textures use, without going through ImageIO. */
+    public static BufferedImage readimage(byte[] data) throws IOException {
+	if(Config.fastpng && PNGDecoder.png(data, 0, data.length)) {
+	    BufferedImage ret = PNGDecoder.read(data);
+	    if(ret != null)
+		return(ret);
+	}
+	return(readimage(new ByteArrayInputStream(data)));
+    }
+
     @LayerName("image")
+    @Lazy
     public class Image extends Layer implements Comparable<Image>, IDLayer<Integer> {
 	public transient BufferedImage img;
 	private transient BufferedImage scaled;
@@ -986,7 +1490,7 @@ public class Resource implements Serializable {
 	    }
 	    this.kvdata = kvdata.isEmpty() ? Collections.emptyMap() : kvdata;
 	    try {
-		img = readimage(new MessageInputStream(buf));
+		img = readimage(buf.bytes());
 	    } catch(IOException e) {
 		throw(new LoadException(e, Resource.this));
 	    }
@@ -1001,10 +1505,13 @@ public class Resource implements Serializable {
 		 * area. */
 		so = new Coord(Math.min(so.x, tsz.x - ssz.x), Math.min(so.y, sz.y - ssz.y));
 	    }
-	    scaled = PUtils.uiscale(img, ssz);
 	}
 
+	/* The UI-scaled image is only kept once explicitly asked
+	 * for; tex() otherwise derives it for each upload. */
 	public BufferedImage scaled() {
+	    if(scaled == null)
+		scaled = PUtils.uiscale(img, ssz);
 	    return(scaled);
 	}
 
@@ -1027,11 +1534,23 @@ public class Resource implements Serializable {
 	    if(tex == null) {
 		synchronized(this) {
 		    if(tex == null) {
-			tex = new TexI(scaled()) {
-				public String toString() {
-				    return("TexI(" + Resource.this.name + ", " + id + ")");
-				}
-			    };
+			if((scaled != null) || ssz.equals(sz)) {
+			    tex = new TexI(scaled()) {
+				    public String toString() {
+					return("TexI(" + Resource.this.name + ", " + id + ")");
+				    }
+				};
+			} else {
+			    tex = new TexI(ssz, true) {
+				    protected BufferedImage fill() {
+					return(PUtils.uiscale(img, ssz));
+				    }
+
+				    public String toString() {
+					return("TexI(" + Resource.this.name + ", " + id + ")");
+				    }
+				};
+			}
 		    }
 		}
 	    }
@@ -1585,6 +2104,9 @@ public class Resource implements Serializable {
 	public void init() {}
 
 	public haven.Audio.CS stream() {
+	    haven.Audio.CS pcm = PCMCache.stream(this);
+	    if(pcm != null)
+		return(pcm);
 	    try {
 		return(new haven.Audio.VorbisClip(new ByteArrayInputStream(coded)));
 	    } catch(IOException e) {
@@ -1648,18 +2170,97 @@ public class Resource implements Serializable {
 	}
     }
 
+    private class Deferred {
+	final LayerFactory<?> fac;
+	final Class<?> cl;
+	private byte[] data;
+	private Layer layer;
+	private LoadException error;
+
+	Deferred(LayerFactory<?> fac, Class<?> cl, byte[] data) {
+	    this.fac = fac;
+	    this.cl = cl;
+	    this.data = data;
+	}
+
+	Layer get() {
+	    boolean decoded = false;
+	    synchronized(this) {
+		if(error != null)
+		    throw(error);
+		if(layer == null) {
+		    Layer l;
+		    try {
+			l = fac.cons(Resource.this, new MessageBuf(data));
+			l.init();
+		    } catch(Loading e) {
+			throw(e);
+		    } catch(LoadException e) {
+			data = null;
+			throw(error = e);
+		    } catch(RuntimeException e) {
+			data = null;
+			throw(error = new LoadException(String.format("Deferred load error in %s layer of %s(v%d), from %s", cl.getSimpleName(), name, ver, source), e, Resource.this));
+		    }
+		    layer = l;
+		    data = null;
+		    decoded = true;
+		}
+	    }
+	    if(decoded && (pool != null))
+		pool.remeasure(Resource.this);
+	    return(layer);
+	}
+    }
+
+    /* Iterates over the layers that may be instances of cl, decoding
+     * any deferred ones along the way. */
+    private Iterator<Layer> liter(Class<?> cl) {
+	Object[] layers = this.layers;
+	return(new Iterator<Layer>() {
+		int i = 0;
+		Layer next = null;
+
+		public boolean hasNext() {
+		    while(next == null) {
+			if(i >= layers.length)
+			    return(false);
+			Object l = layers[i];
+			if(l instanceof Deferred) {
+			    Deferred d = (Deferred)l;
+			    if(cl.isAssignableFrom(d.cl))
+				layers[i] = next = d.get();
+			} else {
+			    next = (Layer)l;
+			}
+			i++;
+		    }
+		    return(true);
+		}
+
+		public Layer next() {
+		    if(!hasNext())
+			throw(new NoSuchElementException());
+		    Layer ret = next;
+		    next = null;
+		    return(ret);
+		}
+	    });
+    }
+
     public <L extends Layer> Collection<L> layers(final Class<L> cl) {
 	used = true;
 	return(new DefaultCollection<L>() {
 		public Iterator<L> iterator() {
-		    return(Utils.filter(layers.iterator(), cl));
+		    return(Utils.filter(liter(cl), cl));
 		}
 	    });
     }
 
     public <L extends Layer> L layer(Class<L> cl) {
 	used = true;
-	for(Layer l : layers) {
+	for(Iterator<Layer> i = liter(cl); i.hasNext();) {
+	    Layer l = i.next();
 	    if(cl.isInstance(l))
 		return(cl.cast(l));
 	}
@@ -1673,14 +2274,15 @@ public class Resource implements Serializable {
 	Predicate<? super L> dsel = sel;
 	return(new DefaultCollection<L>() {
 		public Iterator<L> iterator() {
-		    return(Utils.filter(Utils.filter(layers.iterator(), cl), dsel));
+		    return(Utils.filter(Utils.filter(liter(cl), cl), dsel));
 		}
 	    });
     }
 
     public <L> L layer(Class<L> cl, Predicate<? super L> sel) {
 	used = true;
-	for(Layer l : layers) {
+	for(Iterator<Layer> i = liter(cl); i.hasNext();) {
+	    Layer l = i.next();
 	    if(cl.isInstance(l)) {
 		L lc = cl.cast(l);
 		if((sel == null) || sel.test(lc))
@@ -1692,7 +2294,8 @@ public class Resource implements Serializable {
 
     public <I, L extends IDLayer<I>> L layer(Class<L> cl, I id) {
 	used = true;
-	for(Layer l : layers) {
+	for(Iterator<Layer> i = liter(cl); i.hasNext();) {
+	    Layer l = i.next();
 	    if(cl.isInstance(l)) {
 		L ll = cl.cast(l);
 		if(ll.layerid().equals(id))
@@ -1715,28 +2318,77 @@ public class Resource implements Serializable {
 	if(!Arrays.equals(sig, in.bytes(sig.length)))
 	    throw(new LoadException("Invalid res signature", this));
 	int ver = in.uint16();
-	List<Layer> layers = new LinkedList<Layer>();
 	if(this.ver == -1)
 	    this.ver = ver;
 	else if(ver != this.ver)
 	    throw(new LoadException("Wrong res version (" + ver + " != " + this.ver + ")", this));
+	/* Read all layer data before constructing any layers, so
+	 * that dependencies can be queued before the potentially
+	 * expensive decoding of the rest of the resource. */
+	List<Pair<LayerFactory<?>, byte[]>> raw = new ArrayList<>();
 	while(!in.eom()) {
-	    LayerFactory<?> lc = ltypes.get(in.string());
+	    String lnm = in.string();
+	    LayerFactory<?> lc = ltypes.get(lnm);
 	    int len = in.int32();
 	    if(lc == null) {
 		in.skip(len);
 		continue;
 	    }
-	    Message buf = new LimitMessage(in, len);
-	    layers.add(lc.cons(this, buf));
-	    buf.skip();
+	    byte[] data = in.bytes(len);
+	    DepScanner deps = depscanners.get(lnm);
+	    if(deps != null) {
+		try {
+		    deps.scan(new MessageBuf(data), (dnm, dver) -> pool.depload(name, dnm, dver));
+		} catch(RuntimeException e) {
+		    /* Leave it to the layer constructor to report. */
+		}
+	    }
+	    raw.add(new Pair<>(lc, data));
+	}
+	/* Layer types that allow it are kept in their encoded form
+	 * until first looked up, since e.g. many images are never
+	 * actually used by the client. */
+	Object[] layers = new Object[raw.size()];
+	for(int i = 0; i < layers.length; i++) {
+	    Pair<LayerFactory<?>, byte[]> ld = raw.get(i);
+	    Class<?> dcl = Config.lazylayers ? ld.a.deferred() : null;
+	    if(dcl != null) {
+		layers[i] = new Deferred(ld.a, dcl, ld.b);
+	    } else {
+		layers[i] = ld.a.cons(this, new MessageBuf(ld.b));
+	    }
 	}
 	this.layers = layers;
-	for(Layer l : layers)
-	    l.init();
+	for(Object l : layers) {
+	    if(l instanceof Layer)
+		((Layer)l).init();
+	}
 	used = false;
     }
 
+    /* Rough estimate of the heap retained by this resource: its
+     * encoded data, most of which layers keep in some form, plus
+     * those images that have been decoded. */
+    public long memsize() {
+	long sz = rawsize;
+	for(Object l : layers) {
+	    if(l instanceof Image) {
+		Image img = (Image)l;
+		if(img.img != null)
+		    sz += (long)img.img.getWidth() * img.img.getHeight() * 4;
+		if(img.scaled != null)
+		    sz += (long)img.scaled.getWidth() * img.scaled.getHeight() * 4;
+	    }
+	}
+	return(sz);
+    }
+
+    /* Cost of reloading this resource, in milliseconds of loader
+     * time, for use by cache eviction. */
+    public double loadcost() {
+	return(Math.max(loadtime * 1e-6, 0.1));
+    }
+
     private transient Named indir = null;
     public Named indir() {
 	if(indir != null)
@@ -69,11 +69,23 @@ public class RichText extends Text {
 	}
     }
 
-    public static class Part {
+    public static class Part implements Cloneable {
 	public Part next = null;
 	public int x, y;
 	public RState rs;
 	
+	/* Copies this part alone, sharing its prepared state, so that a
+	 * cached chain can be laid out or handed out again. */
+	public Part copy() {
+	    try {
+		Part ret = (Part)clone();
+		ret.next = null;
+		return(ret);
+	    } catch(CloneNotSupportedException e) {
+		throw(new AssertionError(e));
+	    }
+	}
+	
 	public void append(Part p) {
 	    if(next == null)
 		next = p;
@@ -233,20 +245,34 @@ public class RichText extends Text {
 	    return(tm);
 	}
 
+	/* Measurers are shared between the parts split from the same
+	 * string and between copies of cached parts, but are not
+	 * thread-safe themselves. */
+	private float advance0(int from, int to) {
+	    TextMeasurer tm = tm();
+	    synchronized(tm) {
+		return(tm.getAdvanceBetween(from, to));
+	    }
+	}
+
 	public TextLayout tl() {
-	    if(tl == null)
-		tl = tm().getLayout(start, end);
+	    if(tl == null) {
+		TextMeasurer tm = tm();
+		synchronized(tm) {
+		    tl = tm.getLayout(start, end);
+		}
+	    }
 	    return(tl);
 	}
 
 	public float advance(int from, int to) {
 	    if(from == to) return(0);
-	    return(tm().getAdvanceBetween(start + from, start + to));
+	    return(advance0(start + from, start + to));
 	}
 
 	public int width() {
 	    if(start == end) return(0);
-	    return((int)tm().getAdvanceBetween(start, end));
+	    return((int)advance0(start, end));
 	}
 	
 	public int height() {
@@ -265,6 +291,7 @@ public class RichText extends Text {
 	    p1.next = p2;
 	    p2.next = next;
 	    p1.rs = p2.rs = rs;
+	    p1.tm = p2.tm = tm;
 	    return(p1);
 	}
 
@@ -276,7 +303,7 @@ public class RichText extends Text {
 		if(t == l)
 		    tw = 0;
 		else
-		    tw = (int)tm().getAdvanceBetween(start, t);
+		    tw = (int)advance0(start, t);
 		if(tw > w) {
 		    r = t;
 		} else {
@@ -729,17 +756,127 @@ public class RichText extends Text {
 	    return(sz);
 	}
 
-	public RichText render(String text, int width, Object... extra) {
+	private Part parse(String text, Object... extra) {
 	    Map<? extends Attribute, ?> extram = null;
 	    if(extra.length > 0) {
 		extram = fillattrs(extra);
 	    }
 	    Part fp = parser.parse(text, extram);
 	    fp.prepare(rs);
-	    fp = layout(fp, width);
+	    return(fp);
+	}
+
+	private static Part copychain(Part fp) {
+	    Part ret = null, lp = null;
+	    for(Part p = fp; p != null; p = p.next) {
+		Part c = p.copy();
+		if(lp == null)
+		    ret = c;
+		else
+		    lp.next = c;
+		lp = c;
+	    }
+	    return(ret);
+	}
+
+	private static class Key {
+	    final Foundry fnd;
+	    final String text;
+	    final Object[] extra;
+	    final int width;
+	    final int hash;
+
+	    Key(Foundry fnd, String text, Object[] extra, int width) {
+		this.fnd = fnd;
+		this.text = text;
+		this.extra = extra;
+		this.width = width;
+		this.hash = Objects.hash(System.identityHashCode(fnd), text, Arrays.hashCode(extra), width);
+	    }
+
+	    public int hashCode() {
+		return(hash);
+	    }
+
+	    public boolean equals(Object o) {
+		if(!(o instanceof Key))
+		    return(false);
+		Key that = (Key)o;
+		return((this.fnd == that.fnd) && (this.width == that.width) &&
+		       this.text.equals(that.text) && Arrays.equals(this.extra, that.extra));
+	    }
+	}
+
+	/* Shared by all foundries: parsed part chains, keyed by markup
+	 * alone, and their layouts, keyed by markup and width. Entries
+	 * are never handed out themselves, only copies of them, since
+	 * layout moves and splits the parts it is given. */
+	private static final Map<Key, Part> parsed = new LinkedHashMap<Key, Part>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, Part> eldest) {
+		    return(size() > Config.richcache);
+		}
+	    };
+	private static final Map<Key, Part> laid = new LinkedHashMap<Key, Part>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, Part> eldest) {
+		    return(size() > Config.richcache);
+		}
+	    };
+	private static int hits, phits, misses;
+
+	private Part layout(String text, int width, Object... extra) {
+	    if(Config.richcache <= 0)
+		return(layout(parse(text, extra), width));
+	    Key lk = new Key(this, text, extra, width);
+	    Part ret;
+	    synchronized(laid) {
+		if((ret = laid.get(lk)) != null)
+		    hits++;
+	    }
+	    if(ret == null) {
+		Key pk = new Key(this, text, extra, -1);
+		Part fp;
+		synchronized(laid) {
+		    if((fp = parsed.get(pk)) != null)
+			phits++;
+		}
+		if(fp == null) {
+		    fp = parse(text, extra);
+		    synchronized(laid) {
+			parsed.put(pk, fp);
+		    }
+		}
+		ret = layout(copychain(fp), width);
+		synchronized(laid) {
+		    laid.put(lk, ret);
+		    misses++;
+		}
+	    }
+	    return(copychain(ret));
+	}
+
+	public static String stats() {
+	    synchronized(laid) {
+		return(String.format("%d layouts, %d parsed, %d hits, %d parse hits, %d misses",
+				     laid.size(), parsed.size(), hits, phits, misses));
+	    }
+	}
+
+	private static Coord imgsz(Part fp) {
 	    Coord sz = bounds(fp);
 	    if(sz.x < 1) sz = sz.add(1, 0);
 	    if(sz.y < 1) sz = sz.add(0, 1);
+	    return(sz);
+	}
+
+	/* Lays out the text as render() would, but without rasterizing
+	 * it, and returns the size of the image render() would make. */
+	public Coord measure(String text, int width, Object... extra) {
+	    return(imgsz(layout(text, width, extra)));
+	}
+
+	public RichText render(String text, int width, Object... extra) {
+	    Part fp = layout(text, width, extra);
+	    Coord sz = imgsz(fp);
 	    BufferedImage img = TexI.mkbuf(sz);
 	    Graphics2D g = img.createGraphics();
 	    if(aa)
@@ -757,6 +894,12 @@ public class RichText extends Text {
     public static RichText render(String text, int width, Object... extra) {
 	return(stdf.render(text, width, extra));
     }
+
+    static {
+	Console.setscmd("richcache", (cons, args) -> {
+		cons.out.println(Foundry.stats());
+	    });
+    }
     
     public static void main(String[] args) throws Exception {
 	String cmd = args[0].intern();
@@ -171,6 +171,8 @@ public class SkelSprite extends Sprite implements Sprite.CUpd, Skeleton.HasPose
     }
     
     private void rebuild() {
+	if((ipold <= 0) && pose.share(mods))
+	    return;
 	pose.reset();
 	for(PoseMod m : mods)
 	    m.apply(pose);
@@ -28,6 +28,7 @@ package haven;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.atomic.AtomicLong;
 import haven.render.*;
 
 public class Skeleton {
@@ -256,6 +257,37 @@ public class Skeleton {
 		lpos[i][2] = lpos[i][2] + ((o.lpos[i][2] - lpos[i][2]) * d);
 	    }
 	}
+
+	/* Takes on the complete state of another, already built, pose
+	 * of the same skeleton. */
+	public void set(Pose o) {
+	    for(int i = 0; i < blist.length; i++) {
+		vset(lpos[i], o.lpos[i]);
+		qset(lrot[i], o.lrot[i]);
+		vset(gpos[i], o.gpos[i]);
+		qset(grot[i], o.grot[i]);
+	    }
+	    seq++;
+	}
+
+	/* Builds this pose from the given mods, as a reset, apply and
+	 * gbuild would, but by copying a shared pose built from the
+	 * same animation samples if there is one. Returns false,
+	 * without doing anything, if the mods cannot be shared. Only
+	 * plain track mods are shared, as subclasses may apply more
+	 * than their samples. */
+	public boolean share(PoseMod[] mods) {
+	    if((from != bindpose) || (posequant <= 0) || (mods.length == 0))
+		return(false);
+	    Sample[] key = new Sample[mods.length];
+	    for(int i = 0; i < mods.length; i++) {
+		Class<?> cl = mods[i].getClass();
+		if(((cl != TrackMod.class) && (cl != ResPose.ResMod.class)) || ((key[i] = ((TrackMod)mods[i]).cur) == null))
+		    return(false);
+	    }
+	    set(sharedpose(key, mods));
+	    return(true);
+	}
 	
 	/* XXX: It seems the return type of these should be something more generic. */
 	public Supplier<Pipe.Op> bonetrans(int bone) {
@@ -608,21 +640,228 @@ public class Skeleton {
 	public void init() {}
     }
     
+    /* Animation samples at quantized times, shared between all
+     * instances of the same animation on the same skeleton, so that a
+     * herd of animals playing the same animation only evaluate its
+     * keyframes once per distinct phase. */
+    public static volatile float posequant = (float)Config.posequant;
+    public static int posecache = Config.posecache;
+    private static final AtomicLong shits = new AtomicLong(), smisses = new AtomicLong();
+    private static final AtomicLong phits = new AtomicLong(), pmisses = new AtomicLong();
+
+    public static class Sample {
+	public final float[][] lpos, lrot;
+
+	private Sample(float[][] lpos, float[][] lrot) {
+	    this.lpos = lpos;
+	    this.lrot = lrot;
+	}
+    }
+
+    private static <K, V> Map<K, V> lru() {
+	return(new LinkedHashMap<K, V>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<K, V> e) {
+		    return(size() > posecache);
+		}
+	    });
+    }
+
+    public class TrackSet {
+	public final Track[] tracks;
+	public final float len;
+	private final Map<Integer, Sample> samples = lru();
+	private float squant;
+
+	public TrackSet(Track[] tracks, float len) {
+	    this.tracks = tracks;
+	    this.len = len;
+	}
+
+	public Sample sample(float time) {
+	    float quant = posequant;
+	    Integer q = Math.round(time / quant);
+	    Sample ret;
+	    synchronized(samples) {
+		if(quant != squant) {
+		    samples.clear();
+		    squant = quant;
+		}
+		ret = samples.get(q);
+	    }
+	    if(ret != null) {
+		shits.incrementAndGet();
+		return(ret);
+	    }
+	    float[][] lpos = new float[blist.length][3], lrot = new float[blist.length][4];
+	    for(int i = 0; i < blist.length; i++)
+		lrot[i][0] = 1;
+	    Skeleton.sample(this, tracks, len, Math.min(q * quant, len), lpos, lrot);
+	    ret = new Sample(lpos, lrot);
+	    synchronized(samples) {
+		if(quant != squant)
+		    return(ret);
+		Sample p = samples.putIfAbsent(q, ret);
+		if(p != null)
+		    return(p);
+	    }
+	    smisses.incrementAndGet();
+	    return(ret);
+	}
+    }
+
+    private static class PoseKey {
+	final Sample[] samples;
+	final int hash;
+
+	PoseKey(Sample[] samples) {
+	    this.samples = samples;
+	    int h = 0;
+	    for(Sample s : samples)
+		h = (h * 31) + System.identityHashCode(s);
+	    this.hash = h;
+	}
+
+	public int hashCode() {
+	    return(hash);
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof PoseKey))
+		return(false);
+	    Sample[] a = this.samples, b = ((PoseKey)o).samples;
+	    if(a.length != b.length)
+		return(false);
+	    for(int i = 0; i < a.length; i++) {
+		if(a[i] != b[i])
+		    return(false);
+	    }
+	    return(true);
+	}
+    }
+
+    private final Map<PoseKey, Pose> sposes = lru();
+    private final Map<ResPose, TrackSet> tracksets = new WeakHashMap<>();
+
+    public TrackSet trackset(ResPose res) {
+	synchronized(tracksets) {
+	    TrackSet ret = tracksets.get(res);
+	    if(ret == null)
+		tracksets.put(res, ret = new TrackSet(res.iaIaCthulhuFhtagn(this), res.len));
+	    return(ret);
+	}
+    }
+
+    private Pose sharedpose(Sample[] samples, PoseMod[] mods) {
+	PoseKey key = new PoseKey(samples);
+	Pose ret;
+	synchronized(sposes) {
+	    ret = sposes.get(key);
+	}
+	if(ret != null) {
+	    phits.incrementAndGet();
+	    return(ret);
+	}
+	ret = new Pose();
+	ret.from = bindpose;
+	ret.reset();
+	for(PoseMod m : mods)
+	    m.apply(ret);
+	ret.gbuild();
+	synchronized(sposes) {
+	    Pose p = sposes.putIfAbsent(key, ret);
+	    if(p != null)
+		return(p);
+	}
+	pmisses.incrementAndGet();
+	return(ret);
+    }
+
+    /* Evaluates the given tracks at some time into lpos and lrot,
+     * which are expected to be reset beforehand. */
+    private static void sample(Object owner, Track[] tracks, float len, float time, float[][] lpos, float[][] lrot) {
+	for(int i = 0; i < tracks.length; i++) {
+	    Track t = tracks[i];
+	    if((t == null) || (t.frames.length == 0))
+		continue;
+	    if(t.frames.length == 1) {
+		qset(lrot[i], t.frames[0].rot);
+		vset(lpos[i], t.frames[0].trans);
+	    } else {
+		Track.Frame cf, nf;
+		float ct, nt;
+		int l = 0, r = t.frames.length;
+		int n = 0;
+		while(true) {
+		    if(++n > 100)
+			throw(new RuntimeException("Cannot find track frame in " + owner + " for time " + time));
+		    /* c should never be able to be >= frames.length */
+		    int c = l + ((r - l) >> 1);
+		    ct = t.frames[c].time;
+		    nt = (c < t.frames.length - 1)?(t.frames[c + 1].time):len;
+		    if(ct > time) {
+			r = c;
+		    } else if(nt < time) {
+			l = c + 1;
+		    } else {
+			cf = t.frames[c];
+			nf = t.frames[(c + 1) % t.frames.length];
+			break;
+		    }
+		}
+		float d;
+		if(nt == ct)
+		    d = 0;
+		else
+		    d = (time - ct) / (nt - ct);
+		qqslerp(lrot[i], cf.rot, nf.rot, d);
+		lpos[i][0] = cf.trans[0] + ((nf.trans[0] - cf.trans[0]) * d);
+		lpos[i][1] = cf.trans[1] + ((nf.trans[1] - cf.trans[1]) * d);
+		lpos[i][2] = cf.trans[2] + ((nf.trans[2] - cf.trans[2]) * d);
+	    }
+	}
+    }
+
+    public static String posestats() {
+	return(String.format("quantum %.4f s, samples %d hits, %d misses, poses %d hits, %d misses",
+			     posequant, shits.get(), smisses.get(), phits.get(), pmisses.get()));
+    }
+
+    static {
+	Console.setscmd("poses", (cons, args) -> {
+		if(args.length < 2) {
+		    cons.out.println(posestats());
+		} else {
+		    posequant = Float.parseFloat(args[1]);
+		}
+	    });
+    }
+    
     public class TrackMod extends PoseMod {
 	public final Track[] tracks;
 	public final FxTrack[] effects;
 	private final Collection<FxTrack.EventListener> cbl = new ArrayList<FxTrack.EventListener>(0);
 	public final float len;
 	public final WrapMode mode;
+	public final TrackSet shared;
 	private final boolean stat;
 	private boolean done;
+	private Sample cur = null;
 	public float time = 0.0f;
 	protected boolean speedmod = false;
 	protected double nspeed = 0.0;
 	private boolean back = false;
 	
+	public TrackMod(ModOwner owner, TrackSet shared, FxTrack[] effects, WrapMode mode) {
+	    this(owner, shared, shared.tracks, effects, shared.len, mode);
+	}
+
 	public TrackMod(ModOwner owner, Track[] tracks, FxTrack[] effects, float len, WrapMode mode) {
+	    this(owner, null, tracks, effects, len, mode);
+	}
+
+	private TrackMod(ModOwner owner, TrackSet shared, Track[] tracks, FxTrack[] effects, float len, WrapMode mode) {
 	    super(owner);
+	    this.shared = shared;
 	    this.tracks = tracks;
 	    this.effects = effects;
 	    this.len = len;
@@ -646,47 +885,17 @@ public class Skeleton {
 	public void aupdate(float time) {
 	    if(time > len)
 		time = len;
-	    reset();
-	    for(int i = 0; i < tracks.length; i++) {
-		Track t = tracks[i];
-		if((t == null) || (t.frames.length == 0))
-		    continue;
-		if(t.frames.length == 1) {
-		    qset(lrot[i], t.frames[0].rot);
-		    vset(lpos[i], t.frames[0].trans);
-		} else {
-		    Track.Frame cf, nf;
-		    float ct, nt;
-		    int l = 0, r = t.frames.length;
-		    int n = 0;
-		    while(true) {
-			if(++n > 100)
-			    throw(new RuntimeException("Cannot find track frame in " + this + " for time " + time));
-			/* c should never be able to be >= frames.length */
-			int c = l + ((r - l) >> 1);
-			ct = t.frames[c].time;
-			nt = (c < t.frames.length - 1)?(t.frames[c + 1].time):len;
-			if(ct > time) {
-			    r = c;
-			} else if(nt < time) {
-			    l = c + 1;
-			} else {
-			    cf = t.frames[c];
-			    nf = t.frames[(c + 1) % t.frames.length];
-			    break;
-			}
-		    }
-		    float d;
-		    if(nt == ct)
-			d = 0;
-		    else
-			d = (time - ct) / (nt - ct);
-		    qqslerp(lrot[i], cf.rot, nf.rot, d);
-		    lpos[i][0] = cf.trans[0] + ((nf.trans[0] - cf.trans[0]) * d);
-		    lpos[i][1] = cf.trans[1] + ((nf.trans[1] - cf.trans[1]) * d);
-		    lpos[i][2] = cf.trans[2] + ((nf.trans[2] - cf.trans[2]) * d);
+	    if((shared != null) && (posequant > 0)) {
+		cur = shared.sample(time);
+		for(int i = 0; i < blist.length; i++) {
+		    vset(lpos[i], cur.lpos[i]);
+		    qset(lrot[i], cur.lrot[i]);
 		}
+		return;
 	    }
+	    cur = null;
+	    reset();
+	    sample(this, tracks, len, time, lpos, lrot);
 	}
 	
 	public void listen(FxTrack.EventListener l) {
@@ -1000,7 +1209,7 @@ public class Skeleton {
 
 	public class ResMod extends TrackMod {
 	    public ResMod(ModOwner owner, Skeleton skel, WrapMode mode) {
-		skel.super(owner, iaIaCthulhuFhtagn(skel), ResPose.this.effects, ResPose.this.len, mode);
+		skel.super(owner, skel.trackset(ResPose.this), ResPose.this.effects, mode);
 		if(ResPose.this.nspeed > 0) {
 		    this.speedmod = true;
 		    this.nspeed = ResPose.this.nspeed;
@@ -53,6 +53,28 @@ public class TexI implements Tex {
 	this(back, true);
     }
 
+    /* For subclasses that produce their image only when it is
+     * needed for uploading, rather than keeping it around. */
+    protected TexI(Coord sz, boolean round) {
+	this.back = null;
+	this.sz = sz;
+	if(round)
+	    this.tdim = new Coord(Tex.nextp2(sz.x), Tex.nextp2(sz.y));
+	else
+	    this.tdim = sz;
+    }
+
+    protected BufferedImage fill() {
+	return(back);
+    }
+
+    /* The image of this texture, for callers that read its pixels.
+     * Textures without a backing image produce a new one for every
+     * call, so callers should keep the result. */
+    public BufferedImage img() {
+	return((back != null) ? back : fill());
+    }
+
     public Coord sz() {return(sz);}
 
     private ColorTex st = null;
@@ -66,8 +88,13 @@ public class TexI implements Tex {
 						      if(img.level != 0)
 							  return(null);
 						      FillBuffer buf = env.fillbuf(img);
+						      BufferedImage back = fill();
 						      if(Utils.eq(tdim, sz) && Utils.eq(detectfmt(back), img.tex.efmt)) {
 							  buf.pull(ByteBuffer.wrap(((DataBufferByte)back.getRaster().getDataBuffer()).getData()));
+						      } else if(Utils.eq(detectfmt(back), img.tex.efmt) && (img.tex.efmt.nc == 4) && packed(back)) {
+							  /* Only padding is needed, so copy the rows
+							   * rather than drawing with Java2D. */
+							  pad(((DataBufferByte)back.getRaster().getDataBuffer()).getData(), buf.push());
 						      } else {
 							  buf.pull(ByteBuffer.wrap(convert(back, tdim)));
 						      }
@@ -169,6 +196,31 @@ public class TexI implements Tex {
 	}
 	return(null);
     }
+
+    private static boolean packed(BufferedImage img) {
+	java.awt.image.DataBuffer db = img.getRaster().getDataBuffer();
+	return((db instanceof DataBufferByte) && (db.getNumBanks() == 1) && (db.getOffset() == 0) &&
+	       (((DataBufferByte)db).getData().length == img.getWidth() * img.getHeight() * 4) &&
+	       (img.getRaster().getSampleModelTranslateX() == 0) && (img.getRaster().getSampleModelTranslateY() == 0));
+    }
+
+    private static final byte[] zero = new byte[4096];
+    private void pad(byte[] src, ByteBuffer dst) {
+	int rl = sz.x * 4, tl = tdim.x * 4;
+	for(int y = 0; y < tdim.y; y++) {
+	    int n = 0;
+	    if(y < sz.y) {
+		dst.put(src, y * rl, rl);
+		n = rl;
+	    }
+	    while(n < tl) {
+		int z = Math.min(tl - n, zero.length);
+		dst.put(zero, 0, z);
+		n += z;
+	    }
+	}
+    }
+
     public static BufferedImage mkbuf(Coord sz) {
 	WritableRaster buf = Raster.createInterleavedRaster(java.awt.image.DataBuffer.TYPE_BYTE, sz.x, sz.y, 4, null);
 	BufferedImage tgt = new BufferedImage(glcm, buf, false, null);
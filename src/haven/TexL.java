@@ -29,6 +29,7 @@ package haven;
 import java.util.*;
 import java.awt.image.*;
 import java.nio.ByteBuffer;
+import java.lang.ref.SoftReference;
 import haven.render.*;
 import haven.render.DataBuffer;
 import haven.render.Texture2D.Sampler2D;
@@ -70,61 +71,79 @@ public abstract class TexL extends TexRender {
 	this.mipmap = mipmap;
     }
 
+    /* Decodes the image and builds its mip chain, which may be
+     * done ahead of time by premip(). */
+    private Mipmapper.Chain pixels() {
+	Texture2D tex = this.img.tex;
+	BufferedImage img = fill();
+	if(!Utils.imgsz(img).equals(tex.sz()))
+	    throw(new RuntimeException("Generated TexL image from " + this + " does not match declared size"));
+	VectorFormat ifmt = TexI.detectfmt(img);
+	/* XXXRENDER
+	if((ifmt != null) && (ifmt.nc == 3)) {
+	    byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+	    data.add(pixels);
+	    if(mipmap != null) {
+		Coord msz = dim;
+		Mipmapper.Mipmapper3 alg = (Mipmapper.Mipmapper3)mipmap;
+		while((msz.x > 1) || (msz.y > 1)) {
+		    pixels = alg.gen3(msz, pixels, ifmt);
+		    data.add(pixels);
+		    msz = Mipmapper.nextsz(msz);
+		}
+	    }
+	} else {
+	*/
+	byte[] pixels;
+	if((ifmt != null) && (ifmt.nc == 4) && (ifmt.cf == NumberFormat.UNORM8))
+	    pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+	else
+	    pixels = TexI.convert(img, tex.sz());
+	return(Mipmapper.chain(mipmap, tex.sz(), pixels));
+    }
+
+    /* Softly referenced, since textures thus prepared may well go
+     * unused for a long time, if ever. */
+    private SoftReference<Mipmapper.Chain> ahead = null;
+
+    /* Prepares the pixel data on the calling thread, such as a
+     * resource loader, so that it need not be done on first use. */
+    public void premip() {
+	Mipmapper.Chain chain = pixels();
+	synchronized(this) {
+	    ahead = new SoftReference<>(chain);
+	}
+    }
+
+    private Mipmapper.Chain takeahead() {
+	synchronized(this) {
+	    if(ahead == null)
+		return(null);
+	    Mipmapper.Chain ret = ahead.get();
+	    ahead = null;
+	    return(ret);
+	}
+    }
+
     private class Prepared {
 	final Environment env;
 	FillBuffer[] data;
 
-	private FillBuffer filldata(DataBuffer tgt, byte[] pixels) {
+	private FillBuffer filldata(DataBuffer tgt, ByteBuffer pixels) {
 	    FillBuffer buf = env.fillbuf(tgt);
-	    buf.pull(ByteBuffer.wrap(pixels));
+	    buf.pull(pixels);
 	    return(buf);
 	}
 
 	private Prepared(Environment env) {
 	    this.env = env;
 	    Texture2D tex = TexL.this.img.tex;
-	    BufferedImage img = fill();
-	    if(!Utils.imgsz(img).equals(tex.sz()))
-		throw(new RuntimeException("Generated TexL image from " + TexL.this + " does not match declared size"));
-	    VectorFormat ifmt = TexI.detectfmt(img);
+	    Mipmapper.Chain chain = takeahead();
+	    if(chain == null)
+		chain = pixels();
 	    FillBuffer[] data = new FillBuffer[tex.images().size()];
-	    if((ifmt != null) && (ifmt.nc == 3)) {
-		if((mipmap != null) && !(mipmap instanceof Mipmapper.Mipmapper3))
-		    ifmt = null;
-	    }
-	    /* XXXRENDER
-	    if((ifmt != null) && (ifmt.nc == 3)) {
-		byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
-		data.add(pixels);
-		if(mipmap != null) {
-		    Coord msz = dim;
-		    Mipmapper.Mipmapper3 alg = (Mipmapper.Mipmapper3)mipmap;
-		    while((msz.x > 1) || (msz.y > 1)) {
-			pixels = alg.gen3(msz, pixels, ifmt);
-			data.add(pixels);
-			msz = Mipmapper.nextsz(msz);
-		    }
-		}
-	    } else {
-	    */
-	    byte[] pixels;
-	    if((ifmt != null) && (ifmt.nc == 4) && (ifmt.cf == NumberFormat.UNORM8)) {
-		pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
-	    } else {
-		pixels = TexI.convert(img, tex.sz());
-		ifmt = new VectorFormat(4, NumberFormat.UNORM8);
-	    }
-	    data[0] = filldata(tex.image(0), pixels);
-	    if(mipmap != null) {
-		Coord msz = tex.sz();
-		int level = 1;
-		while((msz.x > 1) || (msz.y > 1)) {
-		    pixels = mipmap.gen4(msz, pixels, ifmt);
-		    data[level] = filldata(tex.image(level), pixels);
-		    msz = Mipmapper.nextsz(msz);
-		    level++;
-		}
-	    }
+	    for(int level = 0; level < chain.levels(); level++)
+		data[level] = filldata(tex.image(level), chain.level(level));
 	    this.data = data;
 	}
 
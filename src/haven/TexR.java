@@ -124,7 +124,7 @@ public class TexR extends Resource.Layer implements Resource.IDLayer<Integer> {
 
 	private BufferedImage rd(final byte[] data) {
 	    try {
-		return(Resource.readimage(new ByteArrayInputStream(data)));
+		return(Resource.readimage(data));
 	    } catch(IOException e) {
 		throw(new RuntimeException("Invalid image data in " + getres().name, e));
 	    }
@@ -171,5 +171,13 @@ public class TexR extends Resource.Layer implements Resource.IDLayer<Integer> {
 	return(id);
     }
 
-    public void init() {}
+    public void init() {
+	if(Mipmapper.ahead && (tex.mipmap != null)) {
+	    try {
+		tex.premip();
+	    } catch(RuntimeException e) {
+		/* Leave it to be reported when the texture is used. */
+	    }
+	}
+    }
 }
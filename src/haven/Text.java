@@ -157,6 +157,12 @@ public class Text {
 	    return(this);
 	}
 
+	/* For text that changes too often to be worth rendering into
+	 * textures of its own. */
+	public GlyphAtlas atlas() {
+	    return(GlyphAtlas.get(font, aa));
+	}
+
 	public int height() {
 	    /* XXX? The only font which seems to have leading > 0 is
 	     * the Moderne Fraktur font, for which the leading is
@@ -332,7 +338,14 @@ public class Text {
 	    tex = new TexI(img);
 	return(tex);
     }
-    
+
+    public void dispose() {
+	if(tex != null) {
+	    tex.dispose();
+	    tex = null;
+	}
+    }
+
     public static void main(String[] args) throws Exception {
 	String cmd = args[0].intern();
 	if(cmd == "render") {
@@ -0,0 +1,227 @@
+package haven;
+
+import java.awt.Color;
+import java.util.*;
+
+/* Shared cache of rendered text lines and their textures, for
+ * labels that are drawn every frame but rarely change, such as item
+ * numbers, meters and gob info. Entries in use are reference counted
+ * and never evicted; entries no longer in use are kept in LRU order
+ * until their total image size exceeds the limit. */
+public class TextCache {
+    public static final TextCache global = new TextCache((long)Config.textcache << 10);
+    public long limit;
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final Map<Key, Entry> idle = new LinkedHashMap<>();
+    private long idlesz = 0;
+    private int hits, misses, evicted;
+
+    public TextCache(long limit) {
+	this.limit = limit;
+    }
+
+    private static class Key {
+	final Text.Foundry fnd;
+	final String text;
+	final Color col, stroke;
+	final int hash;
+
+	Key(Text.Foundry fnd, String text, Color col, Color stroke) {
+	    this.fnd = fnd;
+	    this.text = text;
+	    this.col = col;
+	    this.stroke = stroke;
+	    this.hash = Objects.hash(System.identityHashCode(fnd), text, col, stroke);
+	}
+
+	public int hashCode() {
+	    return(hash);
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof Key))
+		return(false);
+	    Key that = (Key)o;
+	    return((this.fnd == that.fnd) && this.text.equals(that.text) &&
+		   Utils.eq(this.col, that.col) && Utils.eq(this.stroke, that.stroke));
+	}
+    }
+
+    private class Entry {
+	final Key key;
+	final Text.Line line;
+	final long sz;
+	int refs = 0;
+	Tex tex = null;
+
+	Entry(Key key, Text.Line line) {
+	    this.key = key;
+	    this.line = line;
+	    Coord isz = line.sz();
+	    this.sz = (long)isz.x * isz.y * 4;
+	}
+
+	synchronized Tex tex() {
+	    if(tex == null)
+		tex = new TexI(line.img);
+	    return(tex);
+	}
+
+	synchronized void dispose() {
+	    if(tex != null) {
+		tex.dispose();
+		tex = null;
+	    }
+	}
+    }
+
+    public class Ref implements Disposable {
+	private final Entry e;
+	private boolean released = false;
+	public final Text.Line line;
+
+	private Ref(Entry e) {
+	    this.e = e;
+	    this.line = e.line;
+	}
+
+	/* The texture belongs to the cache and must not be disposed
+	 * by the caller. */
+	public Tex tex() {
+	    return(e.tex());
+	}
+
+	public void dispose() {
+	    synchronized(TextCache.this) {
+		if(released)
+		    return;
+		released = true;
+		release(e);
+	    }
+	}
+    }
+
+    /* Holds the single label of some widget, keeping the reference
+     * across frames as long as the text stays the same. */
+    public static class Slot implements Disposable {
+	public final TextCache cache;
+	private Ref cur = null;
+
+	public Slot(TextCache cache) {
+	    this.cache = cache;
+	}
+
+	public Slot() {
+	    this(global);
+	}
+
+	public Ref get(Text.Foundry fnd, String text, Color col, Color stroke) {
+	    Ref cur = this.cur;
+	    if((cur != null) && (cur.e.key.fnd == fnd) && cur.e.key.text.equals(text) &&
+	       Utils.eq(cur.e.key.col, col) && Utils.eq(cur.e.key.stroke, stroke))
+		return(cur);
+	    Ref nw = cache.get(fnd, text, col, stroke);
+	    if(cur != null)
+		cur.dispose();
+	    return(this.cur = nw);
+	}
+
+	public Tex tex(Text.Foundry fnd, String text, Color col, Color stroke) {
+	    return(get(fnd, text, col, stroke).tex());
+	}
+
+	public void dispose() {
+	    if(cur != null) {
+		cur.dispose();
+		cur = null;
+	    }
+	}
+    }
+
+    private static Text.Line render(Key key) {
+	if(key.stroke == null)
+	    return(key.fnd.render(key.text, key.col));
+	return(key.fnd.renderstroked(key.text, key.col, key.stroke));
+    }
+
+    private void trim() {
+	for(Iterator<Entry> i = idle.values().iterator(); (idlesz > limit) && i.hasNext();) {
+	    Entry e = i.next();
+	    i.remove();
+	    idlesz -= e.sz;
+	    entries.remove(e.key);
+	    e.dispose();
+	    evicted++;
+	}
+    }
+
+    private void release(Entry e) {
+	if(--e.refs == 0) {
+	    idle.put(e.key, e);
+	    idlesz += e.sz;
+	    trim();
+	}
+    }
+
+    /* Idle entries are moved to the back of the LRU order whenever
+     * used, and taken out of it when referenced. */
+    private void use(Entry e, boolean ref) {
+	if(e.refs == 0) {
+	    idle.remove(e.key);
+	    idlesz -= e.sz;
+	}
+	if(ref)
+	    e.refs++;
+	if(e.refs == 0) {
+	    idle.put(e.key, e);
+	    idlesz += e.sz;
+	}
+    }
+
+    private Entry find(Key key, boolean ref) {
+	Entry e;
+	synchronized(this) {
+	    if((e = entries.get(key)) != null) {
+		hits++;
+		use(e, ref);
+		return(e);
+	    }
+	}
+	/* Render outside the lock, since that is the expensive part
+	 * that this is all about. Should another thread have gotten
+	 * here first, just use its result. */
+	Text.Line line = render(key);
+	synchronized(this) {
+	    if((e = entries.get(key)) == null) {
+		misses++;
+		entries.put(key, e = new Entry(key, line));
+		idle.put(key, e);
+		idlesz += e.sz;
+	    }
+	    use(e, ref);
+	    trim();
+	    return(e);
+	}
+    }
+
+    public Ref get(Text.Foundry fnd, String text, Color col, Color stroke) {
+	return(new Ref(find(new Key(fnd, text, col, stroke), true)));
+    }
+
+    /* Returns a line without holding a reference to it, for callers
+     * that only use the image, which stays valid after eviction. */
+    public Text.Line line(Text.Foundry fnd, String text, Color col, Color stroke) {
+	return(find(new Key(fnd, text, col, stroke), false).line);
+    }
+
+    public synchronized String stats() {
+	return(String.format("%d entries, %d idle (%d kB), %d hits, %d misses, %d evicted",
+			     entries.size(), idle.size(), idlesz >> 10, hits, misses, evicted));
+    }
+
+    static {
+	Console.setscmd("textcache", (cons, args) -> {
+		cons.out.println(global.stats());
+	    });
+    }
+}
@@ -27,6 +27,7 @@
 package haven;
 
 import java.util.*;
+import java.util.function.*;
 import java.io.*;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
@@ -58,7 +59,7 @@ public class Tileset extends Resource.Layer {
 	    id = buf.uint8();
 	    w = buf.uint16();
 	    try {
-		img = Resource.readimage(new MessageInputStream(buf));
+		img = Resource.readimage(buf.bytes());
 	    } catch(IOException e) {
 		throw(new Resource.LoadException(e, res));
 	    }
@@ -112,6 +113,34 @@ public class Tileset extends Resource.Layer {
 	}
     }
 
+    public static void scandeps(Message buf, BiConsumer<String, Integer> dep) {
+	while(!buf.eom()) {
+	    int p = buf.uint8();
+	    switch(p) {
+	    case 0:
+		buf.string();
+		buf.list();
+		break;
+	    case 1:
+		int flnum = buf.uint16();
+		buf.uint16();
+		for(int i = 0; i < flnum; i++) {
+		    String fln = buf.string();
+		    int flv = buf.uint16();
+		    buf.uint8();
+		    dep.accept(fln, flv);
+		}
+		break;
+	    case 2:
+		for(int i = buf.int8(); i > 0; i--)
+		    buf.string();
+		break;
+	    default:
+		return;
+	    }
+	}
+    }
+
     public Tiler.Factory tfac() {
 	synchronized(this) {
 	    if(tfac == null) {
@@ -65,6 +65,8 @@ public class UI {
     public boolean modshift, modctrl, modmeta, modsuper;
     public Object lasttip;
     public double lastevent, lasttick;
+    /* Counts input events, for WidgetCache. */
+    public int evseq = 0;
     public Widget mouseon;
     public Console cons = new WidgetConsole();
     private Collection<AfterDraw> afterdraws = new LinkedList<AfterDraw>();
@@ -355,6 +357,7 @@ public class UI {
 	if(wdg != null) {
 	    synchronized(this) {
 		wdg.uimsg(msg.intern(), args);
+		wdg.invalidate();
 	    }
 	} else {
 	    throw(new UIException("Uimsg to non-existent widget " + id, msg, args));
@@ -378,6 +381,7 @@ public class UI {
 
     public void keydown(KeyEvent ev) {
 	setmods(ev);
+	evseq++;
 	for(Grab g : c(keygrab)) {
 	    if(g.wdg.keydown(ev))
 		return;
@@ -393,6 +397,7 @@ public class UI {
 	
     public void keyup(KeyEvent ev) {
 	setmods(ev);
+	evseq++;
 	for(Grab g : c(keygrab)) {
 	    if(g.wdg.keyup(ev))
 		return;
@@ -432,6 +437,7 @@ public class UI {
     
     public void processMouseDown(Coord c, int button) {
 	lcc = mc = c;
+	evseq++;
 	for(Grab g : c(mousegrab)) {
 	    if(g.wdg.mousedown(wdgxlate(c, g.wdg), button))
 		return;
@@ -451,6 +457,7 @@ public class UI {
     
     public void processMouseUp(Coord c, int button) {
 	mc = c;
+	evseq++;
 	for(Grab g : c(mousegrab)) {
 	    if(g.wdg.mouseup(wdgxlate(c, g.wdg), button))
 		return;
@@ -479,6 +486,7 @@ public class UI {
     public void mousewheel(MouseEvent ev, Coord c, int amount) {
 	setmods(ev);
 	lcc = mc = c;
+	evseq++;
 	for(Grab g : c(mousegrab)) {
 	    if(g.wdg.mousewheel(wdgxlate(c, g.wdg), amount))
 		return;
@@ -489,6 +497,7 @@ public class UI {
     public void mouseclick(MouseEvent ev, Coord c, int button, int count) {
         setmods(ev);
         lcc = mc = c;
+        evseq++;
         for(Grab g : c(mousegrab)) {
             if(g.wdg.mouseclick(wdgxlate(c, g.wdg), button, count))
                 return;
@@ -53,7 +53,7 @@ public class WItem extends Widget implements DTarget2 {
     private Message csdt = Message.nil;
     private final List<Action3<WItem, Coord, Integer>> rClickListeners = new LinkedList<>();
     private boolean checkDrop = false;
-    private final CFG.Observer<Boolean> resetTooltip = cfg -> longtip = null;
+    private final CFG.Observer<Boolean> resetTooltip = cfg -> {droplongtip(); invalidate();};
     private final Action0 itemMatched = this::itemMatched;
     
     public WItem(GItem item) {
@@ -89,18 +89,55 @@ public class WItem extends Widget implements DTarget2 {
 	return(longtip(item, info));
     }
 
+    /* The info tips themselves are drawn on the UI thread, since
+     * they may read session and configuration state, but laying out
+     * and rendering the rich text of the item's paginae is done in
+     * the background, so that hovering over items does not stall
+     * frames. tooltip() keeps showing the previous tip until ready()
+     * returns true. */
     public class ItemTip implements Indir<Tex>, ItemInfo.InfoTip {
-	private final TexI tex;
+	private final BufferedImage head;
+	private final Defer.Future<BufferedImage> img;
+	private TexI tex = null;
 
-	public ItemTip(BufferedImage img) {
-	    if(img == null)
+	public ItemTip(BufferedImage head, String text) {
+	    if((head == null) && (text == null))
 		throw(new Loading());
-	    tex = new TexI(img);
+	    this.head = head;
+	    this.img = (text == null) ? null : Defer.later(() -> ItemInfo.catimgs(0, head, RichText.render(text, UI.scale(200)).img));
+	}
+
+	public ItemTip(BufferedImage img) {
+	    this(img, null);
+	}
+
+	public boolean ready() {
+	    return((img == null) || img.done());
+	}
+
+	public void cancel() {
+	    if(img != null)
+		img.cancel();
 	}
 
 	public GItem item() {return(item);}
 	public List<ItemInfo> info() {return(item.info());}
-	public Tex get() {return(tex);}
+	public Tex get() {
+	    if(tex == null) {
+		BufferedImage img = head;
+		if(this.img != null) {
+		    try {
+			img = this.img.get();
+		    } catch(Defer.DeferredException e) {
+			new Warning(e, "could not render tooltip of " + item).issue();
+		    }
+		}
+		if(img == null)
+		    img = Text.render("...").img;
+		tex = new TexI(img);
+	    }
+	    return(tex);
+	}
     }
 
     public class ShortTip extends ItemTip {
@@ -108,12 +145,34 @@ public class WItem extends Widget implements DTarget2 {
     }
 
     public class LongTip extends ItemTip {
-	public LongTip(List<ItemInfo> info) {super(longtip(info));}
+	public LongTip(List<ItemInfo> info) {super(ItemInfo.longtip(info), pagina(item));}
+    }
+
+    private static String pagina(GItem item) {
+	Resource.Pagina pg = item.res.get().layer(Resource.pagina);
+	return((pg == null) ? null : "\n" + pg.text);
     }
 
     private double hoverstart;
-    private ItemTip shorttip = null, longtip = null;
+    private ItemTip shorttip = null, longtip = null, shown = null;
     private List<ItemInfo> ttinfo = null;
+
+    private void droplongtip() {
+	if(longtip != null) {
+	    if(longtip != shown)
+		longtip.cancel();
+	    longtip = null;
+	}
+    }
+
+    private ItemTip show(ItemTip tip) {
+	if(tip.ready()) {
+	    shown = tip;
+	    return(tip);
+	}
+	return(null);
+    }
+
     public Object tooltip(Coord c, Widget prev) {
 	double now = Utils.rtime();
 	if(prev == this) {
@@ -126,26 +185,32 @@ public class WItem extends Widget implements DTarget2 {
 	} else {
 	    hoverstart = now;
 	}
+	if(prev != this)
+	    shown = null;
 	try {
 	    List<ItemInfo> info = item.info();
 	    if(info.size() < 1)
 		return(null);
 	    if(info != ttinfo) {
-		shorttip = longtip = null;
+		droplongtip();
+		shorttip = null;
 		ttinfo = info;
 	    }
+	    ItemTip ret;
 	    if(now - hoverstart < 1.0) {
 		if(shorttip == null)
 		    shorttip = new ShortTip(info);
-		return(shorttip);
+		ret = show(shorttip);
 	    } else {
 		if(longtip == null)
 		    longtip = new LongTip(info);
-		return(longtip);
+		ret = show(longtip);
 	    }
+	    if(ret != null)
+		return(ret);
 	} catch(Loading e) {
-	    return("...");
 	}
+	return((shown != null) ? shown : "...");
     }
 
     private List<ItemInfo> info() {return(item.info());}
@@ -187,19 +252,15 @@ public class WItem extends Widget implements DTarget2 {
     
     public final AttrCache<Pair<String, String>> study = new AttrCache<>(this::info, AttrCache.map1(Curiosity.class, curio -> curio::remainingTip));
     
-    public final AttrCache<Tex> heurnum = new AttrCache<Tex>(this::info, AttrCache.cache(info -> {
-	String num = ItemInfo.getCount(info);
-	if(num == null) return null;
-	return Text.renderstroked(num, Color.WHITE, Color.BLACK).tex();
-    }));
+    public final AttrCache<String> heurnum = new AttrCache<String>(this::info, AttrCache.cache(info -> ItemInfo.getCount(info)));
     
-    public final AttrCache<Tex> durability = new AttrCache<Tex>(this::info, AttrCache.cache(info -> {
+    public final AttrCache<String> durability = new AttrCache<String>(this::info, AttrCache.cache(info -> {
 	Pair<Integer, Integer> wear = ItemInfo.getWear(info);
 	if(wear == null) return (null);
-	return Text.renderstroked(String.valueOf(wear.b - wear.a), DURABILITY_COLOR, Color.BLACK).tex();
+	return String.valueOf(wear.b - wear.a);
     })) {
 	@Override
-	public Tex get() {
+	public String get() {
 	    return CFG.SHOW_ITEM_DURABILITY.get() ? super.get() : null;
 	}
     };
@@ -216,13 +277,13 @@ public class WItem extends Widget implements DTarget2 {
 	return meter == null ? 0 : meter;
     }
     
-    public final AttrCache<Tex> armor = new AttrCache<Tex>(this::info, AttrCache.cache(info -> {
+    public final AttrCache<String> armor = new AttrCache<String>(this::info, AttrCache.cache(info -> {
 	Pair<Integer, Integer> armor = ItemInfo.getArmor(info);
 	if(armor == null) return (null);
-	return Text.renderstroked(String.format("%d/%d", armor.a, armor.b), ARMOR_COLOR, Color.BLACK).tex();
+	return String.format("%d/%d", armor.a, armor.b);
     })) {
 	@Override
-	public Tex get() {
+	public String get() {
 	    return CFG.SHOW_ITEM_ARMOR.get() ? super.get() : null;
 	}
     };
@@ -266,12 +327,15 @@ public class WItem extends Widget implements DTarget2 {
 	    }
 	    resize(sz);
 	    lspr = spr;
+	    invalidate();
 	}
 	checkDrop();
     }
 
     public void draw(GOut g) {
 	GSprite spr = item.spr();
+	if(!ready(spr))
+	    invalidate();
 	if(spr != null) {
 	    Coord sz = spr.sz();
 	    g.defstate();
@@ -303,9 +367,7 @@ public class WItem extends Widget implements DTarget2 {
 	if(meter > 0) {
 	    Tex studyTime = getStudyTime();
 	    if(studyTime == null && CFG.PROGRESS_NUMBER.get()) {
-		Tex tex = Text.renderstroked(String.format("%d%%", Math.round(100 * meter))).tex();
-		g.aimage(tex, sz.div(2), 0.5, 0.5);
-		tex.dispose();
+		Text.std.atlas().aprint(g, sz.div(2), 0.5, 0.5, String.format("%d%%", Math.round(100 * meter)), Color.WHITE, Color.BLACK);
 	    } else {
 		g.chcolor(255, 255, 255, 64);
 		Coord half = sz.div(2);
@@ -324,9 +386,9 @@ public class WItem extends Widget implements DTarget2 {
 	}
     }
     
-    private String cachedStudyValue = null;
+    private final TextCache.Slot studytext = new TextCache.Slot();
+    private final TextCache.Slot numtext = new TextCache.Slot();
     private String cachedTipValue = null;
-    private Tex cachedStudyTex = null;
     
     private Tex getStudyTime() {
 	Pair<String, String> data = study.get();
@@ -334,22 +396,11 @@ public class WItem extends Widget implements DTarget2 {
 	String tip = data == null ? null : data.b;
 	if(!Objects.equals(tip, cachedTipValue)) {
 	    cachedTipValue = tip;
-	    longtip = null;
-	}
-	if(value != null) {
-	    if(!Objects.equals(value, cachedStudyValue)) {
-		if(cachedStudyTex != null) {
-		    cachedStudyTex.dispose();
-		    cachedStudyTex = null;
-		}
-	    }
-	    
-	    if(cachedStudyTex == null) {
-		cachedStudyValue = value;
-		cachedStudyTex = Text.renderstroked(value).tex();
-	    }
-	    return cachedStudyTex;
+	    droplongtip();
 	}
+	if(value != null)
+	    return studytext.tex(Text.std, value, Color.WHITE, Color.BLACK);
+	studytext.dispose();
 	return null;
     }
     
@@ -366,11 +417,18 @@ public class WItem extends Widget implements DTarget2 {
     }
 
     private void drawnum(GOut g, Coord sz) {
-	Tex tex;
+	Tex tex = null;
+	String text;
 	if(item.num >= 0) {
-	    tex = Text.render(Integer.toString(item.num)).tex();
+	    tex = numtext.tex(Text.std, Integer.toString(item.num), Color.WHITE, null);
+	} else if((text = heurnum.get()) != null) {
+	    tex = numtext.tex(Text.std, text, Color.WHITE, Color.BLACK);
+	} else if((text = armor.get()) != null) {
+	    tex = numtext.tex(Text.std, text, ARMOR_COLOR, Color.BLACK);
+	} else if((text = durability.get()) != null) {
+	    tex = numtext.tex(Text.std, text, DURABILITY_COLOR, Color.BLACK);
 	} else {
-	    tex = chainattr(/*itemnum, */heurnum, armor, durability);
+	    numtext.dispose();
 	}
  
 	if(tex != null) {
@@ -382,17 +440,6 @@ public class WItem extends Widget implements DTarget2 {
 	}
     }
 
-    @SafeVarargs //actually, method just assumes you'll feed it correctly typed var args
-    private static Tex chainattr(AttrCache<Tex> ...attrs){
-	for(AttrCache<Tex> attr : attrs){
-	    Tex tex = attr.get();
-	    if(tex != null){
-		return tex;
-	    }
-	}
-	return null;
-    }
-
     private void drawq(GOut g) {
 	QualityList quality = itemq.get();
 	if(quality != null && !quality.isEmpty()) {
@@ -495,10 +542,26 @@ public class WItem extends Widget implements DTarget2 {
 	CFG.SHOW_CURIO_LPH.unobserve(resetTooltip);
 	CFG.REAL_TIME_CURIO.unobserve(resetTooltip);
 	item.remMatchListener(itemMatched);
+	studytext.dispose();
+	numtext.dispose();
 	super.dispose();
     }
     
+    /* Whether everything drawn depends on has loaded, so that a
+     * cached rendering of the item need not be redone. */
+    private boolean ready(GSprite spr) {
+	if(spr == null)
+	    return(false);
+	try {
+	    item.info();
+	} catch(Loading l) {
+	    return(false);
+	}
+	return(true);
+    }
+
     private void itemMatched() {
+	invalidate();
         Inventory inv = getparent(Inventory.class);
 	if(inv != null) {inv.itemsChanged();}
     }
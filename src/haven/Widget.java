@@ -65,6 +65,7 @@ public class Widget {
     public boolean invisibleKeys = false;
     private final List<Action1<Widget>> boundListeners = new LinkedList<>();
     private final List<Action2<Widget, Boolean>> focusListeners = new LinkedList<>();
+    private WidgetCache rcache = null;
     
     @dolda.jglob.Discoverable
     @Target(ElementType.TYPE)
@@ -440,6 +441,7 @@ public class Widget {
     }
 
     public void link() {
+	parent.invalidate();
 	Widget prev;
 	for(prev = parent.lchild; (prev != null) && (prev.z > this.z); prev = prev.prev);
 	if(prev != null) {
@@ -458,6 +460,7 @@ public class Widget {
     }
     
     public void linkfirst() {
+	parent.invalidate();
 	Widget next;
 	for(next = parent.child; (next != null) && (next.z < this.z); next = next.next);
 	if(next != null) {
@@ -476,6 +479,7 @@ public class Widget {
     }
 	
     public void unlink() {
+	parent.invalidate();
 	if(next != null)
 	    next.prev = prev;
 	if(prev != null)
@@ -533,8 +537,26 @@ public class Widget {
     public void dispose() {
 	synchronized (boundListeners) {boundListeners.clear();}
 	synchronized (focusListeners) {focusListeners.clear();}
+	rcache(false);
         disposed = true;
     }
+
+    /* Opt in to drawing this subtree through a WidgetCache. */
+    public void rcache(boolean on) {
+	if(on && (rcache == null)) {
+	    rcache = new WidgetCache();
+	} else if(!on && (rcache != null)) {
+	    rcache.dispose();
+	    rcache = null;
+	}
+    }
+
+    public void invalidate() {
+	for(Widget w = this; w != null; w = w.parent) {
+	    if(w.rcache != null)
+		w.rcache.dirty = true;
+	}
+    }
     
     public boolean disposed() {
 	return disposed;
@@ -754,6 +776,8 @@ public class Widget {
 	 * classes, but alas, this is Java. */
 	anims.addAll(nanims);
 	nanims.clear();
+	if(!anims.isEmpty())
+	    invalidate();
 	for(Iterator<Anim> i = anims.iterator(); i.hasNext();) {
 	    Anim anim = i.next();
 	    if(anim.tick(dt))
@@ -780,7 +804,10 @@ public class Widget {
 		g2 = g.reclip(cc, wdg.sz);
 	    else
 		g2 = g.reclipl(cc, wdg.sz);
-	    wdg.draw(g2);
+	    if(wdg.rcache != null)
+		wdg.rcache.draw(wdg, g2);
+	    else
+		wdg.draw(g2);
 	}
     }
     
@@ -1010,10 +1037,13 @@ public class Widget {
     
     public void move(Coord c) {
 	this.c = c;
+	if(parent != null)
+	    parent.invalidate();
     }
 
     public void resize(Coord sz) {
 	this.sz = sz;
+	invalidate();
 	for(Widget ch = child; ch != null; ch = ch.next)
 	    ch.presize();
 	if(parent != null)
@@ -1467,14 +1497,18 @@ public class Widget {
 
     public void hide() {
 	visible = false;
-	if(parent != null)
+	if(parent != null) {
 	    parent.delfocusable(this);
+	    parent.invalidate();
+	}
     }
 
     public void show() {
 	visible = true;
-	if(parent != null)
+	if(parent != null) {
 	    parent.newfocusable(this);
+	    parent.invalidate();
+	}
     }
 
     public boolean show(boolean show) {
@@ -0,0 +1,141 @@
+package haven;
+
+import java.awt.Color;
+import haven.render.*;
+import haven.render.Texture2D.Sampler2D;
+
+/* Retained rendering of a widget subtree. A widget that opts in
+ * through Widget.rcache() is drawn into a texture of its own, which
+ * is then drawn in its place on every frame until something
+ * invalidates it: changes to its children, messages to widgets in
+ * the subtree, Widget.invalidate() from the widgets themselves,
+ * configuration changes, or input while hovered or focused. While
+ * the mouse moves over it, the subtree is drawn directly, and the
+ * texture redrawn once the pointer rests. As state that changes
+ * without any of those cannot be seen, the texture is also redrawn
+ * once it is older than maxage. Off unless haven.wcache is set. */
+public class WidgetCache implements Disposable {
+    public static boolean enabled = Config.wcache;
+    public static double maxage = Config.wcacheage;
+    public static boolean debug = false;
+    private static final Pipe.Op nodepth = p -> p.put(DepthBuffer.slot, null);
+    /* Draws are blended into the texture the usual way, but with
+     * alpha accumulating, so that the result is premultiplied and
+     * can then be drawn with the equivalent premultiplied blend. */
+    private static final Pipe.Op into = FragColor.blend(new BlendMode(BlendMode.Factor.SRC_ALPHA, BlendMode.Factor.INV_SRC_ALPHA,
+								      BlendMode.Factor.ONE, BlendMode.Factor.INV_SRC_ALPHA));
+    private static final Pipe.Op out = FragColor.blend(new BlendMode(BlendMode.Factor.ONE, BlendMode.Factor.INV_SRC_ALPHA));
+    private static volatile int gen = 0;
+    public int hits, redraws;
+    boolean dirty = true;
+    private Texture2D tex;
+    private TexRaw img;
+    private Coord tsz;
+    private double rtime, flash;
+    private int revseq, rgen;
+    private Coord lmc = null;
+    private boolean lhover;
+
+    /* For state that any widget may draw, such as CFG settings. */
+    public static void invalidateall() {
+	synchronized(WidgetCache.class) {
+	    gen++;
+	}
+    }
+
+    private boolean check(Widget wdg, double now, boolean hover) {
+	UI ui = wdg.ui;
+	if(dirty || (tex == null) || !Utils.eq(wdg.sz, tsz))
+	    return(true);
+	if(now - rtime > maxage)
+	    return(true);
+	if(rgen != gen)
+	    return(true);
+	if((ui.evseq != revseq) && (hover || wdg.hasfocus))
+	    return(true);
+	return(false);
+    }
+
+    private void render(Widget wdg, GOut g, Coord sz) {
+	if((tex == null) || !Utils.eq(sz, tsz)) {
+	    dispose();
+	    tex = new Texture2D(sz.x, sz.y, DataBuffer.Usage.STATIC, new VectorFormat(4, NumberFormat.UNORM8), null);
+	    tex.desc(wdg);
+	    img = new TexRaw(new Sampler2D(tex), true);
+	    tsz = sz;
+	}
+	Area area = Area.sized(Coord.z, sz);
+	Pipe state = g.root().basicstate();
+	state.prep(Pipe.Op.compose(new States.Viewport(area), new Ortho2D(area),
+				   new FragColor<>(tex.image(0)), nodepth, into));
+	g.out.clear(state, FragColor.fragcol, new FColor(0, 0, 0, 0));
+	/* Clear before drawing, so that anything invalidating the
+	 * cache while drawing takes effect on the next frame. */
+	dirty = false;
+	wdg.draw(new GOut(g.out, state, sz));
+    }
+
+    public void draw(Widget wdg, GOut g) {
+	Coord sz = wdg.sz;
+	if(!enabled || (wdg.ui == null) || (sz.x < 1) || (sz.y < 1)) {
+	    dispose();
+	    wdg.draw(g);
+	    return;
+	}
+	UI ui = wdg.ui;
+	double now = Utils.rtime();
+	boolean hover = ui.mc.isect(wdg.rootpos(), sz);
+	boolean moved = (hover || lhover) && !Utils.eq(ui.mc, lmc);
+	lmc = ui.mc;
+	lhover = hover;
+	if(moved) {
+	    /* Hover effects follow the pointer, and rendering into
+	     * the texture on every move would cost more than not
+	     * caching at all. */
+	    dirty = true;
+	    wdg.draw(g);
+	    return;
+	}
+	if(check(wdg, now, hover)) {
+	    rgen = gen;
+	    render(wdg, g, sz);
+	    rtime = now;
+	    revseq = ui.evseq;
+	    flash = now;
+	    redraws++;
+	} else {
+	    hits++;
+	}
+	g.image(img, Coord.z, out);
+	if(debug) {
+	    double a = Math.max(0, 1 - (now - flash) * 2);
+	    g.chcolor(new Color(255, (int)(255 * (1 - a)), 0, 128 + (int)(127 * a)));
+	    g.rect(Coord.z, sz);
+	    g.chcolor();
+	    FastText.aprintf(g, new Coord(sz.x - 2, 1), 1, 0, "%d/%d", hits, redraws);
+	}
+    }
+
+    public void dispose() {
+	if(tex != null) {
+	    tex.dispose();
+	    tex = null;
+	    img = null;
+	    tsz = null;
+	}
+    }
+
+    static {
+	Console.setscmd("wcache", (cons, args) -> {
+		if(args.length < 2) {
+		    cons.out.printf("wcache: %s, debug %s, maxage %.2f\n", enabled, debug, maxage);
+		} else if(args[1].equals("debug")) {
+		    debug = (args.length < 3) ? !debug : Utils.parsebool(args[2]);
+		} else if(args[1].equals("maxage")) {
+		    maxage = Double.parseDouble(args[2]);
+		} else {
+		    enabled = Utils.parsebool(args[1]);
+		}
+	    });
+    }
+}
@@ -27,7 +27,9 @@
 package haven.render;
 
 import java.util.*;
+import java.util.function.*;
 import java.util.concurrent.atomic.*;
+import java.io.PrintWriter;
 import haven.*;
 import haven.render.Rendered.Instancable;
 import haven.render.Rendered.Instanced;
@@ -42,6 +44,15 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
     private final Map<Pipe, Object> pipemap = new IdentityHashMap<>();
     private final Set<InstancedSlot> dirty = new HashSet<>();
     private int nbypass, ninvalid, nuinst, nbatches, ninst;
+    /* Slots are only batched once this many of them share a key;
+     * fewer are drawn individually. */
+    public static int minbatch = Math.max(Config.instmin, 2);
+    /* When merging, states registered as nonessential are left
+     * out of the instancing key and of the resulting batch while
+     * they are trivial enough, so that eg. slightly tinted trees
+     * are drawn in the same batch as untinted ones. */
+    public static boolean merge = Config.instmerge;
+    private static final Map<State.Slot<?>, Predicate<State>> loose = new IdentityHashMap<>();
 
     private static int[][][] _stcounts = {};
     private static int[][] stcounts(int n) {
@@ -66,12 +77,67 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 	}
     }
 
-    private static Pipe[] uinststate(GroupPipe st, int ls) {
+    @SuppressWarnings("unchecked")
+    public static <T extends State> void nonessential(State.Slot<T> slot, Predicate<? super T> trivial) {
+	synchronized(loose) {
+	    loose.put(slot, (Predicate<State>)trivial);
+	}
+    }
+
+    static {
+	nonessential(MixColor.slot, st -> st.color.a < 0.125f);
+    }
+
+    private static Predicate<State> trivial(State.Slot<?> slot) {
+	synchronized(loose) {
+	    return(loose.get(slot));
+	}
+    }
+
+    private static final int[] nodrop = {};
+    /* Returns the IDs of the uninstanced states of st that merging
+     * would leave out, or an empty array. */
+    private static int[] droppable(GroupPipe st, int ls) {
+	if(!merge)
+	    return(nodrop);
+	int[] us = stcounts(ls + 1)[0];
+	int[] ret = null;
+	int n = 0;
+	for(int i = 0; i < us.length; i++) {
+	    int gn = st.gstate(us[i]);
+	    if(gn < 0)
+		continue;
+	    State.Slot<?> slot = State.Slot.byid(us[i]);
+	    Predicate<State> triv = trivial(slot);
+	    if((triv != null) && triv.test(st.group(gn).get(slot))) {
+		if(ret == null)
+		    ret = new int[us.length];
+		ret[n++] = us[i];
+	    }
+	}
+	return((ret == null) ? nodrop : Arrays.copyOf(ret, n));
+    }
+
+    private static int[] droppable(GroupPipe st) {
+	int ls;
+	for(ls = st.nstates() - 1; (ls >= 0) && (st.gstate(ls) < 0); ls--);
+	return((ls < 0) ? nodrop : droppable(st, ls));
+    }
+
+    private static boolean dropped(int[] drop, int id) {
+	for(int i = 0; i < drop.length; i++) {
+	    if(drop[i] == id)
+		return(true);
+	}
+	return(false);
+    }
+
+    private static Pipe[] uinststate(GroupPipe st, int ls, int[] drop) {
 	int[] us = stcounts(ls + 1)[0];
 	Pipe[] ret = new Pipe[us.length];
 	for(int i = 0; i < ret.length; i++) {
 	    int gn = st.gstate(us[i]);
-	    if(gn >= 0)
+	    if((gn >= 0) && !dropped(drop, us[i]))
 		ret[i] = st.group(gn);
 	}
 	return(ret);
@@ -101,7 +167,11 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 	/* It may be argued that instids should be compared by equals
 	 * rather than by identity, if need be. */
 	final Instancer[] instids;
-	final int[] instidmap;
+	final int[] instidmap, ustmap;
+	/* Merged states are not part of the key proper, so that
+	 * slots lacking them can share batches with slots where they
+	 * are trivial. */
+	final int[] drop;
 
 	InstKey(Slot<? extends Rendered> slot) {
 	    this.instid = ((Instancable)slot.obj()).instanceid();
@@ -112,13 +182,54 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 		this.ust = new Pipe[0];
 		this.instids = new Instancer[0];
 		this.instidmap = new int[0];
+		this.ustmap = new int[0];
+		this.drop = nodrop;
 	    } else {
-		this.ust = uinststate(st, ls);
+		this.drop = droppable(st, ls);
+		/* Let merged states not extend the key either. */
+		for(; (ls >= 0) && ((st.gstate(ls) < 0) || dropped(drop, ls)); ls--);
+		this.ust = uinststate(st, ls, drop);
 		this.instids = instids(st, ls);
 		this.instidmap = stcounts(ls + 1)[1];
+		this.ustmap = stcounts(ls + 1)[0];
 	    }
 	}
 
+	/* Describes the first thing that keeps this key from being
+	 * equal to that, for instancing reports. */
+	String diff(InstKey that) {
+	    if(this.instid != that.instid)
+		return("instance-id");
+	    for(int i = 0; i < Math.max(this.ust.length, that.ust.length); i++) {
+		Pipe a = (i < this.ust.length) ? this.ust[i] : null;
+		Pipe b = (i < that.ust.length) ? that.ust[i] : null;
+		if(a != b) {
+		    int id = (i < this.ust.length) ? this.ustmap[i] : that.ustmap[i];
+		    return("pipe of " + State.Slot.byid(id).scl.getSimpleName());
+		}
+	    }
+	    for(int i = 0; i < Math.max(this.instids.length, that.instids.length); i++) {
+		Instancer a = (i < this.instids.length) ? this.instids[i] : null;
+		Instancer b = (i < that.instids.length) ? that.instids[i] : null;
+		if(a != b) {
+		    int id = (i < this.instids.length) ? this.instidmap[i] : that.instidmap[i];
+		    return("instancer of " + State.Slot.byid(id).scl.getSimpleName());
+		}
+	    }
+	    return(null);
+	}
+
+	/* Describes why this key cannot be instanced at all. */
+	String invalid() {
+	    if(instid == null)
+		return("no instance-id");
+	    for(int i = 0; i < instids.length; i++) {
+		if(instids[i] == null)
+		    return("uninstancable " + State.Slot.byid(instidmap[i]).scl.getSimpleName());
+	    }
+	    return(null);
+	}
+
 	boolean valid() {
 	    if(instid == null)
 		return(false);
@@ -232,19 +343,29 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 
 	class Instance {
 	    final Slot<? extends Rendered> slot;
+	    /* The instanced states, followed by any merged states whose
+	     * pipes need watching for becoming nontrivial. */
+	    final int[] watch;
 	    final Pipe[] rpipes;
 	    int idx;
 
 	    Instance(Slot<? extends Rendered> slot) {
 		this.slot = slot;
-		this.rpipes = new Pipe[ist.mask.length];
+		int[] drop = merge ? droppable(slot.state()) : nodrop;
+		if(drop.length == 0) {
+		    this.watch = ist.mask;
+		} else {
+		    this.watch = Arrays.copyOf(ist.mask, ist.mask.length + drop.length);
+		    System.arraycopy(drop, 0, watch, ist.mask.length, drop.length);
+		}
+		this.rpipes = new Pipe[watch.length];
 	    }
 
 	    @SuppressWarnings("unchecked")
 	    void register() {
 		GroupPipe st = slot.state();
-		for(int i = 0; i < ist.mask.length; i++) {
-		    int gn = st.gstate(ist.mask[i]);
+		for(int i = 0; i < watch.length; i++) {
+		    int gn = st.gstate(watch[i]);
 		    if(gn < 0)
 			continue;
 		    Pipe p = st.group(gn);
@@ -268,7 +389,7 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 
 	    @SuppressWarnings("unchecked")
 	    void unregister() {
-		for(int i = 0; i < ist.mask.length; i++) {
+		for(int i = 0; i < watch.length; i++) {
 		    Pipe p = rpipes[i];
 		    if(p == null)
 			continue;
@@ -300,6 +421,15 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 			}
 		    }
 		}
+		for(int i = ist.mask.length; i < watch.length; i++) {
+		    for(int o = 0; o < mask.length; o++) {
+			if((mask[o] == watch[i]) && !key.equals(new InstKey(slot))) {
+			    InstanceList.this.remove(slot);
+			    InstanceList.this.add(slot);
+			    return;
+			}
+		    }
+		}
 		/* XXX: There should be a way to only update the
 		 * relevant states, by mask. */
 		iupdate(idx);
@@ -424,6 +554,8 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 	    public int gstate(int id) {
 		if(State.Slot.byid(id).instanced != null)
 		    return(0);
+		if(dropped(key.drop, id))
+		    return(-1);
 		int ret = ust.gstate(id);
 		return((ret < 0) ? ret : (ret + 1));
 	    }
@@ -516,6 +648,32 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 	this.master = master;
     }
 
+    /* Slots sharing a key, while there are still too few of them
+     * to be batched. */
+    private static class Sole {
+	final List<Slot<? extends Rendered>> slots = new ArrayList<>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Slot<? extends Rendered>> soles(Object cur) {
+	if(cur instanceof Sole)
+	    return(((Sole)cur).slots);
+	return(Collections.singletonList((Slot<? extends Rendered>)cur));
+    }
+
+    private void unsole(InstKey key, Slot<? extends Rendered> slot) {
+	Object cur = instreg.get(key);
+	if(cur == slot) {
+	    instreg.remove(key);
+	} else if((cur instanceof Sole) && ((Sole)cur).slots.remove(slot)) {
+	    List<Slot<? extends Rendered>> ls = ((Sole)cur).slots;
+	    if(ls.size() < 2)
+		instreg.put(key, ls.get(0));
+	} else {
+	    throw(new IllegalStateException("removing non-present slot"));
+	}
+    }
+
     @SuppressWarnings("unchecked")
     private void add0(Slot<? extends Rendered> slot, InstKey key, boolean prevsole, InstancedSlot previnst) {
 	Object cur = instreg.get(key);
@@ -541,19 +699,42 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 		remove0(previnst, prev, false);
 	    uslotmap.put(slot, curbat.key);
 	    ninst++;
-	} else if(cur instanceof Slot) {
-	    Slot<? extends Rendered> cs = (Slot<? extends Rendered>)cur;
-	    InstKey curkey = uslotmap.get(cs);
+	} else if((cur instanceof Slot) || (cur instanceof Sole)) {
+	    List<Slot<? extends Rendered>> prev = soles(cur);
+	    InstKey curkey = uslotmap.get(prev.get(0));
 	    if(!curkey.equals(key))
 		throw(new AssertionError());
-	    InstancedSlot ni = new InstancedSlot(curkey, new Slot[] {cs, slot});
+	    if(prev.size() + 1 < minbatch) {
+		if(prevsole)
+		    clupdate(slot);
+		else
+		    cladd(slot);
+		if(previnst != null)
+		    remove0(previnst, islotmap.get(slot), true);
+		Sole sole;
+		if(cur instanceof Sole) {
+		    sole = (Sole)cur;
+		} else {
+		    sole = new Sole();
+		    sole.slots.add((Slot<? extends Rendered>)cur);
+		    instreg.put(curkey, sole);
+		}
+		sole.slots.add(slot);
+		uslotmap.put(slot, curkey);
+		nuinst++;
+		return;
+	    }
+	    Slot[] all = prev.toArray(new Slot[prev.size() + 1]);
+	    all[prev.size()] = slot;
+	    InstancedSlot ni = new InstancedSlot(curkey, all);
 	    try {
 		cladd(ni);
 	    } catch(RuntimeException e) {
 		ni.dispose();
 		throw(e);
 	    }
-	    clremove(cs);
+	    for(Slot<? extends Rendered> cs : prev)
+		clremove(cs);
 	    if(prevsole)
 		clremove(slot);
 	    if(previnst != null)
@@ -561,7 +742,7 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 	    instreg.put(curkey, ni);
 	    uslotmap.put(slot, curkey);
 	    ni.register();
-	    nuinst--; nbatches++; ninst += 2;
+	    nuinst -= prev.size(); nbatches++; ninst += all.length;
 	} else {
 	    throw(new AssertionError());
 	}
@@ -634,11 +815,9 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 	    } else if(cur instanceof InstancedSlot) {
 		InstancedSlot b = (InstancedSlot)cur;
 		remove0((InstancedSlot)cur, islotmap.get(slot), true);
-	    } else if(cur instanceof Slot) {
-		if(cur != slot)
-		    throw(new IllegalStateException("removing non-present slot"));
+	    } else if((cur instanceof Slot) || (cur instanceof Sole)) {
+		unsole(key, slot);
 		clremove(slot);
-		instreg.remove(key);
 		nuinst--;
 	    } else {
 		throw(new AssertionError());
@@ -680,20 +859,20 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 		} else {
 		    add0(slot, key, false, b);
 		}
-	    } else if(prev instanceof Slot) {
-		if(prev != slot)
+	    } else if((prev instanceof Slot) || (prev instanceof Sole)) {
+		if(!soles(prev).contains(slot))
 		    throw(new IllegalStateException("updating non-present slot"));
 		if(key.equals(prevkey)) {
 		    clupdate(slot);
 		} else if(!key.valid()) {
 		    clupdate(slot);
-		    instreg.remove(prevkey);
+		    unsole(prevkey, slot);
 		    uslotmap.remove(slot);
 		    nuinst--;
 		    ninvalid++;
 		} else {
 		    add0(slot, key, true, null);
-		    instreg.remove(prevkey);
+		    unsole(prevkey, slot);
 		    nuinst--;
 		}
 	    } else {
@@ -735,7 +914,10 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
 		public Iterator<Slot<?>> iterator() {
 		    Collection<Slot<?>> ret = new ArrayList<>();
 		    for(Object slot : instreg.values()) {
-			ret.add((Slot<?>)slot);
+			if(slot instanceof Sole)
+			    ret.addAll(((Sole)slot).slots);
+			else
+			    ret.add((Slot<?>)slot);
 		    }
 		    for(Slot<?> slot : master.slots()) {
 			if(!uslotmap.containsKey(slot))
@@ -770,4 +952,103 @@ public class InstanceList implements RenderList<Rendered>, RenderList.Adapter, D
     public String stats() {
 	return(String.format("%,d+%,d(%,d) %d %d", nuinst, nbatches, ninst, ninvalid, nbypass));
     }
+
+    private static void count(Map<String, Integer> map, String key, int n) {
+	map.put(key, map.getOrDefault(key, 0) + n);
+    }
+
+    private static String counts(Map<String, Integer> map) {
+	StringBuilder buf = new StringBuilder();
+	map.entrySet().stream().sorted((a, b) -> b.getValue() - a.getValue()).forEach(ent -> {
+		if(buf.length() > 0)
+		    buf.append(", ");
+		buf.append(String.format("%s: %,d", ent.getKey(), ent.getValue()));
+	    });
+	return(buf.toString());
+    }
+
+    /* Reports how the current slots are being instanced, grouped by
+     * instance-id, along with why slots sharing an instance-id
+     * failed to end up in the same batch. */
+    public void report(PrintWriter out, int max) {
+	class Group {
+	    final Object id;
+	    final List<InstKey> keys = new ArrayList<>();
+	    final List<Integer> sizes = new ArrayList<>();
+	    int slots, batched;
+	    Group(Object id) {this.id = id;}
+	}
+	Map<Object, Group> groups = new IdentityHashMap<>();
+	Map<String, Integer> invalid = new HashMap<>(), bypass = new HashMap<>();
+	Map<Integer, Integer> bsizes = new TreeMap<>();
+	try(Locked lk = lock()) {
+	    synchronized(this) {
+		for(Map.Entry<InstKey, Object> ent : instreg.entrySet()) {
+		    InstKey key = ent.getKey();
+		    Group grp = groups.computeIfAbsent(key.instid, Group::new);
+		    int n;
+		    if(ent.getValue() instanceof InstancedSlot) {
+			n = ((InstancedSlot)ent.getValue()).ni;
+			grp.batched += n;
+			bsizes.merge(Integer.highestOneBit(n), 1, Integer::sum);
+		    } else {
+			n = soles(ent.getValue()).size();
+		    }
+		    grp.keys.add(key);
+		    grp.sizes.add(n);
+		    grp.slots += n;
+		}
+		for(Slot<?> slot : master.slots()) {
+		    if(uslotmap.containsKey(slot))
+			continue;
+		    Object obj = slot.obj();
+		    if(!(obj instanceof Instancable)) {
+			count(bypass, obj.getClass().getName(), 1);
+		    } else {
+			@SuppressWarnings("unchecked") String why = new InstKey((Slot<? extends Rendered>)slot).invalid();
+			count(invalid, (why == null) ? "changed in-pipe" : why, 1);
+		    }
+		}
+	    }
+	}
+	out.printf("%,d unbatched, %,d in %,d batches, %,d invalid, %,d bypassed; minimum batch %d, merging %s\n",
+		   nuinst, ninst, nbatches, ninvalid, nbypass, minbatch, merge ? "on" : "off");
+	out.print("batch sizes:");
+	for(Map.Entry<Integer, Integer> ent : bsizes.entrySet())
+	    out.printf(" %d-%d: %,d", ent.getKey(), (ent.getKey() * 2) - 1, ent.getValue());
+	out.println();
+	List<Group> sorted = new ArrayList<>(groups.values());
+	sorted.sort((a, b) -> b.slots - a.slots);
+	for(Group grp : sorted.subList(0, Math.min(max, sorted.size()))) {
+	    out.printf("%s: %,d slots, %,d batched in %,d keys\n", grp.id, grp.slots, grp.batched, grp.keys.size());
+	    int big = grp.sizes.indexOf(Collections.max(grp.sizes));
+	    Map<String, Integer> why = new HashMap<>();
+	    for(int i = 0; i < grp.keys.size(); i++) {
+		int n = grp.sizes.get(i);
+		if(i == big) {
+		    if(n < minbatch)
+			count(why, "below minimum batch", n);
+		    continue;
+		}
+		String diff = grp.keys.get(i).diff(grp.keys.get(big));
+		count(why, (n < minbatch) ? String.format("%s, then below minimum", diff) : diff, n);
+	    }
+	    if(!why.isEmpty())
+		out.printf("    apart: %s\n", counts(why));
+	}
+	if(!invalid.isEmpty())
+	    out.printf("invalid: %s\n", counts(invalid));
+	if(!bypass.isEmpty())
+	    out.printf("not instancable: %s\n", counts(bypass));
+	out.flush();
+    }
+
+    static {
+	Console.setscmd("instmin", (cons, args) -> {
+		minbatch = Math.max(Integer.parseInt(args[1]), 2);
+	    });
+	Console.setscmd("instmerge", (cons, args) -> {
+		merge = Utils.parsebool(args[1], false);
+	    });
+    }
 }
@@ -0,0 +1,162 @@
+package haven.render.gl;
+
+import java.util.*;
+import java.lang.reflect.*;
+import com.jogamp.opengl.*;
+
+/* Checks that the packed encoding of BufferBGL issues exactly the
+ * same GL calls as the plain command objects of BGL, by running
+ * both against a GL3 that only records what it is called with. */
+public class BGLCheck {
+    public static class ObjBGL extends BGL {
+	public final List<Command> list = new ArrayList<>();
+
+	protected void add(Command cmd) {list.add(cmd);}
+	protected Iterable<Command> dump() {return(list);}
+
+	public void run(GL3 gl) {
+	    for(Command cmd : list)
+		cmd.run(gl);
+	}
+    }
+
+    public static GL3 recorder(List<String> log) {
+	return((GL3)Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] {GL3.class}, (proxy, m, args) -> {
+		    StringBuilder buf = new StringBuilder(m.getName());
+		    buf.append('(');
+		    for(int i = 0; (args != null) && (i < args.length); i++) {
+			if(i > 0)
+			    buf.append(", ");
+			buf.append((args[i] instanceof float[]) ? Arrays.toString((float[])args[i]) : String.valueOf(args[i]));
+		    }
+		    buf.append(')');
+		    log.add(buf.toString());
+		    Class<?> rt = m.getReturnType();
+		    if(rt == Boolean.TYPE) return(false);
+		    if(rt == Integer.TYPE) return(0);
+		    if(rt == Long.TYPE) return(0L);
+		    return(null);
+		}));
+    }
+
+    private static final BGL.ID[] ids = new BGL.ID[64];
+    static {
+	for(int i = 0; i < ids.length; i++) {
+	    int n = i;
+	    ids[i] = () -> n;
+	}
+    }
+
+    private static BGL.ID id(int n) {
+	return(ids[n]);
+    }
+
+    private static final float[] v3 = {1, 2, 3}, v4 = {1, 2, 3, 4}, m3 = new float[9], m4 = new float[16];
+    private static final BGL.Request flush = g -> g.glFlush();
+
+    public static void record(BGL gl, BufferBGL sub) {
+	Random rnd = new Random(4711);
+	BGL.ID prog = id(3), buf = id(7), tex = id(11), vao = id(13), fbo = id(17);
+	for(int i = 0; i < 50; i++) {
+	    gl.glUseProgram(prog);
+	    gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, (i % 5 == 0) ? null : fbo);
+	    gl.glViewport(0, 0, 800 + i, 600);
+	    gl.glScissor(1, 2, 3, 4);
+	    gl.glActiveTexture(GL.GL_TEXTURE0 + (i % 4));
+	    gl.glBindTexture(GL.GL_TEXTURE_2D, tex);
+	    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
+	    gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+	    gl.glBindVertexArray(vao);
+	    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buf);
+	    gl.glEnableVertexAttribArray(id(i));
+	    gl.glEnableVertexAttribArray(id(i), 2);
+	    gl.glDisableVertexAttribArray(id(i));
+	    gl.glDisableVertexAttribArray(id(i), 1);
+	    gl.glVertexAttribPointer(id(1), 3, GL.GL_FLOAT, false, 24, 12L * i);
+	    gl.glVertexAttribPointer(id(1), 1, 4, GL.GL_UNSIGNED_BYTE, true, 24, 0x100000000L + i);
+	    gl.glVertexAttribIPointer(id(2), 2, GL2ES2.GL_INT, 8, 16);
+	    gl.glVertexAttribIPointer(id(2), 1, 2, GL2ES2.GL_INT, 8, 16);
+	    gl.glVertexAttribDivisor(id(4), 1);
+	    gl.glVertexAttribDivisor(id(4), 3, 1);
+	    gl.glUniform1f(id(20), rnd.nextFloat());
+	    gl.glUniform2f(id(21), rnd.nextFloat(), -0.0f);
+	    gl.glUniform3f(id(22), Float.NaN, rnd.nextFloat(), Float.MIN_VALUE);
+	    gl.glUniform4f(id(23), 1, 2, 3, rnd.nextFloat());
+	    gl.glUniform1i(id(24), i);
+	    gl.glUniform2i(id(25), i, -i);
+	    gl.glUniform3i(id(26), 1, 2, 3);
+	    gl.glUniform4i(id(27), 1, 2, 3, Integer.MIN_VALUE);
+	    gl.glUniform3fv(id(28), 1, v3);
+	    gl.glUniform4fv(id(29), 1, v4);
+	    gl.glUniformMatrix3fv(id(30), 1, false, m3);
+	    gl.glUniformMatrix4fv(id(31), 1, true, m4);
+	    gl.glEnable(GL.GL_BLEND);
+	    gl.glDisable(GL.GL_DEPTH_TEST);
+	    gl.glEnablei(GL.GL_BLEND, 1);
+	    gl.glDisablei(GL.GL_BLEND, 2);
+	    gl.glBlendFunc(GL.GL_ONE, GL.GL_ZERO);
+	    gl.glBlendFuncSeparate(1, 2, 3, 4);
+	    gl.glBlendEquation(GL.GL_FUNC_ADD);
+	    gl.glBlendEquationSeparate(5, 6);
+	    gl.glBlendColor(0.1f, 0.2f, 0.3f, 0.4f);
+	    gl.glColorMask(true, false, true, false);
+	    gl.glColorMaski(1, false, true, false, true);
+	    gl.glDepthMask((i & 1) != 0);
+	    gl.glDepthFunc(GL.GL_LEQUAL);
+	    gl.glCullFace(GL.GL_BACK);
+	    gl.glPolygonOffset(-1.5f, 2.5f);
+	    gl.glLineWidth(2);
+	    gl.glPointSize(3);
+	    gl.glDrawArrays(GL.GL_TRIANGLES, i, 3);
+	    gl.glDrawArraysInstanced(GL.GL_TRIANGLES, 0, 3, i);
+	    gl.glDrawElements(GL.GL_TRIANGLES, 6, GL.GL_UNSIGNED_SHORT, 2L * i);
+	    gl.glDrawElementsInstanced(GL.GL_TRIANGLES, 6, GL.GL_UNSIGNED_SHORT, 4L, i);
+	    gl.glDrawRangeElements(GL.GL_TRIANGLES, 0, 10, 6, GL.GL_UNSIGNED_INT, 8L);
+	    /* Some commands that are not packed, to check ordering. */
+	    gl.glClearColor(0, 0, 0, 1);
+	    gl.glClear(GL.GL_COLOR_BUFFER_BIT);
+	    gl.bglSubmit(flush);
+	    if(sub != null)
+		gl.bglCallList(sub);
+	}
+    }
+
+    public static void main(String[] args) {
+	BufferBGL sub = new BufferBGL();
+	sub.glEnable(GL.GL_CULL_FACE);
+	sub.glUseProgram(null);
+	BufferBGL packed = new BufferBGL(4);
+	ObjBGL plain = new ObjBGL();
+	record(packed, sub);
+	record(plain, sub);
+	List<String> a = new ArrayList<>(), b = new ArrayList<>();
+	packed.run(recorder(a));
+	plain.run(recorder(b));
+	int diff = 0;
+	for(int i = 0; i < Math.max(a.size(), b.size()); i++) {
+	    String x = (i < a.size()) ? a.get(i) : null, y = (i < b.size()) ? b.get(i) : null;
+	    if(!Objects.equals(x, y)) {
+		if(diff++ < 10)
+		    System.out.printf("%d: packed %s, plain %s\n", i, x, y);
+	    }
+	}
+	System.out.printf("%d calls, %d differences\n", a.size(), diff);
+	int nd = 0;
+	for(BGL.Command cmd : packed.dump())
+	    nd++;
+	System.out.printf("%d commands recorded, %d dumped\n", packed.size(), nd);
+
+	int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+	BufferBGL reused = new BufferBGL();
+	for(int pass = 0; pass < 2; pass++) {
+	    long st = System.nanoTime();
+	    for(int i = 0; i < rounds; i++)
+		record(new ObjBGL(), null);
+	    long m = System.nanoTime();
+	    for(int i = 0; i < rounds; i++)
+		record(reused.reset(), null);
+	    long e = System.nanoTime();
+	    System.out.printf("record: objects %.2f ms, packed %.2f ms\n", (m - st) / (rounds * 1e6), (e - m) / (rounds * 1e6));
+	}
+    }
+}
@@ -33,28 +33,166 @@ import java.io.*;
 import java.nio.file.*;
 import com.jogamp.opengl.*;
 
+/* The most common commands are not stored as Command objects, but
+ * packed into an int stream of opcodes and operands, with long
+ * operands in a separate array and object references (IDs, arrays,
+ * requests) in a side table, so that recording a frame does not
+ * allocate an object per command. Everything else is stored as an
+ * OBJ opcode referring to its Command in the side table. */
 public class BufferBGL extends BGL {
     public static final BufferBGL empty = new BufferBGL(0) {
-	    protected void add(Command cmd) {
+	    protected void ensure(int ni, int nl, int nr) {
 		throw(new RuntimeException());
 	    }
 	};
     private static Profile curprof = null;
-    private Command[] list;
-    private int n = 0;
+    private int[] code;
+    private long[] lcode;
+    private Object[] refs;
+    private int ni = 0, nl = 0, nr = 0, n = 0;
+    private Command[] descs = null;
+
+    private static final int OBJ = 0, SUBMIT = 1, CALLLIST = 2,
+	ACTIVETEXTURE = 3, BINDBUFFER = 4, BINDFRAMEBUFFER = 5, BINDRENDERBUFFER = 6,
+	BINDTEXTURE = 7, BINDVERTEXARRAY = 8, USEPROGRAM = 9,
+	BLENDCOLOR = 10, BLENDEQUATION = 11, BLENDEQUATIONSEPARATE = 12, BLENDFUNC = 13, BLENDFUNCSEPARATE = 14,
+	COLORMASK = 15, COLORMASKI = 16, CULLFACE = 17, DEPTHFUNC = 18, DEPTHMASK = 19,
+	ENABLE = 20, DISABLE = 21, ENABLEI = 22, DISABLEI = 23,
+	ENABLEVERTEXATTRIBARRAY = 24, DISABLEVERTEXATTRIBARRAY = 25,
+	DRAWARRAYS = 26, DRAWARRAYSINSTANCED = 27, DRAWELEMENTS = 28, DRAWELEMENTSINSTANCED = 29, DRAWRANGEELEMENTS = 30,
+	LINEWIDTH = 31, POINTSIZE = 32, POLYGONOFFSET = 33, SCISSOR = 34, VIEWPORT = 35,
+	UNIFORM1F = 36, UNIFORM2F = 37, UNIFORM3F = 38, UNIFORM4F = 39,
+	UNIFORM1I = 40, UNIFORM2I = 41, UNIFORM3I = 42, UNIFORM4I = 43,
+	UNIFORM3FV = 44, UNIFORM4FV = 45, UNIFORMMATRIX3FV = 46, UNIFORMMATRIX4FV = 47,
+	VERTEXATTRIBPOINTER = 48, VERTEXATTRIBIPOINTER = 49, VERTEXATTRIBDIVISOR = 50,
+	TEXPARAMETERI = 51, PIXELSTOREI = 52;
+    /* Operand signatures, in call order: i = int, f = float and z =
+     * boolean from the int stream, l = long, and R = reference. */
+    private static final String[][] ops = {
+	{"obj", "R"}, {"bglSubmit", "R"}, {"bglCallList", "R"},
+	{"glActiveTexture", "i"}, {"glBindBuffer", "iR"}, {"glBindFramebuffer", "iR"}, {"glBindRenderbuffer", "iR"},
+	{"glBindTexture", "iR"}, {"glBindVertexArray", "R"}, {"glUseProgram", "R"},
+	{"glBlendColor", "ffff"}, {"glBlendEquation", "i"}, {"glBlendEquationSeparate", "ii"}, {"glBlendFunc", "ii"}, {"glBlendFuncSeparate", "iiii"},
+	{"glColorMask", "zzzz"}, {"glColorMaski", "izzzz"}, {"glCullFace", "i"}, {"glDepthFunc", "i"}, {"glDepthMask", "z"},
+	{"glEnable", "i"}, {"glDisable", "i"}, {"glEnablei", "ii"}, {"glDisablei", "ii"},
+	{"glEnableVertexAttribArray", "Ri"}, {"glDisableVertexAttribArray", "Ri"},
+	{"glDrawArrays", "iii"}, {"glDrawArraysInstanced", "iiii"}, {"glDrawElements", "iiil"}, {"glDrawElementsInstanced", "iiili"}, {"glDrawRangeElements", "iiiiil"},
+	{"glLineWidth", "f"}, {"glPointSize", "f"}, {"glPolygonOffset", "ff"}, {"glScissor", "iiii"}, {"glViewport", "iiii"},
+	{"glUniform1f", "Rf"}, {"glUniform2f", "Rff"}, {"glUniform3f", "Rfff"}, {"glUniform4f", "Rffff"},
+	{"glUniform1i", "Ri"}, {"glUniform2i", "Rii"}, {"glUniform3i", "Riii"}, {"glUniform4i", "Riiii"},
+	{"glUniform3fv", "RiR"}, {"glUniform4fv", "RiR"}, {"glUniformMatrix3fv", "RizR"}, {"glUniformMatrix4fv", "RizR"},
+	{"glVertexAttribPointer", "Riiizil"}, {"glVertexAttribIPointer", "Riiiil"}, {"glVertexAttribDivisor", "Rii"},
+	{"glTexParameteri", "iii"}, {"glPixelStorei", "ii"},
+    };
+    private static final int[][] opsz = new int[ops.length][3];
+    static {
+	for(int op = 0; op < ops.length; op++) {
+	    for(char c : ops[op][1].toCharArray()) {
+		switch(c) {
+		case 'i': case 'f': case 'z': opsz[op][0]++; break;
+		case 'l': opsz[op][1]++; break;
+		case 'R': opsz[op][2]++; break;
+		}
+	    }
+	}
+    }
 
     public BufferBGL(int c) {
-	list = new Command[Math.max(c, 1)];
+	code = new int[Math.max(c * 3, 1)];
+	lcode = new long[Math.max(c / 8, 1)];
+	refs = new Object[Math.max(c, 1)];
     }
     public BufferBGL() {this(128);}
 
+    private BufferBGL(int[] code, long[] lcode, Object[] refs, int n) {
+	this.code = code;
+	this.lcode = lcode;
+	this.refs = refs;
+	this.ni = code.length;
+	this.nl = lcode.length;
+	this.nr = refs.length;
+	this.n = n;
+    }
+
+    private static int glid(Object id) {
+	return((id == null) ? 0 : ((ID)id).glid());
+    }
+
+    private static boolean bool(int v) {
+	return(v != 0);
+    }
+
+    private void exec(GL3 gl, int op, int ip, int lp, int rp) {
+	int[] c = code;
+	long[] l = lcode;
+	Object[] r = refs;
+	switch(op) {
+	case OBJ: ((Command)r[rp]).run(gl); break;
+	case SUBMIT: ((Request)r[rp]).run(gl); break;
+	case CALLLIST: ((BufferBGL)r[rp]).run(gl); break;
+	case ACTIVETEXTURE: gl.glActiveTexture(c[ip]); break;
+	case BINDBUFFER: gl.glBindBuffer(c[ip], glid(r[rp])); break;
+	case BINDFRAMEBUFFER: gl.glBindFramebuffer(c[ip], glid(r[rp])); break;
+	case BINDRENDERBUFFER: gl.glBindRenderbuffer(c[ip], glid(r[rp])); break;
+	case BINDTEXTURE: gl.glBindTexture(c[ip], glid(r[rp])); break;
+	case BINDVERTEXARRAY: gl.glBindVertexArray(glid(r[rp])); break;
+	case USEPROGRAM: gl.glUseProgram(glid(r[rp])); break;
+	case BLENDCOLOR: gl.glBlendColor(Float.intBitsToFloat(c[ip]), Float.intBitsToFloat(c[ip + 1]), Float.intBitsToFloat(c[ip + 2]), Float.intBitsToFloat(c[ip + 3])); break;
+	case BLENDEQUATION: gl.glBlendEquation(c[ip]); break;
+	case BLENDEQUATIONSEPARATE: gl.glBlendEquationSeparate(c[ip], c[ip + 1]); break;
+	case BLENDFUNC: gl.glBlendFunc(c[ip], c[ip + 1]); break;
+	case BLENDFUNCSEPARATE: gl.glBlendFuncSeparate(c[ip], c[ip + 1], c[ip + 2], c[ip + 3]); break;
+	case COLORMASK: gl.glColorMask(bool(c[ip]), bool(c[ip + 1]), bool(c[ip + 2]), bool(c[ip + 3])); break;
+	case COLORMASKI: gl.glColorMaski(c[ip], bool(c[ip + 1]), bool(c[ip + 2]), bool(c[ip + 3]), bool(c[ip + 4])); break;
+	case CULLFACE: gl.glCullFace(c[ip]); break;
+	case DEPTHFUNC: gl.glDepthFunc(c[ip]); break;
+	case DEPTHMASK: gl.glDepthMask(bool(c[ip])); break;
+	case ENABLE: gl.glEnable(c[ip]); break;
+	case DISABLE: gl.glDisable(c[ip]); break;
+	case ENABLEI: gl.glEnablei(c[ip], c[ip + 1]); break;
+	case DISABLEI: gl.glDisablei(c[ip], c[ip + 1]); break;
+	case ENABLEVERTEXATTRIBARRAY: gl.glEnableVertexAttribArray(glid(r[rp]) + c[ip]); break;
+	case DISABLEVERTEXATTRIBARRAY: gl.glDisableVertexAttribArray(glid(r[rp]) + c[ip]); break;
+	case DRAWARRAYS: gl.glDrawArrays(c[ip], c[ip + 1], c[ip + 2]); break;
+	case DRAWARRAYSINSTANCED: gl.glDrawArraysInstanced(c[ip], c[ip + 1], c[ip + 2], c[ip + 3]); break;
+	case DRAWELEMENTS: gl.glDrawElements(c[ip], c[ip + 1], c[ip + 2], l[lp]); break;
+	case DRAWELEMENTSINSTANCED: gl.glDrawElementsInstanced(c[ip], c[ip + 1], c[ip + 2], l[lp], c[ip + 3]); break;
+	case DRAWRANGEELEMENTS: gl.glDrawRangeElements(c[ip], c[ip + 1], c[ip + 2], c[ip + 3], c[ip + 4], l[lp]); break;
+	case LINEWIDTH: gl.glLineWidth(Float.intBitsToFloat(c[ip])); break;
+	case POINTSIZE: gl.glPointSize(Float.intBitsToFloat(c[ip])); break;
+	case POLYGONOFFSET: gl.glPolygonOffset(Float.intBitsToFloat(c[ip]), Float.intBitsToFloat(c[ip + 1])); break;
+	case SCISSOR: gl.glScissor(c[ip], c[ip + 1], c[ip + 2], c[ip + 3]); break;
+	case VIEWPORT: gl.glViewport(c[ip], c[ip + 1], c[ip + 2], c[ip + 3]); break;
+	case UNIFORM1F: gl.glUniform1f(glid(r[rp]), Float.intBitsToFloat(c[ip])); break;
+	case UNIFORM2F: gl.glUniform2f(glid(r[rp]), Float.intBitsToFloat(c[ip]), Float.intBitsToFloat(c[ip + 1])); break;
+	case UNIFORM3F: gl.glUniform3f(glid(r[rp]), Float.intBitsToFloat(c[ip]), Float.intBitsToFloat(c[ip + 1]), Float.intBitsToFloat(c[ip + 2])); break;
+	case UNIFORM4F: gl.glUniform4f(glid(r[rp]), Float.intBitsToFloat(c[ip]), Float.intBitsToFloat(c[ip + 1]), Float.intBitsToFloat(c[ip + 2]), Float.intBitsToFloat(c[ip + 3])); break;
+	case UNIFORM1I: gl.glUniform1i(glid(r[rp]), c[ip]); break;
+	case UNIFORM2I: gl.glUniform2i(glid(r[rp]), c[ip], c[ip + 1]); break;
+	case UNIFORM3I: gl.glUniform3i(glid(r[rp]), c[ip], c[ip + 1], c[ip + 2]); break;
+	case UNIFORM4I: gl.glUniform4i(glid(r[rp]), c[ip], c[ip + 1], c[ip + 2], c[ip + 3]); break;
+	case UNIFORM3FV: gl.glUniform3fv(glid(r[rp]), c[ip], (float[])r[rp + 1], 0); break;
+	case UNIFORM4FV: gl.glUniform4fv(glid(r[rp]), c[ip], (float[])r[rp + 1], 0); break;
+	case UNIFORMMATRIX3FV: gl.glUniformMatrix3fv(glid(r[rp]), c[ip], bool(c[ip + 1]), (float[])r[rp + 1], 0); break;
+	case UNIFORMMATRIX4FV: gl.glUniformMatrix4fv(glid(r[rp]), c[ip], bool(c[ip + 1]), (float[])r[rp + 1], 0); break;
+	case VERTEXATTRIBPOINTER: gl.glVertexAttribPointer(glid(r[rp]) + c[ip], c[ip + 1], c[ip + 2], bool(c[ip + 3]), c[ip + 4], l[lp]); break;
+	case VERTEXATTRIBIPOINTER: gl.glVertexAttribIPointer(glid(r[rp]) + c[ip], c[ip + 1], c[ip + 2], c[ip + 3], l[lp]); break;
+	case VERTEXATTRIBDIVISOR: gl.glVertexAttribDivisor(glid(r[rp]) + c[ip], c[ip + 1]); break;
+	case TEXPARAMETERI: gl.glTexParameteri(c[ip], c[ip + 1], c[ip + 2]); break;
+	case PIXELSTOREI: gl.glPixelStorei(c[ip], c[ip + 1]); break;
+	default: throw(new AssertionError("invalid BGL opcode " + op));
+	}
+    }
+
     public void run(GL3 gl) {
-	for(int i = 0; i < n; i++) {
+	for(int ip = 0, lp = 0, rp = 0, i = 0; ip < ni; i++) {
+	    int op = code[ip];
+	    int[] sz = opsz[op];
 	    if(curprof != null)
-		curprof.register(list[i]);
+		curprof.register(descs()[i]);
 	    try {
 		try {
-		    list[i].run(gl);
+		    exec(gl, op, ip + 1, lp, rp);
 		} catch(com.jogamp.opengl.GLException exc) {
 		    /* How nice wouldn't it be if DebugGL could be
 		     * subclasseed to customize the errors. */
@@ -62,8 +200,9 @@ public class BufferBGL extends BGL {
 		    throw(exc);
 		}
 	    } catch(Exception exc) {
-		throw(new BGLException(this, list[i], exc));
+		throw(new BGLException(this, descs()[i], exc));
 	    }
+	    ip += 1 + sz[0]; lp += sz[1]; rp += sz[2];
 	}
     }
 
@@ -96,40 +235,313 @@ public class BufferBGL extends BGL {
     }
 
     public void abort() {
-	for(int i = 0; i < n; i++)
-	    list[i].abort();
+	for(int ip = 0, rp = 0; ip < ni;) {
+	    int op = code[ip];
+	    if(op == OBJ)
+		((Command)refs[rp]).abort();
+	    else if(op == SUBMIT)
+		((Request)refs[rp]).abort();
+	    ip += 1 + opsz[op][0]; rp += opsz[op][2];
+	}
+    }
+
+    protected void ensure(int ni, int nl, int nr) {
+	if(this.ni + ni > code.length)
+	    code = Arrays.copyOf(code, Math.max(code.length * 2, this.ni + ni));
+	if(this.nl + nl > lcode.length)
+	    lcode = Arrays.copyOf(lcode, Math.max(lcode.length * 2, this.nl + nl));
+	if(this.nr + nr > refs.length)
+	    refs = Arrays.copyOf(refs, Math.max(refs.length * 2, this.nr + nr));
+	n++;
+	descs = null;
     }
 
     protected void add(Command cmd) {
-	if(n >= list.length)
-	    list = Arrays.copyOf(list, list.length * 2);
-	list[n++] = cmd;
+	ensure(1, 0, 1);
+	code[ni++] = OBJ;
+	refs[nr++] = cmd;
+    }
+
+    private void op(int op, Object r) {
+	ensure(1, 0, 1);
+	code[ni++] = op;
+	refs[nr++] = r;
+    }
+
+    private void op(int op, int a) {
+	ensure(2, 0, 0);
+	code[ni++] = op; code[ni++] = a;
+    }
+
+    private void op(int op, int a, int b) {
+	ensure(3, 0, 0);
+	code[ni++] = op; code[ni++] = a; code[ni++] = b;
+    }
+
+    private void op(int op, int a, int b, int c) {
+	ensure(4, 0, 0);
+	code[ni++] = op; code[ni++] = a; code[ni++] = b; code[ni++] = c;
+    }
+
+    private void op(int op, int a, int b, int c, int d) {
+	ensure(5, 0, 0);
+	code[ni++] = op; code[ni++] = a; code[ni++] = b; code[ni++] = c; code[ni++] = d;
+    }
+
+    private void op(int op, int a, Object r) {
+	ensure(2, 0, 1);
+	code[ni++] = op; code[ni++] = a;
+	refs[nr++] = r;
+    }
+
+    private static int fb(float v) {
+	return(Float.floatToRawIntBits(v));
+    }
+
+    private static int zb(boolean v) {
+	return(v ? 1 : 0);
+    }
+
+    /* Number of commands recorded. */
+    public int size() {
+	return(n);
+    }
+
+    /* Forgets all recorded commands, keeping the allocated arenas,
+     * so that the buffer can be reused for recording the next
+     * frame. */
+    public BufferBGL reset() {
+	Arrays.fill(refs, 0, nr, null);
+	ni = nl = nr = n = 0;
+	descs = null;
+	return(this);
+    }
+
+    /* Returns an exactly sized copy of the recorded commands, so
+     * that a scratch buffer can be reset and recorded into again
+     * while the copy is kept. */
+    public BufferBGL copy() {
+	return(new BufferBGL(Arrays.copyOf(code, ni), Arrays.copyOf(lcode, nl), Arrays.copyOf(refs, nr), n));
     }
 
     public BufferBGL trim() {
-	list = Arrays.copyOf(list, n);
+	code = Arrays.copyOf(code, Math.max(ni, 1));
+	lcode = Arrays.copyOf(lcode, Math.max(nl, 1));
+	refs = Arrays.copyOf(refs, Math.max(nr, 1));
 	return(this);
     }
 
+    public void bglSubmit(Request req) {op(SUBMIT, req);}
+    public void bglCallList(BufferBGL list) {op(CALLLIST, list);}
+    public void glActiveTexture(int texture) {op(ACTIVETEXTURE, texture);}
+    public void glBindBuffer(int target, ID buffer) {op(BINDBUFFER, target, buffer);}
+    public void glBindFramebuffer(int target, ID buffer) {op(BINDFRAMEBUFFER, target, buffer);}
+    public void glBindRenderbuffer(int target, ID buffer) {op(BINDRENDERBUFFER, target, buffer);}
+    public void glBindTexture(int target, ID texture) {op(BINDTEXTURE, target, texture);}
+    public void glBindVertexArray(ID array) {op(BINDVERTEXARRAY, array);}
+    public void glUseProgram(ID program) {op(USEPROGRAM, program);}
+    public void glBlendColor(float red, float green, float blue, float alpha) {op(BLENDCOLOR, fb(red), fb(green), fb(blue), fb(alpha));}
+    public void glBlendEquation(int mode) {op(BLENDEQUATION, mode);}
+    public void glBlendEquationSeparate(int cmode, int amode) {op(BLENDEQUATIONSEPARATE, cmode, amode);}
+    public void glBlendFunc(int sfac, int dfac) {op(BLENDFUNC, sfac, dfac);}
+    public void glBlendFuncSeparate(int csfac, int cdfac, int asfac, int adfac) {op(BLENDFUNCSEPARATE, csfac, cdfac, asfac, adfac);}
+    public void glColorMask(boolean r, boolean g, boolean b, boolean a) {op(COLORMASK, zb(r), zb(g), zb(b), zb(a));}
+    public void glCullFace(int mode) {op(CULLFACE, mode);}
+    public void glDepthFunc(int func) {op(DEPTHFUNC, func);}
+    public void glDepthMask(boolean mask) {op(DEPTHMASK, zb(mask));}
+    public void glEnable(int cap) {op(ENABLE, cap);}
+    public void glDisable(int cap) {op(DISABLE, cap);}
+    public void glEnablei(int cap, int index) {op(ENABLEI, cap, index);}
+    public void glDisablei(int cap, int index) {op(DISABLEI, cap, index);}
+    public void glEnableVertexAttribArray(ID location) {op(ENABLEVERTEXATTRIBARRAY, 0, location);}
+    public void glEnableVertexAttribArray(ID location, int offset) {op(ENABLEVERTEXATTRIBARRAY, offset, location);}
+    public void glDisableVertexAttribArray(ID location) {op(DISABLEVERTEXATTRIBARRAY, 0, location);}
+    public void glDisableVertexAttribArray(ID location, int offset) {op(DISABLEVERTEXATTRIBARRAY, offset, location);}
+    public void glDrawArrays(int mode, int first, int count) {op(DRAWARRAYS, mode, first, count);}
+    public void glDrawArraysInstanced(int mode, int first, int count, int primcount) {op(DRAWARRAYSINSTANCED, mode, first, count, primcount);}
+    public void glLineWidth(float w) {op(LINEWIDTH, fb(w));}
+    public void glPointSize(float size) {op(POINTSIZE, fb(size));}
+    public void glPolygonOffset(float factor, float units) {op(POLYGONOFFSET, fb(factor), fb(units));}
+    public void glScissor(int x, int y, int w, int h) {op(SCISSOR, x, y, w, h);}
+    public void glViewport(int x, int y, int w, int h) {op(VIEWPORT, x, y, w, h);}
+    public void glUniform1i(ID location, int v0) {op(UNIFORM1I, v0, location);}
+    public void glUniform1f(ID location, float v0) {op(UNIFORM1F, fb(v0), location);}
+    public void glTexParameteri(int target, int pname, int param) {op(TEXPARAMETERI, target, pname, param);}
+    public void glPixelStorei(int pname, int param) {op(PIXELSTOREI, pname, param);}
+
+    public void glColorMaski(int buf, boolean r, boolean g, boolean b, boolean a) {
+	ensure(6, 0, 0);
+	code[ni++] = COLORMASKI; code[ni++] = buf;
+	code[ni++] = zb(r); code[ni++] = zb(g); code[ni++] = zb(b); code[ni++] = zb(a);
+    }
+
+    public void glDrawElements(int mode, int count, int type, long indices) {
+	ensure(4, 1, 0);
+	code[ni++] = DRAWELEMENTS; code[ni++] = mode; code[ni++] = count; code[ni++] = type;
+	lcode[nl++] = indices;
+    }
+
+    public void glDrawElementsInstanced(int mode, int count, int type, long indices, int primcount) {
+	ensure(5, 1, 0);
+	code[ni++] = DRAWELEMENTSINSTANCED; code[ni++] = mode; code[ni++] = count; code[ni++] = type; code[ni++] = primcount;
+	lcode[nl++] = indices;
+    }
+
+    public void glDrawRangeElements(int mode, int start, int end, int count, int type, long indices) {
+	ensure(6, 1, 0);
+	code[ni++] = DRAWRANGEELEMENTS; code[ni++] = mode; code[ni++] = start; code[ni++] = end; code[ni++] = count; code[ni++] = type;
+	lcode[nl++] = indices;
+    }
+
+    public void glUniform2f(ID location, float v0, float v1) {
+	ensure(3, 0, 1);
+	code[ni++] = UNIFORM2F; code[ni++] = fb(v0); code[ni++] = fb(v1);
+	refs[nr++] = location;
+    }
+
+    public void glUniform3f(ID location, float v0, float v1, float v2) {
+	ensure(4, 0, 1);
+	code[ni++] = UNIFORM3F; code[ni++] = fb(v0); code[ni++] = fb(v1); code[ni++] = fb(v2);
+	refs[nr++] = location;
+    }
+
+    public void glUniform4f(ID location, float v0, float v1, float v2, float v3) {
+	ensure(5, 0, 1);
+	code[ni++] = UNIFORM4F; code[ni++] = fb(v0); code[ni++] = fb(v1); code[ni++] = fb(v2); code[ni++] = fb(v3);
+	refs[nr++] = location;
+    }
+
+    public void glUniform2i(ID location, int v0, int v1) {
+	ensure(3, 0, 1);
+	code[ni++] = UNIFORM2I; code[ni++] = v0; code[ni++] = v1;
+	refs[nr++] = location;
+    }
+
+    public void glUniform3i(ID location, int v0, int v1, int v2) {
+	ensure(4, 0, 1);
+	code[ni++] = UNIFORM3I; code[ni++] = v0; code[ni++] = v1; code[ni++] = v2;
+	refs[nr++] = location;
+    }
+
+    public void glUniform4i(ID location, int v0, int v1, int v2, int v3) {
+	ensure(5, 0, 1);
+	code[ni++] = UNIFORM4I; code[ni++] = v0; code[ni++] = v1; code[ni++] = v2; code[ni++] = v3;
+	refs[nr++] = location;
+    }
+
+    private void uniformv(int op, ID location, int count, int transpose, float[] val, boolean hastr) {
+	ensure(hastr ? 3 : 2, 0, 2);
+	code[ni++] = op; code[ni++] = count;
+	if(hastr)
+	    code[ni++] = transpose;
+	refs[nr++] = location; refs[nr++] = val;
+    }
+
+    public void glUniform3fv(ID location, int count, float[] val) {uniformv(UNIFORM3FV, location, count, 0, val, false);}
+    public void glUniform4fv(ID location, int count, float[] val) {uniformv(UNIFORM4FV, location, count, 0, val, false);}
+    public void glUniformMatrix3fv(ID location, int count, boolean transpose, float[] value) {uniformv(UNIFORMMATRIX3FV, location, count, zb(transpose), value, true);}
+    public void glUniformMatrix4fv(ID location, int count, boolean transpose, float[] value) {uniformv(UNIFORMMATRIX4FV, location, count, zb(transpose), value, true);}
+
+    public void glVertexAttribPointer(ID location, int size, int type, boolean normalized, int stride, long pointer) {
+	glVertexAttribPointer(location, 0, size, type, normalized, stride, pointer);
+    }
+
+    public void glVertexAttribPointer(ID location, int offset, int size, int type, boolean normalized, int stride, long pointer) {
+	ensure(6, 1, 1);
+	code[ni++] = VERTEXATTRIBPOINTER; code[ni++] = offset; code[ni++] = size; code[ni++] = type; code[ni++] = zb(normalized); code[ni++] = stride;
+	lcode[nl++] = pointer;
+	refs[nr++] = location;
+    }
+
+    public void glVertexAttribIPointer(ID location, int size, int type, int stride, long pointer) {
+	glVertexAttribIPointer(location, 0, size, type, stride, pointer);
+    }
+
+    public void glVertexAttribIPointer(ID location, int offset, int size, int type, int stride, long pointer) {
+	ensure(5, 1, 1);
+	code[ni++] = VERTEXATTRIBIPOINTER; code[ni++] = offset; code[ni++] = size; code[ni++] = type; code[ni++] = stride;
+	lcode[nl++] = pointer;
+	refs[nr++] = location;
+    }
+
+    public void glVertexAttribDivisor(ID location, int divisor) {glVertexAttribDivisor(location, 0, divisor);}
+    public void glVertexAttribDivisor(ID location, int offset, int divisor) {
+	ensure(3, 0, 1);
+	code[ni++] = VERTEXATTRIBDIVISOR; code[ni++] = offset; code[ni++] = divisor;
+	refs[nr++] = location;
+    }
+
+    /* Stands in for a packed command in dumps and profiles. */
+    static class Packed extends Command {
+	final String op;
+	final Object[] args;
+	final BufferBGL cmd;
+
+	Packed(String op, Object[] args, BufferBGL cmd) {
+	    this.op = op;
+	    this.args = args;
+	    this.cmd = cmd;
+	}
+
+	public void run(GL3 gl) {cmd.run(gl);}
+	public void abort() {cmd.abort();}
+
+	public String toString() {
+	    StringBuilder buf = new StringBuilder();
+	    buf.append(op).append('(');
+	    for(int i = 0; i < args.length; i++) {
+		if(i > 0)
+		    buf.append(", ");
+		Object a = args[i];
+		buf.append((a instanceof float[]) ? Arrays.toString((float[])a) : String.valueOf(a));
+	    }
+	    buf.append(')');
+	    return(buf.toString());
+	}
+    }
+
+    private Command describe(int ip, int lp, int rp) {
+	int op = code[ip];
+	if(op == OBJ)
+	    return((Command)refs[rp]);
+	int[] sz = opsz[op];
+	BufferBGL cmd = new BufferBGL(Arrays.copyOfRange(code, ip, ip + 1 + sz[0]),
+				      Arrays.copyOfRange(lcode, lp, lp + sz[1]),
+				      Arrays.copyOfRange(refs, rp, rp + sz[2]), 1);
+	ip++;
+	String sig = ops[op][1];
+	Object[] args = new Object[sig.length()];
+	for(int i = 0; i < args.length; i++) {
+	    switch(sig.charAt(i)) {
+	    case 'i': args[i] = code[ip++]; break;
+	    case 'f': args[i] = Float.intBitsToFloat(code[ip++]); break;
+	    case 'z': args[i] = code[ip++] != 0; break;
+	    case 'l': args[i] = lcode[lp++]; break;
+	    case 'R': args[i] = refs[rp++]; break;
+	    }
+	}
+	return(new Packed(ops[op][0], args, cmd));
+    }
+
+    /* Packed entries are described only when something asks to see
+     * them, but then consistently, since exception dumps find the
+     * failing command by identity. */
+    private Command[] descs() {
+	Command[] ret = descs;
+	if(ret == null) {
+	    ret = new Command[n];
+	    for(int ip = 0, lp = 0, rp = 0, i = 0; ip < ni; i++) {
+		int[] sz = opsz[code[ip]];
+		ret[i] = describe(ip, lp, rp);
+		ip += 1 + sz[0]; lp += sz[1]; rp += sz[2];
+	    }
+	    descs = ret;
+	}
+	return(ret);
+    }
+
     protected Iterable<Command> dump() {
-	return(new Iterable<Command>() {
-		public Iterator<Command> iterator() {
-		    return(new Iterator<Command>() {
-			    int i = 0;
-			    public boolean hasNext() {
-				return(i < n);
-			    }
-			    public Command next() {
-				if(i < n)
-				    return(list[i++]);
-				throw(new NoSuchElementException());
-			    }
-			    public void remove() {
-				throw(new UnsupportedOperationException());
-			    }
-			});
-		}
-	    });
+	return(Arrays.asList(descs()));
     }
 
     public static class Profile {
@@ -47,6 +47,28 @@ public class GLDrawList implements DrawList {
     private final GLDoubleBuffer settingbuf = new GLDoubleBuffer();
     private DrawSlot root = null;
     private boolean disposed = false;
+    private final AtomicInteger settingseq = new AtomicInteger(0);
+    /* State switches made by the compiled slot lists, kept up to
+     * date as slots are (re)compiled. */
+    private int nprog = 0, ntex = 0, nbuf = 0;
+    /* Recording arena for compiled slot and setting buffers,
+     * guarded by the list's lock. Only exact copies of what is
+     * recorded into it are kept. */
+    private BufferBGL scratch = null;
+
+    private BufferBGL scratch() {
+	BufferBGL ret = scratch;
+	if(ret == null)
+	    return(new BufferBGL());
+	scratch = null;
+	return(ret.reset());
+    }
+
+    private BufferBGL keep(BufferBGL buf) {
+	BufferBGL ret = buf.copy();
+	scratch = buf.reset();
+	return(ret);
+    }
 
     private static int btheight(DrawSlot s) {
 	return((s == null) ? 0 : s.th);
@@ -68,24 +90,35 @@ public class GLDrawList implements DrawList {
 	}
     }
 
+    /* Slots are ordered first by their main order, then by the
+     * order's own comparator (for eg. depth sorting), and then by
+     * a key packing the program, framebuffer and VAO, so that slots
+     * sharing the most expensive state end up adjacent. */
     private static final Comparator<DrawSlot> order = new Comparator<DrawSlot>() {
+	    @SuppressWarnings("unchecked")
 	    public int compare(DrawSlot a, DrawSlot b) {
 		int c;
-		if((c = Rendered.Order.cmp.compare(a.gorder, b.gorder)) != 0)
+		if((c = Integer.compare(a.morder, b.morder)) != 0)
 		    return(c);
-		if((c = Utils.sidcmp(a.prog, b.prog)) != 0)
+		if((c = a.gorder.comparator().compare(a.gorder, b.gorder)) != 0)
 		    return(c);
-		if((c = Utils.sidcmp(a.settings[idx_fbo], b.settings[idx_fbo])) != 0)
+		if((c = Long.compareUnsigned(a.skey, b.skey)) != 0)
 		    return(c);
-		if((c = Utils.sidcmp(((VaoSetting)a.settings[idx_vao]).st, ((VaoSetting)b.settings[idx_vao]).st)) != 0)
+		if((c = Integer.compareUnsigned(a.vkey, b.vkey)) != 0)
 		    return(c);
 		return((a.sortid < b.sortid) ? -1 : 1);
 	    }
 	};
+    private static long sortkey(GLProgram prog, Setting fbo) {
+	return((((long)prog.sortseq) << 32) | ((long)fbo.sortseq & 0xffffffffL));
+    }
     private static AtomicLong uniqid = new AtomicLong();
     private class DrawSlot {
 	/* List structure */
 	final long sortid;
+	long skey;
+	int vkey;
+	int morder;
 	DrawSlot tp, tl, tr;
 	int th = 0;
 	int tsubsize = 0;	/* Not critical, only used for debugging purposes. */
@@ -236,6 +269,7 @@ public class GLDrawList implements DrawList {
 	final GLProgram prog;
 	final Setting[] settings;
 	BufferBGL compiled, main;
+	int sprog, stex, sbuf;
 	Rendered.Order gorder;
 	final Pipe ordersrc;
 	private volatile boolean disposed = false;
@@ -261,24 +295,46 @@ public class GLDrawList implements DrawList {
 		settings[idx_uni + i] = getuniform(prog, prog.uniforms[i], bst);
 	}
 
+	private boolean texsetting(int i) {
+	    return((i >= idx_uni) && (prog.uniforms[i - idx_uni].type instanceof Type.Sampler));
+	}
+
+	private void uncount() {
+	    nprog -= sprog; ntex -= stex; nbuf -= sbuf;
+	    sprog = stex = sbuf = 0;
+	}
+
+	private void count(DrawSlot prev) {
+	    uncount();
+	    boolean same = (prev != null) && (prev.prog == this.prog);
+	    sprog = same ? 0 : 1;
+	    for(int i = idx_uni; i < settings.length; i++) {
+		if(texsetting(i) && (!same || (settings[i] != prev.settings[i])))
+		    stex++;
+	    }
+	    sbuf = (!same || (settings[idx_vao] != prev.settings[idx_vao])) ? 1 : 0;
+	    nprog += sprog; ntex += stex; nbuf += sbuf;
+	}
+
 	private void glupdate(DrawSlot prev) {
+	    count(prev);
 	    if(prev == null) {
 		compiled = main;
 	    } else if(prev.prog == this.prog) {
-		BufferBGL gl = new BufferBGL();
+		BufferBGL gl = scratch();
 		for(int i = 0; i < this.settings.length; i++) {
 		    if(this.settings[i] != prev.settings[i])
 			gl.bglSubmit(this.settings[i].gl);
 		}
 		gl.bglCallList(main);
-		compiled = gl.trim();
+		compiled = keep(gl);
 	    } else {
-		BufferBGL gl = new BufferBGL();
+		BufferBGL gl = scratch();
 		GLProgram.apply(gl, prev.prog, this.prog);
 		for(int i = 0; i < this.settings.length; i++)
 		    gl.bglSubmit(this.settings[i].gl);
 		gl.bglCallList(main);
-		compiled = gl.trim();
+		compiled = keep(gl);
 	    }
 	}
 
@@ -317,19 +373,26 @@ public class GLDrawList implements DrawList {
 	    }
 	}
 
+	void setorder(Rendered.Order order) {
+	    this.gorder = order;
+	    this.morder = order.mainorder();
+	}
+
+	/* Only a slot whose order has actually moved it past one of
+	 * its neighbours is taken out and reinserted, and only it and
+	 * the slots following its old and new positions are
+	 * recompiled. */
 	void orderupdate() {
 	    Rendered.Order norder = ordersrc.get(Rendered.order);
-	    boolean fixed = false;
-	    if((Rendered.Order.cmp.compare(gorder, norder) == 0) ||
-	       ((Rendered.Order.cmp.compare(prev().gorder, norder) >= 0) &&
-		(Rendered.Order.cmp.compare(next().gorder, norder) <= 0)))
-	    {
-		gorder = norder;
-	    } else {
-		tremove();
-		gorder = norder;
-		tinsert();
-	    }
+	    if(norder == gorder)
+		return;
+	    setorder(norder);
+	    DrawSlot prev = prev(), next = next();
+	    if(((prev == null) || (order.compare(prev, this) < 0)) &&
+	       ((next == null) || (order.compare(this, next) < 0)))
+		return;
+	    remove();
+	    insert();
 	}
 
 	DrawSlot(Slot<? extends Rendered> bk) {
@@ -341,20 +404,22 @@ public class GLDrawList implements DrawList {
 		this.prog.lock();
 		this.settings = new Setting[idx_uni + prog.uniforms.length];
 		getsettings();
-		gorder = Rendered.deflt;
+		setorder(Rendered.deflt);
 		{
 		    int grp = bst.gstate(Rendered.order.id);
 		    if(grp < 0) {
 			ordersrc = null;
 		    } else {
 			ordersrc = bst.group(grp);
-			gorder = ordersrc.get(Rendered.order);
+			setorder(ordersrc.get(Rendered.order));
 			orderreg();
 		    }
 		}
 		main = BufferBGL.empty;
 		SlotRender g = new SlotRender(this);
 		bk.obj().draw(bst, g);
+		skey = sortkey(prog, settings[idx_fbo]);
+		vkey = settings[idx_vao].sortseq;
 	    } catch(RuntimeException exc) {
 		dispose();
 		throw(exc);
@@ -372,6 +437,7 @@ public class GLDrawList implements DrawList {
 	void remove() {
 	    DrawSlot prev = prev(), next = next();
 	    tremove();
+	    uncount();
 	    if(next != null)
 		next.glupdate(prev);
 	}
@@ -477,13 +543,14 @@ public class GLDrawList implements DrawList {
 
     abstract class Setting {
 	final GLDoubleBuffer.Buffered gl = settingbuf.new Buffered();
+	final int sortseq = settingseq.getAndIncrement();
 
 	abstract void compile(BGL gl);
 
 	void update() {
-	    BufferBGL buf = new BufferBGL();
+	    BufferBGL buf = scratch();
 	    compile(buf);
-	    this.gl.update(buf.trim());
+	    this.gl.update(keep(buf));
 	}
 
 	void put() {}
@@ -850,7 +917,7 @@ public class GLDrawList implements DrawList {
 	    if(st != slot.bk.state())
 		throw(new IllegalArgumentException("Must render with state from rendertree"));
 
-	    BufferBGL gl = new BufferBGL(1);
+	    BufferBGL gl = scratch();
 	    if(GLVertexArray.ephemeralp(mod)) {
 		throw(new NotImplemented("ephemeral models in drawlist"));
 	    } else {
@@ -877,7 +944,7 @@ public class GLDrawList implements DrawList {
 		    else
 			gl.glDrawElementsInstanced(GLRender.glmode(mod.mode), mod.n, GLRender.glindexfmt(mod.ind.fmt), mod.f * mod.ind.fmt.size, mod.ninst);
 		}
-		slot.main = gl;
+		slot.main = keep(gl);
 	    }
 	    done = true;
 	}
@@ -966,6 +1033,7 @@ public class GLDrawList implements DrawList {
 	    for(DrawSlot cur = first; cur != null; last = cur, cur = cur.next())
 		gl.bglCallList(cur.compiled);
 	    settingbuf.put(gl);
+	    env.drawstats.add(btsubsize(root), nprog, ntex, nbuf);
 	    g.state.assume(last.bk.state());
 	}
     }
@@ -1078,6 +1146,6 @@ public class GLDrawList implements DrawList {
     }
 
     public String stats() {
-	return(String.format("%,d", btsubsize(root)));
+	return(String.format("%,d (%,d prog, %,d tex, %,d buf)", btsubsize(root), nprog, ntex, nbuf));
     }
 }
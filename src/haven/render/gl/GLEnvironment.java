@@ -39,6 +39,7 @@ public class GLEnvironment implements Environment {
     public static final boolean debuglog = false, labels = false;
     public final GLContext ctx;
     public final Caps caps;
+    public final ProgramCache progcache;
     final Object drawmon = new Object();
     final Object prepmon = new Object();
     final Collection<GLObject> disposed = new LinkedList<>();
@@ -49,6 +50,11 @@ public class GLEnvironment implements Environment {
     private GLRender prep = null;
     private Applier curstate = new Applier(this);
     private boolean invalid = false;
+    /* Command buffers of processed renders, kept for recording
+     * later frames into. */
+    private final BufferBGL[] arenas = new BufferBGL[4];
+    private int narenas = 0;
+    private final BufferBGL xfarena = new BufferBGL(16), disparena = new BufferBGL(); // Synchronized on drawmon
 
     public static class HardwareException extends UnavailableException {
 	public final Caps caps;
@@ -68,6 +74,7 @@ public class GLEnvironment implements Environment {
 	public final int maxtargets;
 	public final float anisotropy;
 	public final float linemin, linemax;
+	public final boolean progbinary;
 
 	private static int glgeti(GL gl, int param) {
 	    int[] buf = {0};
@@ -149,6 +156,10 @@ public class GLEnvironment implements Environment {
 		    this.linemin = this.linemax = 1;
 		}
 	    }
+	    if(((major > 4) || ((major == 4) && (minor >= 1))) || exts.contains("GL_ARB_get_program_binary"))
+		progbinary = glcondi(gl, GL3.GL_NUM_PROGRAM_BINARY_FORMATS, 0) > 0;
+	    else
+		progbinary = false;
 	}
 
 	public void checkreq() {
@@ -179,6 +190,12 @@ public class GLEnvironment implements Environment {
 	initialize(initgl.getGL3());
 	this.nilfbo_id = ctx.getDefaultDrawFramebuffer();
 	this.nilfbo_db = ctx.getDefaultReadBuffer();
+	if(ProgramCache.enabled && (ResCache.global != null)) {
+	    this.progcache = new ProgramCache(ResCache.global, caps);
+	    progcache.warm(this, true);
+	} else {
+	    this.progcache = null;
+	}
     }
 
     private void initialize(GL3 gl) {
@@ -275,7 +292,7 @@ public class GLEnvironment implements Environment {
 	    synchronized(drawmon) {
 		checkqueries(gl);
 		if((prep != null) && (prep.gl != null)) {
-		    BufferBGL xf = new BufferBGL(16);
+		    BufferBGL xf = xfarena.reset();
 		    this.curstate.apply(xf, prep.init);
 		    xf.run(gl);
 		    prep.gl.run(gl);
@@ -286,9 +303,10 @@ public class GLEnvironment implements Environment {
 			throw(new BGL.BGLException(prep.gl, null, exc));
 		    }
 		    sequnreg(prep);
+		    recycle(prep);
 		}
 		for(GLRender cmd : copy) {
-		    BufferBGL xf = new BufferBGL(16);
+		    BufferBGL xf = xfarena.reset();
 		    this.curstate.apply(xf, cmd.init);
 		    xf.run(gl);
 		    cmd.gl.run(gl);
@@ -299,6 +317,7 @@ public class GLEnvironment implements Environment {
 			throw(new BGL.BGLException(cmd.gl, null, exc));
 		    }
 		    sequnreg(cmd);
+		    recycle(cmd);
 		}
 		checkqueries(gl);
 		disposeall().run(gl);
@@ -346,6 +365,29 @@ public class GLEnvironment implements Environment {
 	    sequnreg(gcmd);
     }
 
+    BufferBGL arena() {
+	synchronized(arenas) {
+	    if(narenas > 0) {
+		BufferBGL ret = arenas[--narenas];
+		arenas[narenas] = null;
+		return(ret);
+	    }
+	}
+	return(new BufferBGL());
+    }
+
+    /* Takes back the command buffer of a render that has been run,
+     * so that it cannot be recorded into again from the render. */
+    private void recycle(GLRender cmd) {
+	BufferBGL buf = cmd.gl;
+	cmd.gl = null;
+	buf.reset();
+	synchronized(arenas) {
+	    if(narenas < arenas.length)
+		arenas[narenas++] = buf;
+	}
+    }
+
     public void submitwait() throws InterruptedException {
 	synchronized(submitted) {
 	    while(submitted.peek() == null)
@@ -358,7 +400,7 @@ public class GLEnvironment implements Environment {
 	synchronized(seqmon) {
 	    tail = seqtail;
 	}
-	BufferBGL buf = new BufferBGL();
+	BufferBGL buf = disparena.reset();
 	Collection<GLObject> copy;
 	synchronized(disposed) {
 	    if(disposed.isEmpty())
@@ -906,6 +948,38 @@ public class GLEnvironment implements Environment {
     }
 
     public int numprogs() {return(nprog);}
+
+    /* Draw calls and state switches made by draw lists during a
+     * frame. The frame loop collects them with cycle(), after which
+     * counting starts over for the next frame. */
+    public static class DrawStats {
+	public int lists, slots, progs, texs, bufs, imm;
+
+	synchronized void add(int slots, int progs, int texs, int bufs) {
+	    this.lists++;
+	    this.slots += slots;
+	    this.progs += progs;
+	    this.texs += texs;
+	    this.bufs += bufs;
+	}
+
+	synchronized void immediate() {
+	    imm++;
+	}
+
+	public synchronized DrawStats cycle() {
+	    DrawStats ret = new DrawStats();
+	    ret.lists = lists; ret.slots = slots; ret.progs = progs;
+	    ret.texs = texs; ret.bufs = bufs; ret.imm = imm;
+	    lists = slots = progs = texs = bufs = imm = 0;
+	    return(ret);
+	}
+
+	public String toString() {
+	    return(String.format("%,d slots in %,d lists (%,d prog, %,d tex, %,d buf), %,d immediate", slots, lists, progs, texs, bufs, imm));
+	}
+    }
+    public final DrawStats drawstats = new DrawStats();
     public Caps caps() {return(caps);}
 
     public String memstats() {
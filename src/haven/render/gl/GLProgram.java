@@ -29,6 +29,7 @@ package haven.render.gl;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
+import java.nio.ByteBuffer;
 import com.jogamp.opengl.*;
 import haven.Disposable;
 import haven.Utils;
@@ -47,6 +48,8 @@ public class GLProgram implements Disposable {
     public final Map<Uniform, Integer> samplerids;
     public final Uniform[] samplers;
     public final AtomicInteger locked = new AtomicInteger(0);
+    private static final AtomicInteger nextseq = new AtomicInteger(0);
+    final int sortseq = nextseq.getAndIncrement();
     private final Map<Uniform, String> unifnms;
     private final Map<Attribute, AttrID> amap;
     private final String[] fragnms;
@@ -115,7 +118,7 @@ public class GLProgram implements Disposable {
 	}
 	{
 	    this.attribs = ctx.attribs.toArray(new Attribute[0]);
-	    Arrays.sort(this.attribs, Utils.idcmp);
+	    Arrays.sort(this.attribs, attrcmp);
 	    Map<Attribute, AttrID> amap = new IdentityHashMap<>();
 	    for(int i = 0, loc = 0; i < this.attribs.length; i++) {
 		Attribute attr = this.attribs[i];
@@ -134,6 +137,27 @@ public class GLProgram implements Disposable {
 	return(1);
     }
 
+    /* Attribute locations are part of the linked program, so order
+     * attributes by their names where possible rather than by
+     * identity alone, so that the same program gets the same
+     * locations, and thus the same cached binary, across runs. */
+    private static String attrorder(Attribute attr) {
+	if(attr.name instanceof Symbol.Shared)
+	    return(((Symbol.Shared)attr.name).prefix);
+	if(attr.name instanceof Symbol.Fix)
+	    return(((Symbol.Fix)attr.name).name);
+	if(attr.name instanceof Symbol.Gen)
+	    return(((Symbol.Gen)attr.name).prefix);
+	return("");
+    }
+
+    private static final Comparator<Attribute> attrcmp = (a, b) -> {
+	int c;
+	if((c = attrorder(a).compareTo(attrorder(b))) != 0)
+	    return(c);
+	return(Utils.idcmp.compare(a, b));
+    };
+
     public static GLProgram build(GLEnvironment env, Collection<ShaderMacro> mods) {
 	ProgramContext prog = new ProgramContext();
 	for(ShaderMacro mod : mods)
@@ -182,29 +206,44 @@ public class GLProgram implements Disposable {
 	    env.prepare(this);
 	}
 
-	public void create(GL3 gl) {
+	/* Compiles the shader at once, for use while creating some
+	 * other object on the GL thread. */
+	ShaderOb(GLEnvironment env, int type, String text, GL3 gl) {
+	    super(env);
+	    this.type = type;
+	    this.text = text;
+	    create(gl);
+	}
+
+	public static int compile(GL3 gl, int type, String text, ShaderOb ob) {
 	    /* Does JOGL use the byte or char length or the supplied
 	     * String, and in case of the former, how does one know
 	     * the coding it encodes the String as so as to supply the
 	     * corrent length? It won't matter since all reasonable
 	     * programs will be ASCII, of course, but it would be
 	     * interesting to know, so to speak. */
-	    this.id = gl.glCreateShader(type);
-	    GLException.checkfor(gl, env);
-	    gl.glShaderSource(this.id, 1, new String[] {text}, new int[] {text.length()}, 0);
-	    gl.glCompileShader(this.id);
+	    int id = gl.glCreateShader(type);
+	    GLException.checkfor(gl, (ob == null) ? null : ob.env);
+	    gl.glShaderSource(id, 1, new String[] {text}, new int[] {text.length()}, 0);
+	    gl.glCompileShader(id);
 	    int[] buf = {0};
-	    gl.glGetShaderiv(this.id, GL3.GL_COMPILE_STATUS, buf, 0);
+	    gl.glGetShaderiv(id, GL3.GL_COMPILE_STATUS, buf, 0);
 	    if(buf[0] != 1) {
 		String info = null;
-		gl.glGetShaderiv(this.id, GL3.GL_INFO_LOG_LENGTH, buf, 0);
+		gl.glGetShaderiv(id, GL3.GL_INFO_LOG_LENGTH, buf, 0);
 		if(buf[0] > 0) {
 		    byte[] logbuf = new byte[buf[0]];
-		    gl.glGetShaderInfoLog(this.id, logbuf.length, buf, 0, logbuf, 0);
+		    gl.glGetShaderInfoLog(id, logbuf.length, buf, 0, logbuf, 0);
 		    info = new String(logbuf, 0, buf[0]);
 		}
-		throw(new ShaderException("Failed to compile shader", this, info));
+		gl.glDeleteShader(id);
+		throw(new ShaderException("Failed to compile shader", ob, info));
 	    }
+	    return(id);
+	}
+
+	public void create(GL3 gl) {
+	    this.id = compile(gl, type, text, this);
 	}
 
 	protected void delete(GL3 gl) {
@@ -284,9 +323,16 @@ public class GLProgram implements Disposable {
 	public final ShaderOb[] shaders;
 	private int id;
 
+	private ProgramCache.Binary bin;
+
 	public ProgOb(GLEnvironment env, ShaderOb... shaders) {
+	    this(env, null, shaders);
+	}
+
+	private ProgOb(GLEnvironment env, ProgramCache.Binary bin, ShaderOb... shaders) {
 	    super(env);
 	    this.shaders = shaders;
+	    this.bin = bin;
 	    env.prepare(this);
 	    for(Map.Entry<Uniform, String> uni : GLProgram.this.unifnms.entrySet()) {
 		UniformID id = uniresolve(uni.getKey().type, uni.getValue());
@@ -322,18 +368,63 @@ public class GLProgram implements Disposable {
 	    return(ret);
 	}
 
+	private boolean loadbin(GL3 gl) {
+	    ProgramCache.Binary bin = this.bin;
+	    this.bin = null;
+	    gl.glProgramBinary(this.id, bin.format, ByteBuffer.wrap(bin.data), bin.data.length);
+	    int[] buf = {0};
+	    gl.glGetProgramiv(this.id, GL3.GL_LINK_STATUS, buf, 0);
+	    if((gl.glGetError() == 0) && (buf[0] == 1))
+		return(true);
+	    env.progcache.rejected(cachesrc());
+	    /* A failed glProgramBinary leaves the program object in
+	     * an unlinked state, but start over with a fresh one to
+	     * be safe. */
+	    gl.glDeleteProgram(this.id);
+	    this.id = gl.glCreateProgram();
+	    return(false);
+	}
+
 	public void create(GL3 gl) {
 	    this.id = gl.glCreateProgram();
-	    for(ShaderOb sh : shaders)
-		gl.glAttachShader(this.id, sh.glid());
+	    if((bin != null) && loadbin(gl))
+		return;
+	    ShaderOb[] tmp = null;
+	    if(shaders.length > 0) {
+		for(ShaderOb sh : shaders)
+		    gl.glAttachShader(this.id, sh.glid());
+	    } else {
+		/* Created for a cached binary that was then refused,
+		 * so compile the shaders from source here instead. */
+		tmp = new ShaderOb[2];
+		tmp[0] = new ShaderOb(env, GL3.GL_VERTEX_SHADER, vsrc, gl);
+		try {
+		    tmp[1] = new ShaderOb(env, GL3.GL_FRAGMENT_SHADER, fsrc, gl);
+		} catch(RuntimeException e) {
+		    tmp[0].dispose();
+		    throw(e);
+		}
+		for(ShaderOb sh : tmp)
+		    gl.glAttachShader(this.id, sh.glid());
+	    }
 	    for(AttrID attr : amap.values())
 		gl.glBindAttribLocation(this.id, attr.id, attr.name);
 	    for(int i = 0; i < fragdata.length; i++)
 		gl.glBindFragDataLocation(this.id, i, fragnms[i]);
+	    boolean save = (env.progcache != null) && env.progcache.binary;
+	    if(save)
+		gl.glProgramParameteri(this.id, GL3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
 	    gl.glLinkProgram(this.id);
+	    if(tmp != null) {
+		for(ShaderOb sh : tmp)
+		    sh.dispose();
+	    }
 	    int[] buf = {0};
 	    gl.glGetProgramiv(this.id, GL3.GL_LINK_STATUS, buf, 0);
-	    if(buf[0] != 1) {
+	    if(buf[0] == 1) {
+		if(save)
+		    env.progcache.fetch(gl, this.id, cachesrc());
+	    } else {
 		String info = null;
 		gl.glGetProgramiv(this.id, GL3.GL_INFO_LOG_LENGTH, buf, 0);
 		if(buf[0] > 0) {
@@ -380,16 +471,39 @@ public class GLProgram implements Disposable {
 	}
     }
 
+    private ProgramCache.Source cachesrc;
+    ProgramCache.Source cachesrc() {
+	if(cachesrc == null) {
+	    String[] anames = new String[amap.size()];
+	    int[] alocs = new int[amap.size()];
+	    for(int i = 0; i < attribs.length; i++) {
+		AttrID id = amap.get(attribs[i]);
+		anames[i] = id.name;
+		alocs[i] = id.id;
+	    }
+	    cachesrc = new ProgramCache.Source(vsrc, fsrc, anames, alocs, fragnms);
+	}
+	return(cachesrc);
+    }
+
     public ProgOb glid() {
 	ProgOb glp;
 	if((glp = this.glp) == null) {
+	    /* The cached binary may have to be read from disk, so do
+	     * that without holding the lock. At worst, a racing
+	     * thread reads it in vain. */
+	    ProgramCache.Binary bin = (env.progcache == null) ? null : env.progcache.binary(cachesrc());
 	    synchronized(this) {
 		if(disposed)
 		    throw(new RuntimeException("reusing disposed program"));
 		if((glp = this.glp) == null) {
-		    glp = new ProgOb(env,
-				     new ShaderOb(env, GL3.GL_VERTEX_SHADER, vsrc),
-				     new ShaderOb(env, GL3.GL_FRAGMENT_SHADER, fsrc));
+		    if(bin != null) {
+			glp = new ProgOb(env, bin);
+		    } else {
+			glp = new ProgOb(env,
+					 new ShaderOb(env, GL3.GL_VERTEX_SHADER, vsrc),
+					 new ShaderOb(env, GL3.GL_FRAGMENT_SHADER, fsrc));
+		    }
 		    this.glp = glp;
 		}
 	    }
@@ -50,7 +50,7 @@ public class GLRender implements Render, Disposable {
 
     BGL gl() {
 	if(this.gl == null) {
-	    this.gl = new BufferBGL();
+	    this.gl = env.arena();
 	    this.init = state.clone();
 	    if(this.init.prog() != null)
 		this.init.prog().glid();
@@ -162,6 +162,7 @@ public class GLRender implements Render, Disposable {
 
     public void draw(Pipe pipe, Model data) {
 	state.apply(this.gl, pipe);
+	env.drawstats.immediate();
 	if(GLVertexArray.ephemeralp(data)) {
 	    Disposable indo = null;
 	    if(data.ind != null)
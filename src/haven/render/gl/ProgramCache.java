@@ -0,0 +1,431 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.render.gl;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.jogamp.opengl.*;
+import haven.*;
+
+/* Persistent cache of linked programs, so that the shaders need
+ * not be compiled anew on every start. Binaries are only valid for
+ * the exact driver that produced them, so they are keyed by the
+ * driver identity together with a hash of the generated sources and
+ * bindings. The sources are kept as well, keyed by themselves only,
+ * so that programs used in earlier sessions can be relinked in the
+ * background ahead of use when the driver has changed, or, on
+ * drivers without program binaries, at least to warm up whatever
+ * cache the driver keeps on its own. */
+public class ProgramCache {
+    public static boolean enabled = Config.progcache;
+    public static int maxwarm = Config.progwarm;
+    private static final int BINVER = 1, SRCVER = 1, IDXVER = 1;
+    private static final String PREFIX = "glprog/";
+    public final ResCache back;
+    public final String driver;
+    public final boolean binary;
+    /* Binaries read ahead by warm(), until first used. Bounded by
+     * size, since programs the session never uses would otherwise
+     * stay here for its duration. The oldest are dropped first, and
+     * are read again from the cache if they turn out to be used. */
+    private static final long MAXLOADED = 16 << 20;
+    private final Map<String, Binary> loaded = new LinkedHashMap<>();
+    private long loadedsz = 0;
+    private final Map<String, Boolean> index = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+		return(size() > maxwarm);
+	    }
+	};
+    private boolean indexdirty = false, indexsaving = false;
+    private int hits, misses, stored, rejected, warmed;
+
+    public static class Binary {
+	public final int format;
+	public final byte[] data;
+
+	public Binary(int format, byte[] data) {
+	    this.format = format;
+	    this.data = data;
+	}
+    }
+
+    public static class Source {
+	public final String vsrc, fsrc;
+	public final String[] anames, fragnms;
+	public final int[] alocs;
+	public final String key;
+
+	public Source(String vsrc, String fsrc, String[] anames, int[] alocs, String[] fragnms) {
+	    this.vsrc = vsrc;
+	    this.fsrc = fsrc;
+	    this.anames = anames;
+	    this.alocs = alocs;
+	    this.fragnms = fragnms;
+	    this.key = hash(encode());
+	}
+
+	private byte[] encode() {
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    try(DataOutputStream out = new DataOutputStream(buf)) {
+		out.writeInt(SRCVER);
+		writestr(out, vsrc);
+		writestr(out, fsrc);
+		out.writeInt(anames.length);
+		for(int i = 0; i < anames.length; i++) {
+		    out.writeUTF(anames[i]);
+		    out.writeInt(alocs[i]);
+		}
+		out.writeInt(fragnms.length);
+		for(String nm : fragnms)
+		    out.writeUTF(nm);
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	    return(buf.toByteArray());
+	}
+
+	private static Source decode(InputStream fp) throws IOException {
+	    DataInputStream in = new DataInputStream(fp);
+	    if(in.readInt() != SRCVER)
+		return(null);
+	    String vsrc = readstr(in), fsrc = readstr(in);
+	    int na = in.readInt();
+	    String[] anames = new String[na];
+	    int[] alocs = new int[na];
+	    for(int i = 0; i < na; i++) {
+		anames[i] = in.readUTF();
+		alocs[i] = in.readInt();
+	    }
+	    String[] fragnms = new String[in.readInt()];
+	    for(int i = 0; i < fragnms.length; i++)
+		fragnms[i] = in.readUTF();
+	    return(new Source(vsrc, fsrc, anames, alocs, fragnms));
+	}
+
+	/* Generated shaders may exceed the 64k limit of writeUTF. */
+	private static void writestr(DataOutputStream out, String str) throws IOException {
+	    byte[] enc = str.getBytes(Utils.utf8);
+	    out.writeInt(enc.length);
+	    out.write(enc);
+	}
+
+	private static String readstr(DataInputStream in) throws IOException {
+	    byte[] enc = new byte[in.readInt()];
+	    in.readFully(enc);
+	    return(new String(enc, Utils.utf8));
+	}
+    }
+
+    public ProgramCache(ResCache back, GLEnvironment.Caps caps) {
+	this.back = back;
+	this.driver = caps.vendor + "\0" + caps.renderer + "\0" + caps.version;
+	this.binary = caps.progbinary;
+    }
+
+    private static String hash(byte[] data) {
+	MessageDigest dig;
+	try {
+	    dig = MessageDigest.getInstance("SHA-256");
+	} catch(NoSuchAlgorithmException e) {
+	    throw(new AssertionError(e));
+	}
+	return(Utils.byte2hex(dig.digest(data)));
+    }
+
+    private String binkey(Source src) {
+	return(hash((driver + "\0" + src.key).getBytes(Utils.utf8)));
+    }
+
+    private Binary readbin(String key) {
+	try(InputStream fp = back.fetch(PREFIX + "bin/" + key)) {
+	    DataInputStream in = new DataInputStream(fp);
+	    if(in.readInt() != BINVER)
+		return(null);
+	    int format = in.readInt();
+	    byte[] data = new byte[in.readInt()];
+	    in.readFully(data);
+	    return(new Binary(format, data));
+	} catch(IOException e) {
+	    return(null);
+	}
+    }
+
+    /* Called when a program is about to be created; returns its
+     * binary if one is known for this driver. */
+    public Binary binary(Source src) {
+	used(src);
+	if(!binary)
+	    return(null);
+	String key = binkey(src);
+	Binary ret;
+	synchronized(loaded) {
+	    if((ret = loaded.remove(key)) != null)
+		loadedsz -= ret.data.length;
+	}
+	if(ret == null)
+	    ret = readbin(key);
+	synchronized(this) {
+	    if(ret != null)
+		hits++;
+	    else
+		misses++;
+	}
+	return(ret);
+    }
+
+    /* Called when a binary was refused by the driver, which may
+     * happen even for matching driver strings. */
+    public void rejected(Source src) {
+	synchronized(this) {
+	    rejected++;
+	}
+    }
+
+    public void store(Source src, Binary bin) {
+	String key = binkey(src);
+	Defer.later(() -> {
+		try(OutputStream fp = back.store(PREFIX + "bin/" + key)) {
+		    DataOutputStream out = new DataOutputStream(fp);
+		    out.writeInt(BINVER);
+		    out.writeInt(bin.format);
+		    out.writeInt(bin.data.length);
+		    out.write(bin.data);
+		    out.flush();
+		} catch(IOException e) {
+		    return(null);
+		}
+		synchronized(this) {
+		    stored++;
+		}
+		return(null);
+	    });
+    }
+
+    /* Retrieve the binary of a successfully linked program, if the
+     * driver will provide it. Must be called on the GL thread. */
+    public void fetch(GL3 gl, int id, Source src) {
+	if(!binary)
+	    return;
+	int[] buf = {0, 0};
+	gl.glGetProgramiv(id, GL3.GL_PROGRAM_BINARY_LENGTH, buf, 0);
+	if((gl.glGetError() != 0) || (buf[0] <= 0))
+	    return;
+	ByteBuffer data = ByteBuffer.allocateDirect(buf[0]);
+	gl.glGetProgramBinary(id, buf[0], buf, 0, buf, 1, data);
+	if(gl.glGetError() != 0)
+	    return;
+	byte[] bin = new byte[buf[0]];
+	data.get(bin);
+	store(src, new Binary(buf[1], bin));
+    }
+
+    private void used(Source src) {
+	boolean nw;
+	synchronized(index) {
+	    nw = index.put(src.key, Boolean.TRUE) == null;
+	    if(!nw)
+		return;
+	    indexdirty = true;
+	}
+	Defer.later(() -> {
+		try {
+		    try(OutputStream fp = back.store(PREFIX + "src/" + src.key)) {
+			fp.write(src.encode());
+		    }
+		    saveindex();
+		} catch(IOException e) {
+		}
+		return(null);
+	    });
+    }
+
+    private void saveindex() throws IOException {
+	List<String> keys;
+	synchronized(index) {
+	    if(!indexdirty || indexsaving)
+		return;
+	    keys = new ArrayList<>(index.keySet());
+	    indexdirty = false;
+	    indexsaving = true;
+	}
+	try(OutputStream fp = back.store(PREFIX + "index")) {
+	    DataOutputStream out = new DataOutputStream(fp);
+	    out.writeInt(IDXVER);
+	    out.writeInt(keys.size());
+	    for(String key : keys)
+		out.writeUTF(key);
+	    out.flush();
+	} finally {
+	    synchronized(index) {
+		indexsaving = false;
+	    }
+	}
+    }
+
+    private List<String> loadindex() {
+	List<String> ret = new ArrayList<>();
+	try(InputStream fp = back.fetch(PREFIX + "index")) {
+	    DataInputStream in = new DataInputStream(fp);
+	    if(in.readInt() != IDXVER)
+		return(ret);
+	    for(int i = 0, n = in.readInt(); i < n; i++)
+		ret.add(in.readUTF());
+	} catch(IOException e) {
+	}
+	return(ret);
+    }
+
+    /* Compile and link a program from cached sources, outside of
+     * any GLProgram, so as to get its binary ahead of use. */
+    private void prelink(GL3 gl, Source src) {
+	int[] sh = {
+	    GLProgram.ShaderOb.compile(gl, GL3.GL_VERTEX_SHADER, src.vsrc, null),
+	    GLProgram.ShaderOb.compile(gl, GL3.GL_FRAGMENT_SHADER, src.fsrc, null),
+	};
+	int id = gl.glCreateProgram();
+	try {
+	    for(int s : sh)
+		gl.glAttachShader(id, s);
+	    for(int i = 0; i < src.anames.length; i++)
+		gl.glBindAttribLocation(id, src.alocs[i], src.anames[i]);
+	    for(int i = 0; i < src.fragnms.length; i++)
+		gl.glBindFragDataLocation(id, i, src.fragnms[i]);
+	    if(binary)
+		gl.glProgramParameteri(id, GL3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
+	    gl.glLinkProgram(id);
+	    int[] buf = {0};
+	    gl.glGetProgramiv(id, GL3.GL_LINK_STATUS, buf, 0);
+	    if(buf[0] == 1)
+		fetch(gl, id, src);
+	} finally {
+	    gl.glDeleteProgram(id);
+	    for(int s : sh)
+		gl.glDeleteShader(s);
+	}
+    }
+
+    private void preloaded(String key, Binary bin) {
+	synchronized(loaded) {
+	    Binary prev = loaded.put(key, bin);
+	    if(prev != null)
+		loadedsz -= prev.data.length;
+	    loadedsz += bin.data.length;
+	    for(Iterator<Binary> i = loaded.values().iterator(); (loadedsz > MAXLOADED) && i.hasNext();) {
+		loadedsz -= i.next().data.length;
+		i.remove();
+	    }
+	}
+    }
+
+    private void warm(GLEnvironment env) throws InterruptedException {
+	List<String> keys = loadindex();
+	synchronized(index) {
+	    for(String key : keys) {
+		if(!index.containsKey(key))
+		    index.put(key, Boolean.TRUE);
+	    }
+	}
+	for(String key : keys) {
+	    Source src;
+	    try(InputStream fp = back.fetch(PREFIX + "src/" + key)) {
+		src = Source.decode(fp);
+	    } catch(IOException e) {
+		continue;
+	    }
+	    if((src == null) || !src.key.equals(key))
+		continue;
+	    if(binary) {
+		String bkey = binkey(src);
+		Binary bin = readbin(bkey);
+		if(bin != null) {
+		    preloaded(bkey, bin);
+		    continue;
+		}
+	    }
+	    /* Submit one program at a time, so as not to stall the
+	     * GL thread for long at any point. */
+	    boolean[] done = {false};
+	    env.prepare(new BGL.Request() {
+		    public void run(GL3 gl) {
+			try {
+			    prelink(gl, src);
+			} catch(RuntimeException e) {
+			    /* Whatever fails here will fail again, and be
+			     * reported, when the program is used. */
+			}
+			synchronized(done) {
+			    done[0] = true;
+			    done.notifyAll();
+			}
+		    }
+
+		    public void abort() {
+			synchronized(done) {
+			    done[0] = true;
+			    done.notifyAll();
+			}
+		    }
+		});
+	    synchronized(done) {
+		long st = System.currentTimeMillis();
+		while(!done[0]) {
+		    long rem = 10000 - (System.currentTimeMillis() - st);
+		    if(rem <= 0)
+			return;
+		    done.wait(rem);
+		}
+	    }
+	    synchronized(this) {
+		warmed++;
+	    }
+	}
+    }
+
+    public void warm(final GLEnvironment env, boolean bg) {
+	Runnable task = () -> {
+	    try {
+		warm(env);
+	    } catch(InterruptedException e) {
+	    }
+	};
+	if(bg) {
+	    Thread th = new HackThread(task, "Program cache warmer");
+	    th.setDaemon(true);
+	    th.start();
+	} else {
+	    task.run();
+	}
+    }
+
+    public synchronized String stats() {
+	return(String.format("%s, %d hits, %d misses, %d stored, %d rejected, %d warmed",
+			     binary ? "binaries" : "sources only", hits, misses, stored, rejected, warmed));
+    }
+}
@@ -0,0 +1,120 @@
+package haven.test;
+
+import java.util.*;
+import haven.*;
+import haven.render.*;
+
+/* Compares the mipmappers for speed, building complete chains level
+ * by level as well as with Mipmapper.chain, serially and in
+ * parallel, and for quality, as the PSNR of each level against an
+ * exact area average of the base image over its opaque pixels.
+ * Usage: MipBench [SIZE [ROUNDS]] */
+public class MipBench {
+    static final String[] names = {"avg", "rnd", "cnt", "dav", "lanczos"};
+    static final Mipmapper[] filters = {Mipmapper.avg, Mipmapper.rnd, Mipmapper.cnt, Mipmapper.dav, Mipmapper.lanczos};
+
+    /* Smooth gradients and noise, with some cut-out shapes. */
+    static byte[] mkimg(Random rnd, int sz) {
+	byte[] ret = new byte[sz * sz * 4];
+	for(int y = 0, o = 0; y < sz; y++) {
+	    for(int x = 0; x < sz; x++, o += 4) {
+		ret[o + 0] = (byte)((x * 255) / sz);
+		ret[o + 1] = (byte)(128 + (Math.sin(y * 0.05) * 100) + rnd.nextInt(20));
+		ret[o + 2] = (byte)(((x ^ y) & 16) * 12);
+		boolean hole = (((x / 37) + (y / 53)) % 5) == 0;
+		ret[o + 3] = (byte)(hole ? 0 : 255);
+	    }
+	}
+	return(ret);
+    }
+
+    static List<byte[]> bylevel(Mipmapper m, int sz, byte[] base) {
+	List<byte[]> ret = new ArrayList<>();
+	VectorFormat fmt = new VectorFormat(4, NumberFormat.UNORM8);
+	Coord dim = Coord.of(sz, sz);
+	byte[] cur = base;
+	while((dim.x > 1) || (dim.y > 1)) {
+	    ret.add(cur = m.gen4(dim, cur, fmt));
+	    dim = Mipmapper.nextsz(dim);
+	}
+	return(ret);
+    }
+
+    static double time(Runnable task, int rounds) {
+	for(int i = 0; i < 2; i++)
+	    task.run();
+	long st = System.nanoTime();
+	for(int i = 0; i < rounds; i++)
+	    task.run();
+	return((System.nanoTime() - st) / 1e6 / rounds);
+    }
+
+    static double psnr(byte[] base, int sz, Mipmapper.Chain chain, int lvl) {
+	Coord dim = chain.dims[lvl];
+	int f = sz / dim.x;
+	byte[] lv = new byte[dim.x * dim.y * 4];
+	chain.level(lvl).get(lv);
+	double err = 0;
+	long n = 0;
+	for(int y = 0; y < dim.y; y++) {
+	    for(int x = 0; x < dim.x; x++) {
+		double[] acc = new double[3];
+		int na = 0;
+		for(int sy = y * f; sy < (y + 1) * f; sy++) {
+		    for(int sx = x * f; sx < (x + 1) * f; sx++) {
+			int o = ((sy * sz) + sx) * 4;
+			if((base[o + 3] & 0xff) < 128)
+			    continue;
+			for(int c = 0; c < 3; c++)
+			    acc[c] += base[o + c] & 0xff;
+			na++;
+		    }
+		}
+		int o = ((y * dim.x) + x) * 4;
+		if((na * 2 < f * f) || ((lv[o + 3] & 0xff) < 128))
+		    continue;
+		for(int c = 0; c < 3; c++) {
+		    double d = (acc[c] / na) - (lv[o + c] & 0xff);
+		    err += d * d;
+		}
+		n += 3;
+	    }
+	}
+	if(n == 0)
+	    return(Double.NaN);
+	return((err == 0) ? Double.POSITIVE_INFINITY : 10 * Math.log10((255.0 * 255.0) / (err / n)));
+    }
+
+    public static void main(String[] args) {
+	int sz = (args.length > 0) ? Integer.parseInt(args[0]) : 2048;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+	byte[] base = mkimg(new Random(4711), sz);
+	int threads = Mipmapper.threads;
+	System.out.printf("%dx%d, %d threads\n", sz, sz, threads);
+	System.out.printf("%-8s %10s %10s %10s   %s\n", "filter", "bylevel", "serial", "parallel", "PSNR by level (dB)");
+	for(int i = 0; i < filters.length; i++) {
+	    Mipmapper m = filters[i];
+	    double bl = time(() -> bylevel(m, sz, base), rounds);
+	    Mipmapper.threads = 1;
+	    double ser = time(() -> Mipmapper.chain(m, Coord.of(sz, sz), base), rounds);
+	    Mipmapper.threads = threads;
+	    double par = time(() -> Mipmapper.chain(m, Coord.of(sz, sz), base), rounds);
+	    Mipmapper.Chain chain = Mipmapper.chain(m, Coord.of(sz, sz), base);
+	    /* The chain must match building level by level exactly,
+	     * except for the random filter. */
+	    if(m != Mipmapper.rnd) {
+		List<byte[]> ref = bylevel(m, sz, base);
+		for(int l = 0; l < ref.size(); l++) {
+		    byte[] lv = new byte[ref.get(l).length];
+		    chain.level(l + 1).get(lv);
+		    if(!Arrays.equals(lv, ref.get(l)))
+			throw(new AssertionError(names[i] + ": level " + (l + 1) + " differs"));
+		}
+	    }
+	    StringBuilder q = new StringBuilder();
+	    for(int l = 1; l < Math.min(chain.levels(), 7); l++)
+		q.append(String.format(" %5.1f", psnr(base, sz, chain, l)));
+	    System.out.printf("%-8s %7.2f ms %7.2f ms %7.2f ms  %s\n", names[i], bl, ser, par, q);
+	}
+    }
+}
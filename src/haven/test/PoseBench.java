@@ -0,0 +1,76 @@
+package haven.test;
+
+import java.util.*;
+import haven.*;
+import haven.Skeleton.*;
+
+/* Times the pose evaluation of a herd of animals playing the same
+ * looping animation in random phases, with and without shared
+ * samples. Usage: PoseBench [ANIMALS [BONES [FRAMES]]] */
+public class PoseBench {
+    public static Skeleton mkskel(Random rnd, int nb) {
+	List<Bone> bones = new ArrayList<>();
+	for(int i = 0; i < nb; i++) {
+	    Bone b = new Bone("b" + i, new Coord3f(rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat()),
+			      new Coord3f(rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat() + 0.1f).norm(), rnd.nextFloat() * 3);
+	    if(i > 0)
+		b.parent = bones.get(rnd.nextInt(i));
+	    bones.add(b);
+	}
+	return(new Skeleton(bones));
+    }
+
+    public static Track[] mktracks(Random rnd, Skeleton skel, float len, float fps) {
+	Track[] ret = new Track[skel.blist.length];
+	int nf = (int)(len * fps);
+	for(int i = 0; i < ret.length; i++) {
+	    Track.Frame[] frames = new Track.Frame[nf];
+	    for(int o = 0; o < nf; o++) {
+		float ang = rnd.nextFloat() * 0.5f;
+		Coord3f ax = new Coord3f(rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat() + 0.1f).norm();
+		float m = (float)Math.sin(ang / 2);
+		float[] rot = {(float)Math.cos(ang / 2), ax.x * m, ax.y * m, ax.z * m};
+		float[] trans = {rnd.nextFloat() * 0.1f, rnd.nextFloat() * 0.1f, rnd.nextFloat() * 0.1f};
+		frames[o] = new Track.Frame(o / fps, trans, rot);
+	    }
+	    Bone b = skel.bones.get("b" + i);
+	    ret[b.idx] = new Track(b.name, frames);
+	}
+	return(ret);
+    }
+
+    private static double run(List<Composited> herd, int frames) {
+	long st = System.nanoTime();
+	for(int f = 0; f < frames; f++) {
+	    for(Composited comp : herd)
+		comp.poses.tick(1.0f / 60.0f);
+	}
+	return((System.nanoTime() - st) / 1e6 / frames);
+    }
+
+    public static void main(String[] args) {
+	int num = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+	int nb = (args.length > 1) ? Integer.parseInt(args[1]) : 40;
+	int frames = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+	Random rnd = new Random(4711);
+	Skeleton skel = mkskel(rnd, nb);
+	TrackSet anim = skel.new TrackSet(mktracks(rnd, skel, 2.0f, 30), 2.0f);
+	List<Composited> herd = new ArrayList<>();
+	for(int i = 0; i < num; i++) {
+	    Composited comp = new Composited(skel);
+	    TrackMod mod = skel.new TrackMod(Skeleton.ModOwner.nil, anim, new FxTrack[0], WrapMode.LOOP);
+	    mod.age();
+	    comp.new Poses(Collections.singletonList(mod)).set(0);
+	    herd.add(comp);
+	}
+	float quant = Skeleton.posequant;
+	for(int round = 0; round < 3; round++) {
+	    Skeleton.posequant = 0;
+	    double plain = run(herd, frames);
+	    Skeleton.posequant = quant;
+	    double shared = run(herd, frames);
+	    System.out.printf("%d animals, %d bones: %.3f ms/frame unshared, %.3f ms/frame shared\n", num, nb, plain, shared);
+	}
+	System.out.println(Skeleton.posestats());
+    }
+}
@@ -0,0 +1,115 @@
+package haven.test;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import haven.*;
+import dolda.xiphutil.*;
+import com.jcraft.jorbis.DspState;
+
+/* Decodes a corpus of Vorbis clips with the reference and the fast
+ * decoder modes, checks that both produce bit-identical samples, and
+ * reports the decode throughput of each, on one thread and on
+ * several at once. Each argument is either an Ogg file or the name of
+ * a resource, all of whose audio layers are used.
+ * Usage: VorbisBench [-r ROUNDS] [-t THREADS] CLIP... */
+public class VorbisBench {
+    static List<byte[]> corpus(List<String> names) throws IOException {
+	List<byte[]> ret = new ArrayList<>();
+	for(String nm : names) {
+	    Path file = Utils.path(nm);
+	    if(Files.exists(file)) {
+		ret.add(Files.readAllBytes(file));
+	    } else {
+		for(Resource.Audio clip : Resource.remote().loadwait(nm).layers(Resource.audio))
+		    ret.add(clip.coded);
+	    }
+	}
+	return(ret);
+    }
+
+    static float[][] decode(byte[] coded, boolean fast) throws IOException {
+	DspState.fastdecode = fast;
+	return(PCMCache.decode(coded).data);
+    }
+
+    static void check(List<byte[]> corpus) throws IOException {
+	long ns = 0;
+	for(int i = 0; i < corpus.size(); i++) {
+	    float[][] ref = decode(corpus.get(i), false);
+	    float[][] fast = decode(corpus.get(i), true);
+	    if(ref.length != fast.length)
+		throw(new AssertionError("clip " + i + ": channel counts differ"));
+	    for(int ch = 0; ch < ref.length; ch++) {
+		if(ref[ch].length != fast[ch].length)
+		    throw(new AssertionError("clip " + i + ": lengths differ"));
+		for(int sm = 0; sm < ref[ch].length; sm++) {
+		    if(Float.floatToRawIntBits(ref[ch][sm]) != Float.floatToRawIntBits(fast[ch][sm]))
+			throw(new AssertionError("clip " + i + ": channel " + ch + " differs at sample " + sm));
+		}
+		ns += ref[ch].length;
+	    }
+	}
+	System.out.printf("%d clips, %d samples: bit-exact\n", corpus.size(), ns);
+    }
+
+    /* Returns the decoded samples per second over all threads. */
+    static double run(List<byte[]> corpus, boolean fast, int threads, int rounds) throws Exception {
+	DspState.fastdecode = fast;
+	long[] count = new long[threads];
+	Thread[] th = new Thread[threads];
+	long st = System.nanoTime();
+	for(int t = 0; t < threads; t++) {
+	    int id = t;
+	    th[t] = new Thread(() -> {
+		    try {
+			for(int r = 0; r < rounds; r++) {
+			    for(byte[] coded : corpus) {
+				VorbisStream str = new VorbisStream(new ByteArrayInputStream(coded));
+				float[][] buf = new float[str.chn][4096];
+				int ret;
+				while((ret = str.decode(buf, 0, 4096)) >= 0)
+				    count[id] += ret;
+			    }
+			}
+		    } catch(IOException e) {
+			throw(new RuntimeException(e));
+		    }
+	    });
+	    th[t].start();
+	}
+	long total = 0;
+	for(int t = 0; t < threads; t++) {
+	    th[t].join();
+	    total += count[t];
+	}
+	return(total / ((System.nanoTime() - st) / 1e9));
+    }
+
+    public static void main(String[] args) throws Exception {
+	int rounds = 10, threads = Runtime.getRuntime().availableProcessors();
+	List<String> names = new ArrayList<>();
+	for(int i = 0; i < args.length; i++) {
+	    if(args[i].equals("-r"))
+		rounds = Integer.parseInt(args[++i]);
+	    else if(args[i].equals("-t"))
+		threads = Integer.parseInt(args[++i]);
+	    else
+		names.add(args[i]);
+	}
+	List<byte[]> corpus = corpus(names);
+	if(corpus.isEmpty()) {
+	    System.err.println("usage: VorbisBench [-r ROUNDS] [-t THREADS] CLIP...");
+	    System.exit(1);
+	}
+	check(corpus);
+	System.out.printf("%-10s %14s %14s\n", "mode", "1 thread", threads + " threads");
+	for(int round = 0; round < 3; round++) {
+	    for(boolean fast : new boolean[] {false, true}) {
+		double one = run(corpus, fast, 1, rounds);
+		double par = run(corpus, fast, threads, rounds);
+		System.out.printf("%-10s %10.2f Ms/s %10.2f Ms/s\n", fast ? "fast" : "reference", one / 1e6, par / 1e6);
+	    }
+	}
+    }
+}